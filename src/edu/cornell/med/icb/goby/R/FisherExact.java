@@ -96,26 +96,30 @@ public final class FisherExact {
         final Result result;
         final Rengine rengine = GobyRengine.getInstance().getRengine();
         if (rengine != null && rengine.isAlive()) {
-            final boolean vectorAssignResult = rengine.assign("vector", vector);
-            if (LOG.isDebugEnabled()) {
-                LOG.debug("Vector assigned: " + vectorAssignResult);
-                final REXP vectorExpression = rengine.eval("vector");
-                LOG.debug("Vector: " + vectorExpression);
+            // the engine evaluates one expression at a time, and expressions refer to global R variables.
+            // Annotation records and site statistics call this method from several threads:
+            synchronized (rengine) {
+                final boolean vectorAssignResult = rengine.assign("vector", vector);
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Vector assigned: " + vectorAssignResult);
+                    final REXP vectorExpression = rengine.eval("vector");
+                    LOG.debug("Vector: " + vectorExpression);
+                }
+
+                final StringBuilder fisherExpression = new StringBuilder(128);
+                fisherExpression.append("fisher.test(matrix(vector,");
+                fisherExpression.append(nrows);
+                fisherExpression.append(',');
+                fisherExpression.append(ncols);
+                fisherExpression.append("), hybrid=");
+                fisherExpression.append(
+                        BooleanUtils.toStringTrueFalse(hybrid).toUpperCase(Locale.getDefault()));
+                fisherExpression.append(", alternative=\"");
+                fisherExpression.append(alternativeHypothesis);
+                fisherExpression.append("\")");
+                final boolean is2x2 = nrows == 2 && ncols == 2;
+                result = evaluateFisherExpression(rengine, fisherExpression.toString(), is2x2);
             }
-
-            final StringBuilder fisherExpression = new StringBuilder(128);
-            fisherExpression.append("fisher.test(matrix(vector,");
-            fisherExpression.append(nrows);
-            fisherExpression.append(',');
-            fisherExpression.append(ncols);
-            fisherExpression.append("), hybrid=");
-            fisherExpression.append(
-                    BooleanUtils.toStringTrueFalse(hybrid).toUpperCase(Locale.getDefault()));
-            fisherExpression.append(", alternative=\"");
-            fisherExpression.append(alternativeHypothesis);
-            fisherExpression.append("\")");
-            final boolean is2x2 = nrows == 2 && ncols == 2;
-            result = evaluateFisherExpression(rengine, fisherExpression.toString(), is2x2);
         } else {
             LOG.warn(R_NOT_AVAILABLE);
             result = new Result();
@@ -166,30 +170,34 @@ public final class FisherExact {
         final Result result;
         final Rengine rengine = GobyRengine.getInstance().getRengine();
         if (rengine != null && rengine.isAlive()) {
-            final boolean xAssignResult = rengine.assign("x", factor1);
-            if (LOG.isDebugEnabled()) {
-                LOG.debug("X assigned: " + xAssignResult);
-                final REXP xExpression = rengine.eval("x");
-                LOG.debug("X: " + xExpression);
-            }
-
-            final boolean yAssignResult = rengine.assign("y", factor2);
-            if (LOG.isDebugEnabled()) {
-                LOG.debug("Y assigned: " + yAssignResult);
-                final REXP yExpression = rengine.eval("y");
-                LOG.debug("Y: " + yExpression);
+            // the engine evaluates one expression at a time, and expressions refer to global R variables.
+            // Annotation records and site statistics call this method from several threads:
+            synchronized (rengine) {
+                final boolean xAssignResult = rengine.assign("x", factor1);
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("X assigned: " + xAssignResult);
+                    final REXP xExpression = rengine.eval("x");
+                    LOG.debug("X: " + xExpression);
+                }
+
+                final boolean yAssignResult = rengine.assign("y", factor2);
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Y assigned: " + yAssignResult);
+                    final REXP yExpression = rengine.eval("y");
+                    LOG.debug("Y: " + yExpression);
+                }
+
+                final StringBuilder fisherExpression = new StringBuilder(128);
+                fisherExpression.append("fisher.test(x, y, hybrid=");
+                fisherExpression.append(
+                        BooleanUtils.toStringTrueFalse(hybrid).toUpperCase(Locale.getDefault()));
+                fisherExpression.append(", alternative=\"");
+                fisherExpression.append(alternativeHypothesis);
+                fisherExpression.append("\")");
+
+                final boolean is2x2 = factor1.length == 2 && factor2.length == 2;
+                result = evaluateFisherExpression(rengine, fisherExpression.toString(), is2x2);
             }
-
-            final StringBuilder fisherExpression = new StringBuilder(128);
-            fisherExpression.append("fisher.test(x, y, hybrid=");
-            fisherExpression.append(
-                    BooleanUtils.toStringTrueFalse(hybrid).toUpperCase(Locale.getDefault()));
-            fisherExpression.append(", alternative=\"");
-            fisherExpression.append(alternativeHypothesis);
-            fisherExpression.append("\")");
-
-            final boolean is2x2 = factor1.length == 2 && factor2.length == 2;
-            result = evaluateFisherExpression(rengine, fisherExpression.toString(), is2x2);
         } else {
             LOG.warn(R_NOT_AVAILABLE);
             result = new Result();  // return an empty/default result object
@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.algorithmic.algorithm;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
+import java.util.Arrays;
+
+/**
+ * Locates adapter sequences in reads. The adapter set is compiled once into an Aho-Corasick automaton
+ * (to find adapters fully contained in a read in a single pass over the read) and into a trie of adapter
+ * prefixes (to find the adapter that overlaps the start of a read). No object is allocated when matching
+ * reads, and instances are immutable after construction, so one matcher can be shared by several threads.
+ * <p/>
+ * When several adapters match, the adapter that appears first in the adapter list is reported, as when
+ * adapters are tried one after the other.
+ *
+ * @author Fabien Campagne
+ *         Date: Oct 19, 2012
+ */
+public class AdapterMatcher {
+    /**
+     * Code of characters that do not occur in any adapter.
+     */
+    private static final int OTHER_CODE = 0;
+    private static final int NO_ADAPTER = Integer.MAX_VALUE;
+
+    private final CharSequence[] adapters;
+    private final int minLeftLength;
+    private final int minRightLength;
+    private final int[] charCodes = new int[Character.MAX_VALUE + 1];
+    private final int numCodes;
+
+    /**
+     * Trie of adapters: child of state s for code c is at trie[s * numCodes + c], -1 when absent.
+     */
+    private final int[] trie;
+    /**
+     * Automaton transitions, same layout as trie, defined for every state and code.
+     */
+    private final int[] transitions;
+    /**
+     * Smallest index of an adapter that ends at a state or at one of its suffix states.
+     */
+    private final int[] minOutput;
+    /**
+     * Smallest index of an adapter whose path goes through a state of the trie.
+     */
+    private final int[] minThrough;
+    /**
+     * Smallest index of an adapter longer than minRightLength that ends with a given character code.
+     */
+    private final int[] minEndingWith;
+
+    /**
+     * Compile a set of adapters.
+     *
+     * @param adapters       adapter sequences, in order of preference.
+     * @param minLeftLength  minimum number of bases an adapter must overlap the start of a read.
+     * @param minRightLength number of bases of the adapter that never overlap the end of a read.
+     */
+    public AdapterMatcher(final CharSequence[] adapters, final int minLeftLength, final int minRightLength) {
+        super();
+        this.adapters = adapters;
+        this.minLeftLength = minLeftLength;
+        this.minRightLength = minRightLength;
+        int codes = 1;
+        for (final CharSequence adapter : adapters) {
+            for (int i = 0; i < adapter.length(); i++) {
+                final char c = adapter.charAt(i);
+                if (charCodes[c] == OTHER_CODE) {
+                    charCodes[c] = codes++;
+                }
+            }
+        }
+        numCodes = codes;
+
+        // build the trie:
+        final IntArrayList children = new IntArrayList();
+        final IntArrayList through = new IntArrayList();
+        final IntArrayList ending = new IntArrayList();
+        addState(children, through, ending);
+        for (int adapterIndex = 0; adapterIndex < adapters.length; adapterIndex++) {
+            final CharSequence adapter = adapters[adapterIndex];
+            int state = 0;
+            through.set(state, Math.min(through.getInt(state), adapterIndex));
+            for (int i = 0; i < adapter.length(); i++) {
+                final int slot = state * numCodes + code(adapter.charAt(i));
+                if (children.getInt(slot) == -1) {
+                    children.set(slot, addState(children, through, ending));
+                }
+                state = children.getInt(slot);
+                through.set(state, Math.min(through.getInt(state), adapterIndex));
+            }
+            ending.set(state, Math.min(ending.getInt(state), adapterIndex));
+        }
+        trie = children.toIntArray();
+        minThrough = through.toIntArray();
+
+        // breadth-first construction of the automaton:
+        final int numStates = minThrough.length;
+        transitions = new int[trie.length];
+        minOutput = ending.toIntArray();
+        final int[] failure = new int[numStates];
+        final int[] queue = new int[numStates];
+        int head = 0;
+        int tail = 0;
+        for (int c = 0; c < numCodes; c++) {
+            final int child = trie[c];
+            if (child == -1) {
+                transitions[c] = 0;
+            } else {
+                transitions[c] = child;
+                failure[child] = 0;
+                queue[tail++] = child;
+            }
+        }
+        while (head < tail) {
+            final int state = queue[head++];
+            minOutput[state] = Math.min(minOutput[state], minOutput[failure[state]]);
+            for (int c = 0; c < numCodes; c++) {
+                final int slot = state * numCodes + c;
+                final int child = trie[slot];
+                if (child == -1) {
+                    transitions[slot] = transitions[failure[state] * numCodes + c];
+                } else {
+                    transitions[slot] = child;
+                    failure[child] = transitions[failure[state] * numCodes + c];
+                    queue[tail++] = child;
+                }
+            }
+        }
+
+        minEndingWith = new int[numCodes];
+        Arrays.fill(minEndingWith, NO_ADAPTER);
+        for (int adapterIndex = adapters.length - 1; adapterIndex >= 0; adapterIndex--) {
+            final CharSequence adapter = adapters[adapterIndex];
+            final int length = adapter.length();
+            if (length > minRightLength && length > 0) {
+                minEndingWith[code(adapter.charAt(length - 1))] = adapterIndex;
+            }
+        }
+    }
+
+    private int addState(final IntArrayList children, final IntArrayList through, final IntArrayList ending) {
+        final int state = through.size();
+        for (int c = 0; c < numCodes; c++) {
+            children.add(-1);
+        }
+        through.add(NO_ADAPTER);
+        ending.add(NO_ADAPTER);
+        return state;
+    }
+
+    private int code(final char c) {
+        return charCodes[c];
+    }
+
+    /**
+     * Location of an adapter in a read.
+     */
+    public static final class Match {
+        private int adapterIndex;
+        private int start;
+        private int length;
+
+        /**
+         * @return index of the adapter in the adapter list.
+         */
+        public int getAdapterIndex() {
+            return adapterIndex;
+        }
+
+        /**
+         * @return position in the read of the first base matched by the adapter.
+         */
+        public int getStart() {
+            return start;
+        }
+
+        /**
+         * @return number of bases of the read matched by the adapter.
+         */
+        public int getLength() {
+            return length;
+        }
+
+        private boolean set(final int adapterIndex, final int start, final int length) {
+            this.adapterIndex = adapterIndex;
+            this.start = start;
+            this.length = length;
+            return true;
+        }
+    }
+
+    public int getNumAdapters() {
+        return adapters.length;
+    }
+
+    public CharSequence getAdapter(final int adapterIndex) {
+        return adapters[adapterIndex];
+    }
+
+    /**
+     * Find the first adapter (in adapter order) that is fully contained in the sequence, and its leftmost
+     * occurrence.
+     *
+     * @param sequence the read sequence.
+     * @param match    where the match is stored.
+     * @return True when an adapter was found, false otherwise.
+     */
+    public boolean findContained(final CharSequence sequence, final Match match) {
+        int best = minOutput[0];
+        int bestEnd = 0;
+        int state = 0;
+        final int length = sequence.length();
+        for (int i = 0; i < length; i++) {
+            state = transitions[state * numCodes + code(sequence.charAt(i))];
+            final int adapterIndex = minOutput[state];
+            if (adapterIndex < best) {
+                best = adapterIndex;
+                bestEnd = i + 1;
+            }
+        }
+        if (best == NO_ADAPTER) {
+            return false;
+        }
+        final int adapterLength = adapters[best].length();
+        return match.set(best, bestEnd - adapterLength, adapterLength);
+    }
+
+    /**
+     * Find the first adapter (in adapter order) whose prefix of at least minLeftLength bases matches the start
+     * of the sequence. The length of the match is the length of the longest common prefix of the adapter and
+     * the sequence.
+     *
+     * @param sequence the read sequence.
+     * @param match    where the match is stored.
+     * @return True when an adapter was found, false otherwise.
+     */
+    public boolean findLeftOverlap(final CharSequence sequence, final Match match) {
+        if (sequence.length() < minLeftLength) {
+            return false;
+        }
+        int state = 0;
+        for (int i = 0; i < minLeftLength; i++) {
+            state = trie[state * numCodes + code(sequence.charAt(i))];
+            if (state == -1) {
+                return false;
+            }
+        }
+        final int best = minThrough[state];
+        if (best == NO_ADAPTER) {
+            return false;
+        }
+        final CharSequence adapter = adapters[best];
+        final int maxLength = Math.min(adapter.length(), sequence.length());
+        int length = minLeftLength;
+        while (length < maxLength && adapter.charAt(length) == sequence.charAt(length)) {
+            length++;
+        }
+        return match.set(best, 0, length);
+    }
+
+    /**
+     * Find the first adapter (in adapter order) such that a suffix of the adapter of at least one base
+     * matches the end of the sequence. The suffix never includes the first minRightLength bases of the
+     * adapter. The length of the match is the length of the longest such suffix.
+     *
+     * @param sequence the read sequence.
+     * @param match    where the match is stored.
+     * @return True when an adapter was found, false otherwise.
+     */
+    public boolean findRightOverlap(final CharSequence sequence, final Match match) {
+        final int sequenceLength = sequence.length();
+        if (sequenceLength == 0) {
+            return false;
+        }
+        final int best = minEndingWith[code(sequence.charAt(sequenceLength - 1))];
+        if (best == NO_ADAPTER) {
+            return false;
+        }
+        final CharSequence adapter = adapters[best];
+        final int adapterLength = adapter.length();
+        final int maxLength = Math.min(adapterLength - minRightLength, sequenceLength);
+        int length = 1;
+        while (length < maxLength
+                && adapter.charAt(adapterLength - 1 - length) == sequence.charAt(sequenceLength - 1 - length)) {
+            length++;
+        }
+        return match.set(best, sequenceLength - length, length);
+    }
+}
@@ -21,6 +21,7 @@ package edu.cornell.med.icb.goby.algorithmic.algorithm;
 import edu.cornell.med.icb.goby.algorithmic.data.EquivalentIndelRegion;
 import edu.cornell.med.icb.goby.alignments.processors.ObservedIndel;
 import edu.cornell.med.icb.goby.reads.RandomAccessSequenceInterface;
+import it.unimi.dsi.fastutil.objects.Object2ObjectLinkedOpenHashMap;
 import it.unimi.dsi.lang.MutableString;
 import org.apache.log4j.Logger;
 
@@ -29,6 +30,10 @@ import org.apache.log4j.Logger;
  * Implements the method of Krawitz et al to determine a span of equivalent indel regions, given
  * an observed indel reported by an aligner.
  * Citation: Peter Krawitz et al Bioinformatics 2011. Microindel detection in short-read data.
+ * <p/>
+ * Reads that carry the same indel yield the same region. Regions most recently determined on a reference sequence are
+ * kept in a bounded cache, keyed by the position and bases of the observed indel, and each call returns a copy of the
+ * cached region.
  *
  * @author Fabien Campagne
  *         Date: 6/7/11
@@ -37,7 +42,10 @@ import org.apache.log4j.Logger;
 public class EquivalentIndelRegionCalculator {
 
     RandomAccessSequenceInterface genome;
-    private static final String GAPS = "----------------------------------------------------------------";
+    /**
+     * Maximum number of regions kept in the cache.
+     */
+    private static final int MAX_CACHED_REGIONS = 10000;
     private int flankRightSize = 4;
     public int flankLeftSize = 4;
     private static final Logger LOG = Logger.getLogger(EquivalentIndelRegionCalculator.class);
@@ -51,9 +59,16 @@ public class EquivalentIndelRegionCalculator {
      */
     public void setReferenceIndexPermutation(final int[] alignmentToGenomeTargetIndices) {
         this.alignmentToGenomeTargetIndices = alignmentToGenomeTargetIndices;
+        cache.clear();
     }
 
     private int[] alignmentToGenomeTargetIndices;
+    /**
+     * Regions determined on the reference sequence cachedReferenceIndex, in order of use.
+     */
+    private final Object2ObjectLinkedOpenHashMap<ObservedIndel, EquivalentIndelRegion> cache =
+            new Object2ObjectLinkedOpenHashMap<ObservedIndel, EquivalentIndelRegion>();
+    private int cachedReferenceIndex = -1;
 
     /**
      * Set the number of bases to record in flank-right.
@@ -61,6 +76,9 @@ public class EquivalentIndelRegionCalculator {
      * @param flankRightSize number of flanking bases on the right.
      */
     public void setFlankRightSize(final int flankRightSize) {
+        if (flankRightSize != this.flankRightSize) {
+            cache.clear();
+        }
         this.flankRightSize = flankRightSize;
     }
 
@@ -70,7 +88,9 @@ public class EquivalentIndelRegionCalculator {
      * @param flankLeftSize number of flanking bases on the left.
      */
     public void setFlankLeftSize(final int flankLeftSize) {
-
+        if (flankLeftSize != this.flankLeftSize) {
+            cache.clear();
+        }
         this.flankLeftSize = flankLeftSize;
     }
 
@@ -131,11 +151,31 @@ public class EquivalentIndelRegionCalculator {
      * @return the span of equivalent indel regions , or null, if the indel positions are outside the boundaries of the genome sequence.
      */
     public EquivalentIndelRegion determine(final int referenceIndex, final ObservedIndel indel) {
+        if (referenceIndex != cachedReferenceIndex) {
+            cache.clear();
+            cachedReferenceIndex = referenceIndex;
+        }
+        EquivalentIndelRegion region = cache.getAndMoveToLast(indel);
+        if (region == null) {
+            region = compute(referenceIndex, indel);
+            if (region == null) {
+                return null;
+            }
+            cache.put(indel, region);
+            if (cache.size() > MAX_CACHED_REGIONS) {
+                cache.removeFirst();
+            }
+        }
+        final EquivalentIndelRegion result = region.copy();
+        result.readIndices.add(indel.readIndex);
+        return result;
+    }
+
+    private EquivalentIndelRegion compute(final int referenceIndex, final ObservedIndel indel) {
         final EquivalentIndelRegion result = new EquivalentIndelRegion();
         result.startPosition = indel.getStart();
         result.endPosition = indel.getEnd();
         result.referenceIndex = referenceIndex;
-        result.readIndices.add( indel.readIndex);
         p.setLength(0);
         final boolean insertion = insertionInRead(indel);
         p.append(insertion ? indel.to() : indel.from());
@@ -177,7 +217,6 @@ public class EquivalentIndelRegionCalculator {
 
         from.setLength(0);
         to.setLength(0);
-        toFill.setLength(0);
 
         genome.getRange(genomeReferenceIndex, result.startPosition + 1, result.endPosition - result.startPosition - 1, from);
 
@@ -186,17 +225,17 @@ public class EquivalentIndelRegionCalculator {
         {
 
             // construct the read sequence in the insertion region of the eir:
-            to.append(roll(leftExtensions, indel.to()));
+            roll(leftExtensions, indel.to(), to);
             to.append(from);
 
-            from.insert(0, GAPS.subSequence(0, indelSize));
+            from.insert(0, gaps(indelSize));
 
         } else
 
         {
             // construct the read sequence in the deletion region of the eir:
             final int length = from.length();
-            to.append(GAPS.subSequence(0, indelSize));
+            to.append(gaps(indelSize));
             to.append(from.subSequence(Math.min(indelSize, length), length));
 
         }
@@ -226,24 +265,31 @@ public class EquivalentIndelRegionCalculator {
 
     }
 
-    final MutableString rollBuffer = new MutableString();
+    /**
+     * Append the bases of an indel rolled to the right leftExtensions times: each roll moves the last base to the
+     * front. This is a rotation by leftExtensions modulo the length of the indel.
+     */
+    private static void roll(final int leftExtensions, final String bases, final MutableString destination) {
+        final int length = bases.length();
+        final int shift = leftExtensions % length;
+        for (int i = 0; i < length; i++) {
+            destination.append(bases.charAt((i - shift + length) % length));
+        }
+    }
 
-    private final MutableString roll(int leftExtensions, String from) {
-        rollBuffer.setLength(0);
-        rollBuffer.append(from);
-        final int length = from.length();
-        final int lastCharIndex = length - 1;
-        for (int i = 0; i < leftExtensions; i++) {
+    private final MutableString gaps = new MutableString();
 
-            rollBuffer.insert(0, rollBuffer.charAt(lastCharIndex));
-            rollBuffer.setLength(length);
+    /**
+     * Return a string of length gap characters. The string is reused by the next call.
+     */
+    private MutableString gaps(final int length) {
+        gaps.setLength(0);
+        for (int i = 0; i < length; i++) {
+            gaps.append('-');
         }
-        return rollBuffer;
+        return gaps;
     }
 
-    final MutableString toFill = new MutableString();
-    final MutableString gaps = new MutableString();
-
     MutableString from = new MutableString();
     MutableString to = new MutableString();
     MutableString flankingLeft = new MutableString();
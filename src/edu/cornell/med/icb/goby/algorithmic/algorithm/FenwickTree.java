@@ -18,7 +18,10 @@
 
 package edu.cornell.med.icb.goby.algorithmic.algorithm;
 
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.LongBuffer;
 
 /**
  * Fenwick tree implementation.
@@ -37,16 +40,98 @@ public class FenwickTree implements Serializable {
         this.n = n;
     }
 
+    private FenwickTree(final int n, final long totalCount, final LongBuffer counts) {
+        this.n = n;
+        this.totalCount = totalCount;
+        this.mappedCumCount = counts;
+    }
+
+    /**
+     * Create a tree over counts stored outside the Java heap, for instance in a memory-mapped file written with
+     * write. Trees created this way can be read concurrently by several threads. The counts are copied to the heap
+     * the first time the tree is modified, so that the buffer is never written to.
+     *
+     * @param n          number of elements.
+     * @param totalCount total count over all elements.
+     * @param counts     the n+1 cumulative counts of the tree, as written with write.
+     * @return a tree backed by counts.
+     */
+    public static FenwickTree wrap(final int n, final long totalCount, final LongBuffer counts) {
+        if (counts.remaining() != n + 1) {
+            throw new IllegalArgumentException(String.format("A tree with %d elements needs %d counts, found %d.",
+                    n, n + 1, counts.remaining()));
+        }
+        return new FenwickTree(n, totalCount, counts.slice());
+    }
+
+    /**
+     * Write the number of elements, the total count and the cumulative counts of this tree.
+     *
+     * @param output where to write.
+     * @throws IOException if the tree cannot be written.
+     */
+    public void write(final DataOutput output) throws IOException {
+        output.writeInt(n);
+        output.writeLong(totalCount);
+        for (int i = 0; i <= n; i++) {
+            output.writeLong(cumCount(i));
+        }
+    }
+
+    /**
+     * Return the size in bytes of a tree of n elements written with write.
+     *
+     * @param n number of elements.
+     * @return size in bytes.
+     */
+    public static long getWrittenSize(final int n) {
+        return 4 + 8 + 8L * (n + 1);
+    }
+
     /* The following methods implement a Fenwick tree. See http://community.topcoder.com/tc?module=Static&d1=tutorials&d2=binaryIndexedTrees#reada
     * */
     long[] cumCount;
 
+    /**
+     * Cumulative counts of trees created with wrap and not modified since, or null.
+     */
+    private transient LongBuffer mappedCumCount;
+
+    private long cumCount(final int index) {
+        return mappedCumCount != null ? mappedCumCount.get(index) : cumCount[index];
+    }
+
+    /**
+     * Copy the counts of a wrapped tree to the heap.
+     */
+    private void detach() {
+        if (mappedCumCount != null) {
+            cumCount = new long[n + 1];
+            mappedCumCount.duplicate().get(cumCount);
+            mappedCumCount = null;
+        }
+    }
+
+    /**
+     * Wrapped trees are serialized as regular trees.
+     */
+    private Object writeReplace() {
+        if (mappedCumCount == null) {
+            return this;
+        }
+        final FenwickTree copy = new FenwickTree(n);
+        copy.totalCount = totalCount;
+        mappedCumCount.duplicate().get(copy.cumCount);
+        return copy;
+    }
+
     /**
      * Increment the count of an element.
      *
      * @param index index of the element.
      */
     public void incrementCount(int index) {
+        detach();
         ++index;
         ++totalCount;
         while (index <= n) {
@@ -55,6 +140,24 @@ public class FenwickTree implements Serializable {
         }
     }
 
+    /**
+     * Add the counts of another tree to this tree. Since the cumulative counts of a tree are linear in the counts of
+     * its elements, trees are added element by element. Trees filled by different threads can be merged this way.
+     *
+     * @param other a tree with the same number of elements.
+     */
+    public void add(final FenwickTree other) {
+        if (other.n != n) {
+            throw new IllegalArgumentException(String.format("Cannot add a tree with %d elements to a tree with %d elements.",
+                    other.n, n));
+        }
+        detach();
+        for (int i = 1; i <= n; i++) {
+            cumCount[i] += other.cumCount(i);
+        }
+        totalCount += other.totalCount;
+    }
+
     /**
      * Get the cumulative count for elements between [0-index].
      *
@@ -62,14 +165,14 @@ public class FenwickTree implements Serializable {
      * @return count for element at index.
      */
     public long getCumulativeCount(int index) {
-        if (index >= cumCount.length - 1) {
+        if (index >= n) {
             // past the capacity of the array is all the counts we have seen:
             return totalCount;
         }
-        int count = 0;
+        long count = 0;
         index++;
         while (index != 0) {
-            count += cumCount[index];
+            count += cumCount(index);
             index = index & index - 1; // This cancels out the least nonzero bit.
         }
 
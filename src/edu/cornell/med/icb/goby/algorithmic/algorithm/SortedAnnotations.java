@@ -312,6 +312,13 @@ public class SortedAnnotations {
         }
     };
 
+    /**
+     * Return the number of annotations loaded. Annotation indices range from zero to this number, excluded.
+     */
+    public int size() {
+        return annotations.length;
+    }
+
     public String getAnnotationsLastChromosome() {
         int size = annotations.length;
         return annotations[size - 1].getChromosome();
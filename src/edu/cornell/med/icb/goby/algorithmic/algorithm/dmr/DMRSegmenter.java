@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.algorithmic.algorithm.dmr;
+
+import edu.cornell.med.icb.goby.algorithmic.data.GroupComparison;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.logging.ProgressLogger;
+import org.apache.log4j.Logger;
+
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Finds differentially methylated regions (DMRs) de novo, over whole genomes. Every window of windowSites
+ * consecutive sites is scored from the cumulative counts of the groups under comparison, in constant time: the
+ * statistic of the window is calculated from the methylated and unmethylated counts of each group over the window,
+ * and converted to an empirical p-value with a null distribution, using the total number of cytosines of the
+ * window as covariate. Overlapping or adjacent windows with a p-value below the threshold are merged into DMRs.
+ * <p/>
+ * Chromosomes are split into tiles of consecutive windows, scanned concurrently. Regions of a tile that reach into
+ * the next tile are merged when tiles are collected, in genome order, so that regions do not depend on the tiling
+ * and are reported in order as the scan progresses.
+ *
+ * @author Fabien Campagne
+ *         Date: Oct 19, 2012
+ */
+public class DMRSegmenter {
+    private static final Logger LOG = Logger.getLogger(DMRSegmenter.class);
+
+    private final GroupMethylationCounts counts;
+    private final StatisticAdaptor statAdaptor;
+    private final EstimatedDistribution nullDistribution;
+    private final double pThreshold;
+    private final int windowSites;
+    private int numThreads = 1;
+    private int tileSize = 100000;
+
+    /**
+     * Receives regions as they are found.
+     */
+    public interface RegionListener {
+        /**
+         * Called for each region, in chromosome and position order.
+         *
+         * @param region the region found.
+         */
+        void regionFound(DifferentiallyMethylatedRegion region);
+    }
+
+    /**
+     * Create a segmenter.
+     *
+     * @param counts           cumulative counts of the groups.
+     * @param statAdaptor      statistic evaluated on each window. calculateWithCovariate must be safe to call
+     *                         from several threads when more than one thread is used.
+     * @param nullDistribution null distribution of the statistic.
+     * @param pThreshold       windows with a p-value strictly below this threshold are significant.
+     * @param windowSites      number of sites in each window.
+     */
+    public DMRSegmenter(final GroupMethylationCounts counts, final StatisticAdaptor statAdaptor,
+                        final EstimatedDistribution nullDistribution, final double pThreshold, final int windowSites) {
+        super();
+        if (windowSites < 1) {
+            throw new IllegalArgumentException("Windows must contain at least one site.");
+        }
+        this.counts = counts;
+        this.statAdaptor = statAdaptor;
+        this.nullDistribution = nullDistribution;
+        this.pThreshold = pThreshold;
+        this.windowSites = windowSites;
+    }
+
+    /**
+     * Set the number of threads used to scan tiles.
+     *
+     * @param numThreads number of threads, or -1 to use all processors.
+     */
+    public void setNumThreads(final int numThreads) {
+        this.numThreads = numThreads == -1 ? Runtime.getRuntime().availableProcessors() : Math.max(1, numThreads);
+    }
+
+    /**
+     * Set the number of windows in each tile.
+     */
+    public void setTileSize(final int tileSize) {
+        this.tileSize = Math.max(1, tileSize);
+    }
+
+    /**
+     * Return the p-value of the sites [fromSite, toSite[ of a chromosome.
+     *
+     * @return the p-value, or NaN if a group has no cytosine over the sites.
+     */
+    public double getPValue(final int chromosome, final int fromSite, final int toSite,
+                            final GroupComparison comparison) {
+        final int cma = count(counts.getMethylated(chromosome, comparison.indexGroup1, fromSite, toSite));
+        final int ca = count(counts.getUnmethylated(chromosome, comparison.indexGroup1, fromSite, toSite));
+        final int cmb = count(counts.getMethylated(chromosome, comparison.indexGroup2, fromSite, toSite));
+        final int cb = count(counts.getUnmethylated(chromosome, comparison.indexGroup2, fromSite, toSite));
+        if (cma + ca == 0 || cmb + cb == 0) {
+            return Double.NaN;
+        }
+        final int sumTotal = cma + ca + cmb + cb;
+        final double statistic = statAdaptor.calculateWithCovariate(sumTotal, cma, ca, cmb, cb);
+        return nullDistribution.getP(statistic, sumTotal);
+    }
+
+    private static int count(final long count) {
+        // keep window totals in the range of the covariates of the null distribution:
+        return (int) Math.min(count, Integer.MAX_VALUE / 4);
+    }
+
+    /**
+     * Return a provider of p-values for the site ranges of one chromosome, so that window searches such as
+     * DeNovoDMRfinder can score windows in constant time. Start and end are site indices, end exclusive.
+     *
+     * @param chromosome index of the chromosome.
+     * @return a p-value provider.
+     */
+    public PVAlueProvider getPValueProvider(final int chromosome) {
+        return new PVAlueProvider() {
+            public double getPValue(final int start, final int end, final GroupComparison groupComp) {
+                final double p = DMRSegmenter.this.getPValue(chromosome, start, end, groupComp);
+                return p != p ? 1 : p;
+            }
+        };
+    }
+
+    /**
+     * Find the regions of a comparison over all chromosomes.
+     *
+     * @param comparison the groups to compare.
+     * @param listener   receives the regions, in order.
+     * @throws InterruptedException if the scan is interrupted.
+     * @throws ExecutionException   if a tile cannot be scanned.
+     */
+    public void segment(final GroupComparison comparison, final RegionListener listener)
+            throws InterruptedException, ExecutionException {
+        int numTiles = 0;
+        for (int chromosome = 0; chromosome < counts.getNumChromosomes(); chromosome++) {
+            numTiles += (numWindows(chromosome) + tileSize - 1) / tileSize;
+        }
+        final ProgressLogger pg = new ProgressLogger(LOG);
+        pg.itemsName = "tiles";
+        pg.expectedUpdates = numTiles;
+        pg.start("segmenting " + comparison);
+        final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            // at most a few tiles per thread are pending, regions are reported as soon as the tiles before are done:
+            final int maxPendingTiles = numThreads * 4;
+            final LinkedList<Future<ObjectArrayList<Segment>>> pending = new LinkedList<Future<ObjectArrayList<Segment>>>();
+            Segment current = null;
+            for (int chromosome = 0; chromosome < counts.getNumChromosomes(); chromosome++) {
+                final int numWindows = numWindows(chromosome);
+                for (int tileStart = 0; tileStart < numWindows; tileStart += tileSize) {
+                    final int chromosomeIndex = chromosome;
+                    final int start = tileStart;
+                    final int end = (int) Math.min(numWindows, (long) tileStart + tileSize);
+                    pending.add(executor.submit(new Callable<ObjectArrayList<Segment>>() {
+                        public ObjectArrayList<Segment> call() {
+                            return scanTile(comparison, chromosomeIndex, start, end);
+                        }
+                    }));
+                    if (pending.size() >= maxPendingTiles) {
+                        current = collect(pending.removeFirst().get(), current, listener);
+                        pg.update();
+                    }
+                }
+            }
+            while (!pending.isEmpty()) {
+                current = collect(pending.removeFirst().get(), current, listener);
+                pg.update();
+            }
+            if (current != null) {
+                listener.regionFound(current.toRegion());
+            }
+            pg.done();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Find the regions of a comparison over all chromosomes.
+     *
+     * @param comparison the groups to compare.
+     * @return the regions, in order.
+     * @throws InterruptedException if the scan is interrupted.
+     * @throws ExecutionException   if a tile cannot be scanned.
+     */
+    public ObjectArrayList<DifferentiallyMethylatedRegion> segment(final GroupComparison comparison)
+            throws InterruptedException, ExecutionException {
+        final ObjectArrayList<DifferentiallyMethylatedRegion> regions = new ObjectArrayList<DifferentiallyMethylatedRegion>();
+        segment(comparison, new RegionListener() {
+            public void regionFound(final DifferentiallyMethylatedRegion region) {
+                regions.add(region);
+            }
+        });
+        return regions;
+    }
+
+    private int numWindows(final int chromosome) {
+        return Math.max(0, counts.getNumSites(chromosome) - windowSites + 1);
+    }
+
+    /**
+     * Merge the segments of a tile with the last segment of the previous tiles, and report the segments that
+     * cannot grow anymore. Returns the last segment, which may still be extended by the next tile.
+     */
+    private Segment collect(final ObjectArrayList<Segment> tileSegments, Segment current,
+                            final RegionListener listener) {
+        for (final Segment segment : tileSegments) {
+            if (current != null && !current.extend(segment)) {
+                listener.regionFound(current.toRegion());
+                current = null;
+            }
+            if (current == null) {
+                current = segment;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Scan the windows starting at sites [firstWindow, endWindow[ of a chromosome.
+     *
+     * @return segments of significant windows, in order.
+     */
+    ObjectArrayList<Segment> scanTile(final GroupComparison comparison, final int chromosome,
+                                      final int firstWindow, final int endWindow) {
+        final ObjectArrayList<Segment> segments = new ObjectArrayList<Segment>();
+        Segment current = null;
+        for (int window = firstWindow; window < endWindow; window++) {
+            final double p = getPValue(chromosome, window, window + windowSites, comparison);
+            if (p < pThreshold) {
+                final Segment segment = new Segment(chromosome, window, window + windowSites, p);
+                if (current == null || !current.extend(segment)) {
+                    current = segment;
+                    segments.add(current);
+                }
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * A range of sites covered by significant windows.
+     */
+    class Segment {
+        final int chromosome;
+        final int firstSite;
+        int endSite;
+        double pValue;
+
+        Segment(final int chromosome, final int firstSite, final int endSite, final double pValue) {
+            this.chromosome = chromosome;
+            this.firstSite = firstSite;
+            this.endSite = endSite;
+            this.pValue = pValue;
+        }
+
+        /**
+         * Extend this segment with a segment that follows it, if the segments overlap or are adjacent.
+         *
+         * @return true if the segment was merged into this one.
+         */
+        boolean extend(final Segment next) {
+            if (next.chromosome != chromosome || next.firstSite > endSite) {
+                return false;
+            }
+            endSite = Math.max(endSite, next.endSite);
+            pValue = Math.min(pValue, next.pValue);
+            return true;
+        }
+
+        DifferentiallyMethylatedRegion toRegion() {
+            final DifferentiallyMethylatedRegion region = new DifferentiallyMethylatedRegion(chromosome,
+                    counts.getPosition(chromosome, endSite - 1), counts.getPosition(chromosome, firstSite),
+                    endSite - firstSite);
+            region.setPValue(pValue);
+            return region;
+        }
+    }
+}
@@ -26,7 +26,8 @@ import java.util.List;
 
 /**
  * Find differentially methylated regions(DMRs) across groups of samples without prior
- * annotation information
+ * annotation information. See DMRSegmenter to search whole genomes; its p-value providers score
+ * windows in constant time.
  *
  * @Author: Nyasha Chambwe
  * @Date: 3/22/12
@@ -32,6 +32,9 @@ public class DifferentiallyMethylatedRegion {
     /* defines the number of cytosines in the DMR window*/
     private final int numCytosines;
 
+    /* p-value of the most significant window of the region*/
+    private double pValue = 1;
+
     public DifferentiallyMethylatedRegion(int chromosome, int end, int start, int numCytosines) {
         this.chromosome = chromosome;
         this.end = end;
@@ -39,5 +42,39 @@ public class DifferentiallyMethylatedRegion {
         this.numCytosines= numCytosines;
     }
 
+    public int getChromosome() {
+        return chromosome;
+    }
+
+    /**
+     * Return the position of the first cytosine of the region.
+     */
+    public int getStart() {
+        return start;
+    }
+
+    /**
+     * Return the position of the last cytosine of the region.
+     */
+    public int getEnd() {
+        return end;
+    }
+
+    public int getNumCytosines() {
+        return numCytosines;
+    }
+
+    public double getPValue() {
+        return pValue;
+    }
+
+    public void setPValue(final double pValue) {
+        this.pValue = pValue;
+    }
+
+    public String toString() {
+        return String.format("%d:%d-%d cytosines=%d p=%g", chromosome, start, end, numCytosines, pValue);
+    }
+
 
 }
@@ -21,17 +21,36 @@ package edu.cornell.med.icb.goby.algorithmic.algorithm.dmr;
 import edu.cornell.med.icb.goby.algorithmic.algorithm.FenwickTree;
 import edu.mssm.crover.cli.CLI;
 import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
 import it.unimi.dsi.fastutil.io.BinIO;
+import it.unimi.dsi.fastutil.io.FastByteArrayInputStream;
+import it.unimi.dsi.fastutil.io.FastByteArrayOutputStream;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
 
 
 /**
  * Used to estimate and store null and test distributions to support empirical p-value estimation.
+ * <p/>
+ * Distributions are stored in a compact binary format: the cumulative counts of each covariate context are
+ * written as primitive arrays, and observations as primitive columns. load memory-maps the counts, so that
+ * loading does not depend on the number of contexts, and the loaded distribution can be read concurrently by
+ * several threads. Counts of a context are copied to the heap when the context is first observed. Distributions stored with Java serialization by previous versions can still be loaded.
  *
  * @author Fabien Campagne
  *         Date: 2/19/12
@@ -138,15 +157,219 @@ public class EstimatedDistribution implements Serializable {
         }
     }
 
-    private ObjectArrayList<Observation> observations = new ObjectArrayList<Observation>();
+    /**
+     * Counts of contexts never observed.
+     */
+    private static final FenwickTree NO_OBSERVATION = FenwickTree.wrap(0, 0, LongBuffer.wrap(new long[1]));
+
+    /**
+     * Return the density of a context, like getDensity, without creating densities for contexts never observed.
+     * Methods that only read densities can therefore be called by several threads concurrently.
+     */
+    private FenwickTree findDensity(final int... covariates) {
+        final int index = covariateStrategy.getIndex(covariates);
+        final FenwickTree tree = index < densitities.size() ? densitities.get(index) : null;
+        return tree == null ? NO_OBSERVATION : tree;
+    }
+
+    /**
+     * Create an empty distribution with the statistic adaptor and binning strategy of this distribution. Threads can
+     * observe statistics in such accumulators, which are then merged into this distribution.
+     *
+     * @return an empty distribution.
+     */
+    public EstimatedDistribution createAccumulator() {
+        final EstimatedDistribution accumulator = new EstimatedDistribution(densitities.size(), statAdaptor);
+        accumulator.setBinningStrategy(binningStrategy);
+        return accumulator;
+    }
+
+    /**
+     * Add the counts and observations of another distribution to this distribution.
+     *
+     * @param other a distribution created with createAccumulator.
+     */
+    public synchronized void merge(final EstimatedDistribution other) {
+        for (int index = 0; index < other.densitities.size(); index++) {
+            final FenwickTree otherTree = other.densitities.get(index);
+            if (otherTree == null || otherTree.getTotalCount() == 0) {
+                continue;
+            }
+            while (densitities.size() <= index) {
+                densitities.add(null);
+            }
+            FenwickTree tree = densitities.get(index);
+            if (tree == null) {
+                tree = new FenwickTree(otherTree.size());
+                densitities.set(index, tree);
+            }
+            tree.add(otherTree);
+        }
+        for (int i = 0; i < other.getNumObservations(); i++) {
+            logObservation(other.getObservedStatistic(i), other.getObservedCovariates(i));
+        }
+    }
 
+    /**
+     * Log of observations, stored in columns: the scaled statistic of each observation, and the covariates of
+     * observation i at indices [observedCovariateOffsets[i], observedCovariateOffsets[i+1]) of observedCovariates.
+     */
+    private IntArrayList observedStatistics = new IntArrayList();
+    private IntArrayList observedCovariateOffsets = IntArrayList.wrap(new int[]{0});
+    private IntArrayList observedCovariates = new IntArrayList();
 
+    /**
+     * First bytes of distributions stored in the binary format.
+     */
+    private static final long MAGIC = 0x474f425944454e53L;
+    private static final int VERSION = 1;
+
+    /**
+     * Store an estimated distribution. Instances of EstimatedDistribution are written in the compact binary
+     * format, other objects with Java serialization.
+     *
+     * @param estimator the object to store.
+     * @param filename  name of the file to write.
+     * @throws IOException if the file cannot be written.
+     */
     public static void store(final Serializable estimator, final String filename) throws IOException {
-        BinIO.storeObject(estimator, filename);
+        if (estimator instanceof EstimatedDistribution) {
+            ((EstimatedDistribution) estimator).storeBinary(filename);
+        } else {
+            BinIO.storeObject(estimator, filename);
+        }
     }
 
+    private void storeBinary(final String filename) throws IOException {
+        final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename)));
+        try {
+            output.writeLong(MAGIC);
+            output.writeInt(VERSION);
+            // the statistic adaptor and binning strategy are small objects, with parameters, that we serialize:
+            final FastByteArrayOutputStream strategies = new FastByteArrayOutputStream();
+            final ObjectOutputStream objects = new ObjectOutputStream(strategies);
+            objects.writeObject(statAdaptor);
+            objects.writeObject(binningStrategy);
+            objects.close();
+            output.writeInt(strategies.length);
+            output.write(strategies.array, 0, strategies.length);
+
+            output.writeInt(densitities.size());
+            for (final FenwickTree tree : densitities) {
+                if (tree == null) {
+                    output.writeBoolean(false);
+                } else {
+                    output.writeBoolean(true);
+                    tree.write(output);
+                }
+            }
+            final int numObservations = observedStatistics.size();
+            output.writeInt(numObservations);
+            output.writeInt(observedCovariates.size());
+            writeInts(output, observedStatistics);
+            writeInts(output, observedCovariateOffsets);
+            writeInts(output, observedCovariates);
+        } finally {
+            output.close();
+        }
+    }
+
+    private static void writeInts(final DataOutputStream output, final IntArrayList values) throws IOException {
+        for (int i = 0; i < values.size(); i++) {
+            output.writeInt(values.getInt(i));
+        }
+    }
+
+    /**
+     * Load an estimated distribution stored with store. Counts of distributions in the binary format are
+     * memory-mapped. Observing new statistics never modifies the file.
+     *
+     * @param filename name of the file to load.
+     * @return the distribution.
+     * @throws IOException            if the file cannot be read.
+     * @throws ClassNotFoundException if the file was written with classes not available.
+     */
     public static EstimatedDistribution load(final String filename) throws IOException, ClassNotFoundException {
-        return (EstimatedDistribution) BinIO.loadObject(filename);
+        final DataInputStream input = new DataInputStream(new FileInputStream(filename));
+        final boolean binary;
+        try {
+            binary = input.available() >= 8 && input.readLong() == MAGIC;
+        } finally {
+            input.close();
+        }
+        return binary ? loadMapped(filename) : (EstimatedDistribution) BinIO.loadObject(filename);
+    }
+
+    private static EstimatedDistribution loadMapped(final String filename) throws IOException, ClassNotFoundException {
+        final RandomAccessFile file = new RandomAccessFile(filename, "r");
+        try {
+            final FileChannel channel = file.getChannel();
+            file.seek(8);
+            final int version = file.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported version " + version + " of estimated distribution in " + filename);
+            }
+            final byte[] strategies = new byte[file.readInt()];
+            file.readFully(strategies);
+            final ObjectInputStream objects = new ObjectInputStream(new FastByteArrayInputStream(strategies));
+            final StatisticAdaptor statAdaptor = (StatisticAdaptor) objects.readObject();
+            final BinningStrategy binningStrategy = (BinningStrategy) objects.readObject();
+            objects.close();
+
+            final int numberOfContexts = file.readInt();
+            final EstimatedDistribution distribution = new EstimatedDistribution(numberOfContexts, statAdaptor);
+            distribution.setBinningStrategy(binningStrategy);
+            long offset = file.getFilePointer();
+            for (int context = 0; context < numberOfContexts; context++) {
+                file.seek(offset);
+                if (!file.readBoolean()) {
+                    // a context never observed: readers see NO_OBSERVATION, getDensity allocates a full tree:
+                    distribution.densitities.add(null);
+                    offset += 1;
+                    continue;
+                }
+                final int n = file.readInt();
+                final long totalCount = file.readLong();
+                final long countsOffset = offset + 1 + 4 + 8;
+                // each tree is mapped separately, which supports files larger than 2GB:
+                final ByteBuffer counts = channel.map(FileChannel.MapMode.READ_ONLY, countsOffset, 8L * (n + 1));
+                distribution.densitities.add(FenwickTree.wrap(n, totalCount, counts.asLongBuffer()));
+                offset += 1 + FenwickTree.getWrittenSize(n);
+            }
+            file.seek(offset);
+            final int numObservations = file.readInt();
+            final int numCovariates = file.readInt();
+            final long observationsOffset = file.getFilePointer();
+            final long observationsSize = 4L * (numObservations + numObservations + 1 + numCovariates);
+            final ByteBuffer observations = channel.map(FileChannel.MapMode.READ_ONLY, observationsOffset,
+                    observationsSize);
+            distribution.observedStatistics = readInts(observations, numObservations);
+            distribution.observedCovariateOffsets = readInts(observations, numObservations + 1);
+            distribution.observedCovariates = readInts(observations, numCovariates);
+            return distribution;
+        } finally {
+            // mapped buffers remain valid after the file is closed:
+            file.close();
+        }
+    }
+
+    private static IntArrayList readInts(final ByteBuffer buffer, final int length) {
+        final int[] values = new int[length];
+        buffer.asIntBuffer().get(values);
+        buffer.position(buffer.position() + 4 * length);
+        return IntArrayList.wrap(values);
+    }
+
+    /**
+     * Distributions serialized before observations were stored in columns do not have the columns.
+     */
+    private void readObject(final ObjectInputStream input) throws IOException, ClassNotFoundException {
+        input.defaultReadObject();
+        if (observedStatistics == null) {
+            observedStatistics = new IntArrayList();
+            observedCovariateOffsets = IntArrayList.wrap(new int[]{0});
+            observedCovariates = new IntArrayList();
+        }
     }
 
     /**
@@ -157,7 +380,7 @@ public class EstimatedDistribution implements Serializable {
      * @return the number of observations with similar covariates for which the statistic is less than the specified value.
      */
     public long getCumulativeCount(final int scaledStatistic, final int... covariates) {
-        final FenwickTree tree = getDensity(covariates);
+        final FenwickTree tree = findDensity(covariates);
         return tree.getCumulativeCount(scaledStatistic);
     }
 
@@ -169,7 +392,7 @@ public class EstimatedDistribution implements Serializable {
      * @return the number of observations with similar covariates for which the unscaled statistic is less than the specified value.
      */
     public long getCumulativeCount(final double statistic, final int... covariates) {
-        final FenwickTree tree = getDensity(covariates);
+        final FenwickTree tree = findDensity(covariates);
         return tree.getCumulativeCount(scale(statistic));
     }
 
@@ -183,7 +406,7 @@ public class EstimatedDistribution implements Serializable {
      */
     public double getP(final double statistic, final int... covariates) {
         final int scaledStatistic = (int) Math.round(statistic * SCALING_FACTOR);
-        final FenwickTree tree = getDensity(covariates);
+        final FenwickTree tree = findDensity(covariates);
         final long totalCount = tree.getTotalCount();
         final double r = totalCount - tree.getCumulativeCount(scaledStatistic);
         final double n = totalCount;
@@ -203,8 +426,8 @@ public class EstimatedDistribution implements Serializable {
     public double getEmpiricalFdr(final EstimatedDistribution testDistribution,
                                   final double statistic, final int... covariates) {
         final int scaledStatistic = (int) Math.round(statistic * SCALING_FACTOR);
-        final FenwickTree nullTree = getDensity(covariates);
-        final FenwickTree testTree = testDistribution.getDensity(covariates);
+        final FenwickTree nullTree = findDensity(covariates);
+        final FenwickTree testTree = testDistribution.findDensity(covariates);
         final long nullTotalCount = nullTree.getTotalCount();
         // the number of observations in the null distribution that reach or exceed the statistic value:
         final long b = nullTree.getCumulativeCount(scaledStatistic);
@@ -230,7 +453,7 @@ public class EstimatedDistribution implements Serializable {
      * @return
      */
     public double getP(final int scaledStatistic, final int... covariates) {
-        final FenwickTree tree = getDensity(covariates);
+        final FenwickTree tree = findDensity(covariates);
         final long totalCount = tree.getTotalCount();
         final double r = totalCount - tree.getCumulativeCount(scaledStatistic);
         final double n = totalCount;
@@ -293,9 +516,10 @@ public class EstimatedDistribution implements Serializable {
                 estimated = load(filename);
                 String statName = estimated.getStatAdaptor().statName();
                 outWriter.println("tscaled-" + statName + "\t" + statName + "\tcovariates\n");
-                for (final Observation observation : estimated.getObservations()) {
-                    outWriter.printf("%d\t%d\t%g\t%s%n", observation.scaledStatistic,
-                            estimated.unscale(observation.scaledStatistic), IntArrayList.wrap(observation.covariates));
+                for (int i = 0; i < estimated.getNumObservations(); i++) {
+                    final int scaledStatistic = estimated.getObservedStatistic(i);
+                    outWriter.printf("%d\t%g\t%s%n", scaledStatistic,
+                            estimated.unscale(scaledStatistic), IntArrayList.wrap(estimated.getObservedCovariates(i)));
                 }
                 outWriter.close();
             } catch (ClassNotFoundException e) {
@@ -333,22 +557,29 @@ public class EstimatedDistribution implements Serializable {
         binningStrategy = theBinningStrategy;
     }
 
-    public ObjectArrayList<Observation> getObservations() {
-        return observations;
+    /**
+     * Append an observation to the log of observations.
+     *
+     * @param scaledStatistic the scaled statistic observed.
+     * @param covariates      covariates of the statistic.
+     */
+    public void logObservation(final int scaledStatistic, final int... covariates) {
+        observedStatistics.add(scaledStatistic);
+        observedCovariates.addElements(observedCovariates.size(), covariates);
+        observedCovariateOffsets.add(observedCovariates.size());
     }
 
+    public int getNumObservations() {
+        return observedStatistics.size();
+    }
 
-    private static class Observation implements Serializable {
-        private static final long serialVersionUID = -4121254491478932557L;
-        private int scaledStatistic;
-        private int[] covariates;
-
-        public Observation(int scaledStatistic, int... covariates) {
-
-            this.scaledStatistic = scaledStatistic;
-            this.covariates = covariates;
-        }
-
+    public int getObservedStatistic(final int observationIndex) {
+        return observedStatistics.getInt(observationIndex);
+    }
 
+    public int[] getObservedCovariates(final int observationIndex) {
+        final int start = observedCovariateOffsets.getInt(observationIndex);
+        final int end = observedCovariateOffsets.getInt(observationIndex + 1);
+        return start == end ? IntArrays.EMPTY_ARRAY : observedCovariates.subList(start, end).toIntArray();
     }
 }
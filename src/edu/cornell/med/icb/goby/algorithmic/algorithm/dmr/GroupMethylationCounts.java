@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.algorithmic.algorithm.dmr;
+
+import edu.cornell.med.icb.goby.algorithmic.data.MethylCountInfo;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+
+/**
+ * Methylated and unmethylated cytosine counts of each group of samples, for every site of a genome. Counts are
+ * stored cumulatively in primitive arrays, one array per chromosome and group, so that the counts of any range
+ * of consecutive sites are obtained in constant time. Element i of a cumulative array is the sum of the counts
+ * of the first i sites of the chromosome. Counts can be read by several threads once all the sites have been added.
+ *
+ * @author Fabien Campagne
+ *         Date: Oct 19, 2012
+ */
+public class GroupMethylationCounts {
+    private final int numGroups;
+    /**
+     * Site positions, indexed by chromosome.
+     */
+    private final ObjectArrayList<IntArrayList> positions = new ObjectArrayList<IntArrayList>();
+    /**
+     * Cumulative methylated counts, indexed by chromosome then group.
+     */
+    private final ObjectArrayList<LongArrayList[]> cumulativeMethylated = new ObjectArrayList<LongArrayList[]>();
+    /**
+     * Cumulative unmethylated counts, indexed by chromosome then group.
+     */
+    private final ObjectArrayList<LongArrayList[]> cumulativeUnmethylated = new ObjectArrayList<LongArrayList[]>();
+
+    public GroupMethylationCounts(final int numGroups) {
+        super();
+        this.numGroups = numGroups;
+    }
+
+    /**
+     * Append a site. The sites of a chromosome must be added in increasing position order.
+     *
+     * @param chromosome           index of the chromosome of the site.
+     * @param position             position of the site.
+     * @param methylatedPerGroup   number of methylated cytosines observed at the site in each group.
+     * @param unmethylatedPerGroup number of unmethylated cytosines observed at the site in each group.
+     */
+    public void addSite(final int chromosome, final int position,
+                        final int[] methylatedPerGroup, final int[] unmethylatedPerGroup) {
+        while (positions.size() <= chromosome) {
+            positions.add(new IntArrayList());
+            cumulativeMethylated.add(newCumulativeArrays());
+            cumulativeUnmethylated.add(newCumulativeArrays());
+        }
+        final IntArrayList chromosomePositions = positions.get(chromosome);
+        if (!chromosomePositions.isEmpty() && chromosomePositions.getInt(chromosomePositions.size() - 1) >= position) {
+            throw new IllegalArgumentException(String.format("Sites must be added in increasing position order. " +
+                    "Position %d follows position %d on chromosome %d.", position,
+                    chromosomePositions.getInt(chromosomePositions.size() - 1), chromosome));
+        }
+        chromosomePositions.add(position);
+        accumulate(cumulativeMethylated.get(chromosome), methylatedPerGroup);
+        accumulate(cumulativeUnmethylated.get(chromosome), unmethylatedPerGroup);
+    }
+
+    /**
+     * Append a site with the group counts of a MethylCountInfo.
+     *
+     * @param chromosome index of the chromosome of the site.
+     * @param position   position of the site.
+     * @param mci        counts at the site.
+     */
+    public void addSite(final int chromosome, final int position, final MethylCountInfo mci) {
+        addSite(chromosome, position, mci.methylatedCCountPerGroup, mci.unmethylatedCCountPerGroup);
+    }
+
+    private LongArrayList[] newCumulativeArrays() {
+        final LongArrayList[] arrays = new LongArrayList[numGroups];
+        for (int group = 0; group < numGroups; group++) {
+            arrays[group] = LongArrayList.wrap(new long[]{0});
+        }
+        return arrays;
+    }
+
+    private void accumulate(final LongArrayList[] cumulativeCounts, final int[] countsPerGroup) {
+        for (int group = 0; group < numGroups; group++) {
+            final LongArrayList counts = cumulativeCounts[group];
+            counts.add(counts.getLong(counts.size() - 1) + countsPerGroup[group]);
+        }
+    }
+
+    public int getNumGroups() {
+        return numGroups;
+    }
+
+    public int getNumChromosomes() {
+        return positions.size();
+    }
+
+    public int getNumSites(final int chromosome) {
+        return chromosome < positions.size() ? positions.get(chromosome).size() : 0;
+    }
+
+    public int getPosition(final int chromosome, final int siteIndex) {
+        return positions.get(chromosome).getInt(siteIndex);
+    }
+
+    /**
+     * Return the number of methylated cytosines of a group over the sites [fromSite, toSite[ of a chromosome.
+     */
+    public long getMethylated(final int chromosome, final int group, final int fromSite, final int toSite) {
+        final long[] counts = cumulativeMethylated.get(chromosome)[group].elements();
+        return counts[toSite] - counts[fromSite];
+    }
+
+    /**
+     * Return the number of unmethylated cytosines of a group over the sites [fromSite, toSite[ of a chromosome.
+     */
+    public long getUnmethylated(final int chromosome, final int group, final int fromSite, final int toSite) {
+        final long[] counts = cumulativeUnmethylated.get(chromosome)[group].elements();
+        return counts[toSite] - counts[fromSite];
+    }
+}
@@ -95,15 +95,14 @@ public class SamplePairEnumerator {
             }
         }
 
-        final ObjectArraySet<SamplePair> set = new ObjectArraySet<SamplePair>();
+        // pairs are unordered, each pair is recorded once, with the smaller sample index first:
         for (final int sampleIndexA : sampleIndicesInGroup) {
             for (final int sampleIndexB : sampleIndicesInGroup) {
-                if (sampleIndexA != sampleIndexB) {
-                    set.add(new SamplePair(sampleIndexA, sampleIndexB));
+                if (sampleIndexA < sampleIndexB) {
+                    samplePairsForGroup[groupIndex].add(new SamplePair(sampleIndexA, sampleIndexB));
                 }
             }
         }
-        samplePairsForGroup[groupIndex].addAll(set);
     }
 
     /**
@@ -100,6 +100,16 @@ public interface AlignmentReader extends Closeable, Iterator<Alignments.Alignmen
      */
     void reposition(int targetIndex, int position) throws IOException;
 
+    /**
+     * Restrict the entries returned by this reader to the reads that may overlap a set of regions. The regions are
+     * resolved against the alignment index into a merged list of byte ranges of the entries file, and only the chunks
+     * within these ranges are decoded. The alignment must be sorted and indexed.
+     *
+     * @param regions resolved regions, or null to return every entry.
+     * @throws java.io.IOException If an error occurs reading the alignment header or index.
+     */
+    void setRegions(GenomicRegionSet regions) throws IOException;
+
     /**
      * This operation is not supported.
      */
@@ -107,6 +107,22 @@ public class AlignmentReaderImpl extends AbstractAlignmentReader implements Alig
     private boolean hasQueryIndexOccurrences;
     private List<Alignments.ReadOriginInfo> readOriginInfoList;
     private boolean hasAmbiguity;
+    /**
+     * Regions that restrict the entries returned by this reader, or null when every entry is returned.
+     */
+    private GenomicRegionSet regions;
+    /**
+     * Start offsets of the byte ranges of the entries file that contain the chunks overlapping the regions.
+     */
+    private long[] regionByteStarts;
+    /**
+     * End offsets (exclusive) of the byte ranges of the entries file that contain the chunks overlapping the regions.
+     */
+    private long[] regionByteEnds;
+    /**
+     * Index of the byte range that contains the current position of the entries file.
+     */
+    private int regionByteRangeIndex;
 
 
     /**
@@ -410,7 +426,8 @@ public class AlignmentReaderImpl extends AbstractAlignmentReader implements Alig
                 return false;
             }
         } while (entryTargetIndex < startReferenceIndex ||
-                (entryTargetIndex == startReferenceIndex && position < startPosition));
+                (entryTargetIndex == startReferenceIndex && position < startPosition) ||
+                (regions != null && !regions.overlapsReadStart(entryTargetIndex, position)));
 
 
         return true;
@@ -458,6 +475,13 @@ public class AlignmentReaderImpl extends AbstractAlignmentReader implements Alig
             return true;
         } else {
             collection = null;
+            try {
+                if (regions != null && !seekToRegionByteRange()) {
+                    return false;
+                }
+            } catch (IOException e) {
+                throw new GobyRuntimeException(e);
+            }
             final boolean hasNext = alignmentEntryReader.hasNext(collection, numberOfEntries());
 
             final ChunkCodec codec = alignmentEntryReader.getChunkCodec();
@@ -580,6 +604,92 @@ public class AlignmentReaderImpl extends AbstractAlignmentReader implements Alig
         readIndex();
         this.alignmentEntryReader.flush();
         repositionInternal(targetIndex, position, true);
+        regionByteRangeIndex = 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void setRegions(final GenomicRegionSet regions) throws IOException {
+        this.regions = regions;
+        regionByteRangeIndex = 0;
+        if (regions == null) {
+            return;
+        }
+        readHeader();
+        if (!sorted || !indexed) {
+            throw new UnsupportedOperationException("The alignment must be sorted and indexed to read entries by regions.");
+        }
+        readIndex();
+        final int numChunks = indexOffsets.size();
+        final LongArrayList byteStarts = new LongArrayList();
+        final LongArrayList byteEnds = new LongArrayList();
+        for (int regionIndex = 0; regionIndex < regions.size(); regionIndex++) {
+            final int targetIndex = regions.getReferenceIndex(regionIndex);
+            if (numChunks == 0 || targetIndex >= targetPositionOffsets.length) {
+                continue;
+            }
+            final int start = Math.max(0, regions.getStart(regionIndex) - regions.getStartMargin());
+            // the chunk before the first chunk that starts at or after the region may contain entries of the region:
+            final int firstChunk = Math.max(0, firstChunkAtOrAfter(recodePosition(targetIndex, start)) - 1);
+            // chunks that start after the end of the region contain no entry of the region:
+            final int endChunk = firstChunkAtOrAfter(recodePosition(targetIndex, regions.getEnd(regionIndex)) + 1);
+            final long byteStart = indexOffsets.getLong(firstChunk);
+            final long byteEnd = endChunk < numChunks ? indexOffsets.getLong(endChunk) : Long.MAX_VALUE;
+            final int last = byteStarts.size() - 1;
+            if (last >= 0 && byteStart <= byteEnds.getLong(last)) {
+                byteEnds.set(last, Math.max(byteEnd, byteEnds.getLong(last)));
+            } else {
+                byteStarts.add(byteStart);
+                byteEnds.add(byteEnd);
+            }
+        }
+        regionByteStarts = byteStarts.toLongArray();
+        regionByteEnds = byteEnds.toLongArray();
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(String.format("%d regions resolved to %d byte ranges of %s.entries",
+                    regions.size(), regionByteStarts.length, basename));
+        }
+    }
+
+    /**
+     * Return the index of the first chunk whose first entry is at or after an absolute position, or the number of
+     * chunks if no such chunk exists.
+     */
+    private int firstChunkAtOrAfter(final long absolutePosition) {
+        final long[] absolutePositions = indexAbsolutePositions.elements();
+        int low = 0;
+        int high = indexAbsolutePositions.size();
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (absolutePositions[middle] < absolutePosition) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Advance the entries file to the next byte range that overlaps the regions, before a new chunk is read.
+     * Chunks between byte ranges are skipped without being decoded.
+     *
+     * @return False when the entries file is past the last byte range.
+     * @throws IOException If an error occurs seeking.
+     */
+    private boolean seekToRegionByteRange() throws IOException {
+        final long position = alignmentEntryReader.position();
+        while (regionByteRangeIndex < regionByteStarts.length && position >= regionByteEnds[regionByteRangeIndex]) {
+            ++regionByteRangeIndex;
+        }
+        if (regionByteRangeIndex == regionByteStarts.length) {
+            return false;
+        }
+        if (position < regionByteStarts[regionByteRangeIndex]) {
+            seek(regionByteStarts[regionByteRangeIndex]);
+        }
+        return true;
     }
 
     /**
@@ -200,16 +200,6 @@ public class AlleleFrequencyOutputFormat implements SequenceVariationOutputForma
         Arrays.fill(numSamplesPerGroup, 0);
 
         for (int sampleIndex = 0; sampleIndex < numberOfSamples; sampleIndex++) {
-            int numAlleles = 0;
-            totalCount = 0;
-            final SampleCountInfo sampleCount = sampleCounts[sampleIndex];
-            for (int genotypeIndex = 0; genotypeIndex < sampleCount.getGenotypeMaxIndex(); ++genotypeIndex) {
-
-                final int count = sampleCount.getGenotypeCount(genotypeIndex);
-                if (count > 0) numAlleles++;
-                totalCount += count;
-            }
-
             // estimate reference allele proportion:
             double refProportion = (double) sampleCounts[sampleIndex].refCount;
             refProportion /= sampleCounts[sampleIndex].refCount + sampleCounts[sampleIndex].varCount;
@@ -239,7 +229,7 @@ public class AlleleFrequencyOutputFormat implements SequenceVariationOutputForma
         float effectSize = Math.abs(averageRPPerGroup[0] - averageRPPerGroup[1]);
         statsWriter.setInfo(effectSizeInfoIndex, effectSize);
 
-        genotypeFormatter.writeGenotypes(statsWriter, sampleCounts, position);
+        genotypeFormatter.writeGenotypes(statsWriter, sampleCounts, position, list);
         if (!statsWriter.hasAlternateAllele() || effectSize < minimumAllelelicDifference) {
             // do not write a record if the position does not have an alternate allele or if the effect size is negligible.
             return;
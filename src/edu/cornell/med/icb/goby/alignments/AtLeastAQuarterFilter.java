@@ -60,22 +60,17 @@ public class AtLeastAQuarterFilter extends GenotypeFilter {
         resetCounters();
         initStorage(sampleCounts.length);
 
-        for (SampleCountInfo sci : sampleCounts) {
-
-            for (int genotypeIndex = 0; genotypeIndex < sci.getGenotypeMaxIndex(); ++genotypeIndex) {
-                final int count = sci.getGenotypeCount(genotypeIndex);
-                maxAlleleCountsPerSample[sci.sampleIndex] = Math.max(maxAlleleCountsPerSample[sci.sampleIndex], count);
-            }
-        }
+        estimateMaxAlleleCounts(sampleCounts);
 
-        for (PositionBaseInfo positionBaseInfo : list) {
+        final int size = list.size();
+        for (int index = 0; index < size; index++) {
 
-            final int sampleIndex = positionBaseInfo.readerIndex;
+            final int sampleIndex = list.getReaderIndex(index);
 
             final int removedBaseCountThreshold = getThresholdForSample(sampleIndex);
 
             numScreened++;
-            char base = positionBaseInfo.matchesReference ? positionBaseInfo.from : positionBaseInfo.to;
+            char base = list.getGenotypeBase(index);
 
             final SampleCountInfo sampleCountInfo = sampleCounts[sampleIndex];
             // how many of this base have we seen in this sample?
@@ -86,8 +81,8 @@ public class AtLeastAQuarterFilter extends GenotypeFilter {
 
                 // this allele has less than 1/4 of the counts of the allele with the most counts in this sample.
                 // remove.
-                sampleCountInfo.suggestRemovingGenotype(baseIndex, positionBaseInfo.matchesForwardStrand);
-                removeGenotype(positionBaseInfo, filteredList);
+                sampleCountInfo.suggestRemovingGenotype(baseIndex, list.isMatchingForwardStrand(index));
+                removeGenotype(list.get(index), filteredList);
             }
         }
         filterIndels(list, sampleCounts);
@@ -95,4 +90,44 @@ public class AtLeastAQuarterFilter extends GenotypeFilter {
         adjustRefVarCounts(sampleCounts);
     }
 
+    @Override
+    public void filterGenotypes(final GenotypeTally tally,
+                                final DiscoverVariantPositionData list,
+                                final SampleCountInfo[] sampleCounts) {
+        resetCounters();
+        initStorage(sampleCounts.length);
+        estimateMaxAlleleCounts(sampleCounts);
+        final int[] cells = tally.getCells();
+        final int numCells = tally.getNumCells();
+        for (int i = 0; i < numCells; i++) {
+            final int cell = cells[i];
+            numScreened += tally.getCount(cell);
+            if (GenotypeTally.isIndel(cell)) {
+                continue;
+            }
+            final int sampleIndex = GenotypeTally.getSampleIndex(cell);
+            final int count = sampleCounts[sampleIndex].getGenotypeCount(tally.getGenotypeIndex(cell));
+            if (count == 0) continue;
+            if (count < getThresholdForSample(sampleIndex)) {
+                // this allele has less than 1/4 of the counts of the allele with the most counts in this sample.
+                removeGenotype(tally, cell, tally.getCount(cell), sampleCounts);
+            }
+        }
+        filterIndels(list, sampleCounts);
+        adjustRefVarCounts(sampleCounts);
+    }
+
+    @Override
+    public boolean supportsTally() {
+        return true;
+    }
+
+    private void estimateMaxAlleleCounts(final SampleCountInfo[] sampleCounts) {
+        for (SampleCountInfo sci : sampleCounts) {
+            for (int genotypeIndex = 0; genotypeIndex < sci.getGenotypeMaxIndex(); ++genotypeIndex) {
+                final int count = sci.getGenotypeCount(genotypeIndex);
+                maxAlleleCountsPerSample[sci.sampleIndex] = Math.max(maxAlleleCountsPerSample[sci.sampleIndex], count);
+            }
+        }
+    }
 }
@@ -88,6 +88,20 @@ public class CommonIndelArtifactFilter extends GenotypeFilter {
 
     }
 
+    /**
+     * This filter only considers the candidate indels of the position, and filters tallied genotypes the same way.
+     */
+    @Override
+    public void filterGenotypes(final GenotypeTally tally, final DiscoverVariantPositionData list,
+                                final SampleCountInfo[] sampleCounts) {
+        filterGenotypes(list, sampleCounts, null);
+    }
+
+    @Override
+    public boolean supportsTally() {
+        return true;
+    }
+
     protected int repeatPatternLength(EquivalentIndelRegion indel) {
         return Math.max(repeatPatternLength(indel.from, indel.to),
                 repeatPatternLength(indel.to, indel.from));
@@ -492,6 +492,19 @@ public class ConcatAlignmentReader extends AbstractConcatAlignmentReader {
         }
     }
 
+    /**
+     * Restrict every concatenated alignment to the reads that may overlap a set of regions. See
+     * AlignmentReader.setRegions. Must be called before entries are read.
+     *
+     * @param regions resolved regions, or null to return every entry.
+     * @throws IOException If an error occurs reading the index of an alignment.
+     */
+    public void setRegions(final GenomicRegionSet regions) throws IOException {
+        for (final AlignmentReader reader : readers) {
+            reader.setRegions(regions);
+        }
+    }
+
     @Override
     public ReferenceLocation getMinLocation() throws IOException {
         ReferenceLocation minLocation = readers[0].getMinLocation();
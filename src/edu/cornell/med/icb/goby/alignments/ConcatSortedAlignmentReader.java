@@ -34,6 +34,7 @@ import java.util.NoSuchElementException;
 /**
  * Concatenates sorted alignments while preserving entry sort order across inputs. The result is a sorted
  * alignment. Since Goby 2.3, this class supports restricting its output to a genomic range. see setGenomicRange.
+ * Reads can also be downsampled as they are merged, see setDownsampler.
  *
  * @author Fabien Campagne
  *         Date: Jun 22, 2010
@@ -46,6 +47,11 @@ public class ConcatSortedAlignmentReader extends ConcatAlignmentReader {
     private boolean[] nextLoadedForReader;
     private Bucket[] buckets;
     private GenomicRange genomicRange;
+    private ReadDownsampler downsampler;
+    /**
+     * The next downsampled entry, when hasNext() has been called and next() has not.
+     */
+    private Alignments.AlignmentEntry nextDownsampled;
     /**
      * Used to log debug and informational messages.
      */
@@ -158,6 +164,48 @@ public class ConcatSortedAlignmentReader extends ConcatAlignmentReader {
      * @throws IOException If an error occurs reading the alignment header. The header is accessed to check that the alignment is sorted.
      */
     public final Alignments.AlignmentEntry skipTo(final int targetIndex, final int position) throws IOException {
+        if (downsampler == null) {
+            return mergedSkipTo(targetIndex, position);
+        }
+        if (nextDownsampled != null) {
+            final Alignments.AlignmentEntry entry = nextDownsampled;
+            nextDownsampled = null;
+            if (entry.getTargetIndex() > targetIndex ||
+                    (entry.getTargetIndex() == targetIndex && entry.getPosition() >= position)) {
+                return entry;
+            }
+        }
+        return downsampledEntry(true, targetIndex, position);
+    }
+
+    /**
+     * Cap the number of reads of each sample that start in windows of the genome. Entries are then returned only
+     * once the window they start in has been read, and getReaderIndex() does not identify the reader of the last
+     * entry returned: use the sample index of the entry with setAdjustSampleIndices(true) instead.
+     *
+     * @param downsampler the downsampler, or null to return every entry.
+     */
+    public void setDownsampler(final ReadDownsampler downsampler) {
+        this.downsampler = downsampler;
+    }
+
+    /**
+     * Return the next entry kept by the downsampler, offering it merged entries until one is known to be kept.
+     */
+    private Alignments.AlignmentEntry downsampledEntry(final boolean skip, final int targetIndex,
+                                                      final int position) throws IOException {
+        Alignments.AlignmentEntry entry;
+        while ((entry = downsampler.poll(targetIndex, position)) == null && !downsampler.isInputEnded()) {
+            if (skip) {
+                downsampler.offer(mergedSkipTo(targetIndex, position));
+            } else {
+                downsampler.offer(mergedHasNext() ? mergedNext() : null);
+            }
+        }
+        return entry;
+    }
+
+    private Alignments.AlignmentEntry mergedSkipTo(final int targetIndex, final int position) throws IOException {
         // remove entries from heap if they are located before the skipTo location:
         {
             Bucket bucket;
@@ -283,6 +331,20 @@ public class ConcatSortedAlignmentReader extends ConcatAlignmentReader {
      */
     @Override
     public boolean hasNext() {
+        if (downsampler == null) {
+            return mergedHasNext();
+        }
+        if (nextDownsampled == null) {
+            try {
+                nextDownsampled = downsampledEntry(false, Integer.MIN_VALUE, Integer.MIN_VALUE);
+            } catch (IOException e) {
+                LOG.error("Could not read headers for sorted alignments.");
+            }
+        }
+        return nextDownsampled != null;
+    }
+
+    private boolean mergedHasNext() {
         if (hasNext) {
             return true;
         }
@@ -362,8 +424,20 @@ public class ConcatSortedAlignmentReader extends ConcatAlignmentReader {
      */
     @Override
     public Alignments.AlignmentEntry next() {
+        if (downsampler == null) {
+            return mergedNext();
+        }
         if (!hasNext()) {
             throw new NoSuchElementException();
+        }
+        final Alignments.AlignmentEntry entry = nextDownsampled;
+        nextDownsampled = null;
+        return entry;
+    }
+
+    private Alignments.AlignmentEntry mergedNext() {
+        if (!mergedHasNext()) {
+            throw new NoSuchElementException();
         } else {
 
             final Bucket bucket = entryHeap.dequeue();
@@ -399,10 +473,15 @@ public class ConcatSortedAlignmentReader extends ConcatAlignmentReader {
         Alignments.AlignmentEntry entry = skipTo(genomicRange.startReferenceIndex, genomicRange.startPosition);
 
         if (entry != null) {
-            hasNext = true;
-
-            // push back the entry to the heap so we can get it again with hasNext/next()
-            entryHeap.enqueue(new Bucket(entry, activeIndex));
+            if (downsampler != null) {
+                // the downsampler already returned the entry, keep it for hasNext/next()
+                nextDownsampled = entry;
+            } else {
+                hasNext = true;
+
+                // push back the entry to the heap so we can get it again with hasNext/next()
+                entryHeap.enqueue(new Bucket(entry, activeIndex));
+            }
         }
     }
 }
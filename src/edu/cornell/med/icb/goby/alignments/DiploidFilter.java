@@ -53,7 +53,71 @@ public class DiploidFilter extends GenotypeFilter {
                                 final ObjectSet<PositionBaseInfo> filteredList) {
         resetCounters();
         initStorage(sampleCounts.length);
+        estimateMaxFrequencies(sampleCounts);
 
+        final int size = list.size();
+        for (int index = 0; index < size; index++) {
+
+            numScreened++;
+            final int sampleIndex = list.getReaderIndex(index);
+            char base = list.getGenotypeBase(index);
+
+            final SampleCountInfo sampleCountInfo = sampleCounts[sampleIndex];
+            // how many of this base have we seen in this sample?
+            final int baseIndex = sampleCountInfo.baseIndex(base);
+            final int count = sampleCountInfo.getGenotypeCount(baseIndex);
+            if (count == 0) {
+                continue;
+            }
+            if (count != firstMaxFrequency[sampleIndex] && count != secondMaxFrequency[sampleIndex]) {
+
+                sampleCountInfo.suggestRemovingGenotype(baseIndex, list.isMatchingForwardStrand(index));
+                removeGenotype(list.get(index), filteredList);
+            }
+        }
+
+        filterIndels(list, sampleCounts);
+        adjustGenotypes(list, filteredList, sampleCounts);
+        adjustRefVarCounts(sampleCounts);
+    }
+
+    @Override
+    public void filterGenotypes(final GenotypeTally tally,
+                                final DiscoverVariantPositionData list,
+                                final SampleCountInfo[] sampleCounts) {
+        resetCounters();
+        initStorage(sampleCounts.length);
+        estimateMaxFrequencies(sampleCounts);
+        final int[] cells = tally.getCells();
+        final int numCells = tally.getNumCells();
+        for (int i = 0; i < numCells; i++) {
+            final int cell = cells[i];
+            numScreened += tally.getCount(cell);
+            if (GenotypeTally.isIndel(cell)) {
+                continue;
+            }
+            final int sampleIndex = GenotypeTally.getSampleIndex(cell);
+            final int count = sampleCounts[sampleIndex].getGenotypeCount(tally.getGenotypeIndex(cell));
+            if (count == 0) {
+                continue;
+            }
+            if (count != firstMaxFrequency[sampleIndex] && count != secondMaxFrequency[sampleIndex]) {
+                removeGenotype(tally, cell, tally.getCount(cell), sampleCounts);
+            }
+        }
+        filterIndels(list, sampleCounts);
+        adjustRefVarCounts(sampleCounts);
+    }
+
+    @Override
+    public boolean supportsTally() {
+        return true;
+    }
+
+    /**
+     * Determine the first and second maximum genotype frequencies of each sample.
+     */
+    private void estimateMaxFrequencies(final SampleCountInfo[] sampleCounts) {
         for (final SampleCountInfo sci : sampleCounts) {
             final int sampleIndex = sci.sampleIndex;
             int maxIndex = sci.getGenotypeMaxIndex();
@@ -80,30 +144,6 @@ public class DiploidFilter extends GenotypeFilter {
                 secondMaxFrequency[sampleIndex] = -1;  // -1 will disable matching the genotpe to secondMaxFrequency
             }
         }
-
-        for (final PositionBaseInfo positionBaseInfo : list) {
-
-            numScreened++;
-            final int sampleIndex = positionBaseInfo.readerIndex;
-            char base = positionBaseInfo.matchesReference ? positionBaseInfo.from : positionBaseInfo.to;
-
-            final SampleCountInfo sampleCountInfo = sampleCounts[sampleIndex];
-            // how many of this base have we seen in this sample?
-            final int baseIndex = sampleCountInfo.baseIndex(base);
-            final int count = sampleCountInfo.getGenotypeCount(baseIndex);
-            if (count == 0) {
-                continue;
-            }
-            if (count != firstMaxFrequency[sampleIndex] && count != secondMaxFrequency[sampleIndex]) {
-
-                sampleCountInfo.suggestRemovingGenotype(baseIndex, positionBaseInfo.matchesForwardStrand);
-                removeGenotype(positionBaseInfo, filteredList);
-            }
-        }
-
-        filterIndels(list, sampleCounts);
-        adjustGenotypes(list, filteredList, sampleCounts);
-        adjustRefVarCounts(sampleCounts);
     }
 
     @Override
@@ -30,8 +30,8 @@ import edu.cornell.med.icb.goby.util.OutputInfo;
 import edu.cornell.med.icb.goby.util.WarningCounter;
 import it.unimi.dsi.fastutil.ints.IntArraySet;
 import it.unimi.dsi.fastutil.ints.IntSet;
+import it.unimi.dsi.fastutil.longs.LongIterator;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
-import it.unimi.dsi.fastutil.objects.ObjectIterator;
 import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
 import it.unimi.dsi.fastutil.objects.ObjectSet;
 import org.apache.commons.logging.Log;
@@ -189,7 +189,7 @@ public class DiscoverVariantIterateSortedAlignments extends IterateSortedAlignme
             DiscoverVariantPositionData positionBaseInfos = positionToBases.get(keyPos);
             //   System.out.printf("Observing indel at position %d %n", keyPos);
             if (positionBaseInfos == null) {
-                positionBaseInfos = new DiscoverVariantPositionData(keyPos);
+                positionBaseInfos = allocatePositionData(keyPos);
                 positionToBases.put(keyPos, positionBaseInfos);
             }
 
@@ -272,36 +272,43 @@ public class DiscoverVariantIterateSortedAlignments extends IterateSortedAlignme
             }
 
 
-            for (final edu.cornell.med.icb.goby.alignments.PositionBaseInfo info : list) {
-                final int sampleIndex = info.readerIndex;
+            final boolean tallied = list.isTallyingGenotypes();
+            if (tallied) {
+                sumVariantCounts += countTalliedGenotypes(list.getTally(), referenceBase, distinctReadIndices);
+            }
+            final int size = list.size();
+            for (int index = 0; index < size; index++) {
+                final int sampleIndex = list.getReaderIndex(index);
+                final boolean matchesReference = list.isMatchingReference(index);
+                final boolean matchesForwardStrand = list.isMatchingForwardStrand(index);
 
-                if (info.matchesReference && referenceBase != '\0') {
+                if (matchesReference && referenceBase != '\0') {
                     // from and to have to be set if the position matches the reference.
-                    info.from = referenceBase;
-                    info.to = referenceBase;
+                    list.setBases(index, referenceBase, referenceBase);
                 } else {
-                    distinctReadIndices.add(info.readIndex);
+                    distinctReadIndices.add(list.getReadIndex(index));
                 }
-                if (info.matchesReference) {
+                final char from = list.getFrom(index);
+                if (matchesReference) {
 
                     sampleCounts[sampleIndex].referenceBase = referenceBase;
                     sampleCounts[sampleIndex].refCount++;
-                    incrementBaseCounter(info.from, sampleIndex, info.matchesForwardStrand);
+                    incrementBaseCounter(from, sampleIndex, matchesForwardStrand);
 
                 } else {
                     sampleCounts[sampleIndex].varCount++;
                     sumVariantCounts++;
-                    if (info.from != referenceBase && info.from != '.' && info.from != '-') {
+                    if (from != referenceBase && from != '.' && from != '-') {
 
                         refBaseWarning.warn(LOG, "reference base differ between variation (%c) and genome (%c) at chr %s position %d",
-                                info.from, referenceBase, getReferenceId(referenceIndex),
+                                from, referenceBase, getReferenceId(referenceIndex),
                                 position);
 
                     }
                     sampleCounts[sampleIndex].referenceBase = referenceBase;
-                    sampleCounts[sampleIndex].distinctReadIndices.add(info.readIndex);
+                    sampleCounts[sampleIndex].distinctReadIndices.add(list.getReadIndex(index));
 
-                    if (!info.isInsertionOrDeletion()) incrementBaseCounter(info.to, sampleIndex, info.matchesForwardStrand);
+                    if (!list.isInsertionOrDeletion(index)) incrementBaseCounter(list.getTo(index), sampleIndex, matchesForwardStrand);
                 }
             }
 
@@ -320,7 +327,11 @@ public class DiscoverVariantIterateSortedAlignments extends IterateSortedAlignme
                         final CountFixer fixer = new CountFixerNoThresholdingEffect();
                         fixer.preserveCounts(sampleCounts);
                         for (final GenotypeFilter filter : genotypeFilters) {
-                            filter.filterGenotypes(list, sampleCounts, filteredList);
+                            if (tallied) {
+                                filter.filterGenotypes(list.getTally(), list, sampleCounts);
+                            } else {
+                                filter.filterGenotypes(list, sampleCounts, filteredList);
+                            }
 
                             /*System.out.printf("filter %s removed %3g %% %n", filter.getName(), filter.getPercentFilteredOut());
 
@@ -331,6 +342,12 @@ public class DiscoverVariantIterateSortedAlignments extends IterateSortedAlignme
                         }
 
                         fixer.fix(list, sampleCounts, filteredList);
+                        if (tallied) {
+                            // bases removed from the tally were not recorded in filteredList:
+                            for (final SampleCountInfo sci : sampleCounts) {
+                                sci.failedCount += list.getTally().getNumRemoved(sci.sampleIndex);
+                            }
+                        }
                     }
 
 
@@ -342,6 +359,46 @@ public class DiscoverVariantIterateSortedAlignments extends IterateSortedAlignme
         }
     }
 
+    /**
+     * Add the bases tallied at a position to the sample counts, as processPositions does for a list of bases.
+     *
+     * @param tally               bases tallied at the position.
+     * @param referenceBase       reference base at the position.
+     * @param distinctReadIndices distinct read indices of variant bases, across samples.
+     * @return the number of variant bases.
+     */
+    private int countTalliedGenotypes(final GenotypeTally tally, final char referenceBase,
+                                      final IntSet distinctReadIndices) {
+        int sumVariantCounts = 0;
+        tally.setReferenceBase(referenceBase);
+        final int[] cells = tally.getCells();
+        final int numCells = tally.getNumCells();
+        for (int i = 0; i < numCells; i++) {
+            final int cell = cells[i];
+            final int count = tally.getCount(cell);
+            final SampleCountInfo sci = sampleCounts[GenotypeTally.getSampleIndex(cell)];
+            if (GenotypeTally.matchesReference(cell)) {
+                sci.refCount += count;
+            } else {
+                sci.varCount += count;
+                sumVariantCounts += count;
+            }
+            if (!GenotypeTally.isIndel(cell)) {
+                final int genotypeIndex = tally.getGenotypeIndex(cell);
+                final boolean forwardStrand = GenotypeTally.isForwardStrand(cell);
+                sci.setGenotypeCount(genotypeIndex, sci.getGenotypeCount(genotypeIndex, forwardStrand) + count,
+                        forwardStrand);
+            }
+        }
+        for (final LongIterator it = tally.getVariantReadIndices().iterator(); it.hasNext(); ) {
+            final long sampleAndReadIndex = it.nextLong();
+            final int readIndex = (int) sampleAndReadIndex;
+            sampleCounts[(int) (sampleAndReadIndex >>> 32)].distinctReadIndices.add(readIndex);
+            distinctReadIndices.add(readIndex);
+        }
+        return sumVariantCounts;
+    }
+
     private boolean anyCountNegative(SampleCountInfo[] sampleCounts) {
 
         for (SampleCountInfo sci : sampleCounts) {
@@ -354,11 +411,10 @@ public class DiscoverVariantIterateSortedAlignments extends IterateSortedAlignme
     }
 
     private boolean inRegionToWrite(final int referenceIndex, final int position) {
-        if (useWindow) {
-            return !isWithinStartFlap(referenceIndex, position) && !isPastEnd(referenceIndex, position);
-        } else {
-            return true;
+        if (useWindow && (isWithinStartFlap(referenceIndex, position) || isPastEnd(referenceIndex, position))) {
+            return false;
         }
+        return isWithinRegions(referenceIndex, position);
     }
 
     /**
@@ -393,15 +449,15 @@ public class DiscoverVariantIterateSortedAlignments extends IterateSortedAlignme
         } else {
             // We will find some referenceBase among the variations that do not match the reference:
             // this procedure will not be able to determine the refBase if all samples are homzygotes matching the reference
-            final ObjectIterator<edu.cornell.med.icb.goby.alignments.PositionBaseInfo> iterator = list.iterator();
-            char refBase = '\0';
+            char refBase = list.isTallyingGenotypes() ? list.getTally().getFirstVariantFrom() : '\0';
             // find the reference base from any variant:
-            while (iterator.hasNext()) {
-                edu.cornell.med.icb.goby.alignments.PositionBaseInfo positionBaseInfo = iterator.next();
-                if (!positionBaseInfo.matchesReference) {
-                    if (positionBaseInfo.from != '-' && positionBaseInfo.from != '.') {
+            final int size = list.size();
+            for (int index = 0; index < size; index++) {
+                if (!list.isMatchingReference(index)) {
+                    final char from = list.getFrom(index);
+                    if (from != '-' && from != '.') {
                         // skip the variant if this was an insertion in the read and we don't know the reference.
-                        refBase = positionBaseInfo.from;
+                        refBase = from;
                         break;
                     }
                 }
@@ -21,26 +21,59 @@ package edu.cornell.med.icb.goby.alignments;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import edu.cornell.med.icb.goby.algorithmic.data.EquivalentIndelRegion;
-import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.objects.AbstractObjectList;
 import it.unimi.dsi.fastutil.objects.ObjectArraySet;
+import it.unimi.dsi.fastutil.objects.ObjectSet;
 
-import java.util.Collections;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Random;
+import java.util.RandomAccess;
 
 /**
  * Stores information collected about each genomic position inspected by IterateSortedAlignmentsImpl (used by
  * DiscoverSequenceVariantsMode).
+ * <p/>
+ * The bases observed at the position are stored column by column, in primitive arrays (reader index, read index,
+ * quality score, from and to bases, strand and whether the base matches the reference), so that observing a base
+ * does not allocate an object. Instances can be reused for another position with reset, see PileupArena. Bases can
+ * be accessed by index with the column accessors, or as PositionBaseInfo elements of this list. PositionBaseInfo
+ * elements are created on demand and kept for the lifetime of the base in the list, so that the same instance is
+ * returned each time an element is accessed. Elements must not be modified after they are added to the list.
  *
  * @author Fabien Campagne
  *         Date: 6/6/11
  *         Time: 3:27 PM
  */
-public class DiscoverVariantPositionData extends ObjectArrayList<PositionBaseInfo> {
+public class DiscoverVariantPositionData extends AbstractObjectList<PositionBaseInfo> implements RandomAccess, Serializable {
     private static final long serialVersionUID = 9212001398502402859L;
+    private static final int INITIAL_CAPACITY = 16;
+    private static final byte MATCHES_REFERENCE = 1;
+    private static final byte MATCHES_FORWARD_STRAND = 2;
+
     private ObjectArraySet<EquivalentIndelRegion> candidateIndels;
     private int position;
     private ObjectArraySet<EquivalentIndelRegion> failedIndels;
     private static final ObjectArraySet<EquivalentIndelRegion> EMPTY_SET = new ObjectArraySet<EquivalentIndelRegion>();
 
+    private int size;
+    private int[] readerIndices;
+    private int[] readIndices;
+    private byte[] qualityScores;
+    private char[] fromBases;
+    private char[] toBases;
+    private byte[] flags;
+    /**
+     * PositionBaseInfo elements, created on demand, indexed like the columns.
+     */
+    private transient PositionBaseInfo[] elements;
+    /**
+     * Histograms that count the bases of this position, instead of the columns, when genotypes are tallied.
+     */
+    private GenotypeTally tally;
+    private boolean tallyGenotypes;
+
     public int getZeroBasedPosition() {
         return position;
     }
@@ -52,6 +85,7 @@ public class DiscoverVariantPositionData extends ObjectArrayList<PositionBaseInf
         for (int baseIndex = 0; baseIndex < SampleCountInfo.BASE_MAX_INDEX; baseIndex++) {
             filtered[baseIndex] = new ObjectArraySet();
         }
+        allocate(INITIAL_CAPACITY);
     }
 
     /**
@@ -69,6 +103,337 @@ public class DiscoverVariantPositionData extends ObjectArrayList<PositionBaseInf
         this.position = position;
     }
 
+    /**
+     * Clear this instance so that it can store the bases of another position. The arrays that store bases are kept.
+     *
+     * @param position zero-based position.
+     */
+    public void reset(final int position) {
+        clear();
+        this.position = position;
+        candidateIndels = null;
+        failedIndels = null;
+        if (tally != null) {
+            tally.reset();
+        }
+        for (final ObjectArraySet<?> set : filtered) {
+            if (set != null) {
+                set.clear();
+            }
+        }
+    }
+
+    /**
+     * Return the number of bases this instance can store before its arrays must grow.
+     */
+    public int capacity() {
+        return flags.length;
+    }
+
+    /**
+     * Reduce the capacity of this instance when it is larger than maxCapacity. The bases stored are kept.
+     */
+    public void trim(final int maxCapacity) {
+        if (capacity() > maxCapacity) {
+            resize(Math.max(size, maxCapacity));
+        }
+        if (tally != null) {
+            tally.trim();
+        }
+    }
+
+    /**
+     * Count the bases added to this position in a GenotypeTally, instead of storing each base. When genotypes are
+     * tallied, this list remains empty and the bases can only be accessed through getTally(). This must be set
+     * before bases are added.
+     *
+     * @param tallyGenotypes True to tally the bases.
+     */
+    public void setTallyGenotypes(final boolean tallyGenotypes) {
+        assert size == 0 : "bases must be tallied from the first base added.";
+        if (tallyGenotypes && tally == null) {
+            tally = new GenotypeTally();
+        }
+        this.tallyGenotypes = tallyGenotypes;
+    }
+
+    public boolean isTallyingGenotypes() {
+        return tallyGenotypes;
+    }
+
+    /**
+     * Return the tally of the bases of this position, when genotypes are tallied.
+     */
+    public GenotypeTally getTally() {
+        return tally;
+    }
+
+    private void allocate(final int capacity) {
+        readerIndices = new int[capacity];
+        readIndices = new int[capacity];
+        qualityScores = new byte[capacity];
+        fromBases = new char[capacity];
+        toBases = new char[capacity];
+        flags = new byte[capacity];
+        elements = new PositionBaseInfo[capacity];
+    }
+
+    private void resize(final int capacity) {
+        readerIndices = Arrays.copyOf(readerIndices, capacity);
+        readIndices = Arrays.copyOf(readIndices, capacity);
+        qualityScores = Arrays.copyOf(qualityScores, capacity);
+        fromBases = Arrays.copyOf(fromBases, capacity);
+        toBases = Arrays.copyOf(toBases, capacity);
+        flags = Arrays.copyOf(flags, capacity);
+        elements = elements == null ? new PositionBaseInfo[capacity] : Arrays.copyOf(elements, capacity);
+    }
+
+    private void ensureCapacity(final int capacity) {
+        if (capacity > flags.length) {
+            resize((int) Math.min(Integer.MAX_VALUE - 8, Math.max(capacity, 2L * flags.length)));
+        }
+        if (elements == null) {
+            // deserialized instances:
+            elements = new PositionBaseInfo[flags.length];
+        }
+    }
+
+    /**
+     * Append a base observed at this position.
+     *
+     * @param readerIndex          index of the sample where the base was observed.
+     * @param readIndex            index of the base in the read.
+     * @param qualityScore         quality score of the base.
+     * @param from                 base in the reference.
+     * @param to                   base in the read.
+     * @param matchesReference     whether the base matches the reference.
+     * @param matchesForwardStrand whether the read matches the forward strand.
+     */
+    public void add(final int readerIndex, final int readIndex, final byte qualityScore, final char from, final char to,
+                    final boolean matchesReference, final boolean matchesForwardStrand) {
+        if (tallyGenotypes) {
+            tally.observe(readerIndex, readIndex, qualityScore, from, to, matchesReference, matchesForwardStrand);
+            return;
+        }
+        ensureCapacity(size + 1);
+        store(size, readerIndex, readIndex, qualityScore, from, to, matchesReference, matchesForwardStrand);
+        elements[size] = null;
+        size++;
+    }
+
+    private void store(final int index, final int readerIndex, final int readIndex, final byte qualityScore,
+                     final char from, final char to, final boolean matchesReference, final boolean matchesForwardStrand) {
+        readerIndices[index] = readerIndex;
+        readIndices[index] = readIndex;
+        qualityScores[index] = qualityScore;
+        fromBases[index] = from;
+        toBases[index] = to;
+        flags[index] = (byte) ((matchesReference ? MATCHES_REFERENCE : 0) | (matchesForwardStrand ? MATCHES_FORWARD_STRAND : 0));
+    }
+
+    private void store(final int index, final PositionBaseInfo info) {
+        store(index, info.readerIndex, info.readIndex, info.qualityScore, info.from, info.to, info.matchesReference,
+                info.matchesForwardStrand);
+        elements[index] = info;
+    }
+
+    public int getReaderIndex(final int index) {
+        return readerIndices[index];
+    }
+
+    public int getReadIndex(final int index) {
+        return readIndices[index];
+    }
+
+    public byte getQualityScore(final int index) {
+        return qualityScores[index];
+    }
+
+    public char getFrom(final int index) {
+        return fromBases[index];
+    }
+
+    public char getTo(final int index) {
+        return toBases[index];
+    }
+
+    public boolean isMatchingReference(final int index) {
+        return (flags[index] & MATCHES_REFERENCE) != 0;
+    }
+
+    public boolean isMatchingForwardStrand(final int index) {
+        return (flags[index] & MATCHES_FORWARD_STRAND) != 0;
+    }
+
+    public boolean isInsertionOrDeletion(final int index) {
+        return fromBases[index] == '-' || toBases[index] == '-';
+    }
+
+    /**
+     * Return the base of the genotype observed, the from base if the base matches the reference, the to base
+     * otherwise.
+     */
+    public char getGenotypeBase(final int index) {
+        return isMatchingReference(index) ? fromBases[index] : toBases[index];
+    }
+
+    /**
+     * Set the from and to bases of a base.
+     */
+    public void setBases(final int index, final char from, final char to) {
+        fromBases[index] = from;
+        toBases[index] = to;
+        final PositionBaseInfo element = elements == null ? null : elements[index];
+        if (element != null) {
+            element.from = from;
+            element.to = to;
+        }
+    }
+
+    /**
+     * Determine if a base is in a set of filtered bases. Sets of bases compare elements by identity, and only bases
+     * that have been accessed as elements can be in a set, so this method does not create elements.
+     *
+     * @param index       index of the base.
+     * @param filteredSet set of filtered bases.
+     * @return True when the base is in the set.
+     */
+    public boolean isFiltered(final int index, final ObjectSet<PositionBaseInfo> filteredSet) {
+        final PositionBaseInfo element = elements == null ? null : elements[index];
+        return element != null && filteredSet.contains(element);
+    }
+
+    @Override
+    public PositionBaseInfo get(final int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException("Index (" + index + ") is greater than or equal to list size (" + size + ")");
+        }
+        ensureCapacity(size);
+        PositionBaseInfo element = elements[index];
+        if (element == null) {
+            element = new PositionBaseInfo();
+            element.readerIndex = readerIndices[index];
+            element.readIndex = readIndices[index];
+            element.qualityScore = qualityScores[index];
+            element.from = fromBases[index];
+            element.to = toBases[index];
+            element.matchesReference = isMatchingReference(index);
+            element.matchesForwardStrand = isMatchingForwardStrand(index);
+            element.position = position;
+            elements[index] = element;
+        }
+        return element;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void add(final int index, final PositionBaseInfo info) {
+        ensureIndex(index);
+        ensureCapacity(size + 1);
+        if (index != size) {
+            move(index, index + 1, size - index);
+        }
+        store(index, info);
+        size++;
+    }
+
+    @Override
+    public PositionBaseInfo set(final int index, final PositionBaseInfo info) {
+        final PositionBaseInfo previous = get(index);
+        store(index, info);
+        return previous;
+    }
+
+    @Override
+    public PositionBaseInfo remove(final int index) {
+        final PositionBaseInfo previous = get(index);
+        move(index + 1, index, size - index - 1);
+        size--;
+        elements[size] = null;
+        return previous;
+    }
+
+    @Override
+    public void clear() {
+        if (elements != null) {
+            Arrays.fill(elements, 0, size, null);
+        }
+        size = 0;
+    }
+
+    /**
+     * Remove the elements of this list that are in a collection, in one pass over the list. Elements are compared
+     * by identity, as with PositionBaseInfo.equals.
+     */
+    @Override
+    public boolean removeAll(final Collection<?> c) {
+        if (c.isEmpty() || elements == null) {
+            return false;
+        }
+        int kept = 0;
+        for (int index = 0; index < size; index++) {
+            final PositionBaseInfo element = elements[index];
+            if (element == null || !c.contains(element)) {
+                if (kept != index) {
+                    copy(index, kept);
+                }
+                kept++;
+            }
+        }
+        final boolean modified = kept != size;
+        Arrays.fill(elements, kept, size, null);
+        size = kept;
+        return modified;
+    }
+
+    private void move(final int from, final int to, final int length) {
+        System.arraycopy(readerIndices, from, readerIndices, to, length);
+        System.arraycopy(readIndices, from, readIndices, to, length);
+        System.arraycopy(qualityScores, from, qualityScores, to, length);
+        System.arraycopy(fromBases, from, fromBases, to, length);
+        System.arraycopy(toBases, from, toBases, to, length);
+        System.arraycopy(flags, from, flags, to, length);
+        System.arraycopy(elements, from, elements, to, length);
+    }
+
+    private void copy(final int from, final int to) {
+        readerIndices[to] = readerIndices[from];
+        readIndices[to] = readIndices[from];
+        qualityScores[to] = qualityScores[from];
+        fromBases[to] = fromBases[from];
+        toBases[to] = toBases[from];
+        flags[to] = flags[from];
+        elements[to] = elements[from];
+    }
+
+    private void swap(final int a, final int b) {
+        final int readerIndex = readerIndices[a];
+        readerIndices[a] = readerIndices[b];
+        readerIndices[b] = readerIndex;
+        final int readIndex = readIndices[a];
+        readIndices[a] = readIndices[b];
+        readIndices[b] = readIndex;
+        final byte qualityScore = qualityScores[a];
+        qualityScores[a] = qualityScores[b];
+        qualityScores[b] = qualityScore;
+        final char from = fromBases[a];
+        fromBases[a] = fromBases[b];
+        fromBases[b] = from;
+        final char to = toBases[a];
+        toBases[a] = toBases[b];
+        toBases[b] = to;
+        final byte flag = flags[a];
+        flags[a] = flags[b];
+        flags[b] = flag;
+        final PositionBaseInfo element = elements[a];
+        elements[a] = elements[b];
+        elements[b] = element;
+    }
+
     /**
      * This method is called if a candidate indel is observed whose start position overlaps with position.
      *
@@ -123,7 +488,7 @@ public class DiscoverVariantPositionData extends ObjectArrayList<PositionBaseInf
     }
 
     public char getReferenceBase() {
-        return get(0).from;
+        return getFrom(0);
     }
 
     public ObjectArraySet<EquivalentIndelRegion> getFailedIndels() {
@@ -145,15 +510,18 @@ public class DiscoverVariantPositionData extends ObjectArrayList<PositionBaseInf
     /**
      * Sub-sample this list to keep the specified maximum number of elements.
      * @param numberToKeep the number of elements to keep in the list after sub-sampling
+     * @param random generator that draws the elements to keep, owned by the caller.
      */
-    public void subSample(int numberToKeep) {
+    public void subSample(int numberToKeep, final Random random) {
 
         final int size=this.size();
         if (numberToKeep>=size) return;
-
-        Collections.shuffle(this);
-        for (int i=size-1 ; i>=numberToKeep; --i) {
-            this.remove(i);
+        ensureCapacity(size);
+        // keep a random sample of the elements, drawn without replacement:
+        for (int i = 0; i < numberToKeep; i++) {
+            swap(i, i + random.nextInt(size - i));
         }
+        Arrays.fill(elements, numberToKeep, size, null);
+        this.size = numberToKeep;
     }
 }
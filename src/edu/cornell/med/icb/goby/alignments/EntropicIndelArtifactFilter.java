@@ -91,6 +91,20 @@ public class EntropicIndelArtifactFilter extends GenotypeFilter {
     }
 
 
+    /**
+     * This filter only considers the candidate indels of the position, and filters tallied genotypes the same way.
+     */
+    @Override
+    public void filterGenotypes(final GenotypeTally tally, final DiscoverVariantPositionData list,
+                                final SampleCountInfo[] sampleCounts) {
+        filterGenotypes(list, sampleCounts, null);
+    }
+
+    @Override
+    public boolean supportsTally() {
+        return true;
+    }
+
     @Override
     public int getThresholdForSample(int sampleIndex) {
         return 0;
@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.alignments;
+
+import edu.cornell.med.icb.identifier.DoubleIndexedIdentifier;
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * A set of genomic regions, for instance the targets of a sequencing panel, that restricts the alignment entries
+ * that readers decode. Regions are added with chromosome names, then resolved against the reference identifiers of
+ * an alignment. Resolved regions are sorted by reference index and start, and overlapping or adjacent regions are
+ * merged.
+ * <p/>
+ * Positions are zero-based and region ends are inclusive. A start margin extends each region to the reads that start
+ * up to margin bases before it, since these reads may still overlap the region. Sorted and indexed readers use
+ * the regions to decode only the chunks that may contain such reads, see AlignmentReaderImpl.setRegions.
+ *
+ * @author Fabien Campagne
+ *         Date: Oct 19, 2012
+ */
+public class GenomicRegionSet {
+    private static final Logger LOG = Logger.getLogger(GenomicRegionSet.class);
+
+    private final ObjectArrayList<String> chromosomes = new ObjectArrayList<String>();
+    private final IntArrayList chromosomeStarts = new IntArrayList();
+    private final IntArrayList chromosomeEnds = new IntArrayList();
+
+    private int[] referenceIndices = new int[0];
+    private int[] starts = new int[0];
+    private int[] ends = new int[0];
+    private int numRegions;
+    private int startMargin;
+
+    /**
+     * Add a region.
+     *
+     * @param chromosome identifier of the reference sequence of the region.
+     * @param start      zero-based position of the first base of the region.
+     * @param end        zero-based position of the last base of the region.
+     */
+    public void add(final String chromosome, final int start, final int end) {
+        if (start < 0 || end < start) {
+            throw new IllegalArgumentException(String.format("Invalid region %s:%d-%d", chromosome, start, end));
+        }
+        chromosomes.add(chromosome);
+        chromosomeStarts.add(start);
+        chromosomeEnds.add(end);
+    }
+
+    /**
+     * Load regions from a BED file. Only the first three columns are used. BED start positions are zero-based and
+     * end positions are exclusive.
+     *
+     * @param filename name of the BED file.
+     * @return the regions of the file, not yet resolved.
+     * @throws IOException If an error occurs reading the file.
+     */
+    public static GenomicRegionSet loadBed(final String filename) throws IOException {
+        final GenomicRegionSet regions = new GenomicRegionSet();
+        final Reader reader = new FileReader(filename);
+        try {
+            regions.loadBed(reader);
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+        LOG.info(String.format("Loaded %d regions from %s", regions.chromosomes.size(), filename));
+        return regions;
+    }
+
+    /**
+     * Add the regions of a BED file.
+     *
+     * @param reader reader over the content of the BED file.
+     * @throws IOException If an error occurs reading.
+     */
+    public void loadBed(final Reader reader) throws IOException {
+        final BufferedReader lines = new BufferedReader(reader);
+        String line;
+        int lineNumber = 0;
+        while ((line = lines.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.length() == 0 || line.startsWith("#") || line.startsWith("track") || line.startsWith("browser")) {
+                continue;
+            }
+            final String[] tokens = line.split("\\s+");
+            if (tokens.length < 3) {
+                throw new IOException(String.format("BED line %d must have at least three columns: %s",
+                        lineNumber, line));
+            }
+            try {
+                final int start = Integer.parseInt(tokens[1]);
+                final int end = Integer.parseInt(tokens[2]);
+                if (end > start) {
+                    add(tokens[0], start, end - 1);
+                }
+            } catch (NumberFormatException e) {
+                throw new IOException(String.format("BED line %d has invalid start or end: %s", lineNumber, line));
+            }
+        }
+    }
+
+    /**
+     * Set the start margin. Reads that start up to margin bases before a region are considered to overlap it.
+     *
+     * @param startMargin margin, in bases.
+     */
+    public void setStartMargin(final int startMargin) {
+        this.startMargin = Math.max(0, startMargin);
+    }
+
+    public int getStartMargin() {
+        return startMargin;
+    }
+
+    /**
+     * Resolve chromosome names to reference indices, then sort and merge the regions. Regions on chromosomes that
+     * the identifiers do not define are ignored.
+     *
+     * @param referenceIds identifiers of the reference sequences of the alignment.
+     */
+    public void resolve(final DoubleIndexedIdentifier referenceIds) {
+        final int size = chromosomes.size();
+        final int[] resolvedReferenceIndices = new int[size];
+        final int[] order = new int[size];
+        int numResolved = 0;
+        for (int i = 0; i < size; i++) {
+            resolvedReferenceIndices[i] = referenceIds.getIndex(chromosomes.get(i));
+            if (resolvedReferenceIndices[i] != -1) {
+                order[numResolved++] = i;
+            }
+        }
+        if (numResolved < size) {
+            LOG.warn(String.format("Ignored %d regions on chromosomes not found in the alignment.", size - numResolved));
+        }
+        IntArrays.quickSort(order, 0, numResolved, new AbstractIntComparator() {
+            public int compare(final int a, final int b) {
+                final int referenceOrder = resolvedReferenceIndices[a] - resolvedReferenceIndices[b];
+                return referenceOrder != 0 ? referenceOrder : chromosomeStarts.getInt(a) - chromosomeStarts.getInt(b);
+            }
+        });
+
+        referenceIndices = new int[numResolved];
+        starts = new int[numResolved];
+        ends = new int[numResolved];
+        numRegions = 0;
+        for (int i = 0; i < numResolved; i++) {
+            final int referenceIndex = resolvedReferenceIndices[order[i]];
+            final int start = chromosomeStarts.getInt(order[i]);
+            final int end = chromosomeEnds.getInt(order[i]);
+            final int last = numRegions - 1;
+            if (last >= 0 && referenceIndices[last] == referenceIndex && start <= ends[last] + 1) {
+                ends[last] = Math.max(ends[last], end);
+            } else {
+                referenceIndices[numRegions] = referenceIndex;
+                starts[numRegions] = start;
+                ends[numRegions] = end;
+                numRegions++;
+            }
+        }
+        LOG.info(String.format("Resolved %d regions into %d merged regions.", numResolved, numRegions));
+    }
+
+    /**
+     * Return the number of merged regions.
+     */
+    public int size() {
+        return numRegions;
+    }
+
+    public int getReferenceIndex(final int regionIndex) {
+        return referenceIndices[regionIndex];
+    }
+
+    public int getStart(final int regionIndex) {
+        return starts[regionIndex];
+    }
+
+    public int getEnd(final int regionIndex) {
+        return ends[regionIndex];
+    }
+
+    /**
+     * Determine if a reference sequence has at least one region.
+     */
+    public boolean hasRegions(final int referenceIndex) {
+        final int regionIndex = firstRegionEndingAtOrAfter(referenceIndex, 0);
+        return regionIndex < numRegions && referenceIndices[regionIndex] == referenceIndex;
+    }
+
+    /**
+     * Determine if a position is within one of the regions.
+     *
+     * @param referenceIndex index of the reference sequence.
+     * @param position       zero-based position.
+     * @return True if the position is within a region.
+     */
+    public boolean contains(final int referenceIndex, final int position) {
+        final int regionIndex = firstRegionEndingAtOrAfter(referenceIndex, position);
+        return regionIndex < numRegions && referenceIndices[regionIndex] == referenceIndex &&
+                starts[regionIndex] <= position;
+    }
+
+    /**
+     * Determine if a read that starts at a position may overlap one of the regions, considering the start margin.
+     *
+     * @param referenceIndex index of the reference sequence.
+     * @param position       zero-based start position of the read.
+     * @return True if the read may overlap a region.
+     */
+    public boolean overlapsReadStart(final int referenceIndex, final int position) {
+        final int regionIndex = firstRegionEndingAtOrAfter(referenceIndex, position);
+        return regionIndex < numRegions && referenceIndices[regionIndex] == referenceIndex &&
+                starts[regionIndex] - startMargin <= position;
+    }
+
+    /**
+     * Return the index of the first region that ends at or after a position, or size() when no such region exists.
+     * Merged regions do not overlap, so this region is also the first one that may contain the position.
+     */
+    private int firstRegionEndingAtOrAfter(final int referenceIndex, final int position) {
+        int low = 0;
+        int high = numRegions;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (referenceIndices[middle] < referenceIndex ||
+                    (referenceIndices[middle] == referenceIndex && ends[middle] < position)) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
@@ -56,6 +56,31 @@ public abstract class GenotypeFilter {
                                          SampleCountInfo[] sampleCounts,
                                          ObjectSet<PositionBaseInfo> filteredSet);
 
+    /**
+     * Adjust sampleCounts to remove/reduce the effect of sequencing errors, when the bases of the position were
+     * tallied as they were observed instead of stored in a list. Observations that are filtered by this strategy are
+     * removed from the tally. The observations removed by previous filters have already been removed from the tally.
+     * Filters that support tallies must override this method and supportsTally().
+     *
+     * @param tally        Counts of the bases observed at position.
+     * @param list         Candidate indels at position. The list holds no bases.
+     * @param sampleCounts Counts for alleles at position each each sample under study.
+     */
+    public void filterGenotypes(final GenotypeTally tally,
+                                final DiscoverVariantPositionData list,
+                                final SampleCountInfo[] sampleCounts) {
+        throw new UnsupportedOperationException(getName() + " does not support tallied genotypes.");
+    }
+
+    /**
+     * Return true if this filter implements filterGenotypes for tallied genotypes.
+     *
+     * @return True or false.
+     */
+    public boolean supportsTally() {
+        return false;
+    }
+
     /**
      * Returns a short description of the filtering criteria.
      *
@@ -165,5 +190,35 @@ public abstract class GenotypeFilter {
     }
 
 
+    /**
+     * Use this method to remove observations from a tally in a sub-class filter.
+     *
+     * @param tally        the tally of the position.
+     * @param cell         the tally cell the observations are removed from.
+     * @param count        number of observations to remove from the cell.
+     * @param sampleCounts counts for alleles at position, adjusted for the observations removed.
+     */
+    protected void removeGenotype(final GenotypeTally tally, final int cell, final int count,
+                                  final SampleCountInfo[] sampleCounts) {
+        if (count <= 0) {
+            return;
+        }
+        final int sampleIndex = GenotypeTally.getSampleIndex(cell);
+        final int genotypeIndex = tally.getGenotypeIndex(cell);
+        if (genotypeIndex != -1) {
+            final boolean forwardStrand = GenotypeTally.isForwardStrand(cell);
+            for (int i = 0; i < count; i++) {
+                sampleCounts[sampleIndex].suggestRemovingGenotype(genotypeIndex, forwardStrand);
+            }
+        }
+        tally.remove(cell, count);
+        if (GenotypeTally.matchesReference(cell)) {
+            refCountRemovedPerSample[sampleIndex] += count;
+        } else {
+            varCountRemovedPerSample[sampleIndex] += count;
+        }
+        numFiltered += count;
+    }
+
     public abstract int getThresholdForSample(final int sampleIndex);
 }
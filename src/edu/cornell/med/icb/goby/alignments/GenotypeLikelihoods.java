@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.alignments;
+
+import it.unimi.dsi.lang.MutableString;
+
+import java.util.Arrays;
+
+/**
+ * Calculates the likelihoods of the diploid genotypes of a sample from the bases that support each allele of a site.
+ * Alleles are coded by their index among the REF and ALT alleles of the site (zero for the reference), so that no
+ * allele string is needed. Bases are added one at a time with their own Phred quality, or as a number of bases of the
+ * quality given to the constructor when only counts are known. The log-probabilities of observing a base under a
+ * genotype are looked up in tables indexed by quality, prepared once for all instances, and summed per allele.
+ * <p/>
+ * Likelihoods are reported as Phred-scaled likelihoods (PL), normalized so that the most likely genotype has PL zero,
+ * for the genotypes in VCF order: genotype j/k, with j &lt;= k, is at index k*(k+1)/2+j. The genotype quality (GQ) is
+ * the PL of the second most likely genotype, capped at 99.
+ *
+ * @author Fabien Campagne
+ *         Date: Oct 19, 2012
+ */
+public class GenotypeLikelihoods {
+    /**
+     * The largest Phred quality of the tables.
+     */
+    public static final int MAX_QUALITY = 93;
+    public static final int MAX_GENOTYPE_QUALITY = 99;
+
+    /**
+     * log10 of the probability to observe an allele of a homozygous genotype, by base quality.
+     */
+    private static final double[] LOG10_HOMOZYGOUS_MATCH = new double[MAX_QUALITY + 1];
+    /**
+     * log10 of the probability to observe one of the alleles of a heterozygous genotype, by base quality.
+     */
+    private static final double[] LOG10_HETEROZYGOUS_MATCH = new double[MAX_QUALITY + 1];
+    /**
+     * log10 of the probability to observe an allele that is not part of the genotype, by base quality.
+     */
+    private static final double[] LOG10_MISMATCH = new double[MAX_QUALITY + 1];
+
+    static {
+        for (int quality = 0; quality <= MAX_QUALITY; quality++) {
+            // a base of quality zero is still more likely to be correct than any of the three other bases:
+            final double error = Math.min(0.75, Math.pow(10, -quality / 10.0));
+            LOG10_HOMOZYGOUS_MATCH[quality] = Math.log10(1 - error);
+            LOG10_HETEROZYGOUS_MATCH[quality] = Math.log10((1 - error) / 2 + error / 6);
+            LOG10_MISMATCH[quality] = Math.log10(error / 3);
+        }
+    }
+
+    private final double homozygousMatch;
+    private final double heterozygousMatch;
+    private final double mismatch;
+    /**
+     * Sums, over the bases of each allele, of the log-probabilities of observing the base under a genotype that is
+     * homozygous for the allele, heterozygous with the allele, or does not contain the allele.
+     */
+    private double[] homozygousSums = new double[0];
+    private double[] heterozygousSums = new double[0];
+    private double[] mismatchSums = new double[0];
+    private int numAlleles;
+    private double[] log10Likelihoods = new double[0];
+    private int[] phredLikelihoods = new int[0];
+    private int numGenotypes;
+    private int genotypeQuality;
+
+    /**
+     * Create a calculator.
+     *
+     * @param baseQuality Phred quality assumed for the bases added with addBases.
+     */
+    public GenotypeLikelihoods(final int baseQuality) {
+        super();
+        final int quality = Math.max(0, Math.min(MAX_QUALITY, baseQuality));
+        homozygousMatch = LOG10_HOMOZYGOUS_MATCH[quality];
+        heterozygousMatch = LOG10_HETEROZYGOUS_MATCH[quality];
+        mismatch = LOG10_MISMATCH[quality];
+    }
+
+    /**
+     * Calculate the likelihoods of the genotypes of a sample from the number of bases of each allele, assuming every
+     * base has the quality given to the constructor.
+     *
+     * @param alleleCounts number of bases observed for each allele, indexed by allele code.
+     * @param numAlleles   number of alleles of the site, including the reference.
+     */
+    public void calculate(final int[] alleleCounts, final int numAlleles) {
+        clear(numAlleles);
+        for (int allele = 0; allele < numAlleles; allele++) {
+            addBases(allele, alleleCounts[allele]);
+        }
+        calculate();
+    }
+
+    /**
+     * Forget the bases added so far, to start the bases of a sample.
+     *
+     * @param numAlleles number of alleles of the site, including the reference.
+     */
+    public void clear(final int numAlleles) {
+        this.numAlleles = numAlleles;
+        if (homozygousSums.length < numAlleles) {
+            homozygousSums = new double[numAlleles];
+            heterozygousSums = new double[numAlleles];
+            mismatchSums = new double[numAlleles];
+        } else {
+            Arrays.fill(homozygousSums, 0, numAlleles, 0);
+            Arrays.fill(heterozygousSums, 0, numAlleles, 0);
+            Arrays.fill(mismatchSums, 0, numAlleles, 0);
+        }
+    }
+
+    /**
+     * Add bases of an allele, of the quality given to the constructor.
+     *
+     * @param allele code of the allele.
+     * @param count  number of bases.
+     */
+    public void addBases(final int allele, final int count) {
+        homozygousSums[allele] += count * homozygousMatch;
+        heterozygousSums[allele] += count * heterozygousMatch;
+        mismatchSums[allele] += count * mismatch;
+    }
+
+    /**
+     * Add one base of an allele.
+     *
+     * @param allele      code of the allele.
+     * @param baseQuality Phred quality of the base.
+     */
+    public void addBase(final int allele, final int baseQuality) {
+        final int quality = Math.max(0, Math.min(MAX_QUALITY, baseQuality));
+        homozygousSums[allele] += LOG10_HOMOZYGOUS_MATCH[quality];
+        heterozygousSums[allele] += LOG10_HETEROZYGOUS_MATCH[quality];
+        mismatchSums[allele] += LOG10_MISMATCH[quality];
+    }
+
+    /**
+     * Calculate the likelihoods of the genotypes of a sample from the bases added since clear was called.
+     */
+    public void calculate() {
+        numGenotypes = numAlleles * (numAlleles + 1) / 2;
+        if (log10Likelihoods.length < numGenotypes) {
+            log10Likelihoods = new double[numGenotypes];
+            phredLikelihoods = new int[numGenotypes];
+        }
+        double maxLikelihood = Double.NEGATIVE_INFINITY;
+        for (int k = 0; k < numAlleles; k++) {
+            for (int j = 0; j <= k; j++) {
+                double likelihood = 0;
+                for (int allele = 0; allele < numAlleles; allele++) {
+                    if (allele == j && allele == k) {
+                        likelihood += homozygousSums[allele];
+                    } else if (allele == j || allele == k) {
+                        likelihood += heterozygousSums[allele];
+                    } else {
+                        likelihood += mismatchSums[allele];
+                    }
+                }
+                log10Likelihoods[k * (k + 1) / 2 + j] = likelihood;
+                maxLikelihood = Math.max(maxLikelihood, likelihood);
+            }
+        }
+        int best = Integer.MAX_VALUE;
+        int secondBest = Integer.MAX_VALUE;
+        for (int i = 0; i < numGenotypes; i++) {
+            final int pl = (int) Math.round(-10 * (log10Likelihoods[i] - maxLikelihood));
+            phredLikelihoods[i] = pl;
+            if (pl < best) {
+                secondBest = best;
+                best = pl;
+            } else if (pl < secondBest) {
+                secondBest = pl;
+            }
+        }
+        genotypeQuality = Math.min(MAX_GENOTYPE_QUALITY, secondBest);
+    }
+
+    public int getNumGenotypes() {
+        return numGenotypes;
+    }
+
+    /**
+     * Return the Phred-scaled likelihood of a genotype, in VCF order.
+     */
+    public int getPhredLikelihood(final int genotypeIndex) {
+        return phredLikelihoods[genotypeIndex];
+    }
+
+    /**
+     * Return the quality of the most likely genotype.
+     */
+    public int getGenotypeQuality() {
+        return genotypeQuality;
+    }
+
+    /**
+     * Append the Phred-scaled likelihoods, comma separated, to destination.
+     */
+    public void appendPhredLikelihoods(final MutableString destination) {
+        for (int i = 0; i < numGenotypes; i++) {
+            if (i > 0) {
+                destination.append(',');
+            }
+            destination.append(phredLikelihoods[i]);
+        }
+    }
+}
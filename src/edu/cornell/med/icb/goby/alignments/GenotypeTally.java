@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.alignments;
+
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Histograms of the bases observed at a position, updated as bases are observed. The tally replaces the list of
+ * bases of a position when the bases do not need to be kept individually: its size is bounded by the number of
+ * samples, alleles, strands and quality scores, not by the coverage of the position, so that positions with very
+ * deep coverage do not need to be sub-sampled.
+ * <p/>
+ * Observations are counted in cells. A cell is identified by a sample, an allele, a strand and a quality score,
+ * packed in an int. Alleles are the base genotypes of SampleCountInfo for variant bases, and three additional
+ * alleles for inserted bases, deleted bases, and bases that match the reference. Bases that match the reference are
+ * counted with a quality score of zero, since no filter considers their quality. Read indices of the variant bases
+ * are kept for each sample, to count distinct read indices.
+ *
+ * @author Fabien Campagne
+ *         Date: Oct 19, 2012
+ */
+public class GenotypeTally implements Serializable {
+    private static final long serialVersionUID = -3196406253420875116L;
+
+    /**
+     * Allele of variant bases inserted in the reads.
+     */
+    public static final int INSERTION_INDEX = SampleCountInfo.BASE_MAX_INDEX;
+    /**
+     * Allele of variant bases deleted from the reads.
+     */
+    public static final int DELETION_INDEX = INSERTION_INDEX + 1;
+    /**
+     * Allele of the bases that match the reference.
+     */
+    public static final int REFERENCE_INDEX = DELETION_INDEX + 1;
+    /**
+     * Quality scores larger than this value are counted with this value.
+     */
+    public static final int MAX_QUALITY_SCORE = 127;
+
+    private static final int QUALITY_BITS = 7;
+    private static final int STRAND_BITS = 1;
+    private static final int ALLELE_BITS = 3;
+
+    private final Int2IntOpenHashMap counts = new Int2IntOpenHashMap();
+    private final LongOpenHashSet variantReadIndices = new LongOpenHashSet();
+    private int[] removedPerSample = IntArrays.EMPTY_ARRAY;
+    private int[] cells = IntArrays.EMPTY_ARRAY;
+    private int numCells;
+    private boolean cellsSorted = true;
+    private char firstVariantFrom;
+    private char referenceBase;
+    private int numObserved;
+
+    /**
+     * Remove all observations.
+     */
+    public void reset() {
+        counts.clear();
+        variantReadIndices.clear();
+        Arrays.fill(removedPerSample, 0);
+        numCells = 0;
+        cellsSorted = true;
+        firstVariantFrom = '\0';
+        referenceBase = '\0';
+        numObserved = 0;
+    }
+
+    /**
+     * Release memory held by the histograms of a position with a large number of distinct cells.
+     */
+    public void trim() {
+        counts.trim();
+        variantReadIndices.trim();
+    }
+
+    /**
+     * Count a base observed at the position.
+     *
+     * @param sampleIndex      index of the sample where the base was observed.
+     * @param readIndex        index of the base in the read.
+     * @param qualityScore     quality score of the base.
+     * @param from             reference base, as recorded in the alignment, for variant bases.
+     * @param to               base observed in the read, for variant bases.
+     * @param matchesReference true when the base matches the reference.
+     * @param forwardStrand    true when the read matched the forward strand.
+     */
+    public void observe(final int sampleIndex, final int readIndex, final byte qualityScore,
+                        final char from, final char to,
+                        final boolean matchesReference, final boolean forwardStrand) {
+        final int allele;
+        final int quality;
+        if (matchesReference) {
+            allele = REFERENCE_INDEX;
+            quality = 0;
+        } else {
+            if (to == '-') {
+                allele = DELETION_INDEX;
+            } else if (from == '-') {
+                allele = INSERTION_INDEX;
+            } else {
+                allele = baseIndex(to);
+            }
+            quality = Math.max(0, Math.min(MAX_QUALITY_SCORE, qualityScore));
+            variantReadIndices.add(((long) sampleIndex << 32) | readIndex);
+            if (firstVariantFrom == '\0' && from != '-' && from != '.') {
+                firstVariantFrom = from;
+            }
+        }
+        final int cell = getCell(sampleIndex, allele, forwardStrand, quality);
+        if (counts.addTo(cell, 1) == 0) {
+            if (numCells == cells.length) {
+                cells = IntArrays.grow(cells, numCells + 1);
+            }
+            cells[numCells++] = cell;
+            cellsSorted = false;
+        }
+        numObserved++;
+    }
+
+    private static int baseIndex(final char base) {
+        switch (base) {
+            case 'A':
+                return SampleCountInfo.BASE_A_INDEX;
+            case 'C':
+                return SampleCountInfo.BASE_C_INDEX;
+            case 'T':
+                return SampleCountInfo.BASE_T_INDEX;
+            case 'G':
+                return SampleCountInfo.BASE_G_INDEX;
+            default:
+                return SampleCountInfo.BASE_OTHER_INDEX;
+        }
+    }
+
+    /**
+     * Return the cell that counts observations of an allele in a sample.
+     */
+    public static int getCell(final int sampleIndex, final int allele, final boolean forwardStrand,
+                              final int qualityScore) {
+        return ((((sampleIndex << ALLELE_BITS) | allele) << STRAND_BITS | (forwardStrand ? 1 : 0)) << QUALITY_BITS)
+                | qualityScore;
+    }
+
+    public static int getSampleIndex(final int cell) {
+        return cell >>> (QUALITY_BITS + STRAND_BITS + ALLELE_BITS);
+    }
+
+    public static int getAllele(final int cell) {
+        return (cell >>> (QUALITY_BITS + STRAND_BITS)) & ((1 << ALLELE_BITS) - 1);
+    }
+
+    public static boolean isForwardStrand(final int cell) {
+        return ((cell >>> QUALITY_BITS) & 1) != 0;
+    }
+
+    public static int getQualityScore(final int cell) {
+        return cell & ((1 << QUALITY_BITS) - 1);
+    }
+
+    public static boolean matchesReference(final int cell) {
+        return getAllele(cell) == REFERENCE_INDEX;
+    }
+
+    /**
+     * Return true if the cell counts inserted or deleted bases.
+     */
+    public static boolean isIndel(final int cell) {
+        final int allele = getAllele(cell);
+        return allele == INSERTION_INDEX || allele == DELETION_INDEX;
+    }
+
+    /**
+     * Set the reference base of the position, once determined. Bases that match the reference have the genotype of
+     * the reference base.
+     */
+    public void setReferenceBase(final char referenceBase) {
+        this.referenceBase = referenceBase;
+    }
+
+    /**
+     * Return the index of the SampleCountInfo base genotype that the observations of a cell were counted in, or -1
+     * for inserted bases. Bases that match the reference, and deleted bases, have the genotype of the reference base.
+     */
+    public int getGenotypeIndex(final int cell) {
+        final int allele = getAllele(cell);
+        switch (allele) {
+            case REFERENCE_INDEX:
+            case DELETION_INDEX:
+                return baseIndex(referenceBase);
+            case INSERTION_INDEX:
+                return -1;
+            default:
+                return allele;
+        }
+    }
+
+    /**
+     * Return the cells where bases were observed, in increasing order, so that filters visit the cells in the same
+     * order irrespective of the order in which bases were observed. Only the first getNumCells() elements are valid.
+     * Cells whose observations were all removed are included, with a count of zero.
+     */
+    public int[] getCells() {
+        if (!cellsSorted) {
+            Arrays.sort(cells, 0, numCells);
+            cellsSorted = true;
+        }
+        return cells;
+    }
+
+    public int getNumCells() {
+        return numCells;
+    }
+
+    /**
+     * Return the number of observations that remain in a cell.
+     */
+    public int getCount(final int cell) {
+        return counts.get(cell);
+    }
+
+    /**
+     * Remove observations from a cell.
+     *
+     * @param cell  the cell.
+     * @param count the number of observations to remove, at most getCount(cell).
+     */
+    public void remove(final int cell, final int count) {
+        assert count <= counts.get(cell) : "cannot remove more observations than remain in a cell.";
+        counts.addTo(cell, -count);
+        final int sampleIndex = getSampleIndex(cell);
+        if (sampleIndex >= removedPerSample.length) {
+            removedPerSample = IntArrays.grow(removedPerSample, sampleIndex + 1);
+        }
+        removedPerSample[sampleIndex] += count;
+    }
+
+    /**
+     * Return the number of observations of a sample that were removed by filters.
+     */
+    public int getNumRemoved(final int sampleIndex) {
+        return sampleIndex < removedPerSample.length ? removedPerSample[sampleIndex] : 0;
+    }
+
+    /**
+     * Return the read indices of the variant bases, each encoded as sampleIndex in the 32 high bits and readIndex
+     * in the 32 low bits.
+     */
+    public LongSet getVariantReadIndices() {
+        return variantReadIndices;
+    }
+
+    /**
+     * Return the reference base recorded with the first variant base observed at the position, or '\0' if no
+     * variant base recorded a reference base.
+     */
+    public char getFirstVariantFrom() {
+        return firstVariantFrom;
+    }
+
+    /**
+     * Return the number of bases observed at the position.
+     */
+    public int getNumObserved() {
+        return numObserved;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("tally: ");
+        final int[] cells = getCells();
+        for (int i = 0; i < numCells; i++) {
+            final int cell = cells[i];
+            sb.append(String.format("[s=%d a=%d %c q=%d]=%d ", getSampleIndex(cell), getAllele(cell),
+                    isForwardStrand(cell) ? '+' : '-', getQualityScore(cell), getCount(cell)));
+        }
+        return sb.toString();
+    }
+}
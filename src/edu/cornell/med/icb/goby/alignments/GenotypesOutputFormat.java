@@ -24,17 +24,40 @@ import edu.cornell.med.icb.goby.readers.vcf.ColumnType;
 import edu.cornell.med.icb.goby.reads.RandomAccessSequenceInterface;
 import edu.cornell.med.icb.goby.stats.VCFWriter;
 import edu.cornell.med.icb.goby.util.OutputInfo;
+import edu.cornell.med.icb.goby.util.dynoptions.DynamicOptionClient;
+import edu.cornell.med.icb.goby.util.dynoptions.RegisterThis;
+import it.unimi.dsi.fastutil.chars.CharArrayList;
 import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import it.unimi.dsi.fastutil.objects.ObjectArraySet;
 import it.unimi.dsi.lang.MutableString;
 import org.apache.log4j.Logger;
 
+import java.util.Arrays;
+
 /**
+ * Writes the genotype of each sample at a site. Genotypes are coded by the index of their alleles among the REF and
+ * ALT alleles of the site. Optionally, the likelihoods of the genotypes of each sample are also written (see
+ * GenotypeLikelihoods). The formats that report genotypes next to their own statistics delegate to this format, so
+ * that genotypes are determined once per site.
+ *
  * @author Fabien Campagne
  *         Date: Mar 21, 2011
  *         Time: 2:37:43 PM
  */
 public class GenotypesOutputFormat implements SequenceVariationOutputFormat {
+    @RegisterThis
+    public static final DynamicOptionClient doc = new DynamicOptionClient(GenotypesOutputFormat.class,
+            "likelihoods:boolean, when true the Phred-scaled likelihoods of the genotypes (PL) and the quality of the most likely genotype (GQ) are written for each sample.:false",
+            "base-quality:integer, Phred quality assumed for the bases of a site when genotype likelihoods are calculated and only the number of bases of each allele is known (genotype tallies, statistics threads, indels). Bases kept in the pileup are weighted by their own quality.:30"
+    );
+
+    public static DynamicOptionClient doc() {
+        return doc;
+    }
+
+    private static final String MISSING_VALUE = ".";
 
     private int positionColumnIndex;
     private int numberOfGroups;
@@ -74,11 +97,18 @@ public class GenotypesOutputFormat implements SequenceVariationOutputFormat {
     private String[] singleton = new String[1];
     private int indelFlagFieldIndex = -1;
     private boolean siteObserved;
+    private int genotypeQualityFieldIndex = -1;
+    private int likelihoodFieldIndex = -1;
+    /**
+     * Calculates genotype likelihoods, null when likelihoods are not written.
+     */
+    private GenotypeLikelihoods likelihoods;
 
 
     public void defineColumns(OutputInfo writer, DiscoverSequenceVariantsMode mode) {
         samples = mode.getSamples();
         this.statsWriter = new VCFWriter(writer.getPrintWriter());
+        statsWriter.configureSiteMatrix(writer);
         biomartFieldIndex = statsWriter.defineField("INFO", "BIOMART_COORDS", 1, ColumnType.String, "Coordinates for use with Biomart.","biomart");
         defineInfoFields(statsWriter);
         defineGenotypeField(statsWriter);
@@ -98,6 +128,12 @@ public class GenotypesOutputFormat implements SequenceVariationOutputFormat {
         baseCountFieldIndex = statsWriter.defineField("FORMAT", "BC", 5, ColumnType.String, "Base counts in format A=?;T=?;C=?;G=?;N=?.","base-calls");
         goodBaseCountFieldIndex = statsWriter.defineField("FORMAT", "GB", 1, ColumnType.String, "Number of bases that pass base filters in this sample, or ignore string.","good-bases");
         failBaseCountFieldIndex = statsWriter.defineField("FORMAT", "FB", 1, ColumnType.String, "Number of bases that failed base filters in this sample, or ignore string.","failed-bases");
+        if (doc.getBoolean("likelihoods")) {
+            final int baseQuality = doc.getInteger("base-quality");
+            genotypeQualityFieldIndex = statsWriter.defineField("FORMAT", "GQ", 1, ColumnType.Integer, "Phred-scaled quality of the most likely genotype.", "genotype-quality");
+            likelihoodFieldIndex = statsWriter.defineField("FORMAT", "PL", 1, ColumnType.String, String.format("Comma separated Phred-scaled likelihoods of the genotypes, in VCF order, from the quality of each base, or assuming bases of quality %d when only counts are known.", baseQuality), "genotype-likelihoods");
+            likelihoods = new GenotypeLikelihoods(baseQuality);
+        }
     }
 
     public void allocateStorage(int numberOfSamples, int numberOfGroups) {
@@ -111,7 +147,42 @@ public class GenotypesOutputFormat implements SequenceVariationOutputFormat {
     IntArrayList decreasingCounts = new IntArrayList();
     ObjectArraySet<String> sampleAlleleSet = new ObjectArraySet<String>();
     ObjectArraySet<String> alleleSet = new ObjectArraySet<String>();
-    MutableString genotypeBuffer = new MutableString();
+    /**
+     * The REF allele and ALT alleles of the site, as given to the writer.
+     */
+    private String referenceAllele;
+    private final ObjectArrayList<String> altAlleles = new ObjectArrayList<String>();
+    /**
+     * The alleles called in the current sample, and the number of bases observed for each.
+     */
+    private final ObjectArrayList<String> calledAlleles = new ObjectArrayList<String>();
+    private final IntArrayList calledCounts = new IntArrayList();
+    /**
+     * The base of each allele called in the current sample, or zero when the allele is an indel.
+     */
+    private final CharArrayList calledBases = new CharArrayList();
+    private int[] sortedCodes = new int[0];
+    private int[] alleleCounts = new int[0];
+    /**
+     * Values written for each sample are kept in these buffers until the record is written, and reused from site to
+     * site.
+     */
+    private MutableString[] baseCountBuffers = new MutableString[0];
+    private MutableString[] genotypeBuffers = new MutableString[0];
+    private MutableString[] likelihoodBuffers = new MutableString[0];
+    /**
+     * Code and number of bases of the alleles called in each sample, at the current site.
+     */
+    private IntArrayList[] sampleAlleleCodes = new IntArrayList[0];
+    private IntArrayList[] sampleAlleleCounts = new IntArrayList[0];
+    private CharArrayList[] sampleAlleleBases = new CharArrayList[0];
+    /**
+     * Indices of the bases of the pileup, grouped by sample: the bases of sample s are at
+     * basesBySample[sampleBaseStarts[s]..sampleBaseStarts[s+1]).
+     */
+    private int[] basesBySample = new int[0];
+    private int[] sampleBaseStarts = new int[0];
+    private int[] sampleBaseEnds = new int[0];
 
     @Override
     public void writeRecord(final DiscoverVariantIterateSortedAlignments iterator, final SampleCountInfo[] sampleCounts,
@@ -135,7 +206,7 @@ public class GenotypesOutputFormat implements SequenceVariationOutputFormat {
        if (position == location || position - 1 == location || position + 1 == location) {
            System.out.println("STOP");
        } */
-        writeGenotypes(statsWriter, sampleCounts, position);
+        writeGenotypes(statsWriter, sampleCounts, position, list);
 
         writeZygozity(sampleCounts);
         if (!alleleSet.isEmpty()) {
@@ -178,17 +249,29 @@ public class GenotypesOutputFormat implements SequenceVariationOutputFormat {
 
     ObjectArraySet<String> referenceSet = new ObjectArraySet<String>();
 
-    public void writeGenotypes(VCFWriter statsWriter, SampleCountInfo[] sampleCounts, int position) {
-        boolean referenceAlleleSetForIndel = false;
+    /**
+     * Write the genotypes of the samples at a site.
+     *
+     * @param list the bases of the site, used to weight genotype likelihoods by base quality. Null when the bases
+     *             were not kept, in which case likelihoods are calculated from the counts of the samples.
+     */
+    public void writeGenotypes(VCFWriter statsWriter, SampleCountInfo[] sampleCounts, int position,
+                               final DiscoverVariantPositionData list) {
         siteObserved = false;
         boolean siteHasIndel = false;
         referenceSet.clear();
         statsWriter.clearAlternateAlleles();
+        altAlleles.clear();
+        referenceAllele = null;
         // clear the cross-sample allele set, which is used to determine if the VCF position should be written.
         alleleSet.clear();
+        allocateSampleBuffers();
         for (int sampleIndex = 0; sampleIndex < numberOfSamples; sampleIndex++) {
 
             sampleAlleleSet.clear();
+            calledAlleles.clear();
+            calledCounts.clear();
+            calledBases.clear();
             SampleCountInfo sci = sampleCounts[sampleIndex];
             int totalCount = 0;
             for (int genotypeIndex = 0; genotypeIndex < sci.getGenotypeMaxIndex(); ++genotypeIndex) {
@@ -199,17 +282,17 @@ public class GenotypesOutputFormat implements SequenceVariationOutputFormat {
             statsWriter.setSampleValue(goodBaseCountFieldIndex, sampleIndex, totalCount);
             statsWriter.setSampleValue(failBaseCountFieldIndex, sampleIndex, sci.failedCount);
 
-            int baseIndex = 0;
-            int altGenotypeCount = 0;
-            genotypeBuffer.setLength(0);
-
-            final MutableString baseCountString = new MutableString();
+            final MutableString baseCountString = baseCountBuffers[sampleIndex];
+            baseCountString.setLength(0);
 
             for (int genotypeIndex = 0; genotypeIndex < sci.getGenotypeMaxIndex(); ++genotypeIndex) {
                 final int sampleCount = sci.getGenotypeCount(genotypeIndex);
+                if (sampleCount == 0) {
+                    continue;
+                }
                 String genotype = sci.getGenotypeString(genotypeIndex);
 
-                if (sampleCount > 0 && genotypeIndex != SampleCountInfo.BASE_OTHER_INDEX) {
+                if (genotypeIndex != SampleCountInfo.BASE_OTHER_INDEX) {
                     siteObserved = true;
 
                     if (sci.isIndel(genotypeIndex)) {
@@ -217,7 +300,9 @@ public class GenotypesOutputFormat implements SequenceVariationOutputFormat {
                     }
                     if (!sci.isReferenceGenotype(genotypeIndex)) {
                         statsWriter.addAlternateAllele(genotype);
-                        altGenotypeCount++;
+                        if (!altAlleles.contains(genotype)) {
+                            altAlleles.add(genotype);
+                        }
                         updateReferenceSet(sci.getReferenceGenotype());
                     } else {
                         //updateReferenceSet(genotype);
@@ -231,39 +316,32 @@ public class GenotypesOutputFormat implements SequenceVariationOutputFormat {
                     }
                     alleleSet.add(genotype);
                     sampleAlleleSet.add(genotype);
-                    genotypeBuffer.append(genotype);
-                    genotypeBuffer.append('/');
-
-                }
-                if (sampleCount > 0) {
-                    baseCountString.append(genotype);
-                    baseCountString.append('=');
-                    baseCountString.append(Integer.toString(sampleCount));
-                    baseCountString.append(',');
+                    calledAlleles.add(genotype);
+                    calledCounts.add(sampleCount);
+                    calledBases.add(sci.isIndel(genotypeIndex) ? '\0' : genotype.charAt(0));
                 }
+                baseCountString.append(genotype);
+                baseCountString.append('=');
+                baseCountString.append(sampleCount);
+                baseCountString.append(',');
 
             }
 
-            if (sampleAlleleSet.size() == 1) {
-                // when homozygous genotype 0/ write 0/0/ (last / will be removed when length is adjusted)
-                genotypeBuffer.append(genotypeBuffer.copy());
-            }
             if (baseCountString.length() >= 1) {
                 baseCountString.setLength(baseCountString.length() - 1);
             }
             statsWriter.setSampleValue(baseCountFieldIndex, sampleIndex, baseCountString);
+            sampleAlleleCodes[sampleIndex].clear();
+            sampleAlleleCounts[sampleIndex].clear();
+            sampleAlleleBases[sampleIndex].clear();
 
             if (siteObserved) {
 
-                if (genotypeBuffer.length() > 1) {
-                    // trim the trailing coma:
-                    genotypeBuffer.setLength(genotypeBuffer.length() - 1);
-                }
                 if (referenceSet.size() <= 1) {
                     if (referenceSet.isEmpty()) {
-                        statsWriter.setReferenceAllele(sci.getReferenceGenotype());
+                        setReferenceAllele(statsWriter, sci.getReferenceGenotype());
                     } else {
-                        statsWriter.setReferenceAllele(referenceSet.toArray(singleton)[0]);
+                        setReferenceAllele(statsWriter, referenceSet.toArray(singleton)[0]);
                     }
 
                 } else {
@@ -274,12 +352,12 @@ public class GenotypesOutputFormat implements SequenceVariationOutputFormat {
                     int maxLength = 0;
                     for (final String ref : referenceSet) {
                         if (ref.length() > maxLength) {
-                            statsWriter.setReferenceAllele(ref);
+                            setReferenceAllele(statsWriter, ref);
                             maxLength = ref.length();
                         }
                     }
                 }
-                statsWriter.setSampleValue(genotypeFieldIndex, sampleIndex, statsWriter.codeGenotype(genotypeBuffer.toString()));
+                statsWriter.setSampleValue(genotypeFieldIndex, sampleIndex, codeGenotype(sampleIndex));
 
             } else {
 
@@ -289,12 +367,183 @@ public class GenotypesOutputFormat implements SequenceVariationOutputFormat {
 
 
         }
+        if (likelihoods != null) {
+            writeLikelihoods(statsWriter, list);
+        }
 
         if (indelFlagFieldIndex != -1) {    // set indel flag only when the field is defined (i.e., client has called setInfoFields)
             statsWriter.setFlag(indelFlagFieldIndex, siteHasIndel);
         }
     }
 
+    private void setReferenceAllele(final VCFWriter statsWriter, final String allele) {
+        statsWriter.setReferenceAllele(allele);
+        referenceAllele = allele;
+    }
+
+    private void allocateSampleBuffers() {
+        if (baseCountBuffers.length < numberOfSamples) {
+            baseCountBuffers = new MutableString[numberOfSamples];
+            genotypeBuffers = new MutableString[numberOfSamples];
+            likelihoodBuffers = new MutableString[numberOfSamples];
+            sampleAlleleCodes = new IntArrayList[numberOfSamples];
+            sampleAlleleCounts = new IntArrayList[numberOfSamples];
+            sampleAlleleBases = new CharArrayList[numberOfSamples];
+            for (int sampleIndex = 0; sampleIndex < numberOfSamples; sampleIndex++) {
+                baseCountBuffers[sampleIndex] = new MutableString();
+                genotypeBuffers[sampleIndex] = new MutableString();
+                likelihoodBuffers[sampleIndex] = new MutableString();
+                sampleAlleleCodes[sampleIndex] = new IntArrayList();
+                sampleAlleleCounts[sampleIndex] = new IntArrayList();
+                sampleAlleleBases[sampleIndex] = new CharArrayList();
+            }
+        }
+    }
+
+    /**
+     * Code the alleles called in a sample against the REF and ALT alleles given to the writer so far. The genotype
+     * lists the distinct allele indices in increasing order, and repeats the index of homozygous genotypes (e.g.,
+     * 0/0).
+     *
+     * @param sampleIndex index of the sample.
+     * @return the coded genotype.
+     */
+    private MutableString codeGenotype(final int sampleIndex) {
+        final int numCalled = calledAlleles.size();
+        if (sortedCodes.length < numCalled) {
+            sortedCodes = new int[numCalled];
+        }
+        final IntArrayList codes = sampleAlleleCodes[sampleIndex];
+        for (int i = 0; i < numCalled; i++) {
+            final int code = codeAllele(calledAlleles.get(i));
+            codes.add(code);
+            sampleAlleleCounts[sampleIndex].add(calledCounts.getInt(i));
+            sampleAlleleBases[sampleIndex].add(calledBases.getChar(i));
+            sortedCodes[i] = code;
+        }
+        IntArrays.quickSort(sortedCodes, 0, numCalled);
+        int numDistinct = 0;
+        for (int i = 0; i < numCalled; i++) {
+            if (i == 0 || sortedCodes[i] != sortedCodes[i - 1]) {
+                sortedCodes[numDistinct++] = sortedCodes[i];
+            }
+        }
+        final MutableString genotype = genotypeBuffers[sampleIndex];
+        genotype.setLength(0);
+        if (numDistinct <= 1) {
+            // write n/n rather than n. Samples without alleles, at a site observed in a previous sample, are 0/0:
+            final int code = numDistinct == 0 ? 0 : sortedCodes[0];
+            genotype.append(code).append('/').append(code);
+            return genotype;
+        }
+        for (int i = 0; i < numDistinct; i++) {
+            if (i > 0) {
+                genotype.append('/');
+            }
+            genotype.append(sortedCodes[i]);
+        }
+        return genotype;
+    }
+
+    /**
+     * Return the index of an allele among the REF and ALT alleles. An allele matches a REF or ALT allele that starts
+     * with it.
+     */
+    private int codeAllele(final String allele) {
+        if (referenceAllele.startsWith(allele)) {
+            return 0;
+        }
+        for (int i = 0; i < altAlleles.size(); i++) {
+            if (altAlleles.get(i).startsWith(allele)) {
+                return i + 1;
+            }
+        }
+        throw new IllegalArgumentException(String.format("Allele %s was not found in REF %s or ALT %s",
+                allele, referenceAllele, altAlleles));
+    }
+
+    /**
+     * Write the likelihoods of the genotypes of each sample, over the REF and ALT alleles of the site. When the bases
+     * of the site are available, each base counts with its own quality. Indels, and sites where only counts were
+     * kept, count bases of the base-quality option.
+     */
+    private void writeLikelihoods(final VCFWriter statsWriter, final DiscoverVariantPositionData list) {
+        final int numAlleles = altAlleles.size() + 1;
+        if (alleleCounts.length < numAlleles) {
+            alleleCounts = new int[numAlleles];
+        }
+        final boolean perBase = list != null && !list.isTallyingGenotypes();
+        if (perBase) {
+            groupBasesBySample(list);
+        }
+        for (int sampleIndex = 0; sampleIndex < numberOfSamples; sampleIndex++) {
+            final IntArrayList codes = sampleAlleleCodes[sampleIndex];
+            if (codes.isEmpty()) {
+                statsWriter.setSampleValue(genotypeQualityFieldIndex, sampleIndex, MISSING_VALUE);
+                statsWriter.setSampleValue(likelihoodFieldIndex, sampleIndex, MISSING_VALUE);
+                continue;
+            }
+            final IntArrayList counts = sampleAlleleCounts[sampleIndex];
+            if (perBase) {
+                final CharArrayList bases = sampleAlleleBases[sampleIndex];
+                likelihoods.clear(numAlleles);
+                for (int i = 0; i < codes.size(); i++) {
+                    if (bases.getChar(i) == '\0') {
+                        likelihoods.addBases(codes.getInt(i), counts.getInt(i));
+                    }
+                }
+                for (int j = sampleBaseStarts[sampleIndex]; j < sampleBaseStarts[sampleIndex + 1]; j++) {
+                    final int index = basesBySample[j];
+                    final char base = list.getGenotypeBase(index);
+                    if (base == '\0' || list.isInsertionOrDeletion(index)) {
+                        continue;
+                    }
+                    final int i = bases.indexOf(base);
+                    if (i != -1) {
+                        likelihoods.addBase(codes.getInt(i), list.getQualityScore(index));
+                    }
+                }
+                likelihoods.calculate();
+            } else {
+                Arrays.fill(alleleCounts, 0, numAlleles, 0);
+                for (int i = 0; i < codes.size(); i++) {
+                    alleleCounts[codes.getInt(i)] += counts.getInt(i);
+                }
+                likelihoods.calculate(alleleCounts, numAlleles);
+            }
+            final MutableString likelihoodString = likelihoodBuffers[sampleIndex];
+            likelihoodString.setLength(0);
+            likelihoods.appendPhredLikelihoods(likelihoodString);
+            statsWriter.setSampleValue(genotypeQualityFieldIndex, sampleIndex, likelihoods.getGenotypeQuality());
+            statsWriter.setSampleValue(likelihoodFieldIndex, sampleIndex, likelihoodString);
+        }
+    }
+
+    /**
+     * Group the indices of the bases of a site by sample, with a counting sort.
+     */
+    private void groupBasesBySample(final DiscoverVariantPositionData list) {
+        final int size = list.size();
+        if (basesBySample.length < size) {
+            basesBySample = new int[size];
+        }
+        if (sampleBaseStarts.length < numberOfSamples + 1) {
+            sampleBaseStarts = new int[numberOfSamples + 1];
+            sampleBaseEnds = new int[numberOfSamples];
+        }
+        Arrays.fill(sampleBaseStarts, 0, numberOfSamples + 1, 0);
+        for (int index = 0; index < size; index++) {
+            sampleBaseStarts[list.getReaderIndex(index) + 1]++;
+        }
+        for (int sampleIndex = 0; sampleIndex < numberOfSamples; sampleIndex++) {
+            sampleBaseStarts[sampleIndex + 1] += sampleBaseStarts[sampleIndex];
+        }
+        System.arraycopy(sampleBaseStarts, 0, sampleBaseEnds, 0, numberOfSamples);
+        for (int index = 0; index < size; index++) {
+            basesBySample[sampleBaseEnds[list.getReaderIndex(index)]++] = index;
+        }
+    }
+
     /**
      * Determine if the candidate reference genotype is new, and keep only those genotypes not already described by
      * longer genotypes.
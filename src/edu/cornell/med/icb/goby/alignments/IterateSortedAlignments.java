@@ -103,6 +103,39 @@ public abstract class IterateSortedAlignments<T> {
 
     private AlignmentProcessorFactory alignmentProcessorFactory = new DefaultAlignmentProcessorFactory();
 
+    /**
+     * Cap the number of reads of each sample that start in windows of the genome, before their bases are observed.
+     * See ReadDownsampler.
+     *
+     * @param maxReadsPerWindow maximum number of reads kept for a sample in a window, or zero to keep every read.
+     * @param windowLength      length of the windows, in bases.
+     * @param seed              seed of the random choice of reads to keep.
+     */
+    public void setReadDownsampling(final int maxReadsPerWindow, final int windowLength, final long seed) {
+        this.maxReadsPerWindow = maxReadsPerWindow;
+        this.downsamplingWindowLength = windowLength;
+        this.downsamplingSeed = seed;
+    }
+
+    private int maxReadsPerWindow;
+    private int downsamplingWindowLength;
+    private long downsamplingSeed;
+
+    /**
+     * Restrict the iteration to a set of regions, for instance the targets of a sequencing panel. Sorted and indexed
+     * alignments then decode only the chunks that may contain reads overlapping the regions, and reference sequences
+     * without regions are not visited. Reads that start up to the start flap length before a region are also
+     * iterated over, unless the regions define a larger start margin.
+     *
+     * @param regions regions to iterate over, resolved when the iteration starts.
+     */
+    public void setRegions(final GenomicRegionSet regions) {
+        this.regions = regions;
+    }
+
+    private GenomicRegionSet regions;
+    private String regionsFilename;
+
     /**
      * Set the length of the start flap. If length is larger than zero, the iterator will start reading at position
      * start - length.
@@ -125,6 +158,9 @@ public abstract class IterateSortedAlignments<T> {
         parseIncludeReferenceArgument(includeReferenceNameCommas);
         startOffsetArgument = jsapResult.getString("start-position");
         endOffsetArgument = jsapResult.getString("end-position");
+        if (jsapResult.contains("regions")) {
+            regionsFilename = jsapResult.getString("regions");
+        }
         if (startOffsetArgument != null && endOffsetArgument == null ||
                 endOffsetArgument != null && startOffsetArgument == null) {
             System.err.println("Start (-s) and end offset (-e) arguments must be specified together or not at all.");
@@ -208,6 +244,17 @@ public abstract class IterateSortedAlignments<T> {
         return false;
     }
 
+    /**
+     * Determine if a position is within the regions the iteration was restricted to (see setRegions).
+     *
+     * @param referenceIndex Index of the reference sequence for the position.
+     * @param position       Position within the sequence identified by referenceIndex
+     * @return True if the position is within a region, or when the iteration is not restricted to regions.
+     */
+    public boolean isWithinRegions(final int referenceIndex, final int position) {
+        return regions == null || regions.contains(referenceIndex, position);
+    }
+
     /**
      * Iterate through a set of alignments. Iterations are performed through these steps:
      * <UL>
@@ -236,6 +283,13 @@ public abstract class IterateSortedAlignments<T> {
         sortedReaders.close();
         LOG.info(String.format("Alignment contains %d reference sequences", numberOfReferences));
         processNumberOfReferences(numberOfReferences);
+        if (regions == null && regionsFilename != null) {
+            regions = GenomicRegionSet.loadBed(regionsFilename);
+        }
+        if (regions != null) {
+            regions.setStartMargin(Math.max(regions.getStartMargin(), startFlapLength));
+            regions.resolve(referenceIds);
+        }
         //  CountsWriter writers[] = new CountsWriter[numberOfReferences];
         final IntSortedSet referencesToProcess = new IntLinkedOpenHashSet();
 
@@ -243,7 +297,10 @@ public abstract class IterateSortedAlignments<T> {
         // setup referencesToProcess data structure according to the command line (filterByReferenceNames and includeReferenceNames)
         for (int referenceIndex = 0; referenceIndex < numberOfReferences; referenceIndex++) {
 
-
+            if (regions != null && !regions.hasRegions(referenceIndex)) {
+                // no region to visit on this reference sequence:
+                continue;
+            }
             if (filterByReferenceNames) {
                 final MutableString referenceId = referenceIds.getId(referenceIndex);
                 assert referenceId != null : "reference id cannot be null for reference index=" + referenceIndex;
@@ -308,10 +365,23 @@ public abstract class IterateSortedAlignments<T> {
                     "string and ref-position in an integer that encodes a position within the reference sequence.");
             throw e;
         }
+        if (regions != null) {
+            sortedReaders.setRegions(regions);
+        }
         // track the origin of each sample entry to the reader of origin:
         sortedReaders.setAdjustSampleIndices(true);
+        ReadDownsampler downsampler = null;
+        if (maxReadsPerWindow > 0) {
+            downsampler = new ReadDownsampler(maxReadsPerWindow, downsamplingWindowLength, downsamplingSeed);
+            sortedReaders.setDownsampler(downsampler);
+        }
 
 
+        if (referencesToProcess.isEmpty()) {
+            LOG.warn("No reference sequence left to iterate over.");
+            sortedReaders.close();
+            return;
+        }
         Alignments.AlignmentEntry alignmentEntry;
         // the first reference that we should skip to:
         int currentMinTargetIndex = referencesToProcess.firstInt();
@@ -538,6 +608,10 @@ public abstract class IterateSortedAlignments<T> {
 
         sortedReaders.close();
         pg.stop();
+        if (downsampler != null) {
+            LOG.info(String.format("Downsampling dropped %,d reads to keep at most %d reads per sample per %d bases.",
+                    downsampler.getNumDropped(), maxReadsPerWindow, downsamplingWindowLength));
+        }
     }
 
     protected boolean isValidOffsetArgument(String offsetArgument) {
@@ -617,7 +691,7 @@ public abstract class IterateSortedAlignments<T> {
                 && positionToBases.firstPosition() < lastPosition) {
             int intermediatePosition = positionToBases.firstPosition();
             processPositions(lastReferenceIndex, intermediatePosition, positionToBases.get(intermediatePosition));
-            positionToBases.remove(intermediatePosition);
+            releasePositionData(positionToBases.remove(intermediatePosition));
         }
         for (int intermediatePosition = lastRemovedPosition + 1;
              intermediatePosition <= lastPosition; intermediatePosition++) {
@@ -625,7 +699,7 @@ public abstract class IterateSortedAlignments<T> {
             if (positionToBases.containsKey(intermediatePosition)) {
 
                 processPositions(lastReferenceIndex, intermediatePosition, positionToBases.get(intermediatePosition));
-                positionToBases.remove(intermediatePosition);
+                releasePositionData(positionToBases.remove(intermediatePosition));
             }
 
         }
@@ -656,7 +730,7 @@ public abstract class IterateSortedAlignments<T> {
             if (positionToBases.containsKey(intermediatePosition)) {
                 // TODO remove positionToBases from method signature:
                 processPositions(lastReferenceIndex, intermediatePosition, (T) positionToBases.get(intermediatePosition));
-                positionToBases.remove(intermediatePosition);
+                releasePositionData((T) positionToBases.remove(intermediatePosition));
                 lastRemovedPosition = intermediatePosition;
             }
         }
@@ -707,6 +781,15 @@ public abstract class IterateSortedAlignments<T> {
 
     public abstract void processPositions(int referenceIndex, int intermediatePosition, T positionBaseInfos);
 
+    /**
+     * Called when the information accumulated for a position has been processed and removed from the map.
+     * Implementations can recycle the storage of the position here. The default implementation does nothing.
+     *
+     * @param positionBaseInfos information about the position, or null.
+     */
+    protected void releasePositionData(final T positionBaseInfos) {
+    }
+
     /**
      * Implement this call-back method to observe a candidate indel that begins at startPosition.
      *
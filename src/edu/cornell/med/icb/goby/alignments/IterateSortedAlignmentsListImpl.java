@@ -23,9 +23,10 @@ package edu.cornell.med.icb.goby.alignments;
 import edu.cornell.med.icb.goby.util.WarningCounter;
 import edu.cornell.med.icb.goby.util.dynoptions.DynamicOptionClient;
 import edu.cornell.med.icb.goby.util.dynoptions.RegisterThis;
-import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
 import org.apache.log4j.Logger;
 
+import java.util.Random;
+
 /**
  * @author Fabien Campagne
  *         Date: Sep 7, 2010
@@ -37,6 +38,9 @@ public abstract class IterateSortedAlignmentsListImpl
 
     protected IterateSortedAlignmentsListImpl() {
         this.SUB_SAMPLE_SIZE = doc.getInteger("sub-sample-size");
+        this.subSampleRandom = new Random(doc.getInteger("sub-sample-seed"));
+        setReadDownsampling(doc.getInteger("max-reads-per-window"), doc.getInteger("downsampling-window"),
+                doc.getInteger("downsampling-seed"));
 
     }
 
@@ -52,7 +56,15 @@ public abstract class IterateSortedAlignmentsListImpl
                     "when too much is too much. Any position with more covering bases will be sub-sampled to reduce computational load " +
                     "and make performance predictable. The default parameter is set at half a million bases.:500000" +*/
             "sub-sample-size:integer, The number of bases to keep when coverage exceeds the maximum and sub-sampling " +
-                    "is needed to improve performance.:10000"
+                    "is needed to improve performance.:10000",
+            "sub-sample-seed:integer, The seed of the random choice of bases kept by sub-sampling. The same seed keeps " +
+                    "the same bases.:7162387",
+            "max-reads-per-window:integer, The maximum number of reads of a sample that start in a window of the genome. " +
+                    "Reads past this number are downsampled with a reservoir before their bases are added to the pileup. " +
+                    "Zero keeps every read.:0",
+            "downsampling-window:integer, The length in bases of the windows where max-reads-per-window is enforced.:100",
+            "downsampling-seed:integer, The seed of the random choice of reads kept by downsampling. The same seed keeps " +
+                    "the same reads.:2389273"
     );
     /**
      * Used to log debug and informational messages.
@@ -81,22 +93,12 @@ public abstract class IterateSortedAlignmentsListImpl
                     alignmentEntry.getQueryIndex(), currentRefPosition, currentReadIndex));
         } */
 
-        final PositionBaseInfo info = new PositionBaseInfo();
-
-        info.readerIndex = alignmentEntry.getSampleIndex();
-        //     System.out.printf("observing ref readerIndex=%d%n",info.readerIndex);
-        /* if (currentRefPosition==3661601-1 && !alignmentEntry.getMatchingReverseStrand()) {
-            System.out.println("STOP1");
-        } */
-        info.readIndex = currentReadIndex;
-        info.from = '\0';
-        info.to = '\0';
-        info.matchesReference = true;
-        info.position = currentRefPosition - 1; // store 0-based position
-        info.qualityScore = (byte) (alignmentEntry.hasMappingQuality() ? alignmentEntry.getMappingQuality() : 40);
-        info.matchesForwardStrand = !alignmentEntry.getMatchingReverseStrand();
-        //System.out.printf("position=%d %s%n", currentRefPosition, info);
-        addToFuture(positionToBases, info);
+        final DiscoverVariantPositionData list = getPositionData(positionToBases, currentRefPosition - 1); // 0-based position
+        if (list != null) {
+            list.add(alignmentEntry.getSampleIndex(), currentReadIndex,
+                    (byte) (alignmentEntry.hasMappingQuality() ? alignmentEntry.getMappingQuality() : 40),
+                    '\0', '\0', true, !alignmentEntry.getMatchingReverseStrand());
+        }
     }
 
 
@@ -115,30 +117,55 @@ public abstract class IterateSortedAlignmentsListImpl
                     alignmentEntry.getQueryIndex(), currentRefPosition, currentReadIndex, fromChar, toChar));
         }
         */
-        final PositionBaseInfo info = new PositionBaseInfo();
-        info.readerIndex = alignmentEntry.getSampleIndex();
-        //    System.out.printf("observing var readerIndex=%d%n",info.readerIndex);
-
-        info.readIndex = currentReadIndex;
-        info.from = fromChar;
-        info.to = toChar;
-        info.matchesReference = false;
-        info.position = currentRefPosition - 1; // store 0-based position
-        final int readMappingQuality = (alignmentEntry.hasMappingQuality() ? alignmentEntry.getMappingQuality() : 40);
-        info.qualityScore = (byte) Math.min(toQual, readMappingQuality);
-        info.matchesForwardStrand = !alignmentEntry.getMatchingReverseStrand();
-        addToFuture(positionToBases, info);
+        final DiscoverVariantPositionData list = getPositionData(positionToBases, currentRefPosition - 1); // 0-based position
+        if (list != null) {
+            final int readMappingQuality = (alignmentEntry.hasMappingQuality() ? alignmentEntry.getMappingQuality() : 40);
+            list.add(alignmentEntry.getSampleIndex(), currentReadIndex, (byte) Math.min(toQual, readMappingQuality),
+                    fromChar, toChar, false, !alignmentEntry.getMatchingReverseStrand());
+        }
     }
 
     private final WarningCounter moreVariantsThanThreshold = new WarningCounter(10);
     private int SUB_SAMPLE_SIZE = 10000;
+    /**
+     * Draws the bases kept when a position is sub-sampled. Each instance iterates on one thread and has its own.
+     */
+    private final Random subSampleRandom;
+
+    /**
+     * Storage for the bases of the positions, recycled once positions have been processed.
+     */
+    private final PileupArena arena = new PileupArena();
+
+    /**
+     * Count the bases of each position in a GenotypeTally, instead of storing every base. Implementations of
+     * processPositions must then read the bases of a position with DiscoverVariantPositionData#getTally().
+     *
+     * @param tallyGenotypes True to tally genotypes.
+     */
+    public void setTallyGenotypes(final boolean tallyGenotypes) {
+        arena.setTallyGenotypes(tallyGenotypes);
+    }
 
-    private final void addToFuture(final PositionToBasesMap<DiscoverVariantPositionData> positionToBases,
-                                   final PositionBaseInfo info) {
-        final int position = info.position;
+    /**
+     * Return a new, empty, list to store the bases of a position.
+     *
+     * @param position zero-based position.
+     * @return an empty list for the position.
+     */
+    protected DiscoverVariantPositionData allocatePositionData(final int position) {
+        return arena.allocate(position);
+    }
+
+    /**
+     * Return the list where the next base observed at a position should be added, or null if the position has too
+     * many bases and is ignored.
+     */
+    private DiscoverVariantPositionData getPositionData(final PositionToBasesMap<DiscoverVariantPositionData> positionToBases,
+                                                       final int position) {
         DiscoverVariantPositionData list = positionToBases.get(position);
         if (list == null) {
-            list = new DiscoverVariantPositionData(position);
+            list = allocatePositionData(position);
             positionToBases.put(position, list);
         } else {
             assert list.getZeroBasedPosition() == position : "info position must match list position.";
@@ -150,23 +177,23 @@ public abstract class IterateSortedAlignmentsListImpl
             // also sub-sample the already collection bases to reduce coverage to 10,000.
 
             if (!isIgnoredPosition) {
-                IntOpenHashSet positions = new IntOpenHashSet();
-                for (PositionBaseInfo element : list) {
-                    positions.add(element.position);
-                }
-                moreVariantsThanThreshold.warn(LOG, "position=%d has more variants %d than max threshold=%d. Stopped recording. Distinct position#%d ",
-                        info.position, maxThreshold, list.size(),
-                        positions.size());
-                list.subSample(SUB_SAMPLE_SIZE);
+                moreVariantsThanThreshold.warn(LOG, "position=%d has more variants %d than max threshold=%d. Stopped recording.",
+                        position, list.size(), maxThreshold);
+                list.subSample(SUB_SAMPLE_SIZE, subSampleRandom);
             }
             positionToBases.markIgnoredPosition(position);
 
-            return;
+            return null;
         }
-
-        list.add(info);
-
+        return list;
     }
 
-
+    /**
+     * Recycle the storage of positions once they have been processed. Implementations of processPositions must not
+     * keep a reference to the list they are given after they return.
+     */
+    @Override
+    protected void releasePositionData(final DiscoverVariantPositionData positionBaseInfos) {
+        arena.release(positionBaseInfos);
+    }
 }
@@ -76,11 +76,12 @@ public class LeftOverFilter extends GenotypeFilter {
             thresholdsPerSample[sampleIndex] *= multiplier;
         }
 
-        for (PositionBaseInfo positionBaseInfo : list) {
+        final int size = list.size();
+        for (int index = 0; index < size; index++) {
 
             numScreened++;
-            final int sampleIndex = positionBaseInfo.readerIndex;
-            char base = positionBaseInfo.matchesReference ? positionBaseInfo.from : positionBaseInfo.to;
+            final int sampleIndex = list.getReaderIndex(index);
+            char base = list.getGenotypeBase(index);
 
             final SampleCountInfo sampleCountInfo = sampleCounts[sampleIndex];
             // how many of this base have we seen in this sample?
@@ -93,8 +94,8 @@ public class LeftOverFilter extends GenotypeFilter {
                 // an error.
                 // We remove this call
 
-                sampleCountInfo.suggestRemovingGenotype(baseIndex, positionBaseInfo.matchesForwardStrand);
-                removeGenotype(positionBaseInfo, filteredList);
+                sampleCountInfo.suggestRemovingGenotype(baseIndex, list.isMatchingForwardStrand(index));
+                removeGenotype(list.get(index), filteredList);
             }
         }
 
@@ -104,6 +105,51 @@ public class LeftOverFilter extends GenotypeFilter {
     }
 
 
+    @Override
+    public void filterGenotypes(final GenotypeTally tally,
+                                final DiscoverVariantPositionData list,
+                                final SampleCountInfo[] sampleCounts) {
+        resetCounters();
+        initStorage(sampleCounts.length);
+        for (int sampleIndex = 0; sampleIndex < sampleCounts.length; sampleIndex++) {
+            thresholdsPerSample[sampleIndex] += tally.getNumRemoved(sampleIndex);
+        }
+        if (list.hasCandidateIndels()) {
+            for (EquivalentIndelRegion indel : list.getIndels()) {
+                if (indel.isFiltered()) {
+                    thresholdsPerSample[indel.sampleIndex] += 1;
+                }
+            }
+        }
+        for (int sampleIndex = 0; sampleIndex < sampleCounts.length; sampleIndex++) {
+            thresholdsPerSample[sampleIndex] *= multiplier;
+        }
+        final int[] cells = tally.getCells();
+        final int numCells = tally.getNumCells();
+        for (int i = 0; i < numCells; i++) {
+            final int cell = cells[i];
+            numScreened += tally.getCount(cell);
+            if (GenotypeTally.isIndel(cell)) {
+                continue;
+            }
+            final int sampleIndex = GenotypeTally.getSampleIndex(cell);
+            final int count = sampleCounts[sampleIndex].getGenotypeCount(tally.getGenotypeIndex(cell));
+            if (count == 0) continue;
+            if (count < thresholdsPerSample[sampleIndex]) {
+                // less counts remaining for this allele than were removed on average by previous filters, still likely
+                // an error.
+                removeGenotype(tally, cell, tally.getCount(cell), sampleCounts);
+            }
+        }
+        filterIndels(list, sampleCounts);
+        adjustRefVarCounts(sampleCounts);
+    }
+
+    @Override
+    public boolean supportsTally() {
+        return true;
+    }
+
     @Override
     public String describe() {
         return String.format("#count(allele) < (%d *#filtered)", multiplier);
@@ -228,6 +228,10 @@ public class NonAmbiguousAlignmentReader implements AlignmentReader {
         delegate.reposition(targetIndex, position);
     }
 
+    public void setRegions(final GenomicRegionSet regions) throws IOException {
+        delegate.setRegions(regions);
+    }
+
     public void remove() {
         delegate.remove();
     }
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.alignments;
+
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+
+/**
+ * Recycles the DiscoverVariantPositionData instances that store the pileup of positions, so that the arrays
+ * allocated for a position are reused for the positions that follow. At any time, only the positions of the window
+ * covered by the reads being iterated are in use, so a small number of instances serve a whole genome.
+ *
+ * @author Fabien Campagne
+ *         Date: Oct 19, 2012
+ */
+public class PileupArena {
+    private final ObjectArrayList<DiscoverVariantPositionData> free = new ObjectArrayList<DiscoverVariantPositionData>();
+    private final int maxFree;
+    private final int maxRecycledCapacity;
+    private boolean tallyGenotypes;
+
+    /**
+     * Create an arena.
+     *
+     * @param maxFree             maximum number of instances kept for reuse.
+     * @param maxRecycledCapacity instances released with a larger capacity are trimmed to this capacity, so that
+     *                            a few positions with very high coverage do not hold memory for the rest of the genome.
+     */
+    public PileupArena(final int maxFree, final int maxRecycledCapacity) {
+        super();
+        this.maxFree = maxFree;
+        this.maxRecycledCapacity = maxRecycledCapacity;
+    }
+
+    public PileupArena() {
+        this(4096, 1 << 16);
+    }
+
+    /**
+     * Configure the instances allocated by this arena to tally genotypes instead of storing bases.
+     *
+     * @param tallyGenotypes True to tally genotypes, see DiscoverVariantPositionData#setTallyGenotypes.
+     */
+    public void setTallyGenotypes(final boolean tallyGenotypes) {
+        this.tallyGenotypes = tallyGenotypes;
+    }
+
+    /**
+     * Return an empty instance for a position.
+     *
+     * @param position zero-based position.
+     * @return an instance with no bases.
+     */
+    public DiscoverVariantPositionData allocate(final int position) {
+        final DiscoverVariantPositionData data;
+        if (free.isEmpty()) {
+            data = new DiscoverVariantPositionData(position);
+        } else {
+            data = free.remove(free.size() - 1);
+            data.reset(position);
+        }
+        data.setTallyGenotypes(tallyGenotypes);
+        return data;
+    }
+
+    /**
+     * Return an instance to the arena. The instance must not be used after it has been released.
+     *
+     * @param data the instance to recycle.
+     */
+    public void release(final DiscoverVariantPositionData data) {
+        if (data != null && free.size() < maxFree) {
+            data.reset(-1);
+            data.trim(maxRecycledCapacity);
+            free.add(data);
+        }
+    }
+}
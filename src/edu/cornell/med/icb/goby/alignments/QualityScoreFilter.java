@@ -102,27 +102,29 @@ public class QualityScoreFilter extends GenotypeFilter {
         } else {
             Arrays.fill(thresholdPerSample, 0);
         }
-        for (final PositionBaseInfo info : list) {
+        final int size = list.size();
+        for (int index = 0; index < size; index++) {
             numScreened++;
-            if (!info.matchesReference && info.qualityScore < scoreThreshold) {
-                if (!filteredList.contains(info)) {
-                    if (info.to != '-' && info.from != '-') {
+            if (!list.isMatchingReference(index) && list.getQualityScore(index) < scoreThreshold) {
+                if (!list.isFiltered(index, filteredList)) {
+                    if (!list.isInsertionOrDeletion(index)) {
 
                         // indels have a quality score  of zero but should not be removed at this stage.
-                        final SampleCountInfo sampleCountInfo = sampleCounts[info.readerIndex];
-                        final int baseIndex = sampleCountInfo.baseIndex(info.to);
+                        final int readerIndex = list.getReaderIndex(index);
+                        final SampleCountInfo sampleCountInfo = sampleCounts[readerIndex];
+                        final int baseIndex = sampleCountInfo.baseIndex(list.getTo(index));
 
                         final double randomValue = randomGenerator.nextDouble();
-                        if (noRandomSampling || randomValue > proportions[info.readerIndex][baseIndex]) {
+                        if (noRandomSampling || randomValue > proportions[readerIndex][baseIndex]) {
                             // we reject the base if the randomValue is greater than the proportion of the genotype
                             // prior filtering.
                             // Rationale: most bases with low quality will have a low proportion of genotypes (because
                             // errors stack at the same position only by chance and yield small proportions compared to
                             // the other genotypes. A genotype with a strong proportion is more likely to be correct,
                             // irrespective of quality scores.
-                            sampleCountInfo.suggestRemovingGenotype(baseIndex,info.matchesForwardStrand);
-                            removeGenotype(info, filteredList);
-                            thresholdPerSample[info.readerIndex]++;
+                            sampleCountInfo.suggestRemovingGenotype(baseIndex, list.isMatchingForwardStrand(index));
+                            removeGenotype(list.get(index), filteredList);
+                            thresholdPerSample[readerIndex]++;
                         }
                     }
                 }
@@ -156,6 +158,51 @@ public class QualityScoreFilter extends GenotypeFilter {
         adjustRefVarCounts(sampleCounts);
     }
 
+    @Override
+    public void filterGenotypes(final GenotypeTally tally,
+                                final DiscoverVariantPositionData list,
+                                final SampleCountInfo[] sampleCounts) {
+        resetCounters();
+        initStorage(sampleCounts.length);
+        estimateGenotypeProportions(sampleCounts);
+        final int seed = Arrays.deepHashCode(sampleCounts);
+        final MersenneTwister randomGenerator = new MersenneTwister(seed);
+        if (thresholdPerSample == null) {
+            thresholdPerSample = new int[sampleCounts.length];
+        } else {
+            Arrays.fill(thresholdPerSample, 0);
+        }
+        final int[] cells = tally.getCells();
+        final int numCells = tally.getNumCells();
+        for (int i = 0; i < numCells; i++) {
+            final int cell = cells[i];
+            final int count = tally.getCount(cell);
+            numScreened += count;
+            // indels have a quality score  of zero but should not be removed at this stage.
+            if (!GenotypeTally.matchesReference(cell) && !GenotypeTally.isIndel(cell) &&
+                    GenotypeTally.getQualityScore(cell) < scoreThreshold) {
+                final int readerIndex = GenotypeTally.getSampleIndex(cell);
+                final int baseIndex = GenotypeTally.getAllele(cell);
+                int removed = 0;
+                for (int j = 0; j < count; j++) {
+                    // same random guard as for bases in a list, drawn once per base of the cell:
+                    if (noRandomSampling || randomGenerator.nextDouble() > proportions[readerIndex][baseIndex]) {
+                        removed++;
+                    }
+                }
+                removeGenotype(tally, cell, removed, sampleCounts);
+                thresholdPerSample[readerIndex] += removed;
+            }
+        }
+        filterIndels(list, sampleCounts);
+        adjustRefVarCounts(sampleCounts);
+    }
+
+    @Override
+    public boolean supportsTally() {
+        return true;
+    }
+
     private double proportions[][];
 
     private void estimateGenotypeProportions(SampleCountInfo[] sampleCounts) {
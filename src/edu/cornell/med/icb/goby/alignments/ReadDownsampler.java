@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.alignments;
+
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+/**
+ * Caps the number of reads of each sample that start in a window of the genome, before the bases of the reads are
+ * added to pileups. The genome is divided in consecutive windows of windowLength bases. The reads of a sample that
+ * start in a window are sampled with a reservoir of maxReadsPerWindow reads, so that every read of the window has the
+ * same chance to be kept when the window has more reads than the reservoir holds. Windows with fewer reads keep all
+ * their reads.
+ * <p/>
+ * Entries are offered in sorted order. The entries kept in a window are returned, in sorted order, once an entry past
+ * the window has been offered, or the input has ended. The random generator of a window is seeded with the seed, the
+ * reference index and the window index, so that the reads kept in a window do not depend on the windows that were
+ * iterated before it.
+ *
+ * @author Fabien Campagne
+ *         Date: Oct 19, 2012
+ */
+public class ReadDownsampler {
+    private static final AlignmentPositionComparator COMPARATOR = new AlignmentPositionComparator();
+
+    private final int maxReadsPerWindow;
+    private final int windowLength;
+    private final long seed;
+    private final Random random = new Random();
+    /**
+     * The reservoir of each sample, for the current window.
+     */
+    private final ObjectArrayList<ObjectArrayList<Alignments.AlignmentEntry>> reservoirs =
+            new ObjectArrayList<ObjectArrayList<Alignments.AlignmentEntry>>();
+    /**
+     * The number of reads of each sample offered in the current window.
+     */
+    private int[] numOffered = new int[0];
+    private int windowTargetIndex = -1;
+    private int windowIndex = -1;
+    /**
+     * Entries kept in the windows that were closed, in sorted order, not yet polled.
+     */
+    private final ObjectArrayList<Alignments.AlignmentEntry> ready = new ObjectArrayList<Alignments.AlignmentEntry>();
+    private int readyIndex;
+    private boolean inputEnded;
+    private long numDropped;
+
+    /**
+     * Create a downsampler.
+     *
+     * @param maxReadsPerWindow maximum number of reads kept for a sample in a window.
+     * @param windowLength      length of the windows, in bases.
+     * @param seed              seed of the random choice of reads to keep.
+     */
+    public ReadDownsampler(final int maxReadsPerWindow, final int windowLength, final long seed) {
+        super();
+        if (maxReadsPerWindow <= 0 || windowLength <= 0) {
+            throw new IllegalArgumentException("maximum number of reads and window length must be positive.");
+        }
+        this.maxReadsPerWindow = maxReadsPerWindow;
+        this.windowLength = windowLength;
+        this.seed = seed;
+    }
+
+    /**
+     * Offer the next entry of the input. Entries must be offered in sorted order.
+     *
+     * @param entry the next entry, or null when the input has ended.
+     */
+    public void offer(final Alignments.AlignmentEntry entry) {
+        if (entry == null) {
+            closeWindow();
+            inputEnded = true;
+            return;
+        }
+        final int entryWindowIndex = entry.getPosition() / windowLength;
+        if (entry.getTargetIndex() != windowTargetIndex || entryWindowIndex != windowIndex) {
+            closeWindow();
+            windowTargetIndex = entry.getTargetIndex();
+            windowIndex = entryWindowIndex;
+            random.setSeed(seed ^ (((long) windowTargetIndex << 32) | windowIndex));
+        }
+        final int sampleIndex = entry.getSampleIndex();
+        final ObjectArrayList<Alignments.AlignmentEntry> reservoir = reservoir(sampleIndex);
+        final int offered = ++numOffered[sampleIndex];
+        if (offered <= maxReadsPerWindow) {
+            reservoir.add(entry);
+        } else {
+            // the entry replaces one in the reservoir with probability maxReadsPerWindow/offered:
+            final int slot = random.nextInt(offered);
+            if (slot < maxReadsPerWindow) {
+                reservoir.set(slot, entry);
+            }
+            ++numDropped;
+        }
+    }
+
+    private ObjectArrayList<Alignments.AlignmentEntry> reservoir(final int sampleIndex) {
+        while (reservoirs.size() <= sampleIndex) {
+            reservoirs.add(new ObjectArrayList<Alignments.AlignmentEntry>());
+        }
+        if (numOffered.length <= sampleIndex) {
+            final int[] grown = new int[sampleIndex + 1];
+            System.arraycopy(numOffered, 0, grown, 0, numOffered.length);
+            numOffered = grown;
+        }
+        return reservoirs.get(sampleIndex);
+    }
+
+    /**
+     * Move the entries kept in the current window to the entries ready to be polled.
+     */
+    private void closeWindow() {
+        if (readyIndex == ready.size()) {
+            ready.clear();
+            readyIndex = 0;
+        }
+        final int start = ready.size();
+        for (final ObjectArrayList<Alignments.AlignmentEntry> reservoir : reservoirs) {
+            ready.addAll(reservoir);
+            reservoir.clear();
+        }
+        // reservoir replacements do not preserve the order of the entries:
+        Collections.sort(ready.subList(start, ready.size()), COMPARATOR);
+        Arrays.fill(numOffered, 0);
+    }
+
+    /**
+     * Return the next entry kept, skipping the entries located before (targetIndex, position).
+     *
+     * @param targetIndex index of the reference sequence to skip to.
+     * @param position    position to skip to.
+     * @return the next entry kept, or null if the entries offered so far are not yet known to be kept.
+     */
+    public Alignments.AlignmentEntry poll(final int targetIndex, final int position) {
+        while (readyIndex < ready.size()) {
+            final Alignments.AlignmentEntry entry = ready.get(readyIndex);
+            ready.set(readyIndex++, null);
+            if (entry.getTargetIndex() > targetIndex ||
+                    (entry.getTargetIndex() == targetIndex && entry.getPosition() >= position)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return true when the end of the input has been offered. Entries may still be ready to be polled.
+     */
+    public boolean isInputEnded() {
+        return inputEnded;
+    }
+
+    /**
+     * Return the number of entries that were not kept.
+     */
+    public long getNumDropped() {
+        return numDropped;
+    }
+}
@@ -37,18 +37,18 @@ public class RemoveIndelArtifactsFilter extends GenotypeFilter {
 
         if (list.hasCandidateIndels()) {
             for (EquivalentIndelRegion indel : list.getIndels()) {
-                for (final PositionBaseInfo info : list) {
+                for (int index = 0; index < list.size(); index++) {
 
 
-                    if (info.readerIndex == indel.sampleIndex && info.to == '-' ) {
+                    if (list.getReaderIndex(index) == indel.sampleIndex && list.getTo(index) == '-' ) {
                         //     list.remove(info);
 
-                        final SampleCountInfo sampleCountInfo = sampleCounts[info.readerIndex];
-                        final char base = info.to == '-'? info.from : info.to;
+                        final SampleCountInfo sampleCountInfo = sampleCounts[indel.sampleIndex];
+                        final char base = list.getFrom(index);
                         final int baseIndex = sampleCountInfo.baseIndex(base);
-                        if (!filteredList.contains(info)) {
-                            sampleCountInfo.suggestRemovingGenotype(baseIndex, info.matchesForwardStrand);
-                            removeGenotype(info, filteredList);
+                        if (!list.isFiltered(index, filteredList)) {
+                            sampleCountInfo.suggestRemovingGenotype(baseIndex, list.isMatchingForwardStrand(index));
+                            removeGenotype(list.get(index), filteredList);
                         }
                         /*  if (varCountRemovedPerSample[info.readerIndex] > sampleCount.varCount) {
 
@@ -66,6 +66,34 @@ public class RemoveIndelArtifactsFilter extends GenotypeFilter {
         adjustRefVarCounts(sampleCounts);
     }
 
+    @Override
+    public void filterGenotypes(final GenotypeTally tally, final DiscoverVariantPositionData list,
+                                final SampleCountInfo[] sampleCounts) {
+        resetCounters();
+        initStorage(sampleCounts.length);
+        final int[] cells = tally.getCells();
+        final int numCells = tally.getNumCells();
+        if (list.hasCandidateIndels()) {
+            for (EquivalentIndelRegion indel : list.getIndels()) {
+                for (int i = 0; i < numCells; i++) {
+                    final int cell = cells[i];
+                    // deleted bases of the sample where the indel was observed:
+                    if (GenotypeTally.getSampleIndex(cell) == indel.sampleIndex &&
+                            GenotypeTally.getAllele(cell) == GenotypeTally.DELETION_INDEX) {
+                        removeGenotype(tally, cell, tally.getCount(cell), sampleCounts);
+                    }
+                }
+            }
+        }
+        numScreened += tally.getNumObserved();
+        adjustRefVarCounts(sampleCounts);
+    }
+
+    @Override
+    public boolean supportsTally() {
+        return true;
+    }
+
     @Override
     public int getThresholdForSample(int sampleIndex) {
         throw new UnsupportedOperationException("This filter does not support method getThresholdForSample()");
@@ -348,6 +348,38 @@ public class SampleCountInfo {
 
     }
 
+    /**
+     * Make a copy of the counts of this sample, so that the copy can be read after this instance has been reused
+     * for another site. Indels are copied with their frequency and filtered flag, the read indices of the indels are
+     * not copied.
+     *
+     * @return a copy of this sample count info.
+     */
+    public SampleCountInfo copy() {
+        final SampleCountInfo result = new SampleCountInfo();
+        result.referenceBase = referenceBase;
+        result.distinctReadIndices.addAll(distinctReadIndices);
+        result.sampleIndex = sampleIndex;
+        result.varCount = varCount;
+        result.refCount = refCount;
+        result.failedCount = failedCount;
+        System.arraycopy(counts[0], 0, result.counts[0], 0, counts[0].length);
+        System.arraycopy(counts[1], 0, result.counts[1], 0, counts[1].length);
+        System.arraycopy(filtered, 0, result.filtered, 0, filtered.length);
+        if (indels != null) {
+            result.indels = new ObjectArrayList<EquivalentIndelRegion>(indels.size());
+            for (final EquivalentIndelRegion indel : indels) {
+                final EquivalentIndelRegion indelCopy = indel.copy();
+                indelCopy.setFrequency(indel.getFrequency());
+                if (indel.isFiltered()) {
+                    indelCopy.markFiltered();
+                }
+                result.indels.add(indelCopy);
+            }
+        }
+        return result;
+    }
+
     static final String A_BASE = "A";
     static final String T_BASE = "T";
     static final String C_BASE = "C";
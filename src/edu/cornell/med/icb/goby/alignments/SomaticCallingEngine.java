@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.alignments;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntLinkedOpenHashSet;
+
+import java.util.Arrays;
+
+/**
+ * Evaluates somatic candidates at a site. The relationships between the somatic samples and their parents and
+ * matched germline samples are resolved once, when the engine is created, into arrays indexed by the rank of the
+ * somatic sample, so that evaluating a site only reads the counts of the samples related to each somatic sample.
+ * The coverage of these samples is calculated once per site, and the candidate flags are reused from site to site.
+ * <p/>
+ * An engine keeps the flags of the last site evaluated and must only be used by one thread.
+ *
+ * @author Fabien Campagne
+ *         Date: Oct 19, 2012
+ */
+public class SomaticCallingEngine {
+    /**
+     * Index of each somatic sample in sampleCounts, by rank of the somatic sample.
+     */
+    private final int[] somaticSamples;
+    /**
+     * Index of the father sample of each somatic sample, or -1 when the father was not sequenced.
+     */
+    private final int[] fathers;
+    /**
+     * Index of the mother sample of each somatic sample, or -1 when the mother was not sequenced.
+     */
+    private final int[] mothers;
+    /**
+     * The germline samples of the somatic sample of rank k are germlineSamples[germlineStarts[k]] to
+     * germlineSamples[germlineStarts[k+1]-1].
+     */
+    private final int[] germlineStarts;
+    private final int[] germlineSamples;
+    /**
+     * Somatic samples and the samples they are compared to. Their coverage is calculated once per site.
+     */
+    private final int[] relatedSamples;
+    private final int[] coverage;
+    private final int[] numMatchedReads;
+    private final int strictThresholdParents;
+    private final int strictThresholdGermline;
+    /**
+     * Candidate flags of the last site evaluated, genotypeStride flags per somatic sample.
+     */
+    private boolean[] candidates = new boolean[0];
+    private boolean[] strictCandidates = new boolean[0];
+    private int genotypeStride;
+    private boolean anyCandidate;
+    private boolean anyStrictCandidate;
+
+    /**
+     * Create an engine.
+     *
+     * @param somaticSampleIndices        indices of the somatic samples.
+     * @param sample2FatherSampleIndex    index of the father sample of a somatic sample, -1 when not defined.
+     * @param sample2MotherSampleIndex    index of the mother sample of a somatic sample, -1 when not defined.
+     * @param sample2GermlineSampleIndices indices of the germline samples of a somatic sample, -1 entries are ignored.
+     * @param numMatchedReads             number of reads matched in each sample, used to normalize priorities. May
+     *                                    be null when priorities are not estimated.
+     * @param strictThresholdParents      maximum number of bases in a parent for a strict somatic candidate.
+     * @param strictThresholdGermline     maximum number of bases in a germline sample for a strict somatic candidate.
+     */
+    public SomaticCallingEngine(final IntArrayList somaticSampleIndices,
+                                final int[] sample2FatherSampleIndex,
+                                final int[] sample2MotherSampleIndex,
+                                final int[][] sample2GermlineSampleIndices,
+                                final int[] numMatchedReads,
+                                final int strictThresholdParents,
+                                final int strictThresholdGermline) {
+        super();
+        final int numSomaticSamples = somaticSampleIndices.size();
+        somaticSamples = somaticSampleIndices.toIntArray();
+        fathers = new int[numSomaticSamples];
+        mothers = new int[numSomaticSamples];
+        germlineStarts = new int[numSomaticSamples + 1];
+        final IntArrayList germlines = new IntArrayList();
+        final IntLinkedOpenHashSet related = new IntLinkedOpenHashSet();
+        for (int k = 0; k < numSomaticSamples; k++) {
+            final int sampleIndex = somaticSamples[k];
+            fathers[k] = sample2FatherSampleIndex[sampleIndex];
+            mothers[k] = sample2MotherSampleIndex[sampleIndex];
+            related.add(sampleIndex);
+            if (fathers[k] != -1) {
+                related.add(fathers[k]);
+            }
+            if (mothers[k] != -1) {
+                related.add(mothers[k]);
+            }
+            germlineStarts[k] = germlines.size();
+            for (final int germlineSampleIndex : sample2GermlineSampleIndices[sampleIndex]) {
+                if (germlineSampleIndex != -1) {
+                    germlines.add(germlineSampleIndex);
+                    related.add(germlineSampleIndex);
+                }
+            }
+        }
+        germlineStarts[numSomaticSamples] = germlines.size();
+        germlineSamples = germlines.toIntArray();
+        relatedSamples = related.toIntArray();
+        int maxSampleIndex = -1;
+        for (final int sampleIndex : relatedSamples) {
+            maxSampleIndex = Math.max(maxSampleIndex, sampleIndex);
+        }
+        coverage = new int[maxSampleIndex + 1];
+        this.numMatchedReads = numMatchedReads;
+        this.strictThresholdParents = strictThresholdParents;
+        this.strictThresholdGermline = strictThresholdGermline;
+    }
+
+    public int getNumSomaticSamples() {
+        return somaticSamples.length;
+    }
+
+    /**
+     * Return the index in sampleCounts of the somatic sample of rank k.
+     */
+    public int getSomaticSampleIndex(final int k) {
+        return somaticSamples[k];
+    }
+
+    /**
+     * Determine the somatic candidate genotypes of every somatic sample at a site. A genotype is a candidate when
+     * the parents and matched germline samples do not have it, the germline samples have enough coverage, and it is
+     * more than three times as frequent in the somatic sample as in any parent or germline sample.
+     *
+     * @param sampleCounts counts of the samples at the site.
+     * @return True when at least one genotype is a somatic candidate.
+     */
+    public boolean evaluate(final SampleCountInfo[] sampleCounts) {
+        for (final int sampleIndex : relatedSamples) {
+            coverage[sampleIndex] = sampleCounts[sampleIndex].coverage();
+        }
+        genotypeStride = 0;
+        for (final int sampleIndex : somaticSamples) {
+            genotypeStride = Math.max(genotypeStride, sampleCounts[sampleIndex].getGenotypeMaxIndex());
+        }
+        final int numFlags = somaticSamples.length * genotypeStride;
+        if (candidates.length < numFlags) {
+            candidates = new boolean[numFlags];
+            strictCandidates = new boolean[numFlags];
+        } else {
+            Arrays.fill(candidates, 0, numFlags, false);
+            Arrays.fill(strictCandidates, 0, numFlags, false);
+        }
+        anyCandidate = false;
+        anyStrictCandidate = false;
+        for (int k = 0; k < somaticSamples.length; k++) {
+            evaluate(sampleCounts, k);
+        }
+        return anyCandidate;
+    }
+
+    private void evaluate(final SampleCountInfo[] sampleCounts, final int k) {
+        final int sampleIndex = somaticSamples[k];
+        final SampleCountInfo somaticCounts = sampleCounts[sampleIndex];
+        final int fatherSampleIndex = fathers[k];
+        final int motherSampleIndex = mothers[k];
+        final int somaticCoverage = coverage[sampleIndex];
+        final int numGenotypes = somaticCounts.getGenotypeMaxIndex();
+        for (int genotypeIndex = 0; genotypeIndex < numGenotypes; genotypeIndex++) {
+            boolean parentHasGenotype = false;
+            boolean strict = true;
+            float maxGermlineOrParentsFrequency = 0;
+            int minGermlineCoverage = Integer.MAX_VALUE;
+
+            if (fatherSampleIndex != -1) {
+                final SampleCountInfo fatherCounts = sampleCounts[fatherSampleIndex];
+                minGermlineCoverage = Math.min(coverage[fatherSampleIndex], minGermlineCoverage);
+                final int fatherCount = fatherCounts.getGenotypeCount(genotypeIndex);
+                parentHasGenotype = fatherCount > fatherCounts.failedCount || fatherCount > 5;
+                strict = fatherCount <= strictThresholdParents;
+                maxGermlineOrParentsFrequency = Math.max(maxGermlineOrParentsFrequency,
+                        frequency(fatherCount, coverage[fatherSampleIndex]));
+            }
+            if (motherSampleIndex != -1) {
+                final SampleCountInfo motherCounts = sampleCounts[motherSampleIndex];
+                minGermlineCoverage = Math.min(coverage[motherSampleIndex], minGermlineCoverage);
+                final int motherCount = motherCounts.getGenotypeCount(genotypeIndex);
+                parentHasGenotype |= motherCount > motherCounts.failedCount || motherCount > 5;
+                strict &= motherCount <= strictThresholdParents;
+                maxGermlineOrParentsFrequency = Math.max(maxGermlineOrParentsFrequency,
+                        frequency(motherCount, coverage[motherSampleIndex]));
+            }
+            boolean germlineHasGenotype = false;
+            for (int i = germlineStarts[k]; i < germlineStarts[k + 1]; i++) {
+                final int germlineSampleIndex = germlineSamples[i];
+                minGermlineCoverage = Math.min(coverage[germlineSampleIndex], minGermlineCoverage);
+                final int germlineCount = sampleCounts[germlineSampleIndex].getGenotypeCount(genotypeIndex);
+                germlineHasGenotype |= germlineCount >= 10 && germlineCount >= 1.5 * somaticCounts.failedCount;
+                strict &= germlineCount <= strictThresholdGermline;
+                maxGermlineOrParentsFrequency = Math.max(maxGermlineOrParentsFrequency,
+                        frequency(germlineCount, coverage[germlineSampleIndex]));
+            }
+            final int somaticCount = somaticCounts.getGenotypeCount(genotypeIndex);
+            if (parentHasGenotype || germlineHasGenotype || somaticCount <= 0) {
+                continue;
+            }
+            if (minGermlineCoverage < somaticCoverage / 2) {
+                // not enough coverage in germline samples to call this site confidently
+                continue;
+            }
+            if (frequency(somaticCount, somaticCoverage) > 3 * maxGermlineOrParentsFrequency) {
+                final int flag = k * genotypeStride + genotypeIndex;
+                candidates[flag] = true;
+                strictCandidates[flag] = strict;
+                anyCandidate = true;
+                anyStrictCandidate |= strict;
+            }
+        }
+    }
+
+    /**
+     * Same value as SampleCountInfo.frequency, from the coverage calculated for the site.
+     */
+    private static float frequency(final int count, final int coverage) {
+        if (coverage == 0) {
+            return 0;
+        }
+        return ((float) count) / ((float) coverage);
+    }
+
+    /**
+     * Return true when genotypeIndex was a somatic candidate of the somatic sample of rank k, at the last site
+     * evaluated.
+     */
+    public boolean isCandidate(final int k, final int genotypeIndex) {
+        return genotypeIndex < genotypeStride && candidates[k * genotypeStride + genotypeIndex];
+    }
+
+    /**
+     * Return true when some genotype was a somatic candidate at the last site evaluated.
+     */
+    public boolean hasCandidate() {
+        return anyCandidate;
+    }
+
+    /**
+     * Return true when some genotype was a strict somatic candidate at the last site evaluated.
+     */
+    public boolean hasStrictCandidate() {
+        return anyStrictCandidate;
+    }
+
+    /**
+     * Return the largest frequency of the candidate genotypes of the somatic sample of rank k, or zero when the
+     * sample has no candidate.
+     */
+    public float somaticFrequency(final SampleCountInfo[] sampleCounts, final int k) {
+        final int sampleIndex = somaticSamples[k];
+        final SampleCountInfo somaticCounts = sampleCounts[sampleIndex];
+        float somaticFrequency = 0;
+        for (int genotypeIndex = 0; genotypeIndex < somaticCounts.getGenotypeMaxIndex(); ++genotypeIndex) {
+            if (isCandidate(k, genotypeIndex)) {
+                somaticFrequency = Math.max(frequency(somaticCounts.getGenotypeCount(genotypeIndex),
+                        coverage[sampleIndex]), somaticFrequency);
+            }
+        }
+        return somaticFrequency;
+    }
+
+    /**
+     * Return the somatic priority of the somatic sample of rank k: the largest, over candidate genotypes, of the
+     * normalized count difference with the closest parent plus the difference with the closest germline sample.
+     * Returns -10 when the sample has no candidate.
+     */
+    public double priority(final SampleCountInfo[] sampleCounts, final int k) {
+        final int sampleIndex = somaticSamples[k];
+        final SampleCountInfo somaticCounts = sampleCounts[sampleIndex];
+        double maxPriority = -10;
+        for (int genotypeIndex = 0; genotypeIndex < somaticCounts.getGenotypeMaxIndex(); ++genotypeIndex) {
+            if (!isCandidate(k, genotypeIndex)) {
+                continue;
+            }
+            final double somaticNormalized = normalize(somaticCounts.getGenotypeCount(genotypeIndex), sampleIndex);
+            double parentContribution = Double.MAX_VALUE;
+            int numParents = 0;
+            if (fathers[k] != -1) {
+                parentContribution = Math.min(parentContribution, somaticNormalized -
+                        normalize(sampleCounts[fathers[k]].getGenotypeCount(genotypeIndex), fathers[k]));
+                numParents += 1;
+            }
+            if (mothers[k] != -1) {
+                parentContribution = Math.min(parentContribution, somaticNormalized -
+                        normalize(sampleCounts[mothers[k]].getGenotypeCount(genotypeIndex), mothers[k]));
+                numParents += 1;
+            }
+            if (numParents == 0) {
+                parentContribution = 0;
+            }
+            double germlineContribution = Double.MAX_VALUE;
+            for (int i = germlineStarts[k]; i < germlineStarts[k + 1]; i++) {
+                final int germlineSampleIndex = germlineSamples[i];
+                germlineContribution = Math.min(germlineContribution, somaticNormalized -
+                        normalize(sampleCounts[germlineSampleIndex].getGenotypeCount(genotypeIndex),
+                                germlineSampleIndex));
+            }
+            if (germlineStarts[k] == germlineStarts[k + 1]) {
+                germlineContribution = 0;
+            }
+            maxPriority = Math.max(parentContribution + germlineContribution, maxPriority);
+        }
+        return maxPriority;
+    }
+
+    /**
+     * Normalize a count by the total number of reads matched in a sample. Multiply by 100 million to get scores in
+     * a more convenient range.
+     */
+    private double normalize(final int count, final int sampleIndex) {
+        return 100000000d * ((double) count) / (Math.max(1, numMatchedReads[sampleIndex]));
+    }
+}
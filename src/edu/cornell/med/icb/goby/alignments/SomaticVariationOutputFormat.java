@@ -103,13 +103,10 @@ public class SomaticVariationOutputFormat implements SequenceVariationOutputForm
     private int[] sampleIndex2SomaticSampleIndex;
     private boolean[] isSomatic;
     /**
-     * Proportion of total bases observed in a given sample.
+     * Evaluates somatic candidates from the sample relationships. Created when the first site is evaluated, and
+     * again when a relationship is changed.
      */
-    private double[] proportionCountsIn;
-    /**
-     * Cumulative count of total bases observed in a given sample.
-     */
-    private double[] countsInSample;
+    private SomaticCallingEngine engine;
 
     /**
      * Hook to install mock statsWriter.
@@ -129,6 +126,7 @@ public class SomaticVariationOutputFormat implements SequenceVariationOutputForm
      */
     protected void setSomaticSampleIndices(IntArrayList somaticSampleIndices) {
         this.somaticSampleIndices = somaticSampleIndices;
+        engine = null;
     }
 
     private IntArrayList somaticSampleIndices;
@@ -262,11 +260,7 @@ public class SomaticVariationOutputFormat implements SequenceVariationOutputForm
         statsWriter.defineSamples(samples);
         statsWriter.setWriteFieldGroupAssociations(true);
         statsWriter.writeHeader();
-        countsInSample = new double[numSamples];
-        proportionCountsIn = new double[numSamples];
-        // initialize sample counts to equal counts across all samples:
-        Arrays.fill(countsInSample, 1);
-
+        engine = null;
     }
 
     int[] numMatchedReads;
@@ -313,11 +307,6 @@ public class SomaticVariationOutputFormat implements SequenceVariationOutputForm
     }
 
     public void allocateStorage(int numberOfSamples, int numberOfGroups) {
-        this.numSamples = numberOfSamples;
-        countsInSample = new double[numberOfSamples];
-        proportionCountsIn = new double[numberOfSamples];
-        // initialize sample counts to equal counts across all samples:
-        Arrays.fill(countsInSample, 1);
         this.numSamples = numberOfSamples;
         genotypeFormatter.allocateStorage(numberOfSamples, numberOfGroups);
 
@@ -327,7 +316,6 @@ public class SomaticVariationOutputFormat implements SequenceVariationOutputForm
     public void writeRecord(final DiscoverVariantIterateSortedAlignments iterator, final SampleCountInfo[] sampleCounts,
                             final int referenceIndex, int position, final DiscoverVariantPositionData list,
                             final int groupIndexA, final int groupIndexB) {
-        updateSampleProportions();
         this.pos = position;
         position = position + 1; // report  1-based position
         genotypeFormatter.fillVariantCountArrays(sampleCounts);
@@ -343,73 +331,35 @@ public class SomaticVariationOutputFormat implements SequenceVariationOutputForm
 
         statsWriter.setPosition(position);
 
-        genotypeFormatter.writeGenotypes(statsWriter, sampleCounts, position);
+        genotypeFormatter.writeGenotypes(statsWriter, sampleCounts, position, list);
         if (!statsWriter.hasAlternateAllele()) {
             // do not write a record if the position does not have an alternate allele.
             return;
         }
-        allocateIsSomaticCandidate(sampleCounts);
 
         // Do not write record if alleleSet is empty, IGV VCF track cannot handle that.
         if (isPossibleSomaticVariation(sampleCounts)) {
-            estimateSomaticFrequencies(sampleCounts);
+            writeSomaticFrequencies(sampleCounts);
             estimatePriority(sampleCounts);
-            if (isSomaticCandidate()) {
-                statsWriter.writeRecord();
-            }
+            statsWriter.writeRecord();
         }
-
-        updateSampleCumulativeCounts(sampleCounts);
     }
 
     void allocateIsSomaticCandidate(SampleCountInfo[] sampleCounts) {
-        int maxGenotypeIndex = 0;
-        for (SampleCountInfo sci : sampleCounts) {
-            maxGenotypeIndex = Math.max(maxGenotypeIndex, sci.getGenotypeMaxIndex());
-        }
-        isSomaticCandidate = new boolean[sampleCounts.length][maxGenotypeIndex];
-        isStrictSomaticCandidate = new boolean[sampleCounts.length][maxGenotypeIndex];
-    }
-
-
-    private void updateSampleCumulativeCounts(SampleCountInfo[] sampleCounts) {
-        for (SampleCountInfo info : sampleCounts) {
-            // estimate sample proportion with number of reference bases that matched.
-            countsInSample[info.sampleIndex] += info.refCount;
-        }
-    }
-
-    private void updateSampleProportions() {
-        long sumAllCounts = 0;
-
-        for (int sampleIndex = 0; sampleIndex < numSamples; sampleIndex++) {
-            sumAllCounts += countsInSample[sampleIndex];
-        }
-        for (int sampleIndex = 0; sampleIndex < numSamples; sampleIndex++) {
-
-            proportionCountsIn[sampleIndex] = ((double) countsInSample[sampleIndex]) / (double) sumAllCounts;
-        }
+        // this method does nothing, the engine allocates candidate flags as sites are evaluated. Kept for
+        // compatibility with JUnit tests.
     }
 
     /**
-     * Calculate the proportion of bases that we would expect across a pair of sample.
-     *
-     * @param sampleIndexA first sample index of the pair under consideration
-     * @param sampleIndexB second sample index of the pair under consideration
-     * @param request      index of the sample for which the proportion should be returned.
-     * @return proportion of bases for request sample.
+     * Return the engine for the current sample relationships.
      */
-    private double getSpecificSampleProportion(int sampleIndexA, int sampleIndexB, int request) {
-        long sumAllCounts = 0;
-
-        for (int sampleIndex = 0; sampleIndex < numSamples; sampleIndex++) {
-            if (sampleIndex == sampleIndexA || sampleIndex == sampleIndexB) {
-                sumAllCounts += countsInSample[sampleIndex];
-            }
+    private SomaticCallingEngine engine() {
+        if (engine == null) {
+            engine = new SomaticCallingEngine(somaticSampleIndices, sample2FatherSampleIndex,
+                    sample2MotherSampleIndex, sample2GermlineSampleIndices, numMatchedReads,
+                    strictThresholdParents, strictThresholdGermline);
         }
-        if (request == sampleIndexA) return ((double) countsInSample[sampleIndexA]) / (double) sumAllCounts;
-        else if (request == sampleIndexB) return ((double) countsInSample[sampleIndexB]) / (double) sumAllCounts;
-        else throw new IllegalArgumentException("request must be one of sampleIndexA or sampleIndexB");
+        return engine;
     }
 
 
@@ -430,92 +380,30 @@ public class SomaticVariationOutputFormat implements SequenceVariationOutputForm
 
     protected void setSample2FatherSampleIndex(int[] sample2FatherSampleIndex) {
         this.sample2FatherSampleIndex = sample2FatherSampleIndex;
+        engine = null;
     }
 
     protected void setSample2GermlineSampleIndices(int[][] sample2GermlineSampleIndices) {
         this.sample2GermlineSampleIndices = sample2GermlineSampleIndices;
+        engine = null;
     }
 
     protected void setSample2MotherSampleIndex(int[] sample2MotherSampleIndex) {
         this.sample2MotherSampleIndex = sample2MotherSampleIndex;
+        engine = null;
     }
 
     public void estimatePriority(SampleCountInfo[] sampleCounts) {
-
-        for (int sampleIndex : somaticSampleIndices) {
-            SampleCountInfo somaticCounts = sampleCounts[sampleIndex];
-            double maxPriority = -10;
-
-            for (int genotypeIndex = 0; genotypeIndex < somaticCounts.getGenotypeMaxIndex(); ++genotypeIndex) {
-                if (isSomaticCandidate[sampleIndex][genotypeIndex]) {
-                    double parentGenotypePriorityContribution = Double.MAX_VALUE;
-                    double germlineGenotypePriorityContribution = Double.MAX_VALUE;
-                    int fatherSampleIndex = sample2FatherSampleIndex[sampleIndex];
-                    int numParents = 0;
-                    if (fatherSampleIndex != -1) {
-
-                        SampleCountInfo fatherCounts = sampleCounts[fatherSampleIndex];
-                        double fatherPriority = estimatePriorityComponent(genotypeIndex, somaticCounts, fatherCounts, sampleIndex, fatherSampleIndex);
-                        parentGenotypePriorityContribution = Math.min(parentGenotypePriorityContribution, fatherPriority);
-                        numParents += 1;
-                    }
-
-                    int motherSampleIndex = sample2MotherSampleIndex[sampleIndex];
-                    if (motherSampleIndex != -1) {
-
-                        SampleCountInfo motherCounts = sampleCounts[motherSampleIndex];
-                        double motherPriority = estimatePriorityComponent(genotypeIndex, somaticCounts, motherCounts, sampleIndex, motherSampleIndex);
-                        parentGenotypePriorityContribution = Math.min(parentGenotypePriorityContribution, motherPriority);
-                        numParents += 1;
-                    }
-                    if (numParents == 0) {
-                        parentGenotypePriorityContribution = 0;
-                    }
-                    //     parentGenotypePriorityContribution /= Math.max(1, numParents);
-                    int germlineSampleIndices[] = sample2GermlineSampleIndices[sampleIndex];
-                    int numGermlineSamples = 0;
-                    for (int germlineSampleIndex : germlineSampleIndices) {
-                        if (germlineSampleIndex != -1) {
-                            SampleCountInfo germlineCounts = sampleCounts[germlineSampleIndex];
-                            double germlinePriority = estimatePriorityComponent(genotypeIndex, somaticCounts, germlineCounts, sampleIndex, germlineSampleIndex);
-                            germlineGenotypePriorityContribution = Math.min(germlineGenotypePriorityContribution, germlinePriority);
-                            numGermlineSamples += 1;
-                        }
-                    }
-                    if (numGermlineSamples == 0) {
-                        germlineGenotypePriorityContribution = 0;
-                    }
-                    maxPriority = Math.max(parentGenotypePriorityContribution + germlineGenotypePriorityContribution, maxPriority);
-                }
-            }
-            statsWriter.setInfo(maxGenotypeSomaticPriority[sampleIndex], maxPriority);
+        final SomaticCallingEngine engine = engine();
+        for (int k = 0; k < engine.getNumSomaticSamples(); k++) {
+            final int sampleIndex = engine.getSomaticSampleIndex(k);
+            statsWriter.setInfo(maxGenotypeSomaticPriority[sampleIndex], engine.priority(sampleCounts, k));
+        }
+        if (engine.getNumSomaticSamples() > 0) {
             statsWriter.setFilter(isStrictSomaticCandidate() ? "PASS" : "STRICT_SOMATIC");
         }
     }
 
-    /**
-     * Calculate a priority score normalized by the total number of reads mapped in a sample. Mulitply by 100 million
-     * to get scores in a more convenient range.
-     *
-     * @param priority    Priority score contribution calculated for one sample
-     * @param sampleIndex sample index of the corresponding sample.
-     * @return
-     */
-    private double normalizePriority(int priority, int sampleIndex) {
-        return 100000000d * ((double) priority) / (Math.max(1, numMatchedReads[sampleIndex]));
-    }
-
-    private double estimatePriorityComponent(int genotypeIndex, SampleCountInfo somaticCounts,
-                                             SampleCountInfo parentOrGermlineCounts,
-                                             int somaticSampleIndex, int germlineSampleIndex) {
-
-        double somaticNormalized = normalizePriority(somaticCounts.getGenotypeCount(genotypeIndex), somaticSampleIndex);
-        double germlineNormalized = normalizePriority(parentOrGermlineCounts.getGenotypeCount(genotypeIndex), germlineSampleIndex);
-
-        return somaticNormalized - germlineNormalized;
-    }
-
-
     boolean isPossibleSomaticVariation(SampleCountInfo[] sampleCounts) {
 
         // In cases where both parents are homozygous and the patient can be heterozygous, which creates low fisher p-values
@@ -527,111 +415,38 @@ public class SomaticVariationOutputFormat implements SequenceVariationOutputForm
         // if the frequency of any base in the somatic sample is larger than the parent frequency, we output the
         // record. The p-value will inform about the strength of the somatic observation.
         // otherwise, we do not output the variation in the somatic report.
-
-        for (int sampleIndex : somaticSampleIndices) {
-            SampleCountInfo somaticCounts = sampleCounts[sampleIndex];
-            for (int genotypeIndex = 0; genotypeIndex < somaticCounts.getGenotypeMaxIndex(); genotypeIndex++) {
-                boolean parentHasGenotype = false;
-                boolean strict = true;
-                float maxGermlineOrParentsFrequency = 0;
-                int fatherSampleIndex = sample2FatherSampleIndex[sampleIndex];
-                int minGermlineCoverage = Integer.MAX_VALUE;
-
-                if (fatherSampleIndex != -1) {
-
-                    SampleCountInfo fatherCounts = sampleCounts[fatherSampleIndex];
-                    minGermlineCoverage = Math.min(fatherCounts.coverage(), minGermlineCoverage);
-                    int fatherCount = fatherCounts.getGenotypeCount(genotypeIndex);
-                    parentHasGenotype = fatherCount > fatherCounts.failedCount || fatherCount > 5;
-                    strict = fatherCount <= strictThresholdParents;
-                    maxGermlineOrParentsFrequency = Math.max(maxGermlineOrParentsFrequency, fatherCounts.frequency(genotypeIndex));
-                }
-                int motherSampleIndex = sample2MotherSampleIndex[sampleIndex];
-                if (motherSampleIndex != -1) {
-
-                    SampleCountInfo motherCounts = sampleCounts[motherSampleIndex];
-                    minGermlineCoverage = Math.min(motherCounts.coverage(), minGermlineCoverage);
-                    int motherCount = motherCounts.getGenotypeCount(genotypeIndex);
-                    parentHasGenotype |= motherCount > motherCounts.failedCount || motherCount > 5;
-                    strict &= motherCount <= strictThresholdParents;
-                    maxGermlineOrParentsFrequency = Math.max(maxGermlineOrParentsFrequency, motherCounts.frequency(genotypeIndex));
-
-                }
-                boolean germlineHasPhenotype = false;
-                int germlineSampleIndices[] = sample2GermlineSampleIndices[sampleIndex];
-                for (int germlineSampleIndex : germlineSampleIndices) {
-                    if (germlineSampleIndex != -1) {
-                        SampleCountInfo germlineCounts = sampleCounts[germlineSampleIndex];
-                        minGermlineCoverage = Math.min(germlineCounts.coverage(), minGermlineCoverage);
-                        int germlineCount = germlineCounts.getGenotypeCount(genotypeIndex);
-                        germlineHasPhenotype |= germlineCount >= 10 && germlineCount >= 1.5 * somaticCounts.failedCount;
-                        strict &= germlineCount <= strictThresholdGermline;
-                        maxGermlineOrParentsFrequency = Math.max(maxGermlineOrParentsFrequency, germlineCounts.frequency(genotypeIndex));
-                    }
-                }
-                boolean somaticHasGenotype = somaticCounts.getGenotypeCount(genotypeIndex) > 0;
-                if (parentHasGenotype || germlineHasPhenotype || !somaticHasGenotype) {
-                    isSomaticCandidate[sampleIndex][genotypeIndex] = false;
-                    isStrictSomaticCandidate[sampleIndex][genotypeIndex] = false;
-                    //   System.out.println(explainSomaticCandidateChoice(sampleCounts));
-                } else {
-                    int somaticCoverage = sampleCounts[sampleIndex].coverage();
-                    if (minGermlineCoverage < somaticCoverage / 2) {
-                        // not enough coverage in germline samples to call this site confidently
-                        isSomaticCandidate[sampleIndex][genotypeIndex] = false;
-                    } else {
-                        if (somaticCounts.frequency(genotypeIndex) > 3 * maxGermlineOrParentsFrequency) {
-
-                            isSomaticCandidate[sampleIndex][genotypeIndex] = true;
-                        }
-                        isStrictSomaticCandidate[sampleIndex][genotypeIndex] = strict && isSomaticCandidate[sampleIndex][genotypeIndex];
-                    }
-                }
-            }
-        }
-        //System.out.println(explainSomaticCandidateChoice(sampleCounts));
-        return isSomaticCandidate();
+        return engine().evaluate(sampleCounts);
     }
 
     private String explainSomaticCandidateChoice(SampleCountInfo[] sampleCounts) {
-        int sampleIndex = 0;
-        int genotypeIndex = 0;
+        final SomaticCallingEngine engine = engine();
         String output = "";
-
-        for (boolean[] someGenotypeIsSomatic : isSomaticCandidate) {
-            genotypeIndex = 0;
-            for (boolean candidate : someGenotypeIsSomatic) {
-                if (candidate) {
+        for (int k = 0; k < engine.getNumSomaticSamples(); k++) {
+            final int sampleIndex = engine.getSomaticSampleIndex(k);
+            for (int genotypeIndex = 0; genotypeIndex < sampleCounts[sampleIndex].getGenotypeMaxIndex(); genotypeIndex++) {
+                if (engine.isCandidate(k, genotypeIndex)) {
                     output += "genotype " + sampleCounts[sampleIndex].baseString(genotypeIndex) + " is candidate somatic.\n";
                 }
-                genotypeIndex++;
             }
-            sampleIndex++;
-
         }
         return output;
     }
 
     public void estimateSomaticFrequencies(SampleCountInfo[] sampleCounts) {
-        // force recalculation of the isSomaticCandidate arrays:
+        // force recalculation of the somatic candidates:
         isPossibleSomaticVariation(sampleCounts);
+        writeSomaticFrequencies(sampleCounts);
+    }
 
-        for (int sampleIndex : somaticSampleIndices) {
-
-            SampleCountInfo somaticCounts = sampleCounts[sampleIndex];
-
-            float somaticFrequency = 0;
-            for (int genotypeIndex = 0; genotypeIndex < somaticCounts.getGenotypeMaxIndex(); ++genotypeIndex) {
-                if (isSomaticCandidate[sampleIndex][genotypeIndex]) {
-                    somaticFrequency = Math.max(somaticCounts.frequency(genotypeIndex), somaticFrequency);
-                }
-            }
-            if (!isSomaticCandidate()) {
-                somaticFrequency = 0;
-            }
-            statsWriter.setInfo(candidateFrequencyIndex[sampleIndex], somaticFrequency * 100);
+    /**
+     * Write the somatic frequencies of the candidates determined at the last site evaluated.
+     */
+    private void writeSomaticFrequencies(SampleCountInfo[] sampleCounts) {
+        final SomaticCallingEngine engine = engine();
+        for (int k = 0; k < engine.getNumSomaticSamples(); k++) {
+            final float somaticFrequency = engine.somaticFrequency(sampleCounts, k);
+            statsWriter.setInfo(candidateFrequencyIndex[engine.getSomaticSampleIndex(k)], somaticFrequency * 100);
         }
-
     }
 
     private double max(DoubleArrayList pValues) {
@@ -643,9 +458,6 @@ public class SomaticVariationOutputFormat implements SequenceVariationOutputForm
         return max;
     }
 
-    boolean isSomaticCandidate[][];
-    boolean isStrictSomaticCandidate[][];
-
     private boolean checkCounts(SampleCountInfo aCounts, SampleCountInfo bCounts, int genotypeIndex) {
 
         boolean ok = true;
@@ -665,21 +477,11 @@ public class SomaticVariationOutputFormat implements SequenceVariationOutputForm
     }
 
     public boolean isSomaticCandidate() {
-        for (boolean[] someGenotypeIsSomatic : isSomaticCandidate) {
-            for (boolean candidate : someGenotypeIsSomatic) {
-                if (candidate) return true;
-            }
-        }
-        return false;
+        return engine().hasCandidate();
     }
 
     public boolean isStrictSomaticCandidate() {
-        for (boolean[] someGenotypeIsSomatic : isStrictSomaticCandidate) {
-            for (boolean candidate : someGenotypeIsSomatic) {
-                if (candidate) return true;
-            }
-        }
-        return false;
+        return engine().hasStrictCandidate();
     }
 
     public void setCandidateFrequencyIndex(int[] candidateFrequencyIndex) {
@@ -53,11 +53,12 @@ public class StrandBiasFilter extends GenotypeFilter {
         resetCounters();
         initStorage(sampleCounts.length);
 
-        for (PositionBaseInfo positionBaseInfo : list) {
+        final int size = list.size();
+        for (int index = 0; index < size; index++) {
 
             numScreened++;
-            final int sampleIndex = positionBaseInfo.readerIndex;
-            char base = positionBaseInfo.matchesReference ? positionBaseInfo.from : positionBaseInfo.to;
+            final int sampleIndex = list.getReaderIndex(index);
+            char base = list.getGenotypeBase(index);
 
             final SampleCountInfo sampleCountInfo = sampleCounts[sampleIndex];
 
@@ -66,12 +67,12 @@ public class StrandBiasFilter extends GenotypeFilter {
             final int countForward = sampleCountInfo.getGenotypeCount(baseIndex, true);
             final int countReverse = sampleCountInfo.getGenotypeCount(baseIndex, false);
 
-            remove[baseIndex][positionBaseInfo.readerIndex] |= (countForward + countReverse) >= (jPlusOne);
-            if (remove[baseIndex][positionBaseInfo.readerIndex] && (countForward == 0 || countReverse == 0)) {
+            remove[baseIndex][sampleIndex] |= (countForward + countReverse) >= (jPlusOne);
+            if (remove[baseIndex][sampleIndex] && (countForward == 0 || countReverse == 0)) {
 
                 // the variation is not represented on one of the strands, filter
-                sampleCountInfo.suggestRemovingGenotype(baseIndex, positionBaseInfo.matchesForwardStrand);
-                removeGenotype(positionBaseInfo, filteredSet);
+                sampleCountInfo.suggestRemovingGenotype(baseIndex, list.isMatchingForwardStrand(index));
+                removeGenotype(list.get(index), filteredSet);
             }
         }
         filterIndels(list, sampleCounts);
@@ -79,6 +80,39 @@ public class StrandBiasFilter extends GenotypeFilter {
         adjustRefVarCounts(sampleCounts);
     }
 
+    @Override
+    public void filterGenotypes(final GenotypeTally tally, final DiscoverVariantPositionData list,
+                                final SampleCountInfo[] sampleCounts) {
+        resetCounters();
+        initStorage(sampleCounts.length);
+        final int[] cells = tally.getCells();
+        final int numCells = tally.getNumCells();
+        for (int i = 0; i < numCells; i++) {
+            final int cell = cells[i];
+            numScreened += tally.getCount(cell);
+            if (GenotypeTally.isIndel(cell)) {
+                continue;
+            }
+            final int sampleIndex = GenotypeTally.getSampleIndex(cell);
+            final SampleCountInfo sampleCountInfo = sampleCounts[sampleIndex];
+            final int baseIndex = tally.getGenotypeIndex(cell);
+            final int countForward = sampleCountInfo.getGenotypeCount(baseIndex, true);
+            final int countReverse = sampleCountInfo.getGenotypeCount(baseIndex, false);
+            remove[baseIndex][sampleIndex] |= (countForward + countReverse) >= (jPlusOne);
+            if (remove[baseIndex][sampleIndex] && (countForward == 0 || countReverse == 0)) {
+                // the variation is not represented on one of the strands, filter
+                removeGenotype(tally, cell, tally.getCount(cell), sampleCounts);
+            }
+        }
+        filterIndels(list, sampleCounts);
+        adjustRefVarCounts(sampleCounts);
+    }
+
+    @Override
+    public boolean supportsTally() {
+        return true;
+    }
+
     @Override
     public int getThresholdForSample(int sampleIndex) {
         return 0;
@@ -36,4 +36,13 @@ public class NoOpPermutationReader implements PermutationReaderInterface {
     public final int getQueryIndex(final int i) throws IOException {
         return i;
     }
+
+    /**
+     * This class always return the values provided as argument.
+     */
+    @Override
+    public final void getQueryIndices(final int[] smallIndices, final int[] queryIndices, final int length)
+            throws IOException {
+        System.arraycopy(smallIndices, 0, queryIndices, 0, length);
+    }
 }
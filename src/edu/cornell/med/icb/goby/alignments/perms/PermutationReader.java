@@ -19,59 +19,73 @@
 package edu.cornell.med.icb.goby.alignments.perms;
 
 import edu.cornell.med.icb.goby.alignments.AlignmentReaderImpl;
+import it.unimi.dsi.fastutil.ints.Int2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrays;
 import it.unimi.dsi.fastutil.io.FastBufferedInputStream;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import java.io.*;
-import java.util.Arrays;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Collections;
 import java.util.Comparator;
 
 /**
  * Reads permutations associated with Goby alignments. Permutations store the mapping between small query indices
  * and large query indices (rank of the read in the original read file).
+ * <p/>
+ * The permutation file is a sequence of blocks of consecutive small indices. Lookups locate the block that contains
+ * a small index (the block of the previous lookup is tried first), then read the query indices of the whole block
+ * in one operation. Decoded blocks are kept in a least recently used cache, so that lookups with some locality
+ * (e.g., the small indices of a chunk of sorted entries) do not access the file. Use
+ * {@link #getQueryIndices(int[], int[], int)} to resolve many small indices in one call.
  *
  * @author Fabien Campagne
  *         Date: 3/9/12
  *         Time: 2:52 PM
  * @see PermutationWriter
  */
-public class PermutationReader implements PermutationReaderInterface {
+public class PermutationReader implements PermutationReaderInterface, Closeable {
     /**
      * Used to log debug and informational messages.
      */
     private static final Log LOG = LogFactory.getLog(PermutationWriter.class);
 
-    private FastBufferedInputStream input;
+    /**
+     * Maximum number of query indices kept in the block cache (16MB).
+     */
+    private static final int MAX_CACHED_INDICES = 1 << 22;
+
     private String basename;
     private static final Comparator<? super Block> SMALL_INDEX_COMPARATOR = new CompareSmallIndex();
-    private DataInputStream dataInput;
+    private FileChannel channel;
 
     public PermutationReader(String basename) throws IOException {
         this.basename = AlignmentReaderImpl.getBasename(basename);
-        FastBufferedInputStream inputStream = null;
         final String filename = basename + ".perm";
 
         try {
-
-            inputStream = new FastBufferedInputStream(new FileInputStream(filename));
-            dataInput = new DataInputStream(inputStream);
-            input = inputStream;
-            makeIndex(inputStream);
+            channel = new RandomAccessFile(filename, "r").getChannel();
+            makeIndex();
         } catch (FileNotFoundException e) {
             final String error = String.format("A permutation file called %s could not be found, but is required to reconstruct original query indices to complete this task.",
                     filename);
             LOG.error(error, e);
-            inputStream = null;
-            assert inputStream!=null:error;
+            assert channel != null : error;
         }
 
     }
 
-    private void makeIndex(FastBufferedInputStream inputStream) throws IOException {
-        input.position(0);
+    private void makeIndex() throws IOException {
         final ObjectArrayList<Block> blocks = new ObjectArrayList<Block>();
 
         final DataInputStream dataInput = new DataInputStream(new FastBufferedInputStream(new FileInputStream(basename + ".perm")));
@@ -89,17 +103,35 @@ public class PermutationReader implements PermutationReaderInterface {
                 offset += block.n * 4L + 8L;
             }
             Collections.sort(blocks, SMALL_INDEX_COMPARATOR);
-            indexBlocks = blocks.toArray(new Block[blocks.size()]);
         } finally {
             dataInput.close();
         }
+        final int numBlocks = blocks.size();
+        blockFirstSmallIndex = new int[numBlocks];
+        blockLength = new int[numBlocks];
+        blockOffset = new long[numBlocks];
+        for (int i = 0; i < numBlocks; i++) {
+            final Block block = blocks.get(i);
+            blockFirstSmallIndex[i] = block.firstSmallIndex;
+            blockLength[i] = block.n;
+            blockOffset[i] = block.offset;
+        }
     }
 
-    // these fields implement an index into the disk permutation data structure
+    // these fields implement an index into the disk permutation data structure, sorted by first small index:
 
-    private Block[] indexBlocks;
-    // used to search indexedBlocks for a block that contains a small index:
-    private Block singletonQuery = new Block();
+    private int[] blockFirstSmallIndex;
+    private int[] blockLength;
+    private long[] blockOffset;
+
+    /**
+     * Query indices of the blocks most recently used, in order of use.
+     */
+    private final Int2ObjectLinkedOpenHashMap<int[]> blockCache = new Int2ObjectLinkedOpenHashMap<int[]>();
+    private int numCachedIndices;
+    private int lastBlock = -1;
+    private int[] lastQueryIndices;
+    private ByteBuffer buffer = ByteBuffer.allocate(0);
 
     static class Block {
         // the first small index in the block
@@ -120,39 +152,94 @@ public class PermutationReader implements PermutationReaderInterface {
      * @throws IOException
      */
     @Override
-    public int getQueryIndex(int smallIndex) throws IOException {
-        //   Util.invertPermutation()
-        singletonQuery.firstSmallIndex = smallIndex;
-        final int ip = Arrays.binarySearch(indexBlocks, singletonQuery, SMALL_INDEX_COMPARATOR);
-        final Block block;
-        if (ip >= 0) {
-            block = indexBlocks[ip];
-            seek(block.offset + 4);
-            final int first = dataInput.readInt();
-            assert first == smallIndex : "assertion failed at smallIndex=" + smallIndex;
-            final int queryIndex = dataInput.readInt();
-            return queryIndex;
-        } else {
-            final int index = -(ip + 1);
-            final int off = index - 1;
-            if (off < 0) {
-                return -1;
-            }
-            block = indexBlocks[off];
-            final int soffset = smallIndex - block.firstSmallIndex;
-            if (soffset < 0 || block.firstSmallIndex + block.n < smallIndex) {
-                // not in the block
-                return -1;
+    public int getQueryIndex(final int smallIndex) throws IOException {
+        final int block = findBlock(smallIndex);
+        if (block == -1) {
+            return -1;
+        }
+        return queryIndices(block)[smallIndex - blockFirstSmallIndex[block]];
+    }
+
+    @Override
+    public void getQueryIndices(final int[] smallIndices, final int[] queryIndices, final int length)
+            throws IOException {
+        for (int i = 0; i < length; i++) {
+            queryIndices[i] = getQueryIndex(smallIndices[i]);
+        }
+    }
+
+    /**
+     * Return the index of the block that contains smallIndex, or -1 when no block contains it.
+     */
+    private int findBlock(final int smallIndex) {
+        if (lastBlock != -1 && inBlock(lastBlock, smallIndex)) {
+            return lastBlock;
+        }
+        final int ip = IntArrays.binarySearch(blockFirstSmallIndex, smallIndex);
+        final int block = ip >= 0 ? ip : -(ip + 1) - 1;
+        if (block < 0 || !inBlock(block, smallIndex)) {
+            // not in any block
+            return -1;
+        }
+        return block;
+    }
+
+    private boolean inBlock(final int block, final int smallIndex) {
+        final int offset = smallIndex - blockFirstSmallIndex[block];
+        return offset >= 0 && offset < blockLength[block];
+    }
+
+    /**
+     * Return the query indices of a block, reading them from disk if the block is not cached.
+     */
+    private int[] queryIndices(final int block) throws IOException {
+        if (block == lastBlock) {
+            return lastQueryIndices;
+        }
+        int[] result = blockCache.getAndMoveToLast(block);
+        if (result == null) {
+            result = readBlock(block);
+            blockCache.put(block, result);
+            numCachedIndices += result.length;
+            while (numCachedIndices > MAX_CACHED_INDICES && blockCache.size() > 1) {
+                numCachedIndices -= blockCache.removeFirst().length;
             }
-            seek(block.offset + 8 + soffset * 4L);
-            final int queryIndex = dataInput.readInt();
-            return queryIndex;
         }
+        lastBlock = block;
+        lastQueryIndices = result;
+        return result;
+    }
 
+    private int[] readBlock(final int block) throws IOException {
+        final int n = blockLength[block];
+        if (buffer.capacity() < n * 4) {
+            buffer = ByteBuffer.allocate(n * 4);
+        }
+        buffer.clear();
+        buffer.limit(n * 4);
+        // skip n and the first small index:
+        long position = blockOffset[block] + 8;
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Permutation file is truncated: " + basename + ".perm");
+            }
+            position += read;
+        }
+        buffer.flip();
+        final int[] result = new int[n];
+        buffer.asIntBuffer().get(result);
+        return result;
     }
 
-    private void seek(long offset) throws IOException {
-        input.position(offset);
+    /**
+     * Close the permutation file.
+     */
+    public void close() {
+        IOUtils.closeQuietly(channel);
+        blockCache.clear();
+        lastBlock = -1;
+        lastQueryIndices = null;
     }
 
     private static class CompareSmallIndex implements Comparator<Block> {
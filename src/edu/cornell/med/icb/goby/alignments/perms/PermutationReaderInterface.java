@@ -34,4 +34,15 @@ public interface PermutationReaderInterface {
      * @throws java.io.IOException
      */
     int getQueryIndex(int smallIndex) throws IOException;
+
+    /**
+     * Return the query indices associated with a batch of small indices, or -1 for small indices whose
+     * association was not defined. Small indices that are close to each other are resolved faster.
+     *
+     * @param smallIndices small indices to resolve.
+     * @param queryIndices where the query indices are stored, in the order of smallIndices.
+     * @param length       number of small indices to resolve.
+     * @throws java.io.IOException
+     */
+    void getQueryIndices(int[] smallIndices, int[] queryIndices, int length) throws IOException;
 }
@@ -22,15 +22,19 @@ import edu.cornell.med.icb.goby.alignments.AlignmentReaderImpl;
 import edu.cornell.med.icb.goby.alignments.Alignments;
 import edu.cornell.med.icb.goby.util.dynoptions.DynamicOptionClient;
 import edu.cornell.med.icb.goby.util.dynoptions.RegisterThis;
-import it.unimi.dsi.fastutil.ints.*;
+import it.unimi.dsi.fastutil.ints.Int2IntLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.BitSet;
 
 /**
- * Builds a permutation of query indices to small values.
+ * Builds a permutation of query indices to small values. Query indices that are expected to be requested again
+ * are kept in a {@link SpillingLong2LongMap}, which writes them to temporary files when there are too many
+ * to keep in memory.
  *
  * @author Fabien Campagne
  *         Date: 3/5/12
@@ -47,7 +51,9 @@ public class QueryIndexPermutation implements QueryIndexPermutationInterface {
                     " to point backwards. This can help process some incorrect BAM files where pair-links" +
                     " incorrectly map the mate on the same reference, when it appears on a different chromosome  with " +
                     " a position earlier than the primary read. Please note that this option can consume large amounts of " +
-                    " memory and should be used only for problematic BAM input files:false"
+                    " memory and should be used only for problematic BAM input files:false",
+            "max-in-memory:integer, maximum number of pending query indices kept in memory. Pending indices in excess are written to temporary files:5000000",
+            "tmp-dir:string, directory where pending query indices are written when they do not fit in memory. Defaults to the system temporary directory:"
     );
     private int smallestIndex = Integer.MAX_VALUE;
     private int biggestSmallIndex = Integer.MIN_VALUE;
@@ -67,9 +73,7 @@ public class QueryIndexPermutation implements QueryIndexPermutationInterface {
         smallestIndex = Integer.MAX_VALUE;
         biggestSmallIndex = Integer.MIN_VALUE;
         smallIndexCounter = 0;
-        queryIndexPermutation.clear();
-        queryIndexPermutation.defaultReturnValue(-1);
-        timesRequested.defaultReturnValue((byte) 1);
+        pending.clear();
         if (permutationWriter != null) {
             permutationWriter.close();
         }
@@ -79,6 +83,17 @@ public class QueryIndexPermutation implements QueryIndexPermutationInterface {
 
     public QueryIndexPermutation(String filename) {
         this.basename = AlignmentReaderImpl.getBasename(filename);
+        final String tmpDir = doc().getString("tmp-dir");
+        final File directory = new File(tmpDir == null || tmpDir.length() == 0
+                ? System.getProperty("java.io.tmpdir") : tmpDir);
+        try {
+            // reserve a unique name, so that concurrent permutations never share run files:
+            pendingPrefix = File.createTempFile(new File(basename).getName() + "-pending-perm-", "", directory);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to create a temporary file in " + directory, e);
+        }
+        pendingPrefix.deleteOnExit();
+        pending = new SpillingLong2LongMap(directory, pendingPrefix.getName(), doc().getInteger("max-in-memory"));
         reset();
 
     }
@@ -119,7 +134,7 @@ public class QueryIndexPermutation implements QueryIndexPermutationInterface {
         } else {
             // all entries have at least one occurrence across the genome (this is why they are in the entries file):
             final int queryIndex = entry.getQueryIndex();
-            int queryIndexOccurrences = timesRequested.get(queryIndex) + 1;
+            int queryIndexOccurrences = timesRequested(pending.get(queryIndex)) + 1;
             // entries with a paired entry in the future get a +1
             queryIndexOccurrences += entry.hasPairAlignmentLink() && (isForward(entry, entry.getPairAlignmentLink()) || isSafeMode) ? 1 : 0;
             // entries with a spliced link forward get +1
@@ -196,17 +211,22 @@ public class QueryIndexPermutation implements QueryIndexPermutationInterface {
      * @return
      */
     public int internalDoPerm(final int queryIndex, final int maxQueryIndexOccurrence) {
-        final int smallIndex = queryIndexPermutation.get(queryIndex);
-        final byte timesSeen = (byte) (timesRequested.get(queryIndex) + 1);
+        final long value = pending.get(queryIndex);
+        if (value == SpillingLong2LongMap.ABSENT) {
+            // the query index was requested more times than expected:
+            return -1;
+        }
+        final int smallIndex = smallIndex(value);
+        final byte timesSeen = (byte) (timesRequested(value) + 1);
         // decide if we have reached max observations for this query index:
         if (timesSeen >= maxQueryIndexOccurrence) {
             // if yes, remove the index from the map, it will not be asked again.
-            queryIndexPermutation.remove(queryIndex);
+            pending.remove(queryIndex);
 
             pushToPreStorage(queryIndex, smallIndex);
         } else {
             // if not, keep it in the map until requested that many times.
-            timesRequested.put(queryIndex, timesSeen);
+            pending.put(queryIndex, pack(smallIndex, timesSeen));
         }
         queryIndicesAlreadySeen.set(queryIndex);
         return smallIndex;
@@ -224,9 +244,31 @@ public class QueryIndexPermutation implements QueryIndexPermutationInterface {
     }
 
     private int smallIndexCounter = 0;
-    private final Int2IntMap queryIndexPermutation = new Int2IntOpenHashMap();
+    /**
+     * Query indices that were seen fewer times than expected, associated with their small index and the number
+     * of times they were seen, see {@link #pack(int, byte)}.
+     */
+    private final SpillingLong2LongMap pending;
+    /**
+     * Empty temporary file that reserves the name used as prefix of the run files of {@link #pending}.
+     */
+    private final File pendingPrefix;
     private final BitSet queryIndicesAlreadySeen = new BitSet();
-    private final Int2ByteMap timesRequested = new Int2ByteOpenHashMap();
+
+    private static long pack(final int smallIndex, final byte timesRequested) {
+        return ((long) smallIndex << 8) | (timesRequested & 0xFF);
+    }
+
+    private static int smallIndex(final long value) {
+        return (int) (value >>> 8);
+    }
+
+    /**
+     * Return the number of times a pending query index was requested, or 1 when the index is not pending.
+     */
+    private static byte timesRequested(final long value) {
+        return value == SpillingLong2LongMap.ABSENT ? 1 : (byte) value;
+    }
 
     private int getSmallIndex(final int queryIndex, final int maxObservations) {
         if (!queryIndicesAlreadySeen.get(queryIndex)) {
@@ -240,8 +282,7 @@ public class QueryIndexPermutation implements QueryIndexPermutationInterface {
             queryIndicesAlreadySeen.set(queryIndex, true);
             if (maxObservations > 1) {
 
-                queryIndexPermutation.put(queryIndex, smallIndex);
-                timesRequested.put(queryIndex, (byte) 1);
+                pending.put(queryIndex, pack(smallIndex, (byte) 1));
             } else {
                 // if maxObs<=1 we don't need to remember the queryIndex in memory
                 pushToPreStorage(queryIndex, smallIndex);
@@ -280,12 +321,19 @@ public class QueryIndexPermutation implements QueryIndexPermutationInterface {
     public void close() {
         if (!closed) {
             // move everything left to pre-offline state:
-            for (final int queryIndex : queryIndexPermutation.keySet()) {
-
-                moveIndexToPreOffline(queryIndex, queryIndexPermutation.get(queryIndex));
+            try {
+                pending.visitAll(new SpillingLong2LongMap.EntryVisitor() {
+                    public void visit(final long queryIndex, final long value) {
+                        pushToPreStorage((int) queryIndex, smallIndex(value));
+                    }
+                });
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to read pending query indices.", e);
+            }
+            pending.close();
+            if (!pendingPrefix.delete()) {
+                LOG.warn("Could not delete temporary file " + pendingPrefix);
             }
-
-            queryIndexPermutation.clear();
             // now save it:
             save();
             permutationWriter.close();
@@ -300,7 +348,7 @@ public class QueryIndexPermutation implements QueryIndexPermutationInterface {
      * @return
      */
     public boolean isInMap(int queryIndex) {
-        return queryIndexPermutation.containsKey(queryIndex);
+        return pending.get(queryIndex) != SpillingLong2LongMap.ABSENT;
     }
 
     private void save() {
@@ -19,18 +19,27 @@
 package edu.cornell.med.icb.goby.alignments.perms;
 
 import edu.cornell.med.icb.goby.alignments.AlignmentReaderImpl;
-import it.unimi.dsi.fastutil.objects.Object2ByteMap;
-import it.unimi.dsi.fastutil.objects.Object2ByteOpenHashMap;
-import it.unimi.dsi.fastutil.objects.Object2IntAVLTreeMap;
-import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import edu.cornell.med.icb.goby.util.dynoptions.DynamicOptionClient;
+import edu.cornell.med.icb.goby.util.dynoptions.RegisterThis;
+import it.unimi.dsi.fastutil.HashCommon;
+import it.unimi.dsi.fastutil.objects.Object2LongMap;
+import it.unimi.dsi.fastutil.objects.Object2LongOpenHashMap;
 import it.unimi.dsi.lang.MutableString;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import java.io.File;
+
 /**
  * A class to convert read names to query indices. Provides logic to keep a read name to index association
  * for as long as needed, but no longer (to reduce memory consumption). Used when converting SAM/BAM to Goby
  * alignments.
+ * <p/>
+ * Read names are not stored. Each name is reduced to a 64-bit fingerprint, which is associated with the query
+ * index, the number of times the name was requested and a few check bits from an independent hash. Pending
+ * associations are kept in a {@link SpillingLong2LongMap}, so that at most max-in-memory associations are held
+ * in memory and the rest is spilled to sorted run files. The check bits detect the rare case where two names
+ * pending at the same time share a fingerprint; the second name is then kept by name in a small side map.
  *
  * @author Fabien Campagne
  *         Date: 3/5/12
@@ -42,68 +51,153 @@ public class ReadNameToIndex {
      */
     private static final Log LOG = LogFactory.getLog(ReadNameToIndex.class);
 
+    @RegisterThis
+    public static final DynamicOptionClient doc = new DynamicOptionClient(ReadNameToIndex.class,
+            "max-in-memory:integer, maximum number of pending read names kept in memory. Pending names in excess are written to temporary files:5000000",
+            "tmp-dir:string, directory where pending read names are written when they do not fit in memory. Defaults to the system temporary directory:"
+    );
+
+    public static DynamicOptionClient doc() {
+        return doc;
+    }
+
+    private static final int COUNT_BITS = 16;
+    private static final int CHECK_BITS = 15;
+    private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+    private static final long CHECK_MASK = (1L << CHECK_BITS) - 1;
+
     private final String basename;
     private int globalQueryMaxOccurences = 2;
+    private final SpillingLong2LongMap pending;
+    /**
+     * Names whose fingerprint was in use by another pending name when they were first requested.
+     */
+    private final Object2LongMap<MutableString> collisions = new Object2LongOpenHashMap<MutableString>();
+    private long fingerprint;
+    private long check;
 
+    public ReadNameToIndex(final String filename) {
+        this(filename, doc().getInteger("max-in-memory"));
+    }
 
-    public ReadNameToIndex(String filename) {
+    /**
+     * Create a read name to index converter.
+     *
+     * @param filename    name of the alignment being written. Used to name temporary files.
+     * @param maxInMemory maximum number of pending read names kept in memory.
+     */
+    public ReadNameToIndex(final String filename, final int maxInMemory) {
         this.basename = AlignmentReaderImpl.getBasename(filename);
+        final String tmpDir = doc().getString("tmp-dir");
+        final File directory = new File(tmpDir == null || tmpDir.length() == 0
+                ? System.getProperty("java.io.tmpdir") : tmpDir);
+        pending = new SpillingLong2LongMap(directory,
+                String.format("%s-%d-read-names", new File(basename).getName(), System.nanoTime()), maxInMemory);
         reset();
-
     }
 
     private void reset() {
-        namesToIndex.clear();
-        namesToIndex.defaultReturnValue(-1);
-        timesRequested.clear();
-        timesRequested.defaultReturnValue((byte)0);
+        pending.clear();
+        collisions.clear();
+        collisions.defaultReturnValue(SpillingLong2LongMap.ABSENT);
+    }
+
+    private int smallIndexCounter;
+
+    /**
+     * Compute the fingerprint and check bits of a read name.
+     */
+    private void hash(final CharSequence readName) {
+        long h1 = 0xCBF29CE484222325L;
+        long h2 = 0x84222325CBF29CE4L;
+        final int length = readName.length();
+        for (int i = 0; i < length; i++) {
+            final char c = readName.charAt(i);
+            h1 = (h1 ^ c) * 0x100000001B3L;
+            h2 = (h2 + c) * 0x9E3779B97F4A7C15L;
+        }
+        fingerprint = HashCommon.murmurHash3(h1 ^ length);
+        check = HashCommon.murmurHash3(h2) & CHECK_MASK;
     }
 
-    private void pushToPreStorage(MutableString readName, int queryIndex) {
-        //TODO write to some file.
- //       System.out.printf("%d\t%s%n",  queryIndex,readName);
+    private static long pack(final int queryIndex, final int timesRequested, final long check) {
+        return ((long) queryIndex << (COUNT_BITS + CHECK_BITS)) | (check << COUNT_BITS)
+                | Math.min(timesRequested, COUNT_MASK);
     }
 
-    private int smallIndexCounter;
-    private final Object2ByteMap<MutableString> timesRequested = new Object2ByteOpenHashMap<MutableString>();
-    private final Object2IntMap<MutableString> namesToIndex = new Object2IntAVLTreeMap<MutableString>();
+    private static int queryIndex(final long value) {
+        return (int) (value >>> (COUNT_BITS + CHECK_BITS));
+    }
+
+    private static int timesRequested(final long value) {
+        return (int) (value & COUNT_MASK);
+    }
+
+    private static long check(final long value) {
+        return (value >>> COUNT_BITS) & CHECK_MASK;
+    }
 
     public int getQueryIndex(final String readName, final int maxObservations) {
-        final MutableString readNameMutable = new MutableString(readName).compact();
-        final int timesRequestedInt = timesRequested.getByte(readNameMutable);
+        hash(readName);
+        MutableString collidingName = null;
+        long value = SpillingLong2LongMap.ABSENT;
+        if (!collisions.isEmpty()) {
+            collidingName = new MutableString(readName).compact();
+            value = collisions.getLong(collidingName);
+            if (value == SpillingLong2LongMap.ABSENT) {
+                collidingName = null;
+            }
+        }
+        if (collidingName == null) {
+            value = pending.get(fingerprint);
+            if (value != SpillingLong2LongMap.ABSENT && check(value) != check) {
+                // another pending read name has the same fingerprint:
+                collidingName = new MutableString(readName).compact();
+                value = SpillingLong2LongMap.ABSENT;
+            }
+        }
+        final int timesRequestedInt = value == SpillingLong2LongMap.ABSENT ? 0 : timesRequested(value);
         final int queryIndex;
         if (timesRequestedInt == 0) {
             queryIndex = smallIndexCounter++;
-            if (maxObservations > 1) {
-                namesToIndex.put(readNameMutable, queryIndex);
-            }
         } else {
-            queryIndex = namesToIndex.getInt(readNameMutable);
+            queryIndex = queryIndex(value);
         }
         final int timesSeen = timesRequestedInt + 1;
         // decide if we have reached max observations for this query index:
         if (timesSeen >= maxObservations) {
-            // if yes, remove the index from the map, it will not be asked again.
-            namesToIndex.remove(readNameMutable);
-            timesRequested.remove(readNameMutable);
-            pushToPreStorage(readNameMutable, queryIndex);
+            // if yes, forget the read name, it will not be asked again.
+            if (timesRequestedInt != 0) {
+                if (collidingName != null) {
+                    collisions.removeLong(collidingName);
+                } else {
+                    pending.remove(fingerprint);
+                }
+            }
         } else {
-            // if not, keep it in the map until requested that many times.
-            if (maxObservations > 1) {
-                timesRequested.put(readNameMutable, (byte)timesSeen);
+            // if not, keep it until requested that many times.
+            final long packed = pack(queryIndex, timesSeen, check);
+            if (collidingName != null) {
+                collisions.put(collidingName, packed);
+            } else {
+                pending.put(fingerprint, packed);
             }
         }
         return queryIndex;
-
     }
 
 
-    public void setPruneLimit(byte limit) {
+    public void setPruneLimit(final byte limit) {
         globalQueryMaxOccurences = limit;
     }
 
 
     public void close() {
-        // TODO close output writer.
+        if (pending.getNumRuns() > 0 || LOG.isDebugEnabled()) {
+            LOG.info(String.format("Read names still pending at close: %d in memory, %d spilled runs",
+                    pending.sizeInMemory(), pending.getNumRuns()));
+        }
+        pending.close();
+        collisions.clear();
     }
 }
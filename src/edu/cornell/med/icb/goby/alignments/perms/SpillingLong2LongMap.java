@@ -0,0 +1,502 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.alignments.perms;
+
+import it.unimi.dsi.fastutil.HashCommon;
+import it.unimi.dsi.fastutil.io.FastBufferedInputStream;
+import it.unimi.dsi.fastutil.io.FastBufferedOutputStream;
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrays;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A map from long keys to non-negative long values that keeps at most a fixed number of entries in memory.
+ * When the in-memory table is full, its entries are sorted by key and written to a run file on disk. Each run
+ * is summarized in memory by a Bloom filter and by the first key of every block of entries, so that looking
+ * up a key that is not in memory costs at most one block read per run that may contain the key. Removing a key
+ * that may be stored in a run records a tombstone in memory. Runs are merged when there are too many of them.
+ * <p/>
+ * This class is used to remember associations that are pending (e.g., read names seen fewer times than
+ * expected) when there are too many of them to keep in memory. It is not thread safe.
+ *
+ * @author Fabien Campagne
+ *         Date: Oct 19, 2012
+ */
+public class SpillingLong2LongMap implements Closeable {
+    /**
+     * Used to log informational and debug messages.
+     */
+    private static final Log LOG = LogFactory.getLog(SpillingLong2LongMap.class);
+
+    /**
+     * Value returned when a key is not in the map.
+     */
+    public static final long ABSENT = -1L;
+    private static final long TOMBSTONE = -2L;
+
+    /**
+     * Number of entries in a block of a run file. Lookups read one block.
+     */
+    private static final int BLOCK_SIZE = 256;
+    private static final int ENTRY_BYTES = 16;
+    /**
+     * Runs are merged into one when there are more than this number of runs.
+     */
+    private static final int MAX_RUNS = 8;
+    private static final int BLOOM_BITS_PER_ENTRY = 10;
+    private static final int BLOOM_NUM_HASHES = 7;
+
+    private final File directory;
+    private final String prefix;
+    private final int maxInMemory;
+    private final Long2LongOpenHashMap memory = new Long2LongOpenHashMap();
+    private final ObjectArrayList<Run> runs = new ObjectArrayList<Run>();
+    private int runCounter;
+    private final ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE * ENTRY_BYTES);
+
+    /**
+     * Callback for {@link SpillingLong2LongMap#visitAll}.
+     */
+    public interface EntryVisitor {
+        void visit(long key, long value);
+    }
+
+    /**
+     * Create a map.
+     *
+     * @param directory   directory where run files are written.
+     * @param prefix      prefix of the run file names.
+     * @param maxInMemory maximum number of entries (and tombstones) kept in memory.
+     */
+    public SpillingLong2LongMap(final File directory, final String prefix, final int maxInMemory) {
+        super();
+        this.directory = directory;
+        this.prefix = prefix;
+        this.maxInMemory = Math.max(1, maxInMemory);
+        memory.defaultReturnValue(ABSENT);
+    }
+
+    /**
+     * Get the value associated with a key.
+     *
+     * @param key the key.
+     * @return the value, or {@link #ABSENT}.
+     */
+    public long get(final long key) {
+        final long value = memory.get(key);
+        if (value != ABSENT) {
+            return value == TOMBSTONE ? ABSENT : value;
+        }
+        for (int i = runs.size() - 1; i >= 0; i--) {
+            final long stored = runs.get(i).get(key);
+            if (stored != ABSENT) {
+                return stored == TOMBSTONE ? ABSENT : stored;
+            }
+        }
+        return ABSENT;
+    }
+
+    /**
+     * Associate a value with a key.
+     *
+     * @param key   the key.
+     * @param value a non-negative value.
+     */
+    public void put(final long key, final long value) {
+        assert value >= 0 : "values must not be negative.";
+        memory.put(key, value);
+        spillIfFull();
+    }
+
+    /**
+     * Remove a key from the map.
+     *
+     * @param key the key.
+     */
+    public void remove(final long key) {
+        for (final Run run : runs) {
+            if (run.mayContain(key)) {
+                memory.put(key, TOMBSTONE);
+                spillIfFull();
+                return;
+            }
+        }
+        memory.remove(key);
+    }
+
+    /**
+     * Remove all entries and delete the run files.
+     */
+    public void clear() {
+        memory.clear();
+        for (final Run run : runs) {
+            run.delete();
+        }
+        runs.clear();
+    }
+
+    /**
+     * @return the number of entries and tombstones currently held in memory.
+     */
+    public int sizeInMemory() {
+        return memory.size();
+    }
+
+    /**
+     * @return the number of runs written to disk.
+     */
+    public int getNumRuns() {
+        return runs.size();
+    }
+
+    /**
+     * Visit every entry of the map, in increasing key order.
+     *
+     * @param visitor called once per entry.
+     * @throws IOException if a run cannot be read.
+     */
+    public void visitAll(final EntryVisitor visitor) throws IOException {
+        final long[] keys = sortedMemoryKeys();
+        final RunInput[] inputs = new RunInput[runs.size()];
+        try {
+            for (int i = 0; i < inputs.length; i++) {
+                inputs[i] = new RunInput(runs.get(i));
+            }
+            merge(keys, inputs, new EntryVisitor() {
+                public void visit(final long key, final long value) {
+                    if (value != TOMBSTONE) {
+                        visitor.visit(key, value);
+                    }
+                }
+            });
+        } finally {
+            for (final RunInput input : inputs) {
+                if (input != null) {
+                    input.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove all entries and delete the run files.
+     */
+    public void close() {
+        clear();
+    }
+
+    private void spillIfFull() {
+        if (memory.size() < maxInMemory) {
+            return;
+        }
+        try {
+            spill();
+            if (runs.size() > MAX_RUNS) {
+                compact();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to write entries to " + directory, e);
+        }
+    }
+
+    private long[] sortedMemoryKeys() {
+        final long[] keys = new long[memory.size()];
+        final LongIterator iterator = memory.keySet().iterator();
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = iterator.nextLong();
+        }
+        LongArrays.quickSort(keys);
+        return keys;
+    }
+
+    private void spill() throws IOException {
+        final long[] keys = sortedMemoryKeys();
+        final RunOutput output = new RunOutput(keys.length);
+        try {
+            for (final long key : keys) {
+                output.visit(key, memory.get(key));
+            }
+        } finally {
+            output.close();
+        }
+        memory.clear();
+        memory.trim(maxInMemory);
+        runs.add(output.run);
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(String.format("Wrote %d entries to %s", keys.length, output.run.file));
+        }
+    }
+
+    /**
+     * Merge all runs into one. Tombstones are dropped since no older run remains for them to shadow.
+     */
+    private void compact() throws IOException {
+        long numEntries = 0;
+        final RunInput[] inputs = new RunInput[runs.size()];
+        final RunOutput output;
+        try {
+            for (int i = 0; i < inputs.length; i++) {
+                inputs[i] = new RunInput(runs.get(i));
+                numEntries += runs.get(i).numEntries;
+            }
+            output = new RunOutput(numEntries);
+            try {
+                merge(new long[0], inputs, new EntryVisitor() {
+                    public void visit(final long key, final long value) {
+                        if (value != TOMBSTONE) {
+                            output.visit(key, value);
+                        }
+                    }
+                });
+            } finally {
+                output.close();
+            }
+        } finally {
+            for (final RunInput input : inputs) {
+                if (input != null) {
+                    input.close();
+                }
+            }
+        }
+        for (final Run run : runs) {
+            run.delete();
+        }
+        runs.clear();
+        runs.add(output.run);
+        LOG.debug("Merged runs into " + output.run.file);
+    }
+
+    /**
+     * Merge memory keys and runs in key order. When a key occurs in several places, the most recent value
+     * (memory first, then the last run) is reported.
+     */
+    private void merge(final long[] memoryKeys, final RunInput[] inputs, final EntryVisitor visitor)
+            throws IOException {
+        int memoryIndex = 0;
+        while (true) {
+            boolean found = false;
+            long minKey = Long.MAX_VALUE;
+            if (memoryIndex < memoryKeys.length) {
+                minKey = memoryKeys[memoryIndex];
+                found = true;
+            }
+            for (final RunInput input : inputs) {
+                if (input.hasCurrent() && (!found || input.key < minKey)) {
+                    minKey = input.key;
+                    found = true;
+                }
+            }
+            if (!found) {
+                return;
+            }
+            long value = ABSENT;
+            if (memoryIndex < memoryKeys.length && memoryKeys[memoryIndex] == minKey) {
+                value = memory.get(minKey);
+                memoryIndex++;
+            }
+            for (int i = inputs.length - 1; i >= 0; i--) {
+                final RunInput input = inputs[i];
+                if (input.hasCurrent() && input.key == minKey) {
+                    if (value == ABSENT) {
+                        value = input.value;
+                    }
+                    input.advance();
+                }
+            }
+            visitor.visit(minKey, value);
+        }
+    }
+
+    private static long bloomHash(final long key, final int i) {
+        final long h1 = HashCommon.murmurHash3(key);
+        final long h2 = HashCommon.murmurHash3(h1 ^ 0x9E3779B97F4A7C15L) | 1;
+        return (h1 + i * h2) & Long.MAX_VALUE;
+    }
+
+    /**
+     * A sorted run of entries on disk.
+     */
+    private final class Run {
+        private final File file;
+        private long numEntries;
+        private final long[] bloom;
+        private final long numBloomBits;
+        private long[] firstKeys;
+        private FileChannel channel;
+
+        Run(final File file, final long expectedEntries) {
+            this.file = file;
+            final long bits = Math.max(64, expectedEntries * BLOOM_BITS_PER_ENTRY);
+            bloom = new long[(int) Math.min(Integer.MAX_VALUE - 8, (bits + 63) / 64)];
+            numBloomBits = bloom.length * 64L;
+            firstKeys = new long[(int) (expectedEntries / BLOCK_SIZE + 1)];
+        }
+
+        void add(final long key) {
+            for (int i = 0; i < BLOOM_NUM_HASHES; i++) {
+                final long bit = bloomHash(key, i) % numBloomBits;
+                bloom[(int) (bit >>> 6)] |= 1L << bit;
+            }
+            if (numEntries % BLOCK_SIZE == 0) {
+                firstKeys = LongArrays.grow(firstKeys, (int) (numEntries / BLOCK_SIZE + 1));
+                firstKeys[(int) (numEntries / BLOCK_SIZE)] = key;
+            }
+            numEntries++;
+        }
+
+        boolean mayContain(final long key) {
+            for (int i = 0; i < BLOOM_NUM_HASHES; i++) {
+                final long bit = bloomHash(key, i) % numBloomBits;
+                if ((bloom[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        long get(final long key) {
+            if (!mayContain(key)) {
+                return ABSENT;
+            }
+            final int numBlocks = (int) ((numEntries + BLOCK_SIZE - 1) / BLOCK_SIZE);
+            int blockIndex = LongArrays.binarySearch(firstKeys, 0, numBlocks, key);
+            if (blockIndex < 0) {
+                blockIndex = -blockIndex - 2;
+                if (blockIndex < 0) {
+                    return ABSENT;
+                }
+            }
+            final int n = (int) Math.min(BLOCK_SIZE, numEntries - (long) blockIndex * BLOCK_SIZE);
+            try {
+                if (channel == null) {
+                    channel = new RandomAccessFile(file, "r").getChannel();
+                }
+                block.clear();
+                block.limit(n * ENTRY_BYTES);
+                long position = (long) blockIndex * BLOCK_SIZE * ENTRY_BYTES;
+                while (block.hasRemaining()) {
+                    final int read = channel.read(block, position);
+                    if (read < 0) {
+                        throw new EOFException("Run file truncated: " + file);
+                    }
+                    position += read;
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to read entries from " + file, e);
+            }
+            int low = 0;
+            int high = n - 1;
+            while (low <= high) {
+                final int middle = (low + high) >>> 1;
+                final long middleKey = block.getLong(middle * ENTRY_BYTES);
+                if (middleKey < key) {
+                    low = middle + 1;
+                } else if (middleKey > key) {
+                    high = middle - 1;
+                } else {
+                    return block.getLong(middle * ENTRY_BYTES + 8);
+                }
+            }
+            return ABSENT;
+        }
+
+        void delete() {
+            if (channel != null) {
+                IOUtils.closeQuietly(channel);
+                channel = null;
+            }
+            if (!file.delete()) {
+                LOG.warn("Unable to delete " + file);
+            }
+        }
+    }
+
+    private final class RunOutput implements EntryVisitor {
+        private final Run run;
+        private final DataOutputStream output;
+
+        RunOutput(final long expectedEntries) throws IOException {
+            final File file = new File(directory, String.format("%s-%d.run", prefix, runCounter++));
+            file.deleteOnExit();
+            run = new Run(file, expectedEntries);
+            output = new DataOutputStream(new FastBufferedOutputStream(new FileOutputStream(file)));
+        }
+
+        public void visit(final long key, final long value) {
+            try {
+                output.writeLong(key);
+                output.writeLong(value);
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to write entries to " + run.file, e);
+            }
+            run.add(key);
+        }
+
+        void close() throws IOException {
+            output.close();
+        }
+    }
+
+    private static final class RunInput {
+        private final DataInputStream input;
+        private long remaining;
+        private long key;
+        private long value;
+        private boolean hasCurrent;
+
+        RunInput(final Run run) throws IOException {
+            input = new DataInputStream(new FastBufferedInputStream(new FileInputStream(run.file)));
+            remaining = run.numEntries;
+            advance();
+        }
+
+        boolean hasCurrent() {
+            return hasCurrent;
+        }
+
+        void advance() throws IOException {
+            hasCurrent = remaining > 0;
+            if (hasCurrent) {
+                key = input.readLong();
+                value = input.readLong();
+                remaining--;
+            }
+        }
+
+        void close() {
+            IOUtils.closeQuietly(input);
+        }
+    }
+}
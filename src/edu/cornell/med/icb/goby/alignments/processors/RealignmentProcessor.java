@@ -20,7 +20,9 @@ package edu.cornell.med.icb.goby.alignments.processors;
 
 import com.google.protobuf.ByteString;
 import edu.cornell.med.icb.goby.alignments.Alignments;
+import edu.cornell.med.icb.goby.algorithmic.data.UnboundedFifoPool;
 import edu.cornell.med.icb.goby.alignments.ConcatSortedAlignmentReader;
+import edu.cornell.med.icb.goby.exception.GobyRuntimeException;
 import edu.cornell.med.icb.goby.reads.RandomAccessSequenceInterface;
 import edu.cornell.med.icb.goby.util.WarningCounter;
 import it.unimi.dsi.fastutil.ints.IntArrayFIFOQueue;
@@ -31,13 +33,24 @@ import it.unimi.dsi.lang.MutableString;
 import org.apache.log4j.Logger;
 
 import java.io.IOException;
-import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Support to realign reads on the fly in the proximity of indels. This implementation starts randomly filtering out alignments
  * from the source if more than 500,000 entries make it into the sliding realignment window. The more alignments are added
  * past the threshold the more difficult it become to add new ones. This strategy helps consuming all memory in the realignment
  * step working with alignments that have artefactual peaks of very high coverage.
+ * <p/>
+ * The window of entries and indels is maintained on the thread that reads the entries. Entries that overlap an
+ * indel of the window are realigned against a copy of the reference bases around the entry, either on the reading
+ * thread, or on a pool of threads when setNumThreads is called with a positive number. With a pool, entries are read
+ * ahead of the caller and returned in the order they were read, so that the result does not depend on the number of
+ * threads. Entries are then read with the targetIndex and position of the call that reads ahead.
  *
  * @author Fabien Campagne
  *         Date: Apr 30, 2011
@@ -71,6 +84,21 @@ public class RealignmentProcessor implements AlignmentProcessorInterface {
      */
     private IntArrayFIFOQueue activeTargetIndices = new IntArrayFIFOQueue();
     private WarningCounter genomeNull = new WarningCounter(2);
+    /**
+     * Number of reference bases copied to a reference window beyond those needed by the entry it is created for, so
+     * that the entries that follow can be realigned against the same window.
+     */
+    private static final int REFERENCE_WINDOW_LENGTH = 4096;
+    /**
+     * Number of entries read ahead of the caller, per realignment thread.
+     */
+    private static final int PENDING_ENTRIES_PER_THREAD = 1000;
+
+    private ReferenceWindow referenceWindow;
+    private int numThreads;
+    private ExecutorService realignmentExecutor;
+    private final UnboundedFifoPool<WindowEntry> pendingEntries = new UnboundedFifoPool<WindowEntry>();
+    private boolean sourceExhausted;
 
 
     ObjectArrayList<InfoForTarget> targetInfo = new ObjectArrayList<InfoForTarget>();
@@ -90,7 +118,79 @@ public class RealignmentProcessor implements AlignmentProcessorInterface {
 
     int enqueuedCount = 0;
 
+    /**
+     * Set the number of threads that realign entries. When zero (the default), entries are realigned on the thread
+     * that calls nextRealignedEntry.
+     *
+     * @param numThreads number of realignment threads.
+     */
+    public void setNumThreads(final int numThreads) {
+        this.numThreads = numThreads;
+    }
+
     public Alignments.AlignmentEntry nextRealignedEntry(final int targetIndex, final int position) throws IOException {
+        if (numThreads <= 0) {
+            final WindowEntry windowEntry = nextWindowEntry(targetIndex, position);
+            return windowEntry == null ? null : collect(windowEntry);
+        }
+        if (realignmentExecutor == null && !sourceExhausted) {
+            startPool();
+        }
+        // read ahead, so that the pool realigns entries while the caller processes the ones returned before:
+        final int maxPendingEntries = numThreads * PENDING_ENTRIES_PER_THREAD;
+        while (!sourceExhausted && pendingEntries.size() < maxPendingEntries) {
+            final WindowEntry windowEntry = nextWindowEntry(targetIndex, position);
+            if (windowEntry == null) {
+                sourceExhausted = true;
+                realignmentExecutor.shutdown();
+            } else {
+                if (windowEntry.mustRealign()) {
+                    windowEntry.realignedEntry = realignmentExecutor.submit(windowEntry);
+                }
+                pendingEntries.add(windowEntry);
+            }
+        }
+        return pendingEntries.isEmpty() ? null : collect(pendingEntries.remove());
+    }
+
+    private void startPool() {
+        realignmentExecutor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "realignment");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        LOG.debug(String.format("Realigning entries near indels with %d threads.", numThreads));
+    }
+
+    /**
+     * Return the realigned entry, waiting for the pool to realign it if needed.
+     */
+    private Alignments.AlignmentEntry collect(final WindowEntry windowEntry) {
+        final Alignments.AlignmentEntry result;
+        if (windowEntry.realignedEntry != null) {
+            try {
+                result = windowEntry.realignedEntry.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new GobyRuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new GobyRuntimeException("Unable to realign entry.", e.getCause());
+            }
+        } else {
+            result = windowEntry.call();
+        }
+        if (windowEntry.modified) {
+            ++numEntriesRealigned;
+        }
+        return result;
+    }
+
+    /**
+     * Return the next entry at the left of the realignment window, with the indels it may be realigned through.
+     */
+    private WindowEntry nextWindowEntry(final int targetIndex, final int position) throws IOException {
 
         boolean mustLoadPool;
         if (activeTargetIndices.isEmpty()) {
@@ -159,13 +259,14 @@ public class RealignmentProcessor implements AlignmentProcessorInterface {
             return null;
         }
 
-        Alignments.AlignmentEntry returnedEntry = backInfo.remove();
-
+        final Alignments.AlignmentEntry returnedEntry = backInfo.remove();
+        final WindowEntry windowEntry = new WindowEntry(returnedEntry);
         if (backInfo.positionsWithSpanningIndel.size() > 0) {
-            returnedEntry = realign(returnedEntry, backInfo);
+            prepareRealignment(windowEntry, backInfo);
         }
 
-        // advance the windowStartPosition
+        // advance the windowStartPosition. Realignment may only move the entry to the left, through an indel that
+        // ends before the window start position, so the position of the entry before realignment is used.
         int previousWindowStart = backInfo.windowStartPosition;
         int windowStartPosition = Math.max(backInfo.windowStartPosition, returnedEntry.getPosition());
         // remove indel locations that are now outside the new window position
@@ -177,9 +278,7 @@ public class RealignmentProcessor implements AlignmentProcessorInterface {
         backInfo.windowStartPosition = windowStartPosition;
         ++processedCount;
 
-        return returnedEntry;
-
-
+        return windowEntry;
     }
 
     private InfoForTarget reallocateTargetInfo(int targetIndex) {
@@ -195,23 +294,95 @@ public class RealignmentProcessor implements AlignmentProcessorInterface {
 
     private final boolean[] directions = new boolean[]{true, false};
 
-    private Alignments.AlignmentEntry realign(final Alignments.AlignmentEntry entry, InfoForTarget tinfo) {
+    /**
+     * Record the indels of the window that overlap the entry, and the reference bases needed to realign the entry
+     * through them. The indels are copied, since the window moves on before the entry is realigned by the pool.
+     */
+    private void prepareRealignment(final WindowEntry windowEntry, final InfoForTarget tinfo) {
+        final Alignments.AlignmentEntry entry = windowEntry.entry;
+        final ObjectArrayList<ObservedIndel> overlapping = new ObjectArrayList<ObservedIndel>();
+        int minStart = entry.getPosition();
+        int maxEnd = entry.getPosition() + entry.getTargetAlignedLength();
+        int maxSpan = 0;
+        for (final ObservedIndel indel : tinfo.potentialIndels) {
+            if (entryOverlapsIndel(indel, entry)) {
+                overlapping.add(indel);
+                minStart = Math.min(minStart, indel.getStart());
+                maxEnd = Math.max(maxEnd, indel.getEnd());
+                maxSpan = Math.max(maxSpan, indel.positionSpan());
+            }
+        }
+        if (overlapping.isEmpty()) {
+            return;
+        }
+        windowEntry.indels = overlapping.toArray(new ObservedIndel[overlapping.size()]);
+        if (genome == null) {
+            return;
+        }
+        for (int i = 0; i < entry.getSequenceVariationsCount(); i++) {
+            final Alignments.SequenceVariation var = entry.getSequenceVariations(i);
+            maxEnd = Math.max(maxEnd, entry.getPosition() + var.getPosition() + var.getTo().length());
+        }
+        // bases are compared with the bases one indel span away, in either direction, and read insertions
+        // shifted to the left move the entry by one more indel span:
+        final int targetIndex = entry.getTargetIndex();
+        final int start = minStart - 2 * maxSpan - 1;
+        final int end = maxEnd + 2 * maxSpan + 1;
+        if (referenceWindow == null || !referenceWindow.covers(targetIndex, start, end)) {
+            referenceWindow = new ReferenceWindow(genome, targetIndex, start,
+                    Math.max(end, start + REFERENCE_WINDOW_LENGTH));
+        }
+        windowEntry.reference = referenceWindow;
+    }
+
+    /**
+     * An entry at the left of the realignment window, and what is needed to realign it, possibly on another thread.
+     */
+    private class WindowEntry implements Callable<Alignments.AlignmentEntry> {
+        final Alignments.AlignmentEntry entry;
+        /**
+         * Indels of the window that overlap the entry, or null when the entry overlaps no indel.
+         */
+        ObservedIndel[] indels;
+        /**
+         * Reference bases around the entry, or null when no genome was provided.
+         */
+        RandomAccessSequenceInterface reference;
+        Future<Alignments.AlignmentEntry> realignedEntry;
+        boolean modified;
+
+        WindowEntry(final Alignments.AlignmentEntry entry) {
+            this.entry = entry;
+        }
+
+        boolean mustRealign() {
+            return indels != null && reference != null;
+        }
+
+        public Alignments.AlignmentEntry call() {
+            if (indels == null) {
+                return entry;
+            }
+            final Alignments.AlignmentEntry result = realign(entry, indels, reference);
+            modified = result != entry;
+            return result;
+        }
+    }
+
+    private Alignments.AlignmentEntry realign(final Alignments.AlignmentEntry entry, final ObservedIndel[] indels,
+                                              final RandomAccessSequenceInterface reference) {
         int currentBestScore = 0;
         ObservedIndel bestScoreIndel = null;
         boolean bestScoreDirection = false;
 
+        for (final ObservedIndel indel : indels) {
+            for (boolean direction : directions) {
 
-        for (ObservedIndel indel : tinfo.potentialIndels) {
-            if (entryOverlapsIndel(indel, entry)) {
-
-                for (boolean direction : directions) {
-
-                    final int realignedScore = score(entry, indel, direction, currentBestScore, genome);
-                    if (realignedScore > currentBestScore) {
-                        currentBestScore = realignedScore;
-                        bestScoreIndel = indel;
-                        bestScoreDirection = direction;
-                    }
+                final int realignedScore = score(entry, indel, direction, currentBestScore, reference);
+                if (realignedScore > currentBestScore) {
+                    currentBestScore = realignedScore;
+                    bestScoreIndel = indel;
+                    bestScoreDirection = direction;
                 }
             }
         }
@@ -219,8 +390,7 @@ public class RealignmentProcessor implements AlignmentProcessorInterface {
             return entry;
         } else {
             // actually modify entry to realign through the indel:
-            ++numEntriesRealigned;
-            return realign(entry, bestScoreIndel, bestScoreDirection, currentBestScore);
+            return realign(entry, bestScoreIndel, bestScoreDirection, currentBestScore, reference);
         }
 
     }
@@ -244,7 +414,8 @@ public class RealignmentProcessor implements AlignmentProcessorInterface {
 
     private Alignments.AlignmentEntry realign(Alignments.AlignmentEntry entry,
                                               ObservedIndel indel,
-                                              boolean shiftForward, int scoreDelta) {
+                                              boolean shiftForward, int scoreDelta,
+                                              final RandomAccessSequenceInterface genome) {
         // use entry as prototype:
         Alignments.AlignmentEntry.Builder builder = Alignments.AlignmentEntry.newBuilder(entry);
         // update the score to reflect the realignment:
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.alignments.processors;
+
+import edu.cornell.med.icb.goby.reads.RandomAccessSequenceInterface;
+import it.unimi.dsi.lang.MutableString;
+
+/**
+ * The bases of a segment of a reference sequence, copied from the genome once so that entries near the same indels
+ * are realigned without decoding the genome base by base. A window is never modified after it has been created, and
+ * can be read by several realignment threads at once. Bases outside the window are read from the genome, one thread
+ * at a time.
+ *
+ * @author Fabien Campagne
+ *         Date: Oct 19, 2012
+ */
+public class ReferenceWindow implements RandomAccessSequenceInterface {
+    private final RandomAccessSequenceInterface genome;
+    private final int targetIndex;
+    private final int start;
+    private final char[] bases;
+
+    /**
+     * Copy a segment of a reference sequence.
+     *
+     * @param genome      the genome to copy bases from.
+     * @param targetIndex index of the reference sequence.
+     * @param start       zero-based position of the first base of the window.
+     * @param end         zero-based position after the last base of the window.
+     */
+    public ReferenceWindow(final RandomAccessSequenceInterface genome, final int targetIndex,
+                           final int start, final int end) {
+        super();
+        this.genome = genome;
+        this.targetIndex = targetIndex;
+        this.start = Math.max(0, start);
+        final int windowEnd = Math.min(end, genome.getLength(targetIndex));
+        bases = new char[Math.max(0, windowEnd - this.start)];
+        for (int i = 0; i < bases.length; i++) {
+            bases[i] = genome.get(targetIndex, this.start + i);
+        }
+    }
+
+    /**
+     * Return true if this window holds the bases between start (inclusive) and end (exclusive) of a reference
+     * sequence. Positions past the end of the reference sequence are considered held.
+     */
+    public boolean covers(final int targetIndex, final int start, final int end) {
+        return this.targetIndex == targetIndex && Math.max(0, start) >= this.start &&
+                Math.min(end, genome.getLength(targetIndex)) <= this.start + bases.length;
+    }
+
+    public char get(final int referenceIndex, final int position) {
+        final int offset = position - start;
+        if (referenceIndex == targetIndex && offset >= 0 && offset < bases.length) {
+            return bases[offset];
+        }
+        synchronized (genome) {
+            return genome.get(referenceIndex, position);
+        }
+    }
+
+    public int getLength(final int targetIndex) {
+        return genome.getLength(targetIndex);
+    }
+
+    public void getRange(final int referenceIndex, final int position, final int length, final MutableString bases) {
+        bases.setLength(0);
+        for (int i = position; i < position + length; i++) {
+            bases.append(get(referenceIndex, i));
+        }
+    }
+
+    public int getReferenceIndex(final String referenceId) {
+        return genome.getReferenceIndex(referenceId);
+    }
+
+    public String getReferenceName(final int index) {
+        return genome.getReferenceName(index);
+    }
+
+    public int size() {
+        return genome.size();
+    }
+}
@@ -171,50 +171,72 @@ public class MessageChunksWriter {
         // If we are flushing a completely empty file, that's OK, the flush() should occur.
         // Otherwise, only flush if we've appended entries.
         if (totalEntriesWritten == 0 || numAppended > 0) {
-            // the position just before this chunk is written is recorded:
-            currentChunkStartOffset = writtenBytes;
-
-            assert out.size() == Integer.MAX_VALUE || out.size() == writtenBytes;
-
-            //     System.out.println("Writting new chunk at position "+currentChunkStartOffset);
-            if (LOG.isTraceEnabled()) {
-                LOG.trace("writing zero bytes length=" + DELIMITER_LENGTH);
-            }
-
-            out.writeByte(chunkCodec.registrationCode());
-            writtenBytes += 1;
-            for (int i = 0; i < DELIMITER_LENGTH; i++) {
-                out.writeByte(DELIMITER_CONTENT);
-                writtenBytes += 1;
-            }
             final com.google.protobuf.Message protobuffCollection = collectionBuilder.clone().build();
             // compress the read collection:
 
             final ByteArrayOutputStream compressedBytes = chunkCodec.encode(protobuffCollection);
-            final int serializedSize = compressedBytes.size();
-
-            if (LOG.isTraceEnabled()) {
-                LOG.trace("serialized compressed size: " + serializedSize);
-            }
-
-            // write the compressed size followed by the compressed stream:
-            out.writeInt(serializedSize);
-            writtenBytes += 4;
             final byte[] bytes = compressedBytes.toByteArray();
-            out.write(bytes);
-            writtenBytes += bytes.length;
+            writeChunkBytes(chunkCodec.registrationCode(), bytes, bytes.length);
             compressedBytes.close();
-            totalBytesWritten += serializedSize + 4 + DELIMITER_LENGTH;
-            if (LOG.isTraceEnabled()) {
-                LOG.trace("current offset: " + totalBytesWritten);
-
-            }
-            out.flush();
             numAppended = 0;
             collectionBuilder.clear();
         }
     }
 
+    /**
+     * Write a chunk whose content was encoded by the caller. This makes it possible to store data that is not
+     * represented as protocol buffers with the same chunk framing. The content is written as is, and must be
+     * decodable by the codec identified by registrationCode (e.g., gzip compressed bytes for
+     * GZipChunkCodec.REGISTRATION_CODE).
+     *
+     * @param registrationCode Registration code of the codec that can decode the chunk content.
+     * @param bytes            Encoded content of the chunk.
+     * @param length           Number of bytes of content.
+     * @param numEntries       Number of logical entries in the chunk.
+     * @throws IOException if there was an error writing the chunk
+     */
+    public void writeChunk(final byte registrationCode, final byte[] bytes, final int length,
+                           final int numEntries) throws IOException {
+        totalEntriesWritten += numEntries;
+        writeChunkBytes(registrationCode, bytes, length);
+    }
+
+    private void writeChunkBytes(final byte registrationCode, final byte[] bytes, final int length)
+            throws IOException {
+        // the position just before this chunk is written is recorded:
+        currentChunkStartOffset = writtenBytes;
+
+        assert out.size() == Integer.MAX_VALUE || out.size() == writtenBytes;
+
+        //     System.out.println("Writting new chunk at position "+currentChunkStartOffset);
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("writing zero bytes length=" + DELIMITER_LENGTH);
+        }
+
+        out.writeByte(registrationCode);
+        writtenBytes += 1;
+        for (int i = 0; i < DELIMITER_LENGTH; i++) {
+            out.writeByte(DELIMITER_CONTENT);
+            writtenBytes += 1;
+        }
+
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("serialized compressed size: " + length);
+        }
+
+        // write the compressed size followed by the compressed stream:
+        out.writeInt(length);
+        writtenBytes += 4;
+        out.write(bytes, 0, length);
+        writtenBytes += length;
+        totalBytesWritten += length + 4 + DELIMITER_LENGTH;
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("current offset: " + totalBytesWritten);
+
+        }
+        out.flush();
+    }
+
     /**
      * Flush and release resources.
      *
@@ -224,6 +246,15 @@ public class MessageChunksWriter {
     public void close(final com.google.protobuf.GeneratedMessage.Builder collectionBuilder)
             throws IOException {
         flush(collectionBuilder);
+        close();
+    }
+
+    /**
+     * Write the end of stream marker. Use this method when chunks were written with writeChunk.
+     *
+     * @throws IOException if there is a problem writing to the underlying stream
+     */
+    public void close() throws IOException {
         out.writeByte(0xFF);  // termination codec is always GZIP
         writtenBytes += 1;
         for (int i = 0; i < DELIMITER_LENGTH; i++) {
@@ -18,7 +18,6 @@
 
 package edu.cornell.med.icb.goby.methylation;
 
-import edu.cornell.med.icb.goby.util.DoInParallel;
 import edu.cornell.med.icb.goby.util.HitBoundedPriorityQueue;
 import edu.cornell.med.icb.io.TSVReader;
 import edu.mssm.crover.cli.CLI;
@@ -26,8 +25,6 @@ import it.unimi.dsi.fastutil.floats.FloatArrayList;
 import it.unimi.dsi.fastutil.ints.*;
 import it.unimi.dsi.fastutil.io.BinIO;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
-import it.unimi.dsi.lang.MutableString;
-import it.unimi.dsi.logging.ProgressLogger;
 import org.apache.commons.io.FilenameUtils;
 
 import java.io.*;
@@ -44,6 +41,8 @@ public class MethylSimilarityScan {
 
     private int maxBestHits;
     private String windowWidths;
+    private int numThreads;
+    private int tileSize;
 
 
     public static void main(String args[]) throws IOException {
@@ -68,6 +67,8 @@ public class MethylSimilarityScan {
         this.windowWidths = CLI.getOption(args, "-w", "10");
         this.maxBestHits = CLI.getIntOption(args, "-h", 100);
         String outputFilename = CLI.getOption(args, "-o", "out.tsv");
+        this.numThreads = CLI.getIntOption(args, "-t", Runtime.getRuntime().availableProcessors());
+        this.tileSize = CLI.getIntOption(args, "-s", 1000000);
         final MethylationData data = load(inputFilename);
         File outputFile = new File(outputFilename);
         boolean outputFileExists = outputFile.exists();
@@ -78,19 +79,15 @@ public class MethylSimilarityScan {
         if (!outputFileExists) {
             output.write("windowSize\tlocation\tchromosome\tforward strand start\tforward strand end\treverse strand start\treverse strand end\teffective window size\tstatistic\n");
         }
+        // prefix sums are shared by all window widths:
+        final StrandSimilarityScanner scanner = new StrandSimilarityScanner(MethylationPrefixSums.build(data),
+                numThreads, tileSize);
         for (String windowWidthString : windowWidths.split("[,]")) {
             final int windowWidth = Integer.parseInt(windowWidthString);
             System.out.println("Processing window size=" + windowWidth);
-            final HitBoundedPriorityQueue hits = new HitBoundedPriorityQueue(maxBestHits);
-            DoInParallel scan = new DoInParallel() {
-                @Override
-                public void action(DoInParallel forDataAccess, String chromosome, int loopIndex) {
-                    compareStrands(hits, data, windowWidth, new MutableString(chromosome));
-                }
-            };
-
+            HitBoundedPriorityQueue hits = new HitBoundedPriorityQueue(maxBestHits);
             try {
-                scan.execute(true, data.getChromosomeStrings());
+                hits = scanner.scan(windowWidth, maxBestHits);
             } catch (Exception e) {
                 e.printStackTrace();  //To change body of catch statement use File | Settings | File Templates.
             }
@@ -197,148 +194,6 @@ public class MethylSimilarityScan {
 
     }
 
-    private HitBoundedPriorityQueue compareStrands(HitBoundedPriorityQueue results, MethylationData data,
-                                                   int windowWidth, MutableString chromosome) {
-
-        int chromosomeIndex = data.getChromosomeIndex(chromosome);
-        MethylationSiteIterator itForward = data.iterator('+');
-        itForward.skipTo(chromosome);
-
-        MethylationSiteIterator itReverse = data.iterator('-');
-        itReverse.skipTo(chromosome);
-
-        ProgressLogger pg = new ProgressLogger();
-        pg.expectedUpdates = data.sites.size();
-
-
-        Int2FloatMap startTallyForward = new Int2FloatOpenHashMap();
-        Int2FloatMap endTallyForward = new Int2FloatOpenHashMap();
-        Int2FloatMap startTallyReverse = new Int2FloatOpenHashMap();
-        Int2FloatMap endTallyReverse = new Int2FloatOpenHashMap();
-
-        Int2IntMap forwardStrandSiteCount = new Int2IntOpenHashMap();
-        Int2IntMap reverseStrandSiteCount = new Int2IntOpenHashMap();
-
-        int lastStartPosition = 0;
-        int lastEndPosition = 0;
-
-        while (itForward.hasNextSite()) {
-
-            MethylationSite site = itForward.nextSite();
-
-            final float lastStartValue = startTallyForward.get(lastStartPosition);
-
-            final float newStartValue = lastStartValue + site.getMethylationRate();
-
-            startTallyForward.put(site.position, newStartValue);
-            endTallyForward.put(site.position + 1, endTallyForward.get(lastEndPosition) + site.getMethylationRate());
-            forwardStrandSiteCount.put(site.position, forwardStrandSiteCount.get(lastStartPosition) + 1);
-
-            //      if (site.position >= 500 && site.position <= 1500000) {
-            //        System.out.printf("site.position %d numberOfSiteUpToPosition %d lastStartValue: %f newStartValue %f delta: %f%n",
-            //              site.position, forwardStrandSiteCount.get(site.position),
-            //            lastStartValue, newStartValue, site.getMethylationRate());
-            // }
-            lastStartPosition = site.position;
-            lastEndPosition = site.position + 1;
-        }
-
-        lastStartPosition = 0;
-        lastEndPosition = 0;
-
-        while (itReverse.hasNextSite()) {
-
-            MethylationSite site = itReverse.nextSite();
-
-            startTallyReverse.put(site.position, startTallyReverse.get(lastStartPosition) + site.getMethylationRate());
-            endTallyReverse.put(site.position + 1, endTallyReverse.get(lastEndPosition) + site.getMethylationRate());
-            reverseStrandSiteCount.put(site.position, reverseStrandSiteCount.get(lastStartPosition) + 1);
-            lastStartPosition = site.position;
-            lastEndPosition = site.position + 1;
-        }
-
-        IntSet indices = new IntOpenHashSet();
-        indices.addAll(startTallyForward.keySet());
-        indices.addAll(startTallyReverse.keySet());
-        IntList uniqueIndices = new IntArrayList();
-        uniqueIndices.addAll(indices);
-
-        Collections.sort(uniqueIndices);
-
-
-        pg.expectedUpdates = uniqueIndices.size();
-        pg.start("comparing strands on chromosome " + chromosome);
-        int skipToIndex = 0;
-        for (int index : uniqueIndices) {
-            if (index < skipToIndex) continue;
-
-            int startForward = index;
-            int startReverse = index;
-            boolean forwardOutOfWindow = false;
-            boolean reverseOutOfWindow = false;
-            while (!startTallyForward.containsKey(startForward)) {
-                // reduce window size until we find a position where a site ended.
-                startForward++;
-                if (startForward > index + windowWidth) {
-                    forwardOutOfWindow = true;
-                    break;
-                }
-            }
-            while (!startTallyReverse.containsKey(startReverse)) {
-                // reduce window size until we find a position where a site ended.
-                startReverse++;
-                if (startReverse > index + windowWidth) {
-                    reverseOutOfWindow = true;
-                    break;
-                }
-            }
-            int endForward = startForward + windowWidth * 2 + 1;
-            while (!endTallyForward.containsKey(endForward)) {
-                // reduce window size until we find a position where a site ended.
-                endForward--;
-                if (endForward == startForward + windowWidth) {
-                    forwardOutOfWindow = true;
-                    break;
-                }
-            }
-            int endReverse = startReverse + windowWidth * 2 + 1;
-            while (!endTallyReverse.containsKey(endReverse)) {
-                // reduce window size until we find a position where a site ended.
-                endReverse--;
-                if (endReverse == startReverse + windowWidth) {
-                    reverseOutOfWindow = true;
-                    break;
-                }
-            }
-            if (endForward > startForward && endReverse > startReverse) {
-                final int forwardSiteCountOverWindow = forwardStrandSiteCount.get(startForward) - forwardStrandSiteCount.get(endForward);
-                final int reverseSiteCountOverWindow = reverseStrandSiteCount.get(startReverse) - reverseStrandSiteCount.get(endReverse);
-                final float denominator = Math.max(forwardSiteCountOverWindow, reverseSiteCountOverWindow);
-                final float sumForwardStrand = forwardOutOfWindow ? 0 : startTallyForward.get(startForward) - (endTallyForward.get(endForward));
-                final float sumReverseStrand = reverseOutOfWindow ? 0 : startTallyReverse.get(startReverse) - (endTallyReverse.get(endReverse));
-                final float score = Math.abs(sumForwardStrand - sumReverseStrand) / denominator;
-                if (denominator != 0) {
-                    if (score > 3) {
-                        System.out.printf("index %d forward: %d-%d reverse: %d-%d %f%n ", index,
-                                startForward, endForward, startReverse, endReverse, score);
-                    }
-                    boolean wasEnqueued = results.enqueue(chromosomeIndex, startForward, score, startForward, endForward, startReverse, endReverse,
-                            Math.min(endForward - startForward, endReverse - startReverse), sumForwardStrand, sumReverseStrand);
-                    if (wasEnqueued) {
-                        skipToIndex = index + windowWidth;
-                    }
-                }
-            }
-
-            pg.lightUpdate();
-        }
-
-        pg.stop("done");
-        return results;
-
-    }
-
-
     private MethylationData load(String inputFilename) throws IOException {
         System.out.println("Loading..");
         final String cacheFilename = FilenameUtils.removeExtension(inputFilename) + ".cache";
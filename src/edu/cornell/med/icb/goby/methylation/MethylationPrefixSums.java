@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.methylation;
+
+import it.unimi.dsi.fastutil.floats.FloatArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
+/**
+ * Methylation sites stored in dense primitive arrays, one pair of arrays per chromosome and strand: the sorted
+ * positions of the sites, and the cumulative sum of their methylation rates. The sum of the rates of sites
+ * i to j (inclusive) is cumulativeRates[j+1]-cumulativeRates[i], and the number of these sites is j+1-i, so the
+ * content of any window is obtained in constant time once the sites delimiting the window are found.
+ *
+ * @author Fabien Campagne
+ *         Date: Oct 19, 2012
+ */
+public class MethylationPrefixSums {
+    static final int FORWARD = 0;
+    static final int REVERSE = 1;
+
+    /**
+     * Positions of sites, indexed by strand then chromosome.
+     */
+    final int[][][] positions;
+    /**
+     * Cumulative methylation rates, indexed by strand then chromosome. Element i is the sum of the rates of the
+     * first i sites.
+     */
+    final double[][][] cumulativeRates;
+
+    /**
+     * Create prefix sums from arrays of sites, indexed by chromosome. Positions must be sorted.
+     *
+     * @param forwardPositions positions of sites on the forward strand.
+     * @param forwardRates     methylation rates of sites on the forward strand.
+     * @param reversePositions positions of sites on the reverse strand.
+     * @param reverseRates     methylation rates of sites on the reverse strand.
+     */
+    MethylationPrefixSums(final int[][] forwardPositions, final float[][] forwardRates,
+                          final int[][] reversePositions, final float[][] reverseRates) {
+        super();
+        positions = new int[][][]{forwardPositions, reversePositions};
+        cumulativeRates = new double[][][]{cumulate(forwardRates), cumulate(reverseRates)};
+    }
+
+    private static double[][] cumulate(final float[][] rates) {
+        final double[][] result = new double[rates.length][];
+        for (int chromosome = 0; chromosome < rates.length; chromosome++) {
+            final float[] chromosomeRates = rates[chromosome];
+            final double[] sums = new double[chromosomeRates.length + 1];
+            for (int i = 0; i < chromosomeRates.length; i++) {
+                sums[i + 1] = sums[i] + chromosomeRates[i];
+            }
+            result[chromosome] = sums;
+        }
+        return result;
+    }
+
+    /**
+     * Create prefix sums for methylation data. The sites of data must be sorted by chromosome and position.
+     *
+     * @param data methylation data.
+     * @return prefix sums for the sites of data.
+     */
+    public static MethylationPrefixSums build(final MethylationData data) {
+        final int numChromosomes = data.getChromosomes().size();
+        final IntArrayList[][] positions = new IntArrayList[2][numChromosomes];
+        final FloatArrayList[][] rates = new FloatArrayList[2][numChromosomes];
+        for (int strand = FORWARD; strand <= REVERSE; strand++) {
+            for (int chromosome = 0; chromosome < numChromosomes; chromosome++) {
+                positions[strand][chromosome] = new IntArrayList();
+                rates[strand][chromosome] = new FloatArrayList();
+            }
+        }
+        for (final MethylationSite site : data.sites) {
+            final int strand = site.strand == '+' ? FORWARD : REVERSE;
+            positions[strand][site.chromosome].add(site.position);
+            rates[strand][site.chromosome].add(site.getMethylationRate());
+        }
+        final int[][][] positionArrays = new int[2][numChromosomes][];
+        final float[][][] rateArrays = new float[2][numChromosomes][];
+        for (int strand = FORWARD; strand <= REVERSE; strand++) {
+            for (int chromosome = 0; chromosome < numChromosomes; chromosome++) {
+                positionArrays[strand][chromosome] = positions[strand][chromosome].toIntArray();
+                rateArrays[strand][chromosome] = rates[strand][chromosome].toFloatArray();
+                // release memory as we go:
+                positions[strand][chromosome] = null;
+                rates[strand][chromosome] = null;
+            }
+        }
+        return new MethylationPrefixSums(positionArrays[FORWARD], rateArrays[FORWARD],
+                positionArrays[REVERSE], rateArrays[REVERSE]);
+    }
+
+    public int getNumChromosomes() {
+        return positions[FORWARD].length;
+    }
+
+    /**
+     * Return the largest site position of a chromosome, on either strand, or -1 if the chromosome has no site.
+     *
+     * @param chromosome index of the chromosome.
+     * @return a position.
+     */
+    public int getLastPosition(final int chromosome) {
+        int last = -1;
+        for (final int[][] strandPositions : positions) {
+            final int[] chromosomePositions = strandPositions[chromosome];
+            if (chromosomePositions.length > 0) {
+                last = Math.max(last, chromosomePositions[chromosomePositions.length - 1]);
+            }
+        }
+        return last;
+    }
+
+    /**
+     * Return the index of the first site at or after position.
+     */
+    static int firstSiteAtOrAfter(final int[] sitePositions, final int position) {
+        int low = 0;
+        int high = sitePositions.length;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (sitePositions[middle] < position) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
@@ -45,7 +45,15 @@ public class MethylationSimilarityMatch {
 
     public static Comparator<MethylationSimilarityMatch> INCREASING_SCORE_COMPARATOR = new Comparator<MethylationSimilarityMatch>() {
         public int compare(MethylationSimilarityMatch a, MethylationSimilarityMatch b) {
-            return Float.compare(a.score, b.score);
+            final int scoreComparison = Float.compare(a.score, b.score);
+            if (scoreComparison != 0) {
+                return scoreComparison;
+            }
+            // with equal scores, hits located first in the genome rank higher:
+            if (a.chromosome != b.chromosome) {
+                return b.chromosome < a.chromosome ? -1 : 1;
+            }
+            return b.targetPosition < a.targetPosition ? -1 : b.targetPosition == a.targetPosition ? 0 : 1;
         }
     };
 }
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.methylation;
+
+import edu.cornell.med.icb.goby.util.HitBoundedPriorityQueue;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.logging.ProgressLogger;
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares the methylation of the forward and reverse strands in windows along the genome, and keeps the windows
+ * where the strands differ most. Windows are evaluated from methylation prefix sums, so that the sum of rates and
+ * number of sites of each window are obtained in constant time, for any window width.
+ * <p/>
+ * Chromosomes are split into tiles of consecutive anchor positions. Windows that start in a tile may extend
+ * into the next tiles, so tiles overlap by the span of a window. Tiles are scanned concurrently. Each tile
+ * collects its best hits in its own queue, and each thread merges the queues of the tiles it scanned, without
+ * sharing queues across threads. Thread queues are merged when all tiles have been scanned. Since tiles are
+ * the same whatever the number of threads, results do not depend on the number of threads.
+ *
+ * @author Fabien Campagne
+ *         Date: Oct 19, 2012
+ */
+public class StrandSimilarityScanner {
+    private static final Logger LOG = Logger.getLogger(StrandSimilarityScanner.class);
+
+    private final MethylationPrefixSums sums;
+    private final int numThreads;
+    private final int tileSize;
+
+    /**
+     * Create a scanner.
+     *
+     * @param sums       methylation data, as prefix sums.
+     * @param numThreads number of threads to scan with.
+     * @param tileSize   number of anchor positions in each tile.
+     */
+    public StrandSimilarityScanner(final MethylationPrefixSums sums, final int numThreads, final int tileSize) {
+        super();
+        this.sums = sums;
+        this.numThreads = Math.max(1, numThreads);
+        this.tileSize = Math.max(1, tileSize);
+    }
+
+    /**
+     * Scan all chromosomes for windows of the given width.
+     *
+     * @param windowWidth width of the windows.
+     * @param maxBestHits number of best hits to keep.
+     * @return a queue with the best hits.
+     * @throws InterruptedException if the scan is interrupted.
+     * @throws ExecutionException   if a tile cannot be scanned.
+     */
+    public HitBoundedPriorityQueue scan(final int windowWidth, final int maxBestHits)
+            throws InterruptedException, ExecutionException {
+        final IntArrayList tileChromosomes = new IntArrayList();
+        final IntArrayList tileStarts = new IntArrayList();
+        for (int chromosome = 0; chromosome < sums.getNumChromosomes(); chromosome++) {
+            final int lastPosition = sums.getLastPosition(chromosome);
+            for (long start = 0; start <= lastPosition; start += tileSize) {
+                tileChromosomes.add(chromosome);
+                tileStarts.add((int) start);
+            }
+        }
+        final ProgressLogger pg = new ProgressLogger(LOG);
+        pg.itemsName = "tiles";
+        pg.expectedUpdates = tileStarts.size();
+        pg.start(String.format("comparing strands with window width %d", windowWidth));
+        final AtomicInteger nextTile = new AtomicInteger();
+        final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            final ObjectArrayList<Future<HitBoundedPriorityQueue>> workers =
+                    new ObjectArrayList<Future<HitBoundedPriorityQueue>>();
+            for (int thread = 0; thread < numThreads; thread++) {
+                workers.add(executor.submit(new Callable<HitBoundedPriorityQueue>() {
+                    public HitBoundedPriorityQueue call() {
+                        final HitBoundedPriorityQueue threadHits = new HitBoundedPriorityQueue(maxBestHits);
+                        int tile;
+                        while ((tile = nextTile.getAndIncrement()) < tileStarts.size()) {
+                            final HitBoundedPriorityQueue tileHits = new HitBoundedPriorityQueue(maxBestHits);
+                            final int start = tileStarts.getInt(tile);
+                            scanTile(tileHits, windowWidth, tileChromosomes.getInt(tile), start,
+                                    (int) Math.min(Integer.MAX_VALUE, (long) start + tileSize));
+                            threadHits.addAll(tileHits);
+                            synchronized (pg) {
+                                pg.update();
+                            }
+                        }
+                        return threadHits;
+                    }
+                }));
+            }
+            final HitBoundedPriorityQueue hits = new HitBoundedPriorityQueue(maxBestHits);
+            for (final Future<HitBoundedPriorityQueue> worker : workers) {
+                hits.addAll(worker.get());
+            }
+            pg.done();
+            return hits;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Scan the windows anchored at site positions in [tileStart, tileEnd[ of a chromosome. Each window
+     * starts at the first site of a strand found within windowWidth of the anchor, and ends at the last site of
+     * the strand found between windowWidth and 2*windowWidth after the window start. A strand without such sites
+     * contributes no site to the window. The score of a window is the absolute difference between the sums of
+     * methylation rates of the strands, divided by the larger number of sites. Once a window is kept, the next
+     * anchors within windowWidth of its anchor are skipped.
+     */
+    void scanTile(final HitBoundedPriorityQueue results, final int windowWidth, final int chromosome,
+                  final int tileStart, final int tileEnd) {
+        final int[] forwardPositions = sums.positions[MethylationPrefixSums.FORWARD][chromosome];
+        final int[] reversePositions = sums.positions[MethylationPrefixSums.REVERSE][chromosome];
+        final double[] forwardRates = sums.cumulativeRates[MethylationPrefixSums.FORWARD][chromosome];
+        final double[] reverseRates = sums.cumulativeRates[MethylationPrefixSums.REVERSE][chromosome];
+        final int[] forward = new int[2];
+        final int[] reverse = new int[2];
+
+        // anchors are the positions of sites of either strand, visited in increasing order:
+        int forwardAnchor = MethylationPrefixSums.firstSiteAtOrAfter(forwardPositions, tileStart);
+        int reverseAnchor = MethylationPrefixSums.firstSiteAtOrAfter(reversePositions, tileStart);
+        long skipToIndex = Long.MIN_VALUE;
+        while (true) {
+            final int nextForward = forwardAnchor < forwardPositions.length ? forwardPositions[forwardAnchor] : Integer.MAX_VALUE;
+            final int nextReverse = reverseAnchor < reversePositions.length ? reversePositions[reverseAnchor] : Integer.MAX_VALUE;
+            final int index = Math.min(nextForward, nextReverse);
+            if (index >= tileEnd) {
+                break;
+            }
+            while (forwardAnchor < forwardPositions.length && forwardPositions[forwardAnchor] == index) {
+                forwardAnchor++;
+            }
+            while (reverseAnchor < reversePositions.length && reversePositions[reverseAnchor] == index) {
+                reverseAnchor++;
+            }
+            if (index < skipToIndex) {
+                continue;
+            }
+            final boolean forwardInWindow = findWindow(forwardPositions, index, windowWidth, forward);
+            final boolean reverseInWindow = findWindow(reversePositions, index, windowWidth, reverse);
+            final int forwardSiteCount = forwardInWindow ? forward[1] - forward[0] : 0;
+            final int reverseSiteCount = reverseInWindow ? reverse[1] - reverse[0] : 0;
+            final float denominator = Math.max(forwardSiteCount, reverseSiteCount);
+            if (denominator == 0) {
+                continue;
+            }
+            final float sumForwardStrand = forwardInWindow ?
+                    (float) (forwardRates[forward[1]] - forwardRates[forward[0]]) : 0;
+            final float sumReverseStrand = reverseInWindow ?
+                    (float) (reverseRates[reverse[1]] - reverseRates[reverse[0]]) : 0;
+            final float score = Math.abs(sumForwardStrand - sumReverseStrand) / denominator;
+
+            final int startForward = forwardInWindow ? forwardPositions[forward[0]] : index;
+            final int endForward = forwardInWindow ? forwardPositions[forward[1] - 1] + 1 : index;
+            final int startReverse = reverseInWindow ? reversePositions[reverse[0]] : index;
+            final int endReverse = reverseInWindow ? reversePositions[reverse[1] - 1] + 1 : index;
+            final int windowLength = forwardInWindow && reverseInWindow ?
+                    Math.min(endForward - startForward, endReverse - startReverse) :
+                    Math.max(endForward - startForward, endReverse - startReverse);
+            final boolean wasEnqueued = results.enqueue(chromosome, startForward, score, startForward, endForward,
+                    startReverse, endReverse, windowLength, sumForwardStrand, sumReverseStrand);
+            if (wasEnqueued) {
+                skipToIndex = (long) index + windowWidth;
+            }
+        }
+    }
+
+    /**
+     * Find the sites of a strand that belong to the window anchored at index.
+     *
+     * @param window receives the index of the first site of the window and the index after its last site.
+     * @return true when the strand has sites in the window.
+     */
+    private static boolean findWindow(final int[] sitePositions, final int index, final int windowWidth,
+                                      final int[] window) {
+        final int first = MethylationPrefixSums.firstSiteAtOrAfter(sitePositions, index);
+        if (first == sitePositions.length || sitePositions[first] > (long) index + windowWidth) {
+            return false;
+        }
+        final long windowStart = sitePositions[first];
+        final int end = MethylationPrefixSums.firstSiteAtOrAfter(sitePositions,
+                (int) Math.min(Integer.MAX_VALUE, windowStart + 2L * windowWidth + 1));
+        if (end == first || sitePositions[end - 1] < windowStart + windowWidth) {
+            return false;
+        }
+        window[0] = first;
+        window[1] = end;
+        return true;
+    }
+}
@@ -25,8 +25,10 @@ import edu.cornell.med.icb.goby.readers.FastXReader;
 import edu.cornell.med.icb.goby.reads.*;
 import edu.cornell.med.icb.goby.util.barcode.BarcodeMatcher;
 import edu.cornell.med.icb.goby.util.barcode.BarcodeMatcherResult;
+import edu.cornell.med.icb.goby.util.barcode.IndexedBarcodeMatcher;
 import edu.cornell.med.icb.goby.util.barcode.PostBarcodeMatcher;
 import edu.cornell.med.icb.goby.util.barcode.PreBarcodeMatcher;
+import edu.cornell.med.icb.goby.util.ParallelReadsToCompactProcessor;
 import edu.cornell.med.icb.io.TSVReader;
 import it.unimi.dsi.fastutil.bytes.ByteArrayList;
 import it.unimi.dsi.fastutil.bytes.ByteList;
@@ -121,6 +123,16 @@ public class BarcodeDecoderMode extends AbstractGobyMode {
      */
     private boolean includeIdentifiers = false;
 
+    /**
+     * Decode slices of the input in parallel. Only used with a single .compact-reads input and --output.
+     */
+    private boolean parallel;
+
+    /**
+     * Number of threads to decode with, or -1 to use all the cores.
+     */
+    private int numThreads = -1;
+
     /**
      * Configure.
      *
@@ -153,6 +165,8 @@ public class BarcodeDecoderMode extends AbstractGobyMode {
         }
         minimalMatchLength = jsapResult.getInt("minimal-match-length");
         maxMismatches = jsapResult.getInt("max-mismatches");
+        parallel = jsapResult.getBoolean("parallel", false);
+        numThreads = jsapResult.getInt("num-threads", -1);
 
         return this;
     }
@@ -163,65 +177,40 @@ public class BarcodeDecoderMode extends AbstractGobyMode {
         loadBarcodeInfo(barcodeInfoFilename);
 
 
+        // slices can only be decoded in parallel when they are all written to the same output file:
+        final boolean decodeInParallel = parallel && outputFilename != null && inputFilenames.length == 1
+                && inputFilenames[0].toLowerCase().endsWith(".compact-reads");
+        if (parallel && !decodeInParallel) {
+            LOG.warn("--parallel requires a single .compact-reads input and --output, decoding sequentially.");
+        }
         ReadsWriter singleWriter = null;
         final ReadsWriterImpl[] writers = new ReadsWriterImpl[barcodeIndexToSampleId.size()];
         if (outputFilename == null) {
             for (int i = 0; i < writers.length; i++) {
                 writers[i] = new ReadsWriterImpl(new FileOutputStream(barcodeIndexToSampleId.get(i).trim() + ".compact-reads"));
             }
-        } else {
+        } else if (!decodeInParallel) {
+            // otherwise, the parallel processor writes the output file:
             singleWriter = new ReadsWriterImpl(new FileOutputStream(outputFilename));
         }
 
-        final BarcodeMatcher matcher = is3Prime ? new PostBarcodeMatcher(barcodes, minimalMatchLength, maxMismatches) :
-                new PreBarcodeMatcher(barcodes, minimalMatchLength, maxMismatches);
+        final BarcodeMatcher matcher = new IndexedBarcodeMatcher(is3Prime
+                ? new PostBarcodeMatcher(barcodes, minimalMatchLength, maxMismatches)
+                : new PreBarcodeMatcher(barcodes, minimalMatchLength, maxMismatches));
 
-        final MutableString sequence = new MutableString();
-        final ByteList qualitiesNoBarcode = new ByteArrayList();
+        final DecoderScratch counts = new DecoderScratch();
         try {
-            int countMatched = 0;
-            int countNoMatch = 0;
-            int countAmbiguous = 0;
             final boolean retainReadIndex = inputFilenames.length == 1;
             progress.displayFreeMemory = true;
             for (final String inputReadsFilename : inputFilenames) {
                 if (inputReadsFilename.toLowerCase().endsWith(".compact-reads")) {
+                    if (decodeInParallel) {
+                        decodeInParallel(matcher, inputReadsFilename, counts);
+                        continue;
+                    }
                     progress.start("Progressing .compact-reads file " + inputReadsFilename);
                     for (final Reads.ReadEntry readEntry : new ReadsReader(inputReadsFilename)) {
-                        ReadsReader.decodeSequence(readEntry, sequence);
-                        final BarcodeMatcherResult match = matcher.matchSequence(sequence);
-                        if (match != null) {
-                            // remove the barcode from the sequence:
-                            final int barcodeIndex = match.getBarcodeIndex();
-                            if (match.isAmbiguous()) {
-                                ++countAmbiguous;
-                            }
-                            final ReadsWriter writer = outputFilename == null ? writers[barcodeIndex] : singleWriter;
-                            writer.setSequence(match.sequenceOf(sequence));
-                            writer.setBarcodeIndex(barcodeIndex);
-
-                            if (readEntry.hasDescription()) {
-                                writer.setDescription(readEntry.getDescription());
-                            }
-                            if (readEntry.hasReadIdentifier()) {
-                                writer.setIdentifier(readEntry.getReadIdentifier());
-                            }
-                            if (readEntry.hasQualityScores()) {
-                                qualitiesNoBarcode.clear();
-                                qualitiesNoBarcode.addElements(0, readEntry.getQualityScores().toByteArray(),
-                                        match.getSequenceStartPosition(),
-                                        match.getSequenceStartPosition() + match.getSequenceLength());
-                                writer.setQualityScores(qualitiesNoBarcode.toByteArray());
-                            }
-                            if (retainReadIndex) {
-                                writer.appendEntry(readEntry.getReadIndex());
-                            } else {
-                                writer.appendEntry();
-                            }
-                            ++countMatched;
-                        } else {
-                            ++countNoMatch;
-                        }
+                        decode(matcher, writers, singleWriter, counts, readEntry, retainReadIndex);
                         progress.lightUpdate();
                     }
                     progress.stop();
@@ -235,7 +224,7 @@ public class BarcodeDecoderMode extends AbstractGobyMode {
                             // remove the barcode from the sequence:
                             final int barcodeIndex = match.getBarcodeIndex();
                             if (match.isAmbiguous()) {
-                                ++countAmbiguous;
+                                ++counts.countAmbiguous;
                             }
                             final ReadsWriter writer = outputFilename == null ? writers[barcodeIndex] : singleWriter;
                             writer.setSequence(match.sequenceOf(readEntry.getSequence()));
@@ -257,17 +246,18 @@ public class BarcodeDecoderMode extends AbstractGobyMode {
                                         false, apiMode));
                             }
                             writer.appendEntry();
-                            ++countMatched;
+                            ++counts.countMatched;
                         } else {
-                            ++countNoMatch;
+                            ++counts.countNoMatch;
                         }
                         progress.lightUpdate();
                     }
                     progress.stop();
                 }
             }
-            System.out.format("barcode found in %g %% of the reads %n", percent(countMatched, countMatched + countNoMatch));
-            System.out.format("Found %g %% ambiguous matches %n", percent(countAmbiguous, countMatched));
+            System.out.format("barcode found in %g %% of the reads %n",
+                    percent(counts.countMatched, counts.countMatched + counts.countNoMatch));
+            System.out.format("Found %g %% ambiguous matches %n", percent(counts.countAmbiguous, counts.countMatched));
         }
         finally {
             for (int i = 0; i < writers.length; i++) {
@@ -275,7 +265,7 @@ public class BarcodeDecoderMode extends AbstractGobyMode {
                     writers[i].close();
                 }
             }
-            if (outputFilename != null) {
+            if (singleWriter != null) {
                 singleWriter.close();
             }
 
@@ -283,6 +273,96 @@ public class BarcodeDecoderMode extends AbstractGobyMode {
 
     }
 
+    /**
+     * Decode the barcode of one compact-reads entry and write the entry, without its barcode, to the
+     * writer of the barcode (or to the single writer).
+     */
+    private void decode(final BarcodeMatcher matcher, final ReadsWriter[] writers, final ReadsWriter singleWriter,
+                        final DecoderScratch scratch, final Reads.ReadEntry readEntry,
+                        final boolean retainReadIndex) throws IOException {
+        final MutableString sequence = scratch.sequence;
+        ReadsReader.decodeSequence(readEntry, sequence);
+        final BarcodeMatcherResult match = matcher.matchSequence(sequence);
+        if (match != null) {
+            // remove the barcode from the sequence:
+            final int barcodeIndex = match.getBarcodeIndex();
+            if (match.isAmbiguous()) {
+                ++scratch.countAmbiguous;
+            }
+            final ReadsWriter writer = outputFilename == null ? writers[barcodeIndex] : singleWriter;
+            writer.setSequence(match.sequenceOf(sequence));
+            writer.setBarcodeIndex(barcodeIndex);
+
+            if (readEntry.hasDescription()) {
+                writer.setDescription(readEntry.getDescription());
+            }
+            if (readEntry.hasReadIdentifier()) {
+                writer.setIdentifier(readEntry.getReadIdentifier());
+            }
+            if (readEntry.hasQualityScores()) {
+                final ByteList qualitiesNoBarcode = scratch.qualitiesNoBarcode;
+                qualitiesNoBarcode.clear();
+                qualitiesNoBarcode.addElements(0, readEntry.getQualityScores().toByteArray(),
+                        match.getSequenceStartPosition(),
+                        match.getSequenceStartPosition() + match.getSequenceLength());
+                writer.setQualityScores(qualitiesNoBarcode.toByteArray());
+            }
+            if (retainReadIndex) {
+                writer.appendEntry(readEntry.getReadIndex());
+            } else {
+                writer.appendEntry();
+            }
+            ++scratch.countMatched;
+        } else {
+            ++scratch.countNoMatch;
+        }
+    }
+
+    /**
+     * Decode slices of a single compact-reads input in parallel. The matcher is shared by the threads, each
+     * slice keeps its own buffers and counts, which are added to the totals when the slice is done.
+     */
+    private void decodeInParallel(final BarcodeMatcher matcher, final String inputReadsFilename,
+                                  final DecoderScratch totals) throws IOException {
+        final ParallelReadsToCompactProcessor<DecoderScratch> processor =
+                new ParallelReadsToCompactProcessor<DecoderScratch>(inputReadsFilename, outputFilename) {
+                    @Override
+                    protected DecoderScratch createScratch() {
+                        return new DecoderScratch();
+                    }
+
+                    @Override
+                    protected void writeRead(final ReadsWriter writer, final DecoderScratch scratch,
+                                             final Reads.ReadEntry entry) throws IOException {
+                        decode(matcher, null, writer, scratch, entry, true);
+                    }
+
+                    @Override
+                    protected void sliceDone(final SliceOutput<DecoderScratch> sliceState) throws IOException {
+                        super.sliceDone(sliceState);
+                        final DecoderScratch scratch = sliceState.getScratch();
+                        synchronized (totals) {
+                            totals.countMatched += scratch.countMatched;
+                            totals.countNoMatch += scratch.countNoMatch;
+                            totals.countAmbiguous += scratch.countAmbiguous;
+                        }
+                    }
+                };
+        processor.setNumThreads(numThreads);
+        processor.execute();
+    }
+
+    /**
+     * Buffers and counts used while decoding the reads of one input file, or of one slice of it.
+     */
+    private static final class DecoderScratch {
+        private final MutableString sequence = new MutableString();
+        private final ByteList qualitiesNoBarcode = new ByteArrayList();
+        private int countMatched;
+        private int countNoMatch;
+        private int countAmbiguous;
+    }
+
     private double percent(final int countMatched, final int total) {
         return (double) countMatched / (double) total * 100d;
     }
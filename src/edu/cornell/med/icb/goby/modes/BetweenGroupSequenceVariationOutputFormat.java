@@ -352,19 +352,19 @@ public class BetweenGroupSequenceVariationOutputFormat implements SequenceVariat
 
     private void summarizeVariations
             (TSVWriter
-                     statWriter, ObjectArrayList<PositionBaseInfo> list,
+                     statWriter, DiscoverVariantPositionData list,
              int groupIndex) {
 
         final Object2IntMap<MutableString> tally = new Object2IntArrayMap<MutableString>();
         tally.defaultReturnValue(0);
-        for (PositionBaseInfo info : list) {
-            final int varGroupIndex = readerIndexToGroupIndex[info.readerIndex];
+        for (int index = 0; index < list.size(); index++) {
+            final int varGroupIndex = readerIndexToGroupIndex[list.getReaderIndex(index)];
 
-            if (!info.matchesReference && varGroupIndex == groupIndex) {
+            if (!list.isMatchingReference(index) && varGroupIndex == groupIndex) {
                 MutableString variation = new MutableString();
-                variation.append(info.from);
+                variation.append(list.getFrom(index));
                 variation.append('/');
-                variation.append(info.to);
+                variation.append(list.getTo(index));
                 int count = tally.getInt(variation);
                 tally.put(variation, count + 1);
             }
@@ -392,7 +392,7 @@ public class BetweenGroupSequenceVariationOutputFormat implements SequenceVariat
             (
                     int position,
                     int groupIndex,
-                    ObjectArrayList<PositionBaseInfo> list,
+                    DiscoverVariantPositionData list,
                     int[] variantsCount,
                     int[] refCounts) {
         double pValue = 1;
@@ -409,9 +409,9 @@ public class BetweenGroupSequenceVariationOutputFormat implements SequenceVariat
             return 1;
         }
         long sum = 0;
-        for (PositionBaseInfo info : list) {
-            final ReadIndexStats stats = readIndexStats.get(info.readerIndex);
-            final int readIndex = info.readIndex;
+        for (int index = 0; index < list.size(); index++) {
+            final ReadIndexStats stats = readIndexStats.get(list.getReaderIndex(index));
+            final int readIndex = list.getReadIndex(index);
             if (readIndex < 1 ||
                     readIndex > stats.countVariationBases.length ||
                     readIndex > stats.countReferenceBases.length) {
@@ -173,10 +173,22 @@ public class CompactAlignmentToReadSetMode extends AbstractGobyMode {
         reader.close();
         // TODO write a Junit for this mode.
         final AlignmentTooManyHitsReader tmhReader = new AlignmentTooManyHitsReader(basename);
+        final int[] smallIndices = new int[PERMUTATION_BATCH_SIZE];
+        final int[] queryIndices = new int[PERMUTATION_BATCH_SIZE];
+        int batchSize = 0;
+        int batchPosition = 0;
         for (int smallIndex = minQueryIndex; smallIndex <= maxQueryIndex; ++smallIndex) {
+            if (batchPosition == batchSize) {
+                // resolve the query indices of the next batch of small indices:
+                batchSize = (int) Math.min(PERMUTATION_BATCH_SIZE, (long) maxQueryIndex - smallIndex + 1);
+                for (int i = 0; i < batchSize; i++) {
+                    smallIndices[i] = smallIndex + i;
+                }
+                permReader.getQueryIndices(smallIndices, queryIndices, batchSize);
+                batchPosition = 0;
+            }
 
-
-            final int queryIndex = permReader.getQueryIndex(smallIndex);
+            final int queryIndex = queryIndices[batchPosition++];
             if (matchingReads) {
                 if (matchingIndices.contains(smallIndex)) {
                     if (passesTmhFilter(tmhReader, smallIndex)) {
@@ -205,6 +217,11 @@ public class CompactAlignmentToReadSetMode extends AbstractGobyMode {
 
     }
 
+    /**
+     * Number of small indices resolved with each call to the permutation reader.
+     */
+    private static final int PERMUTATION_BATCH_SIZE = 10000;
+
     private boolean passesTmhFilter(final AlignmentTooManyHitsReader tmhReader, final int queryIndex) {
         if (ambiguousReads && nonAmbiguousReads) {
             return true;
@@ -155,6 +155,7 @@ public class CompareGroupsVCFOutputFormat extends AbstractOutputFormat  implemen
         readerIndexToGroupIndex = mode.getReaderIndexToGroupIndex();
         final ObjectArrayList<ReadIndexStats> readIndexStats = mode.getReadIndexStats();
         this.statWriter = new VCFWriter(outputInfo.getPrintWriter());
+        statWriter.configureSiteMatrix(outputInfo);
 
         //activate R only if we need it:
         final Rengine rEngine = GobyRengine.getInstance().getRengine();
@@ -392,7 +393,7 @@ public class CompareGroupsVCFOutputFormat extends AbstractOutputFormat  implemen
             statWriter.setInfo(fisherExactPValueColumnIndex[comparison.index], fisherP);
 
         }
-        genotypeFormatter.writeGenotypes(statWriter, sampleCounts, position);
+        genotypeFormatter.writeGenotypes(statWriter, sampleCounts, position, list);
 
         statWriter.writeRecord();
     }
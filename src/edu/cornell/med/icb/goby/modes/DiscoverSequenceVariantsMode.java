@@ -31,6 +31,7 @@ import edu.cornell.med.icb.goby.reads.RandomAccessSequenceTestSupport;
 import edu.cornell.med.icb.goby.stats.AnnotationAveragingWriter;
 import edu.cornell.med.icb.goby.stats.DifferentialExpressionAnalysis;
 import edu.cornell.med.icb.goby.stats.DifferentialExpressionCalculator;
+import edu.cornell.med.icb.goby.stats.VCFWriter;
 import edu.cornell.med.icb.goby.util.OutputInfo;
 import edu.cornell.med.icb.goby.util.dynoptions.DynamicOptionClient;
 import edu.cornell.med.icb.goby.util.dynoptions.DynamicOptionRegistry;
@@ -107,12 +108,32 @@ public class DiscoverSequenceVariantsMode extends AbstractGobyMode {
     private boolean callIndels = Release1_9_7_2.callIndels;
     private String[] dymamicOptions;
     private boolean diploid;
+    /**
+     * When true, bases are tallied in histograms as they are observed instead of stored in lists.
+     */
+    private boolean tallyGenotypes;
+    /**
+     * Number of threads that calculate site statistics while pileups are built, or zero to calculate statistics on
+     * the reading thread.
+     */
+    private int statisticsThreads;
+    /**
+     * Number of consecutive sites whose statistics are calculated together by a statistics thread.
+     */
+    private int statisticsBatchSize = 1000;
     /**
      * Covariate info provided from the command line.
      */
     private CovariateInfo covInfo;
 
 
+    /**
+     * Set the number of consecutive sites whose statistics are calculated together by a statistics thread.
+     */
+    public void setStatisticsBatchSize(final int statisticsBatchSize) {
+        this.statisticsBatchSize = statisticsBatchSize;
+    }
+
     public void setDisableAtLeastQuarterFilter(boolean disableAtLeastQuarterFilter) {
         this.disableAtLeastQuarterFilter = disableAtLeastQuarterFilter;
     }
@@ -221,6 +242,11 @@ public class DiscoverSequenceVariantsMode extends AbstractGobyMode {
         }
         callIndels = jsapResult.getBoolean("call-indels");
         diploid = jsapResult.getBoolean("diploid");
+        tallyGenotypes = jsapResult.getBoolean("tally-genotypes", false);
+        statisticsThreads = jsapResult.getInt("statistics-threads", 0);
+        if (statisticsThreads == -1) {
+            statisticsThreads = Runtime.getRuntime().availableProcessors();
+        }
 
 
         realignmentFactory = configureProcessor(jsapResult);
@@ -341,6 +367,9 @@ public class DiscoverSequenceVariantsMode extends AbstractGobyMode {
             default:
                 throw new InternalError("Filters must be configured for new output format.");
         }
+        if (tallyGenotypes) {
+            tallyGenotypes = canTallyGenotypes(format);
+        }
         System.out.println("Filtering reads that have these criteria:");
         for (final GenotypeFilter filter : genotypeFilters) {
             System.out.println(filter.describe());
@@ -357,6 +386,16 @@ public class DiscoverSequenceVariantsMode extends AbstractGobyMode {
             System.err.println("Indel calling was activated.");
         }
         formatConfigurator.configureFormatter(formatter);
+        if (statisticsThreads > 0 && canPipelineStatistics(format)) {
+            final SequenceVariationOutputFormat[] workerFormatters = new SequenceVariationOutputFormat[statisticsThreads];
+            workerFormatters[0] = formatter;
+            for (int i = 1; i < statisticsThreads; i++) {
+                workerFormatters[i] = newWorkerFormatter(format);
+                formatConfigurator.configureFormatter(workerFormatters[i]);
+            }
+            System.out.printf("Site statistics will be calculated with %d threads.%n", statisticsThreads);
+            formatter = new PipelinedSequenceVariationOutputFormat(workerFormatters, statisticsBatchSize);
+        }
         sortedPositionIterator = new DiscoverVariantIterateSortedAlignments(formatter);
         sortedPositionIterator.setCallIndels(callIndels);
         sortedPositionIterator.setGenome(genome);
@@ -367,6 +406,80 @@ public class DiscoverSequenceVariantsMode extends AbstractGobyMode {
         return this;
     }
 
+    /**
+     * Determine if genotypes can be tallied: the output format must only need the sample counts of each site, and
+     * every genotype filter must support tallies.
+     *
+     * @param format the output format.
+     * @return True when genotypes can be tallied.
+     */
+    private boolean canTallyGenotypes(final OutputFormat format) {
+        switch (format) {
+            case GENOTYPES:
+            case ALLELE_FREQUENCIES:
+            case COMPARE_GROUPS:
+            case SOMATIC_VARIATIONS:
+                for (final GenotypeFilter filter : genotypeFilters) {
+                    if (!filter.supportsTally()) {
+                        System.err.printf("Filter %s does not support tallies. Bases will be stored at each site.%n",
+                                filter.getName());
+                        return false;
+                    }
+                }
+                System.out.println("Genotypes will be tallied at each site.");
+                return true;
+            default:
+                System.err.printf("Format %s needs the bases observed at each site. Bases will be stored at each site.%n",
+                        format);
+                return false;
+        }
+    }
+
+    /**
+     * Determine if site statistics can be calculated on separate threads: records of the output format must only
+     * depend on the sample counts of their site, and must only be written to the VCF output.
+     *
+     * @param format the output format.
+     * @return True when statistics can be calculated on separate threads.
+     */
+    private boolean canPipelineStatistics(final OutputFormat format) {
+        switch (format) {
+            case GENOTYPES:
+            case ALLELE_FREQUENCIES:
+            case COMPARE_GROUPS:
+            case SOMATIC_VARIATIONS:
+                if (VCFWriter.doc().getBoolean("site-matrix")) {
+                    System.err.println("Site statistics are calculated on the reading thread when a site matrix is written.");
+                    return false;
+                }
+                return true;
+            default:
+                System.err.printf("Format %s calculates site statistics on the reading thread.%n", format);
+                return false;
+        }
+    }
+
+    /**
+     * Create an additional output format for a statistics thread.
+     *
+     * @param format a format accepted by canPipelineStatistics.
+     * @return a new, unconfigured, output format.
+     */
+    private SequenceVariationOutputFormat newWorkerFormatter(final OutputFormat format) {
+        switch (format) {
+            case GENOTYPES:
+                return new GenotypesOutputFormat();
+            case ALLELE_FREQUENCIES:
+                return new AlleleFrequencyOutputFormat();
+            case COMPARE_GROUPS:
+                return new CompareGroupsVCFOutputFormat();
+            case SOMATIC_VARIATIONS:
+                return new SomaticVariationOutputFormat();
+            default:
+                throw new InternalError("Site statistics cannot be pipelined for format " + format);
+        }
+    }
+
     private void methylFormat(MethylationFormat formatter) {
         // methylated bases match the reference. Do not filter on minimum variation support.
         int tmp = minimumVariationSupport;
@@ -494,9 +607,13 @@ public class DiscoverSequenceVariantsMode extends AbstractGobyMode {
         AlignmentProcessorFactory realignmentFactory;
         switch (processorName) {
             case REALIGN_NEAR_INDELS:
+                final int realignmentThreads = jsapResult.getInt("realignment-threads", 0) == -1 ?
+                        Runtime.getRuntime().availableProcessors() : jsapResult.getInt("realignment-threads", 0);
                 realignmentFactory = new AlignmentProcessorFactory() {
                     public AlignmentProcessorInterface create(final ConcatSortedAlignmentReader sortedReaders) {
-                        return new LocalSortProcessor(new RealignmentProcessor(sortedReaders));
+                        final RealignmentProcessor realigner = new RealignmentProcessor(sortedReaders);
+                        realigner.setNumThreads(realignmentThreads);
+                        return new LocalSortProcessor(realigner);
                     }
                 };
 
@@ -761,6 +878,7 @@ public class DiscoverSequenceVariantsMode extends AbstractGobyMode {
         sortedPositionIterator.setAlignmentProcessorFactory(realignmentFactory);
         sortedPositionIterator.setOverrideReferenceWithGenome(overrideReferenceWithGenome);
         sortedPositionIterator.setMaxThreshold(maxThresholdPerSite);
+        sortedPositionIterator.setTallyGenotypes(tallyGenotypes);
         sortedPositionIterator.setCallIndels(callIndels);
         sortedPositionIterator.iterate(basenames);
 
@@ -226,6 +226,7 @@ public class EmpiricalPMode extends AbstractGobyMode {
             */
 
         }
+        estimator.close();
         System.out.printf("Rate of true negatives: %3.2f%%%n", 100d * ((numTN + 0d) / (numOther + 0d)));
         System.out.printf("Rate of true positives: %3.2f%%%n", 100d * ((numTP + 0d) / (1000d)));
 
@@ -332,6 +333,7 @@ public class EmpiricalPMode extends AbstractGobyMode {
             process(typeOfPair, groupComparison, elementIds, valuesA, valuesB, covariatesA, covariatesB);
             pg.lightUpdate();
         }
+        flushNullPairs();
         pg.done(lineNumber);
     }
 
@@ -350,6 +352,10 @@ public class EmpiricalPMode extends AbstractGobyMode {
     private void process(ObservationWriter.TypeOfPair typeOfPair, String groupComparison,
                          ObjectArrayList<String> elementIds, IntArrayList valuesA, IntArrayList valuesB,
                          IntArrayList covariatesA, IntArrayList covariatesB) {
+        if (typeOfPair != ObservationWriter.TypeOfPair.WITHIN_GROUP_PAIR) {
+            // p-values must be estimated from all the within group pairs seen so far:
+            flushNullPairs();
+        }
         switch (typeOfPair) {
             case BETWEEN_GROUP_PAIR:
                 if (!useExistingDensity && testDensities != null) {
@@ -371,9 +377,44 @@ public class EmpiricalPMode extends AbstractGobyMode {
         }
     }
 
+    /**
+     * Number of within group pairs observed together when the null distribution is estimated with several threads.
+     */
+    private static final int NULL_PAIRS_BATCH_SIZE = 100000;
+    private final ObjectArrayList<IntArrayList> nullValuesA = new ObjectArrayList<IntArrayList>();
+    private final ObjectArrayList<IntArrayList> nullValuesB = new ObjectArrayList<IntArrayList>();
+    private final ObjectArrayList<IntArrayList> nullCovariatesA = new ObjectArrayList<IntArrayList>();
+    private final ObjectArrayList<IntArrayList> nullCovariatesB = new ObjectArrayList<IntArrayList>();
+
     private void observeNullDistribution(IntArrayList valuesA, IntArrayList valuesB, IntArrayList covariatesA, IntArrayList covariatesB) {
+        if (estimator.getNumThreads() == 1) {
+            estimator.estimateNullDensity(valuesA, valuesB, covariatesA, covariatesB);
+            return;
+        }
+        // the lists are reused for the next line, keep copies:
+        nullValuesA.add(valuesA.clone());
+        nullValuesB.add(valuesB.clone());
+        nullCovariatesA.add(covariatesA.clone());
+        nullCovariatesB.add(covariatesB.clone());
+        if (nullValuesA.size() >= NULL_PAIRS_BATCH_SIZE) {
+            flushNullPairs();
+        }
+    }
 
-        estimator.estimateNullDensity(valuesA, valuesB, covariatesA, covariatesB);
+    /**
+     * Observe the within group pairs collected so far.
+     */
+    private void flushNullPairs() {
+        if (nullValuesA.isEmpty()) {
+            return;
+        }
+        final IntArrayList[] type = new IntArrayList[0];
+        estimator.estimateNullDensity(nullValuesA.toArray(type), nullValuesB.toArray(type),
+                nullCovariatesA.toArray(type), nullCovariatesB.toArray(type));
+        nullValuesA.clear();
+        nullValuesB.clear();
+        nullCovariatesA.clear();
+        nullCovariatesB.clear();
     }
 
     private void observeTestDistributions(String groupComparison, IntArrayList valuesA, IntArrayList valuesB, IntArrayList covariatesA, IntArrayList covariatesB) {
@@ -20,10 +20,13 @@ package edu.cornell.med.icb.goby.modes;
 
 import com.martiansoftware.jsap.JSAPException;
 import com.martiansoftware.jsap.JSAPResult;
+import edu.cornell.med.icb.goby.readers.vcf.TabixIndex;
 import edu.cornell.med.icb.goby.readers.vcf.VCFParser;
 import edu.cornell.med.icb.goby.reads.RandomAccessSequenceCache;
 import edu.cornell.med.icb.goby.xml.MethylStats;
 import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.ints.Int2LongMap;
+import it.unimi.dsi.fastutil.ints.Int2LongOpenHashMap;
 import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.longs.LongArrayList;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
@@ -34,10 +37,23 @@ import org.apache.log4j.Logger;
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.Marshaller;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 /**
@@ -74,11 +90,10 @@ public class MethylStatsMode extends AbstractGobyMode {
     private static final boolean QUICK = false;
 
     private boolean doFragments = true;
-    private int[] baseCallGlobalFieldIndex;
-
-    private int[] convertedCystosineGlobalFieldIndex;
-    private int[] unconvertedCystosineGlobalFieldIndex;
-    private int numSamples;
+    /**
+     * File where the fragment lengths of the genome CpGs are cached across runs, or null.
+     */
+    private String cpgCacheFilename;
     private int minCoverageThreshold = 10;
     private String depthOutputFilename;
     private String conversionRateOutputFilename;
@@ -131,6 +146,12 @@ public class MethylStatsMode extends AbstractGobyMode {
         doFragments = jsapResult.getBoolean("fragments");
         fragmentLengthBins = stringToInts(jsapResult.getString("fragment-lengths"));
         depths = stringToInts(jsapResult.getString("depths"));
+        cpgCacheFilename = jsapResult.getString("cpg-background-cache");
+        numThreads = jsapResult.getInt("num-threads");
+        if (numThreads == -1) {
+            numThreads = Runtime.getRuntime().availableProcessors();
+        }
+        numThreads = Math.max(1, numThreads);
         return this;
     }
 
@@ -152,11 +173,6 @@ public class MethylStatsMode extends AbstractGobyMode {
         return result.toIntArray();
     }
 
-    int positionOfNextCpG = -1;
-    int refIndexOfNextCpG = -1;
-    int[] sampleDepthGlobalFieldIndex;
-    int[] methylationRateGlobalFieldIndex;
-
     /**
      * Run the mode.
      */
@@ -165,140 +181,55 @@ public class MethylStatsMode extends AbstractGobyMode {
         final PrintWriter output;
         try {
             output = statsOuputFilename.equals("-") ? new PrintWriter(System.out) : new PrintWriter(new FileWriter(statsOuputFilename));
-            final MethylStats backgroundStats = new MethylStats(depths, fragmentLengthBins);
-            // First process the genome to find out the background distribution of CpGs:
-            if (doFragments) {
-                System.out.printf("Pre-processing genome.%n");
-                scanOneStrand(backgroundStats, '+');
-                scanOneStrand(backgroundStats, '-');
-                System.out.printf("Found %d CpG sites in genome.%n", backgroundStats.getNumberCpGsInGenome());
-
-            } else {
-                System.out.println("Fragment analysis is not activated (activate with --fragments/-f).");
-            }
-
-            final String[] samples = getSampleIds();
-            MethylStats[] methylStats = new MethylStats[samples.length];
-            for (int i = 0; i < samples.length; i++) {
-                methylStats[i] = backgroundStats.copy();
-                methylStats[i].sampleId = samples[i];
-            }
-            ProgressLogger fileProgress = new ProgressLogger(LOG);
-            fileProgress.itemsName = "files";
-            fileProgress.displayFreeMemory = false;
-            fileProgress.count = inputFilenames.length;
-            fileProgress.priority = Level.INFO;
-            fileProgress.start("Starting to scan input files..");
-            for (String vcfFilename : inputFilenames) {
-
-
-                try {
-                    final VCFParser vcfParser = new VCFParser(vcfFilename);
-                    vcfParser.readHeader();
-
-                    final String[] newSamples = vcfParser.getColumnNamesUsingFormat();
-                    if (!Arrays.equals(samples, newSamples)) {
-                        System.err.printf("Error: samples must match across all input files. Samples from first file were %s and from %s were %s ",
-                                ObjectArrayList.wrap(samples),
-                                vcfFilename,
-                                ObjectArrayList.wrap(newSamples));
-
-                        System.exit(1);
+            final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+            try {
+                final MethylStats backgroundStats = new MethylStats(depths, fragmentLengthBins);
+                // First process the genome to find out the background distribution of CpGs:
+                if (doFragments) {
+                    System.out.printf("Pre-processing genome.%n");
+                    final Int2LongMap fragmentLengths = genomeFragmentLengths(executor);
+                    for (final Int2LongMap.Entry entry : fragmentLengths.int2LongEntrySet()) {
+                        backgroundStats.genomeHasCpGs(entry.getIntKey(), entry.getLongValue());
                     }
-                    sampleDepthGlobalFieldIndex = new int[samples.length];
-                    methylationRateGlobalFieldIndex = new int[samples.length];
-                    convertedCystosineGlobalFieldIndex = new int[samples.length];
-                    unconvertedCystosineGlobalFieldIndex = new int[samples.length];
-                    baseCallGlobalFieldIndex = new int[samples.length];
-
-                    int i = 0;
-
-
-                    for (final String sample : samples) {
-                        sampleDepthGlobalFieldIndex[i] = vcfParser.getGlobalFieldIndex(sample, "GB");
-                        methylationRateGlobalFieldIndex[i] = vcfParser.getGlobalFieldIndex(sample, "MR");
-                        convertedCystosineGlobalFieldIndex[i] = vcfParser.getGlobalFieldIndex(sample, "C");
-                        unconvertedCystosineGlobalFieldIndex[i] = vcfParser.getGlobalFieldIndex(sample, "Cm");
-                        if (convertedCystosineGlobalFieldIndex[i] == -1 || unconvertedCystosineGlobalFieldIndex[i] == -1) {
-                            System.err.println("Fatal: the vcf file must contain the FORMAT fields Cm and C.");
-                            System.exit(1);
-                        }
-                        baseCallGlobalFieldIndex[i] = vcfParser.getGlobalFieldIndex(sample, "BC");
+                    System.out.printf("Found %d CpG sites in genome.%n", backgroundStats.getNumberCpGsInGenome());
 
-                        i++;
-                    }
-                    int positionGlobalFieldIndex = vcfParser.getGlobalFieldIndex("POS", "VALUE");
-                    int chromosomeGlobalFieldIndex = vcfParser.getGlobalFieldIndex("CHROM", "VALUE");
-                    int strandGlobalFieldIndex = vcfParser.getGlobalFieldIndex("INFO", "Strand");
-
-
-                    MethylStats stats = backgroundStats.copy();
-                    ProgressLogger pg = new ProgressLogger(LOG);
-                    pg.priority = org.apache.log4j.Level.INFO;
-                    pg.itemsName = "sites";
-                    pg.displayFreeMemory = true;
-                    pg.start("Scanning sites in file " + vcfFilename);
-                    final int numSamples = samples.length;
-
-
-                    while (vcfParser.hasNextDataLine()) {
-                        pg.lightUpdate();
-                        String reference = vcfParser.getFieldValue(chromosomeGlobalFieldIndex).toString();
-                        if (ignoreRef(reference)) {
-                            vcfParser.next();
-                            continue;
-                        }
-                        int referenceIndex = genome.getReferenceIndex(reference);
-
-                        if (referenceIndex != refIndexOfNextCpG) {
-                            // we have change reference sequence or are past the next site.
-                            // need to update next CpG position
-                            if (referenceIndex > genome.numberOfSequences()) {
-                                System.out.printf("alignment reference %s does not exist in genome.", reference);
-                                System.exit(1);
-                            }
-                            referenceSequenceSize = genome.getSequenceSize(referenceIndex);
-                            refIndexOfNextCpG = referenceIndex;
-                        }
-                        // VCF positions are 1-based, but Goby genome positions are 0-based, adjust here:
-                        int sitePosition = Integer.parseInt(vcfParser.getFieldValue(positionGlobalFieldIndex).toString()) - 1;
-                        char strand = vcfParser.getFieldValue(strandGlobalFieldIndex).charAt(0);
-                        if (doFragments) {
-                            if (isCpG(referenceIndex, sitePosition, strand)) {
-
-                                final int fragmentLength = calculateFragmentLength(reference, sitePosition, strand);
-                                if (fragmentLength > 0) {
-                                    for (i = 0; i < numSamples; i++) {
-                                        final int depthInSample = Integer.parseInt(vcfParser.getFieldValue(sampleDepthGlobalFieldIndex[i]).toString());
-                                        if (depthInSample > 10) {
-                                            methylStats[i].observedInSample(depthInSample, fragmentLength);
-                                        }
-                                    }
-                                }
-                            }
-                        }
-                        for (i = 0; i < numSamples; i++) {
-                            final int depthInSample = Integer.parseInt(vcfParser.getFieldValue(sampleDepthGlobalFieldIndex[i]).toString());
-                            methylStats[i].observedDepth(depthInSample);
-                        }
-                        updateCpXs(reference, referenceIndex, sitePosition, strand, methylStats, vcfParser, numSamples);
+                } else {
+                    System.out.println("Fragment analysis is not activated (activate with --fragments/-f).");
+                }
 
-                        vcfParser.next();
+                final String[] samples = getSampleIds();
+                final MethylStats[] methylStats = new MethylStats[samples.length];
+                for (int i = 0; i < samples.length; i++) {
+                    methylStats[i] = backgroundStats.copy();
+                    methylStats[i].sampleId = samples[i];
+                }
+                // scan input files, or chromosomes of indexed input files, concurrently:
+                final ObjectArrayList<Future<MethylStats[]>> scans = new ObjectArrayList<Future<MethylStats[]>>();
+                for (final String vcfFilename : inputFilenames) {
+                    for (final String chromosome : getChromosomes(vcfFilename)) {
+                        scans.add(executor.submit(new SiteScan(vcfFilename, chromosome, samples)));
                     }
-                    pg.stop();
-                    pg.done();
-
-
-                    output.flush();
-                } catch (VCFParser.SyntaxException e) {
-                    System.err.println("exception reading VCF file: " + e);
-                    e.printStackTrace();
                 }
-                fileProgress.update();
+                final ProgressLogger scanProgress = new ProgressLogger(LOG);
+                scanProgress.itemsName = "scans";
+                scanProgress.displayFreeMemory = false;
+                scanProgress.expectedUpdates = scans.size();
+                scanProgress.priority = Level.INFO;
+                scanProgress.start(String.format("Starting to scan %d input files..", inputFilenames.length));
+                for (final Future<MethylStats[]> scan : scans) {
+                    // merge the stats of each scan:
+                    final MethylStats[] scanStats = scan.get();
+                    for (int i = 0; i < samples.length; i++) {
+                        methylStats[i].add(scanStats[i]);
+                    }
+                    scanProgress.update();
+                }
+                scanProgress.done();
+                writeTab(output, samples, methylStats);
+                output.close();
+            } finally {
+                executor.shutdownNow();
             }
-            fileProgress.done();
-            writeTab(output, samples, methylStats);
-            output.close();
         } catch (IOException e) {
             System.err.println("An error occurred opening the output file. ");
             System.exit(1);
@@ -307,72 +238,266 @@ public class MethylStatsMode extends AbstractGobyMode {
         }
     }
 
+    /**
+     * Return the chromosomes of an input file that can be scanned independently. Files with a tabix index
+     * are scanned one chromosome at a time. Other files are scanned as a whole, indicated by a null chromosome.
+     */
+    private ObjectArrayList<String> getChromosomes(final String vcfFilename) throws IOException {
+        final ObjectArrayList<String> chromosomes = new ObjectArrayList<String>();
+        final String indexFilename = vcfFilename + ".tbi";
+        if (new File(indexFilename).exists()) {
+            chromosomes.addElements(0, TabixIndex.load(indexFilename).getChromosomes());
+        } else {
+            chromosomes.add(null);
+        }
+        return chromosomes;
+    }
 
-    private void updateCpXs(String reference, int referenceIndex, int sitePosition, char strand,
-                            MethylStats[] methylStats, VCFParser vcfParser, int numSamples) {
-        if (sitePosition + 1 >= referenceSequenceSize) {
-            return;
+    /**
+     * Scans the sites of a VCF file, or of one chromosome of the file, and collects per-sample stats
+     * starting from zero counts.
+     */
+    private class SiteScan implements Callable<MethylStats[]> {
+        private final String vcfFilename;
+        private final String chromosome;
+        private final String[] samples;
+        private final MethylStats[] methylStats;
+        private int referenceSequenceSize;
+        private int refIndexOfNextCpG = -1;
+        private int[] sampleDepthGlobalFieldIndex;
+        private int[] methylationRateGlobalFieldIndex;
+        private int[] baseCallGlobalFieldIndex;
+        private int[] convertedCystosineGlobalFieldIndex;
+        private int[] unconvertedCystosineGlobalFieldIndex;
+
+        private SiteScan(final String vcfFilename, final String chromosome, final String[] samples) {
+            this.vcfFilename = vcfFilename;
+            this.chromosome = chromosome;
+            this.samples = samples;
+            methylStats = new MethylStats[samples.length];
+            for (int i = 0; i < samples.length; i++) {
+                methylStats[i] = new MethylStats(depths, fragmentLengthBins);
+            }
         }
-        if (strand == '-' && sitePosition < 1) { // there is no previous base to check
-            return;
+
+        @Override
+        public MethylStats[] call() throws IOException {
+            try {
+                final VCFParser vcfParser = chromosome == null ? new VCFParser(vcfFilename) :
+                        new VCFParser(vcfFilename, chromosome, 1, Integer.MAX_VALUE);
+                try {
+                    scan(vcfParser);
+                } finally {
+                    vcfParser.close();
+                }
+            } catch (VCFParser.SyntaxException e) {
+                System.err.println("exception reading VCF file: " + e);
+                e.printStackTrace();
+            }
+            return methylStats;
         }
-        final char firstBase = genome.get(referenceIndex, sitePosition);
-        final char secondBase = genome.get(referenceIndex, sitePosition + (strand == '+' ? 1 : -1));
-        if (isC(firstBase, strand)) {
-
-
-            for (int i = 0; i < numSamples; i++) {
-                final int depthInSample = Integer.parseInt(vcfParser.getFieldValue(sampleDepthGlobalFieldIndex[i]).toString());
-                final CharSequence baseCalls = vcfParser.getFieldValue(baseCallGlobalFieldIndex[i]);
-                if ("ignore".equals(baseCalls)) continue;
-                final float mr = Integer.parseInt(vcfParser.getFieldValue(methylationRateGlobalFieldIndex[i]).toString());
-                final int numCm = Integer.parseInt(vcfParser.getFieldValue(unconvertedCystosineGlobalFieldIndex[i]).toString());
-                final int numCConverted = Integer.parseInt(vcfParser.getFieldValue(convertedCystosineGlobalFieldIndex[i]).toString());
-
-                final MethylStats stats = methylStats[i];
-                if (base(secondBase, strand) != 'G') {
-                    stats.numConvertedNotCpGContext += numCConverted;
-                    stats.numNotCpGContext += numCConverted + numCm;
-                    /*   System.out.printf("non CpG: pos=%d strand=%c numCm=%d numC=%d mr=%g depth=%d %c%c %n", sitePosition,
-             strand,
-             numCm, numCConverted, mr,
-             depthInSample,
-             firstBase, secondBase);      */
+
+        private void scan(final VCFParser vcfParser) throws VCFParser.SyntaxException {
+            vcfParser.readHeader();
+
+            final String[] newSamples = vcfParser.getColumnNamesUsingFormat();
+            if (!Arrays.equals(samples, newSamples)) {
+                System.err.printf("Error: samples must match across all input files. Samples from first file were %s and from %s were %s ",
+                        ObjectArrayList.wrap(samples),
+                        vcfFilename,
+                        ObjectArrayList.wrap(newSamples));
+
+                System.exit(1);
+            }
+            sampleDepthGlobalFieldIndex = new int[samples.length];
+            methylationRateGlobalFieldIndex = new int[samples.length];
+            convertedCystosineGlobalFieldIndex = new int[samples.length];
+            unconvertedCystosineGlobalFieldIndex = new int[samples.length];
+            baseCallGlobalFieldIndex = new int[samples.length];
+
+            int i = 0;
+
+
+            for (final String sample : samples) {
+                sampleDepthGlobalFieldIndex[i] = vcfParser.getGlobalFieldIndex(sample, "GB");
+                methylationRateGlobalFieldIndex[i] = vcfParser.getGlobalFieldIndex(sample, "MR");
+                convertedCystosineGlobalFieldIndex[i] = vcfParser.getGlobalFieldIndex(sample, "C");
+                unconvertedCystosineGlobalFieldIndex[i] = vcfParser.getGlobalFieldIndex(sample, "Cm");
+                if (convertedCystosineGlobalFieldIndex[i] == -1 || unconvertedCystosineGlobalFieldIndex[i] == -1) {
+                    System.err.println("Fatal: the vcf file must contain the FORMAT fields Cm and C.");
+                    System.exit(1);
                 }
-                if (depthInSample < minCoverageThreshold || mr < 10) {
-                    // discard positions if less than 10 bases observed methylated or less than 10% methylation. We do this to try to avoid
-                    // sequencing errors.
+                baseCallGlobalFieldIndex[i] = vcfParser.getGlobalFieldIndex(sample, "BC");
+
+                i++;
+            }
+            int positionGlobalFieldIndex = vcfParser.getGlobalFieldIndex("POS", "VALUE");
+            int chromosomeGlobalFieldIndex = vcfParser.getGlobalFieldIndex("CHROM", "VALUE");
+            int strandGlobalFieldIndex = vcfParser.getGlobalFieldIndex("INFO", "Strand");
+
+            ProgressLogger pg = new ProgressLogger(LOG);
+            pg.priority = org.apache.log4j.Level.INFO;
+            pg.itemsName = "sites";
+            pg.displayFreeMemory = true;
+            pg.start("Scanning sites in file " + vcfFilename + (chromosome == null ? "" : " chromosome " + chromosome));
+            final int numSamples = samples.length;
+
+
+            while (vcfParser.hasNextDataLine()) {
+                pg.lightUpdate();
+                String reference = vcfParser.getFieldValue(chromosomeGlobalFieldIndex).toString();
+                if (ignoreRef(reference)) {
+                    vcfParser.next();
                     continue;
                 }
+                int referenceIndex = genome.getReferenceIndex(reference);
 
-                long[] mCpXfreqs = stats.getMethylCpXFreqs();
-                long[] cPXFreqs = stats.getObservedCpXFreqs();
-                switch (base(secondBase, strand)) {
-                    case 'C':
-                        mCpXfreqs[MethylStats.CPC] += numCm;
-                        cPXFreqs[MethylStats.CPC] += numCm + numCConverted;
-                        // final CharSequence baseCalls = vcfParser.getFieldValue(baseCallGlobalFieldIndex[i]);
-                        //   System.out.printf("ref: %s position: %d strand %c %c %c baseCalls=%s %n", reference, sitePosition+1, strand, firstBase, secondBase,baseCalls);
-                        break;
-                    case 'A':
-                        mCpXfreqs[MethylStats.CPA] += numCm;
-                        cPXFreqs[MethylStats.CPA] += numCm + numCConverted;
-
-                        break;
-                    case 'T':
-                        mCpXfreqs[MethylStats.CPT] += numCm;
-                        cPXFreqs[MethylStats.CPT] += numCm + numCConverted;
-                        break;
-                    case 'G':
-                        stats.numCTpG += depthInSample;
-                        mCpXfreqs[MethylStats.CPG] += numCm;
-                        cPXFreqs[MethylStats.CPG] += numCm + numCConverted;
-                        break;
+                if (referenceIndex != refIndexOfNextCpG) {
+                    // we have change reference sequence or are past the next site.
+                    // need to update next CpG position
+                    if (referenceIndex > genome.numberOfSequences()) {
+                        System.out.printf("alignment reference %s does not exist in genome.", reference);
+                        System.exit(1);
+                    }
+                    referenceSequenceSize = genome.getSequenceSize(referenceIndex);
+                    refIndexOfNextCpG = referenceIndex;
                 }
+                // VCF positions are 1-based, but Goby genome positions are 0-based, adjust here:
+                int sitePosition = Integer.parseInt(vcfParser.getFieldValue(positionGlobalFieldIndex).toString()) - 1;
+                char strand = vcfParser.getFieldValue(strandGlobalFieldIndex).charAt(0);
+                if (doFragments) {
+                    if (isCpG(referenceIndex, sitePosition, strand)) {
+
+                        final int fragmentLength = calculateFragmentLength(reference, sitePosition, strand);
+                        if (fragmentLength > 0) {
+                            for (i = 0; i < numSamples; i++) {
+                                final int depthInSample = Integer.parseInt(vcfParser.getFieldValue(sampleDepthGlobalFieldIndex[i]).toString());
+                                if (depthInSample > 10) {
+                                    methylStats[i].observedInSample(depthInSample, fragmentLength);
+                                }
+                            }
+                        }
+                    }
+                }
+                for (i = 0; i < numSamples; i++) {
+                    final int depthInSample = Integer.parseInt(vcfParser.getFieldValue(sampleDepthGlobalFieldIndex[i]).toString());
+                    methylStats[i].observedDepth(depthInSample);
+                }
+                updateCpXs(reference, referenceIndex, sitePosition, strand, methylStats, vcfParser, numSamples);
+
+                vcfParser.next();
             }
+            pg.stop();
+            pg.done();
+        }
 
+        private void updateCpXs(String reference, int referenceIndex, int sitePosition, char strand,
+                                MethylStats[] methylStats, VCFParser vcfParser, int numSamples) {
+            if (sitePosition + 1 >= referenceSequenceSize) {
+                return;
+            }
+            if (strand == '-' && sitePosition < 1) { // there is no previous base to check
+                return;
+            }
+            final char firstBase = genome.get(referenceIndex, sitePosition);
+            final char secondBase = genome.get(referenceIndex, sitePosition + (strand == '+' ? 1 : -1));
+            if (isC(firstBase, strand)) {
+
+
+                for (int i = 0; i < numSamples; i++) {
+                    final int depthInSample = Integer.parseInt(vcfParser.getFieldValue(sampleDepthGlobalFieldIndex[i]).toString());
+                    final CharSequence baseCalls = vcfParser.getFieldValue(baseCallGlobalFieldIndex[i]);
+                    if ("ignore".equals(baseCalls)) continue;
+                    final float mr = Integer.parseInt(vcfParser.getFieldValue(methylationRateGlobalFieldIndex[i]).toString());
+                    final int numCm = Integer.parseInt(vcfParser.getFieldValue(unconvertedCystosineGlobalFieldIndex[i]).toString());
+                    final int numCConverted = Integer.parseInt(vcfParser.getFieldValue(convertedCystosineGlobalFieldIndex[i]).toString());
+
+                    final MethylStats stats = methylStats[i];
+                    if (base(secondBase, strand) != 'G') {
+                        stats.numConvertedNotCpGContext += numCConverted;
+                        stats.numNotCpGContext += numCConverted + numCm;
+                        /*   System.out.printf("non CpG: pos=%d strand=%c numCm=%d numC=%d mr=%g depth=%d %c%c %n", sitePosition,
+                 strand,
+                 numCm, numCConverted, mr,
+                 depthInSample,
+                 firstBase, secondBase);      */
+                    }
+                    if (depthInSample < minCoverageThreshold || mr < 10) {
+                        // discard positions if less than 10 bases observed methylated or less than 10% methylation. We do this to try to avoid
+                        // sequencing errors.
+                        continue;
+                    }
+
+                    long[] mCpXfreqs = stats.getMethylCpXFreqs();
+                    long[] cPXFreqs = stats.getObservedCpXFreqs();
+                    switch (base(secondBase, strand)) {
+                        case 'C':
+                            mCpXfreqs[MethylStats.CPC] += numCm;
+                            cPXFreqs[MethylStats.CPC] += numCm + numCConverted;
+                            // final CharSequence baseCalls = vcfParser.getFieldValue(baseCallGlobalFieldIndex[i]);
+                            //   System.out.printf("ref: %s position: %d strand %c %c %c baseCalls=%s %n", reference, sitePosition+1, strand, firstBase, secondBase,baseCalls);
+                            break;
+                        case 'A':
+                            mCpXfreqs[MethylStats.CPA] += numCm;
+                            cPXFreqs[MethylStats.CPA] += numCm + numCConverted;
+
+                            break;
+                        case 'T':
+                            mCpXfreqs[MethylStats.CPT] += numCm;
+                            cPXFreqs[MethylStats.CPT] += numCm + numCConverted;
+                            break;
+                        case 'G':
+                            stats.numCTpG += depthInSample;
+                            mCpXfreqs[MethylStats.CPG] += numCm;
+                            cPXFreqs[MethylStats.CPG] += numCm + numCConverted;
+                            break;
+                    }
+                }
+
+
+            }
+        }
+
+        private boolean isCpG(final int referenceIndex, final int sitePosition, char strand) {
+            if (sitePosition + 1 > referenceSequenceSize) {
+                return false;
+            }
+            char firstBase = genome.get(referenceIndex, sitePosition);
+            char secondBase = genome.get(referenceIndex, sitePosition + 1);
+            /*  if (firstBase != 'N' && secondBase != 'N') {
+               System.out.printf("%c %c %n", firstBase, secondBase);
+           } */
+            return MethylStatsMode.this.isCpG(firstBase, secondBase, strand);
 
         }
+
+        private int calculateFragmentLength(String reference, int sitePosition, final char strand) {
+            int referenceIndex = genome.getReferenceIndex(reference);
+
+            char previousBase = '\0';
+            char currentBase = '\0';
+            int positionCpG1 = sitePosition;
+            int positionCpG2 = 0;
+            int fragmentLength = -1;
+            int direction = strand == '+' ? 1 : -1;
+            for (int pos = sitePosition + 2 * direction; strand == '+' ? pos < referenceSequenceSize : pos >= 0;
+                 pos += direction) {
+                currentBase = genome.get(referenceIndex, pos);
+                if (MethylStatsMode.this.isCpG(previousBase, currentBase, strand)) {
+                    // found a new CpG.
+                    positionCpG1 = sitePosition;
+                    positionCpG2 = pos;
+
+                    fragmentLength = strand == '+' ? positionCpG2 - positionCpG1 : positionCpG1 - positionCpG2;
+
+                    if (fragmentLength > 0) {
+                        return fragmentLength;
+                    } else return -1;
+                }
+                previousBase = currentBase;
+            }
+            return -1;
+        }
     }
 
     private char base(char base, char strand) {
@@ -399,47 +524,140 @@ public class MethylStatsMode extends AbstractGobyMode {
         return strand == '+' && firstBase == 'C' || strand == '-' && firstBase == 'G';
     }
 
-    private void scanOneStrand(MethylStats backgroundStats, char strand) {
-        ProgressLogger pg = new ProgressLogger(LOG);
-
-        pg.priority = org.apache.log4j.Level.INFO;
-        pg.itemsName = "bases";
-        pg.displayFreeMemory = true;
-        pg.start(String.format("counting genome CpG sites on %c strand.", strand));
+    /**
+     * Return the histogram of the lengths of fragments between consecutive CpGs of the genome, on both
+     * strands. Sequences and strands are scanned concurrently. The histogram does not depend on the fragment
+     * length bins, so it is cached when a cache filename is provided, and reused across runs.
+     */
+    private Int2LongMap genomeFragmentLengths(final ExecutorService executor)
+            throws IOException, InterruptedException, ExecutionException {
+        if (cpgCacheFilename != null && new File(cpgCacheFilename).exists()) {
+            final Int2LongMap cached = loadFragmentLengths(cpgCacheFilename);
+            if (cached != null) {
+                LOG.info("Loaded genome CpG fragment lengths from " + cpgCacheFilename);
+                return cached;
+            }
+            LOG.warn("Ignoring " + cpgCacheFilename + ", it was created for a different genome.");
+        }
+        final ObjectArrayList<Future<Int2LongOpenHashMap>> scans = new ObjectArrayList<Future<Int2LongOpenHashMap>>();
         for (int sequenceIndex = 0; sequenceIndex < genome.numberOfSequences(); sequenceIndex++) {
             if (QUICK && genome.getReferenceIndex("1") != sequenceIndex) {
                 continue;
             }
+            for (final char strand : new char[]{'+', '-'}) {
+                final int index = sequenceIndex;
+                scans.add(executor.submit(new Callable<Int2LongOpenHashMap>() {
+                    @Override
+                    public Int2LongOpenHashMap call() {
+                        return scanOneStrand(index, strand);
+                    }
+                }));
+            }
+        }
+        final ProgressLogger pg = new ProgressLogger(LOG);
+        pg.priority = org.apache.log4j.Level.INFO;
+        pg.itemsName = "sequence strands";
+        pg.expectedUpdates = scans.size();
+        pg.start("counting genome CpG sites.");
+        final Int2LongOpenHashMap fragmentLengths = new Int2LongOpenHashMap();
+        for (final Future<Int2LongOpenHashMap> scan : scans) {
+            for (final Int2LongMap.Entry entry : scan.get().int2LongEntrySet()) {
+                fragmentLengths.put(entry.getIntKey(), fragmentLengths.get(entry.getIntKey()) + entry.getLongValue());
+            }
+            pg.update();
+        }
+        pg.done();
+        if (cpgCacheFilename != null) {
+            saveFragmentLengths(cpgCacheFilename, fragmentLengths);
+        }
+        return fragmentLengths;
+    }
 
-            final int genomeSequenceSize = genome.getSequenceSize(sequenceIndex);
-            char previousBase = '\0';
-            char currentBase = '\0';
-            int positionCpG1 = 0;
-            int positionCpG2 = 0;
-            int fragmentLength = -1;
-            for (int position = strand == '+' ? 0 :
-                    genomeSequenceSize - 1; strand == '+' ? position < genomeSequenceSize :
-                    position >= 0; position += strand == '+' ? 1 : -1) {
-
-                currentBase = genome.get(sequenceIndex, position);
-                pg.lightUpdate();
-                if (isCpG(previousBase, currentBase, strand)) {
-                    // found a new CpG.
-                    positionCpG1 = positionCpG2;
-                    positionCpG2 = position;
-                    fragmentLength = strand == '+' ?
-                            positionCpG2 - positionCpG1 :
-                            positionCpG1 - positionCpG2;
-                    if (fragmentLength > 0) {
-                        backgroundStats.genomeHasCpG(fragmentLength);
+    /**
+     * Count the lengths of fragments between consecutive CpGs of one strand of a genome sequence.
+     */
+    private Int2LongOpenHashMap scanOneStrand(final int sequenceIndex, final char strand) {
+        final Int2LongOpenHashMap fragmentLengths = new Int2LongOpenHashMap();
+        final int genomeSequenceSize = genome.getSequenceSize(sequenceIndex);
+        char previousBase = '\0';
+        char currentBase = '\0';
+        int positionCpG1 = 0;
+        int positionCpG2 = 0;
+        int fragmentLength = -1;
+        for (int position = strand == '+' ? 0 :
+                genomeSequenceSize - 1; strand == '+' ? position < genomeSequenceSize :
+                position >= 0; position += strand == '+' ? 1 : -1) {
 
-                    }
+            currentBase = genome.get(sequenceIndex, position);
+            if (isCpG(previousBase, currentBase, strand)) {
+                // found a new CpG.
+                positionCpG1 = positionCpG2;
+                positionCpG2 = position;
+                fragmentLength = strand == '+' ?
+                        positionCpG2 - positionCpG1 :
+                        positionCpG1 - positionCpG2;
+                if (fragmentLength > 0) {
+                    fragmentLengths.put(fragmentLength, fragmentLengths.get(fragmentLength) + 1);
                 }
+            }
 
-                previousBase = currentBase;
+            previousBase = currentBase;
+        }
+        return fragmentLengths;
+    }
+
+    /**
+     * Write the genome CpG fragment lengths, with the names and sizes of the genome sequences they were
+     * calculated for.
+     */
+    private void saveFragmentLengths(final String filename, final Int2LongMap fragmentLengths) throws IOException {
+        final DataOutputStream cache = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename)));
+        try {
+            writeGenomeSignature(cache);
+            cache.writeInt(fragmentLengths.size());
+            for (final Int2LongMap.Entry entry : fragmentLengths.int2LongEntrySet()) {
+                cache.writeInt(entry.getIntKey());
+                cache.writeLong(entry.getLongValue());
             }
+        } finally {
+            cache.close();
+        }
+    }
+
+    /**
+     * Load genome CpG fragment lengths.
+     *
+     * @return the fragment lengths, or null if the cache was calculated for another genome.
+     */
+    private Int2LongMap loadFragmentLengths(final String filename) throws IOException {
+        final DataInputStream cache = new DataInputStream(new BufferedInputStream(new FileInputStream(filename)));
+        try {
+            final ByteArrayOutputStream signature = new ByteArrayOutputStream();
+            writeGenomeSignature(new DataOutputStream(signature));
+            final byte[] expected = signature.toByteArray();
+            final byte[] found = new byte[expected.length];
+            if (cache.read(found) != found.length || !Arrays.equals(expected, found)) {
+                return null;
+            }
+            final int size = cache.readInt();
+            final Int2LongOpenHashMap fragmentLengths = new Int2LongOpenHashMap(size);
+            for (int i = 0; i < size; i++) {
+                fragmentLengths.put(cache.readInt(), cache.readLong());
+            }
+            return fragmentLengths;
+        } finally {
+            cache.close();
+        }
+    }
+
+    private void writeGenomeSignature(final DataOutputStream output) throws IOException {
+        output.writeUTF("CpG-fragment-lengths");
+        output.writeBoolean(QUICK);
+        output.writeInt(genome.numberOfSequences());
+        for (int sequenceIndex = 0; sequenceIndex < genome.numberOfSequences(); sequenceIndex++) {
+            output.writeUTF(genome.getReferenceName(sequenceIndex));
+            output.writeInt(genome.getSequenceSize(sequenceIndex));
         }
-        pg.done();
     }
 
     private boolean isCpG(char previousBase, char currentBase, char strand) {
@@ -709,48 +927,6 @@ public class MethylStatsMode extends AbstractGobyMode {
         }
     }
 
-    private boolean isCpG(final int referenceIndex, final int sitePosition, char strand) {
-        if (sitePosition + 1 > referenceSequenceSize) {
-            return false;
-        }
-        char firstBase = genome.get(referenceIndex, sitePosition);
-        char secondBase = genome.get(referenceIndex, sitePosition + 1);
-        /*  if (firstBase != 'N' && secondBase != 'N') {
-           System.out.printf("%c %c %n", firstBase, secondBase);
-       } */
-        return isCpG(firstBase, secondBase, strand);
-
-    }
-
-    private int calculateFragmentLength(String reference, int sitePosition, final char strand) {
-        int referenceIndex = genome.getReferenceIndex(reference);
-
-        char previousBase = '\0';
-        char currentBase = '\0';
-        int positionCpG1 = sitePosition;
-        int positionCpG2 = 0;
-        int fragmentLength = -1;
-        int direction = strand == '+' ? 1 : -1;
-        for (int pos = sitePosition + 2 * direction; strand == '+' ? pos < referenceSequenceSize : pos >= 0;
-             pos += direction) {
-            currentBase = genome.get(referenceIndex, pos);
-            if (isCpG(previousBase, currentBase, strand)) {
-                // found a new CpG.
-                positionCpG1 = sitePosition;
-                positionCpG2 = pos;
-
-                fragmentLength = strand == '+' ? positionCpG2 - positionCpG1 : positionCpG1 - positionCpG2;
-
-                if (fragmentLength > 0) {
-                    return fragmentLength;
-                } else return -1;
-            }
-            previousBase = currentBase;
-        }
-        return -1;
-    }
-
-    int referenceSequenceSize;
 
     private double sum(long[] array) {
         double sum = 0;
@@ -145,6 +145,9 @@ public class MethylationRateVCFOutputFormat extends AbstractOutputFormat impleme
         final ObjectArrayList<ReadIndexStats> readIndexStats = mode.getReadIndexStats();
         final VCFWriter vcfWriter = new VCFWriter(estimateIntraGroupDifferences ? new NullWriter() : outputInfo.getPrintWriter());
         this.statWriter = vcfWriter;
+        if (!estimateIntraGroupDifferences) {
+            vcfWriter.configureSiteMatrix(outputInfo);
+        }
         groupComparisons = mode.getGroupComparisons();
         int maxComparisonIndex = -1;
         for (final GroupComparison comparison : groupComparisons) {
@@ -405,7 +408,7 @@ public class MethylationRateVCFOutputFormat extends AbstractOutputFormat impleme
             statWriter.setInfo(deltaMRColumnIndex[comparison.index], deltaMR);
 
         }
-        genotypeFormatter.writeGenotypes(statWriter, sampleCounts, oneBasedPosition);
+        genotypeFormatter.writeGenotypes(statWriter, sampleCounts, oneBasedPosition, list);
         for (int sampleIndex = 0; sampleIndex < numberOfSamples; sampleIndex++) {
             final int firstIndex = sampleIndex;
             final int secondIndex = convertIndex(sampleIndex, mci.strandAtSite);
@@ -554,6 +557,7 @@ public class MethylationRateVCFOutputFormat extends AbstractOutputFormat impleme
                 LOG.error("Unable to write estimator to file", e);
             }
         }
+        empiricalPValueEstimator.close();
     }
 
     @Override
@@ -566,7 +570,7 @@ public class MethylationRateVCFOutputFormat extends AbstractOutputFormat impleme
         genomeReferenceIndex = index;
     }
 
-    public static void fillMethylationCountArrays(final SampleCountInfo[] sampleCounts, final ObjectArrayList<PositionBaseInfo> list,
+    public static void fillMethylationCountArrays(final SampleCountInfo[] sampleCounts, final DiscoverVariantPositionData list,
                                                   final int position, final char refBase, final MethylCountInfo mci,
                                                   final int[] readerIndexToGroupIndex) {
 
@@ -579,19 +583,21 @@ public class MethylationRateVCFOutputFormat extends AbstractOutputFormat impleme
             mci.strandAtSite = '-';
         }
 
-        for (final PositionBaseInfo info : list) {
+        final int size = list.size();
+        for (int index = 0; index < size; index++) {
             //@@@! only look at the strand that the read matches:
-            if (refBase == 'G' && info.matchesForwardStrand) {
+            final boolean matchesForwardStrand = list.isMatchingForwardStrand(index);
+            if (refBase == 'G' && matchesForwardStrand) {
                 continue;
             }
-            if (refBase == 'C' && !info.matchesForwardStrand) {
+            if (refBase == 'C' && !matchesForwardStrand) {
                 continue;
             }
 
             if (refBase == 'C' || refBase == 'G') {
                 // readBase is always given in the forward strand..
-                final char readBase = info.matchesReference ? refBase : info.to;
-                final int sampleIndex = info.readerIndex;
+                final char readBase = list.isMatchingReference(index) ? refBase : list.getTo(index);
+                final int sampleIndex = list.getReaderIndex(index);
                 final int groupIndex = readerIndexToGroupIndex[sampleIndex];
 
                 if (readBase == refBase) {
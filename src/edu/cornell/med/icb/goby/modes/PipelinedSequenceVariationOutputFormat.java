@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.modes;
+
+import edu.cornell.med.icb.goby.alignments.DiscoverVariantIterateSortedAlignments;
+import edu.cornell.med.icb.goby.alignments.DiscoverVariantPositionData;
+import edu.cornell.med.icb.goby.alignments.SampleCountInfo;
+import edu.cornell.med.icb.goby.exception.GobyRuntimeException;
+import edu.cornell.med.icb.goby.reads.RandomAccessSequenceInterface;
+import edu.cornell.med.icb.goby.util.OutputInfo;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.apache.log4j.Logger;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Calculates the statistics of sites on a pool of threads, so that pileups keep being built while statistics are
+ * evaluated. The reading thread hands the sample counts of the sites to report to this format, which copies them
+ * into batches of consecutive sites. Each batch is formatted by one of the worker formats, into a buffer, and a
+ * writer thread appends the formatted batches to the output in the order of the sites. Batches waiting to be
+ * written are held in a bounded queue, so that the reading thread waits when statistics or output fall behind.
+ * <p/>
+ * Worker formats must be configured identically, and must only read the sample counts passed to writeRecord: the
+ * list of bases is not available to workers, since pileups are recycled as soon as a site has been processed.
+ * Records of a site must also not depend on the sites reported before it.
+ *
+ * @author Fabien Campagne
+ *         Date: Oct 19, 2012
+ */
+public class PipelinedSequenceVariationOutputFormat implements SequenceVariationOutputFormat {
+    private static final Logger LOG = Logger.getLogger(PipelinedSequenceVariationOutputFormat.class);
+
+    /**
+     * Marks the end of the batches in the queue of the writer thread.
+     */
+    private static final Future<String> END_OF_BATCHES = new FutureTask<String>(new Callable<String>() {
+        public String call() {
+            return null;
+        }
+    });
+
+    private final Worker[] workers;
+    private final BlockingQueue<Worker> idleWorkers;
+    private final BlockingQueue<Future<String>> pendingBatches;
+    private final int batchSize;
+    private Batch batch = new Batch();
+    private int genomeReferenceIndex;
+    private DiscoverVariantIterateSortedAlignments iterator;
+    private int groupIndexA;
+    private int groupIndexB;
+    private PrintWriter output;
+    private ExecutorService statisticsExecutor;
+    private Thread writerThread;
+    private volatile Throwable writerError;
+
+    /**
+     * Create a pipelined format.
+     *
+     * @param formats   one format per statistics thread.
+     * @param batchSize number of sites formatted together by a worker.
+     */
+    public PipelinedSequenceVariationOutputFormat(final SequenceVariationOutputFormat[] formats, final int batchSize) {
+        super();
+        if (formats.length == 0) {
+            throw new IllegalArgumentException("At least one format is needed to calculate statistics.");
+        }
+        this.batchSize = Math.max(1, batchSize);
+        workers = new Worker[formats.length];
+        idleWorkers = new ArrayBlockingQueue<Worker>(formats.length);
+        for (int i = 0; i < formats.length; i++) {
+            workers[i] = new Worker(formats[i]);
+            idleWorkers.add(workers[i]);
+        }
+        // a few batches per thread are calculated or waiting to be written, the reading thread waits beyond that:
+        pendingBatches = new ArrayBlockingQueue<Future<String>>(formats.length * 4);
+    }
+
+    public void defineColumns(final OutputInfo outputInfo, final DiscoverSequenceVariantsMode mode) {
+        for (final Worker worker : workers) {
+            worker.format.defineColumns(worker.outputInfo, mode);
+        }
+        // every worker wrote the same header to its buffer, keep one:
+        final String header = workers[0].takeOutput();
+        for (final Worker worker : workers) {
+            worker.takeOutput();
+        }
+        output = outputInfo.getPrintWriter();
+        output.write(header);
+        startPipeline();
+    }
+
+    private void startPipeline() {
+        statisticsExecutor = Executors.newFixedThreadPool(workers.length, new ThreadFactory() {
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "site-statistics");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        writerThread = new Thread(new Runnable() {
+            public void run() {
+                writeBatches();
+            }
+        }, "site-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+        LOG.debug(String.format("Calculating site statistics with %d threads.", workers.length));
+    }
+
+    /**
+     * Append the formatted batches to the output, in the order they were submitted. After an error, batches are
+     * still taken from the queue so that the reading thread does not wait forever, but they are not written.
+     */
+    private void writeBatches() {
+        try {
+            Future<String> batchRecords;
+            while ((batchRecords = pendingBatches.take()) != END_OF_BATCHES) {
+                if (writerError == null) {
+                    try {
+                        output.write(batchRecords.get());
+                    } catch (ExecutionException e) {
+                        writerError = e.getCause();
+                    } catch (RuntimeException e) {
+                        writerError = e;
+                    }
+                }
+            }
+            output.flush();
+        } catch (InterruptedException e) {
+            writerError = e;
+        }
+    }
+
+    public void allocateStorage(final int numberOfSamples, final int numberOfGroups) {
+        for (final Worker worker : workers) {
+            worker.format.allocateStorage(numberOfSamples, numberOfGroups);
+        }
+    }
+
+    public void writeRecord(final DiscoverVariantIterateSortedAlignments iterator,
+                            final SampleCountInfo[] sampleCounts,
+                            final int referenceIndex, final int position,
+                            final DiscoverVariantPositionData list,
+                            final int groupIndexA, final int groupIndexB) {
+        checkWriterError();
+        this.iterator = iterator;
+        this.groupIndexA = groupIndexA;
+        this.groupIndexB = groupIndexB;
+        // the reading thread reuses sampleCounts for the next site:
+        final SampleCountInfo[] copy = new SampleCountInfo[sampleCounts.length];
+        for (int sampleIndex = 0; sampleIndex < sampleCounts.length; sampleIndex++) {
+            copy[sampleIndex] = sampleCounts[sampleIndex].copy();
+        }
+        batch.add(copy, referenceIndex, position, genomeReferenceIndex);
+        if (batch.size() >= batchSize) {
+            submitBatch();
+        }
+    }
+
+    private void submitBatch() {
+        final DiscoverVariantIterateSortedAlignments iterator = this.iterator;
+        final int groupIndexA = this.groupIndexA;
+        final int groupIndexB = this.groupIndexB;
+        final Batch sites = batch;
+        batch = new Batch();
+        try {
+            pendingBatches.put(statisticsExecutor.submit(new Callable<String>() {
+                public String call() throws InterruptedException {
+                    final Worker worker = idleWorkers.take();
+                    try {
+                        return worker.format(iterator, sites, groupIndexA, groupIndexB);
+                    } finally {
+                        idleWorkers.put(worker);
+                    }
+                }
+            }));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GobyRuntimeException(e);
+        }
+    }
+
+    private void checkWriterError() {
+        if (writerError != null) {
+            throw new GobyRuntimeException("Unable to calculate or write site statistics.", writerError);
+        }
+    }
+
+    /**
+     * Write the sites still in the pipeline, then close the output.
+     */
+    public void close() {
+        if (writerThread == null) {
+            return;
+        }
+        try {
+            if (batch.size() > 0) {
+                submitBatch();
+            }
+            pendingBatches.put(END_OF_BATCHES);
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GobyRuntimeException(e);
+        } finally {
+            statisticsExecutor.shutdownNow();
+            writerThread = null;
+            for (final Worker worker : workers) {
+                worker.format.close();
+            }
+            output.close();
+        }
+        checkWriterError();
+    }
+
+    public void setGenome(final RandomAccessSequenceInterface genome) {
+        for (final Worker worker : workers) {
+            worker.format.setGenome(genome);
+        }
+    }
+
+    /**
+     * Record the genome reference index of the sites that follow. Workers set the index recorded with a site before
+     * formatting it.
+     */
+    public void setGenomeReferenceIndex(final int index) {
+        genomeReferenceIndex = index;
+    }
+
+    /**
+     * Consecutive sites formatted by one worker.
+     */
+    private static class Batch {
+        final ObjectArrayList<SampleCountInfo[]> sampleCounts = new ObjectArrayList<SampleCountInfo[]>();
+        final IntArrayList referenceIndices = new IntArrayList();
+        final IntArrayList positions = new IntArrayList();
+        final IntArrayList genomeReferenceIndices = new IntArrayList();
+
+        void add(final SampleCountInfo[] counts, final int referenceIndex, final int position,
+                 final int genomeReferenceIndex) {
+            sampleCounts.add(counts);
+            referenceIndices.add(referenceIndex);
+            positions.add(position);
+            genomeReferenceIndices.add(genomeReferenceIndex);
+        }
+
+        int size() {
+            return positions.size();
+        }
+    }
+
+    /**
+     * A worker format and the buffer it writes records to.
+     */
+    private static class Worker {
+        final SequenceVariationOutputFormat format;
+        final StringWriter buffer = new StringWriter();
+        final OutputInfo outputInfo;
+
+        Worker(final SequenceVariationOutputFormat format) {
+            this.format = format;
+            final PrintWriter bufferWriter = new PrintWriter(buffer);
+            outputInfo = new OutputInfo() {
+                @Override
+                public PrintWriter getPrintWriter() {
+                    return bufferWriter;
+                }
+            };
+        }
+
+        String format(final DiscoverVariantIterateSortedAlignments iterator, final Batch sites,
+                      final int groupIndexA, final int groupIndexB) {
+            final int size = sites.size();
+            for (int i = 0; i < size; i++) {
+                format.setGenomeReferenceIndex(sites.genomeReferenceIndices.getInt(i));
+                format.writeRecord(iterator, sites.sampleCounts.get(i), sites.referenceIndices.getInt(i),
+                        sites.positions.getInt(i), null, groupIndexA, groupIndexB);
+            }
+            return takeOutput();
+        }
+
+        /**
+         * Return what the format wrote since the last call, and clear the buffer.
+         */
+        String takeOutput() {
+            final StringBuffer written = buffer.getBuffer();
+            final String result = written.toString();
+            written.setLength(0);
+            return result;
+        }
+    }
+}
@@ -22,6 +22,7 @@ import com.martiansoftware.jsap.JSAPException;
 import com.martiansoftware.jsap.JSAPResult;
 import edu.cornell.med.icb.goby.reads.*;
 import edu.cornell.med.icb.goby.util.FileExtensionHelper;
+import edu.cornell.med.icb.goby.util.ParallelReadsToCompactProcessor;
 import it.unimi.dsi.fastutil.bytes.ByteArrayList;
 import it.unimi.dsi.fastutil.chars.CharArraySet;
 import it.unimi.dsi.fastutil.chars.CharSet;
@@ -33,6 +34,7 @@ import it.unimi.dsi.fastutil.objects.ObjectSet;
 import it.unimi.dsi.lang.MutableString;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -52,6 +54,11 @@ import java.util.Random;
  *         Time: 6:03:56 PM
  */
 public class ReformatCompactReadsMode extends AbstractGobyMode {
+    /**
+     * Used to log debug and informational messages.
+     */
+    private static final Logger LOG = Logger.getLogger(ReformatCompactReadsMode.class);
+
     private String[] inputFilenames;
 
     private boolean pushDescription;
@@ -115,6 +122,14 @@ public class ReformatCompactReadsMode extends AbstractGobyMode {
      * The writer to use to output the reformatted output, or null to create one on the fly.
      */
     private ReadsWriter writer;
+    /**
+     * Reformat slices of each input file in parallel.
+     */
+    private boolean parallel;
+    /**
+     * Number of threads to reformat with, or -1 to use all the cores.
+     */
+    private int numThreads = -1;
 
     @Override
     public String getModeName() {
@@ -151,6 +166,8 @@ public class ReformatCompactReadsMode extends AbstractGobyMode {
         mutateSequences = jsapResult.getBoolean("mutate-sequences");
         numberOfMismatches = jsapResult.getInt("mismatch-number");
         readIndexFilterFile = jsapResult.getFile("read-index-filter");
+        parallel = jsapResult.getBoolean("parallel", false);
+        numThreads = jsapResult.getInt("num-threads", -1);
 
         if (jsapResult.contains("start-position") || jsapResult.contains("end-position")) {
             hasStartOrEndPosition = true;
@@ -197,6 +214,17 @@ public class ReformatCompactReadsMode extends AbstractGobyMode {
         } else {
             readIndexFilter.load(readIndexFilterFile);
         }
+        if (trimReadStartLength < 0) {
+            // set once here, since slices may be reformatted concurrently:
+            trimReadStartLength = 0;
+        }
+        // slices can only be reformatted in parallel when each input file is written whole to a new file:
+        final boolean reformatInParallel = parallel && writer == null && !hasStartOrEndPosition
+                && sequencePerOutput == Integer.MAX_VALUE;
+        if (parallel && !reformatInParallel) {
+            LOG.warn("--parallel cannot be used with a writer, a start or end position, or "
+                    + "--sequence-per-output, reformatting sequentially.");
+        }
 
         for (final String inputFilename : inputFilenames) {
             int splitIndex = 0;
@@ -236,6 +264,10 @@ public class ReformatCompactReadsMode extends AbstractGobyMode {
                     ++numProcessed, numToProcess, inputFilename, outputFilename);
 
             outputFilenames.add(outputFilename);
+            if (reformatInParallel) {
+                reformatInParallel(inputFilename, outputFilename, readIndexFilter);
+                continue;
+            }
             // if the instance already has a writer, we write there:
             ReadsWriter writer = this.writer != null ? this.writer : new ReadsWriterImpl(new FileOutputStream(outputFilename));
             writer.setNumEntriesPerChunk(sequencePerChunk);
@@ -255,53 +287,8 @@ public class ReformatCompactReadsMode extends AbstractGobyMode {
             int numReadsKept = 0;
             for (final Reads.ReadEntry entry : readsReader) {
                 //    allEntries.observe(entry.getReadIndex());
-                if (readIndexFilter == null || readIndexFilter.contains(entry.getReadIndex())) {
-
-                    final int readLength = entry.getReadLength();
-                    if (readLength < minReadLength || readLength > maxReadLength) {
-                        continue;
-                    }
-                    //transfer meta-data:
-                    for (int i = 0; i < entry.getMetaDataCount(); i++) {
-                        final Reads.MetaData metaData = entry.getMetaData(i);
-                        writer.appendMetaData(metaData.getKey(), metaData.getValue());
-                    }
-                    if (pushDescription && entry.hasDescription()) {
-                        writer.setDescription(entry.getDescription());
-                    }
-
-                    if (pushIdentifier && entry.hasReadIdentifier()) {
-                        writer.setIdentifier(entry.getReadIdentifier());
-                    }
-                    if (entry.hasSequence()) {
-                        ReadsReader.decodeSequence(entry, sequence);
-                    }
-                    if (entry.hasSequencePair()) {
-                        ReadsReader.decodeSequence(entry, sequencePair, true);
-                    }
-                    final ByteArrayList qualScores = ByteArrayList.wrap(entry.getQualityScores().toByteArray());
-                    processSequenceAndQualityScores(sequence, qualScores);
-                    if (entry.hasSequence() && !excludeSequences) {
-                        writer.setSequence(sequence);
-                    }
-                    if (entry.hasQualityScores()) {
-                        writer.setQualityScores(qualScores.toByteArray());
-                    }
-                    if (entry.hasSequencePair()) {
-                        final ByteArrayList pairQualScores = ByteArrayList.wrap(entry.getQualityScores().toByteArray());
-                        processSequenceAndQualityScores(sequencePair, pairQualScores);
-
-                        if (entry.hasSequencePair() && !excludeSequences) {
-                            writer.setPairSequence(sequencePair);
-                        }
-                        if (entry.hasQualityScoresPair()) {
-                            writer.setQualityScoresPair(pairQualScores.toByteArray());
-                        }
-                    }
-                    // Important: preserve the read index in the input entry:
-                    writer.appendEntry(entry.getReadIndex());
+                if (reformat(writer, sequence, sequencePair, readIndexFilter, entry)) {
                     numReadsKept++;
-                    //writer.appendEntry();
                     entriesInOutputFile++;
 
                     if (entriesInOutputFile > sequencePerOutput) {
@@ -326,6 +313,87 @@ public class ReformatCompactReadsMode extends AbstractGobyMode {
         }
     }
 
+    /**
+     * Reformat one entry and append it to the writer, unless the entry is filtered out.
+     *
+     * @return true when the entry was written.
+     */
+    private boolean reformat(final ReadsWriter writer, final MutableString sequence,
+                             final MutableString sequencePair, final ReadSet readIndexFilter,
+                             final Reads.ReadEntry entry) throws IOException {
+        if (readIndexFilter != null && !readIndexFilter.contains(entry.getReadIndex())) {
+            return false;
+        }
+        final int readLength = entry.getReadLength();
+        if (readLength < minReadLength || readLength > maxReadLength) {
+            return false;
+        }
+        //transfer meta-data:
+        for (int i = 0; i < entry.getMetaDataCount(); i++) {
+            final Reads.MetaData metaData = entry.getMetaData(i);
+            writer.appendMetaData(metaData.getKey(), metaData.getValue());
+        }
+        if (pushDescription && entry.hasDescription()) {
+            writer.setDescription(entry.getDescription());
+        }
+
+        if (pushIdentifier && entry.hasReadIdentifier()) {
+            writer.setIdentifier(entry.getReadIdentifier());
+        }
+        if (entry.hasSequence()) {
+            ReadsReader.decodeSequence(entry, sequence);
+        }
+        if (entry.hasSequencePair()) {
+            ReadsReader.decodeSequence(entry, sequencePair, true);
+        }
+        final ByteArrayList qualScores = ByteArrayList.wrap(entry.getQualityScores().toByteArray());
+        processSequenceAndQualityScores(sequence, qualScores);
+        if (entry.hasSequence() && !excludeSequences) {
+            writer.setSequence(sequence);
+        }
+        if (entry.hasQualityScores()) {
+            writer.setQualityScores(qualScores.toByteArray());
+        }
+        if (entry.hasSequencePair()) {
+            final ByteArrayList pairQualScores = ByteArrayList.wrap(entry.getQualityScores().toByteArray());
+            processSequenceAndQualityScores(sequencePair, pairQualScores);
+
+            if (entry.hasSequencePair() && !excludeSequences) {
+                writer.setPairSequence(sequencePair);
+            }
+            if (entry.hasQualityScoresPair()) {
+                writer.setQualityScoresPair(pairQualScores.toByteArray());
+            }
+        }
+        // Important: preserve the read index in the input entry:
+        writer.appendEntry(entry.getReadIndex());
+        return true;
+    }
+
+    /**
+     * Reformat slices of one input file in parallel. Each slice is reformatted with its own sequence buffers,
+     * and slices are written to the output in input order.
+     */
+    private void reformatInParallel(final String inputFilename, final String outputFilename,
+                                    final ReadSet readIndexFilter) throws IOException {
+        final ParallelReadsToCompactProcessor<MutableString[]> processor =
+                new ParallelReadsToCompactProcessor<MutableString[]>(inputFilename, outputFilename) {
+                    @Override
+                    protected MutableString[] createScratch() {
+                        return new MutableString[]{new MutableString(), new MutableString()};
+                    }
+
+                    @Override
+                    protected void writeRead(final ReadsWriter writer, final MutableString[] sequences,
+                                             final Reads.ReadEntry entry) throws IOException {
+                        reformat(writer, sequences[0], sequences[1], readIndexFilter, entry);
+                    }
+                };
+        processor.setNumThreads(numThreads);
+        processor.setSequencePerChunk(sequencePerChunk);
+        processor.execute();
+    }
+
     private void processSequenceAndQualityScores(final MutableString sequence, final ByteArrayList qualityScores) {
 
         assert qualityScores.size() == 0 || sequence.length() == qualityScores.size() : " sequence and quality score length must match";
@@ -575,6 +643,19 @@ public class ReformatCompactReadsMode extends AbstractGobyMode {
         this.writer = writer;
     }
 
+    /**
+     * Reformat slices of each input file in parallel.
+     *
+     * @param parallel when true, and the output is neither split nor restricted to a range of the input.
+     */
+    public void setParallel(final boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    public void setNumThreads(final int numThreads) {
+        this.numThreads = numThreads;
+    }
+
     public void setTrimStart(final int startTrim) {
         this.trimReadStartLength = startTrim;
     }
@@ -21,10 +21,12 @@ package edu.cornell.med.icb.goby.modes;
 import com.martiansoftware.jsap.JSAPException;
 import com.martiansoftware.jsap.JSAPResult;
 import edu.cornell.med.icb.goby.reads.*;
+import edu.cornell.med.icb.goby.util.ParallelReadsProcessor;
 import it.unimi.dsi.bits.BitVector;
 import it.unimi.dsi.bits.LongArrayBitVector;
 import it.unimi.dsi.fastutil.ints.*;
 import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
 import it.unimi.dsi.io.OutputBitStream;
 import it.unimi.dsi.lang.MutableString;
@@ -60,6 +62,11 @@ public class TallyReadsMode extends AbstractGobyMode {
 
     private boolean colorSpace;
     private final int MAX_PROCESS_READS = Integer.MAX_VALUE;
+    /**
+     * When true, the first pass processes slices of the input file in parallel.
+     */
+    private boolean parallel;
+    private int numThreads = -1;
 
     @Override
     public String getModeName() {
@@ -87,6 +94,8 @@ public class TallyReadsMode extends AbstractGobyMode {
         inputFilename = jsapResult.getString("input");
         outputBasename = jsapResult.getString("output");
         colorSpace = jsapResult.getBoolean("color-space");
+        parallel = jsapResult.getBoolean("parallel", false);
+        numThreads = jsapResult.getInt("num-threads", -1);
         return this;
     }
 
@@ -100,36 +109,15 @@ public class TallyReadsMode extends AbstractGobyMode {
         progress.displayFreeMemory = true;
 
 
-        int readLength = 0;
-        Int2ByteMap readRedundant = new Int2ByteOpenHashMap();
-        int numReads = 0;
-        SequenceDigests sd = null;
-        {
-
-
-            final ReadsReader readsReader = new ReadsReader(new FileInputStream(inputFilename));
-            for (final Reads.ReadEntry readEntry : readsReader) {
-                readLength = readEntry.getReadLength();
-                if (sd == null) {
-                    sd = new SequenceDigests(readLength, true);
-                }
-
-                final int hashCode = sd.digest(readEntry.getSequence(), 0, readLength);
-                byte occ = readRedundant.get(hashCode);
-                if (occ < Byte.MAX_VALUE - 1) {
-                    occ += 1;
-                }
-                readRedundant.put(hashCode, occ);
-                numReads++;
-                progress.lightUpdate();
-
-                if (numReads > MAX_PROCESS_READS) {
-                    break;
-                }
-            }
-            readsReader.close();
-            System.gc();
-        }
+        final FirstPass firstPass = new FirstPass(inputFilename, progress);
+        firstPass.setParallel(parallel);
+        firstPass.setNumThreads(numThreads);
+        firstPass.execute();
+        int readLength = firstPass.readLength;
+        Int2ByteMap readRedundant = firstPass.readRedundant;
+        int numReads = firstPass.numReads;
+        final SequenceDigests sd = firstPass.digests;
+        System.gc();
         progress.stop("first pass finished.");
         assert sd != null : "at least one read must have been processed.";
 
@@ -208,6 +196,82 @@ public class TallyReadsMode extends AbstractGobyMode {
         System.exit(0);
     }
 
+    /**
+     * State of the first pass for one slice of the input.
+     */
+    private static final class FirstPassSlice {
+        private final Int2ByteMap readRedundant = new Int2ByteOpenHashMap();
+        private SequenceDigests digests;
+        private int readLength;
+        private int numReads;
+    }
+
+    /**
+     * First pass: estimates how many times each sequence digest occurs. Slices of the input are digested
+     * independently and their tallies summed. Occurrences saturate at Byte.MAX_VALUE - 1.
+     */
+    private static final class FirstPass extends ParallelReadsProcessor<FirstPassSlice> {
+        private final ProgressLogger progress;
+        private Int2ByteMap readRedundant;
+        private SequenceDigests digests;
+        private int readLength;
+        private int numReads;
+
+        private FirstPass(final String inputFilename, final ProgressLogger progress) {
+            super(inputFilename);
+            this.progress = progress;
+        }
+
+        @Override
+        protected FirstPassSlice createSliceState(final int sliceIndex) {
+            return new FirstPassSlice();
+        }
+
+        @Override
+        protected void processRead(final FirstPassSlice slice, final Reads.ReadEntry readEntry) {
+            slice.readLength = readEntry.getReadLength();
+            if (slice.digests == null) {
+                slice.digests = new SequenceDigests(slice.readLength, true);
+            }
+            final int hashCode = slice.digests.digest(readEntry.getSequence(), 0, slice.readLength);
+            byte occ = slice.readRedundant.get(hashCode);
+            if (occ < Byte.MAX_VALUE - 1) {
+                occ += 1;
+            }
+            slice.readRedundant.put(hashCode, occ);
+            slice.numReads++;
+        }
+
+        @Override
+        protected void sliceDone(final FirstPassSlice slice) {
+            // count the reads of the slice at once, rather than lock the logger for every read:
+            synchronized (progress) {
+                progress.update(slice.numReads);
+            }
+        }
+
+        @Override
+        protected void combine(final ObjectArrayList<FirstPassSlice> slices) {
+            readRedundant = new Int2ByteOpenHashMap();
+            for (final FirstPassSlice slice : slices) {
+                if (slice.digests == null) {
+                    // no reads in this slice.
+                    continue;
+                }
+                if (digests == null) {
+                    digests = slice.digests;
+                }
+                readLength = slice.readLength;
+                numReads += slice.numReads;
+                for (final Int2ByteMap.Entry entry : slice.readRedundant.int2ByteEntrySet()) {
+                    final int key = entry.getIntKey();
+                    final int sum = readRedundant.get(key) + entry.getByteValue();
+                    readRedundant.put(key, (byte) Math.min(sum, Byte.MAX_VALUE - 1));
+                }
+            }
+        }
+    }
+
     private byte[] toByteBuffer(final MutableString sequence, byte[] byteBuffer, final Reads.ReadEntry readEntry) throws IOException {
         ReadsReader.decodeSequence(readEntry, sequence);
         final int i = sequence.length();
@@ -1,5 +1,5 @@
 /*
- * Copyright (C) 2009-2011 Institute for Computational Biomedicine,
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
  *                    Weill Medical College of Cornell University
  *
  *  This program is free software; you can redistribute it and/or modify
@@ -21,12 +21,12 @@ package edu.cornell.med.icb.goby.modes;
 import com.google.protobuf.ByteString;
 import com.martiansoftware.jsap.JSAPException;
 import com.martiansoftware.jsap.JSAPResult;
+import edu.cornell.med.icb.goby.algorithmic.algorithm.AdapterMatcher;
 import edu.cornell.med.icb.goby.reads.Reads;
 import edu.cornell.med.icb.goby.reads.ReadsReader;
 import edu.cornell.med.icb.goby.reads.ReadsWriter;
 import edu.cornell.med.icb.goby.reads.ReadsWriterImpl;
-import it.unimi.dsi.bits.BitVector;
-import it.unimi.dsi.bits.LongArrayBitVector;
+import edu.cornell.med.icb.goby.util.ParallelReadsToCompactProcessor;
 import it.unimi.dsi.fastutil.bytes.ByteArrayList;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import it.unimi.dsi.lang.MutableString;
@@ -38,9 +38,13 @@ import org.apache.log4j.Logger;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Trims adapter sequences from reads.
+ * Trims adapter sequences from reads. The adapters (and their complements when requested) are compiled
+ * once into an {@link AdapterMatcher}, so the cost of trimming a read does not depend on the number of
+ * adapters. With --parallel, slices of the input are trimmed concurrently.
  *
  * @author Fabien Campagne
  *         Date: June 6 2011
@@ -59,20 +63,33 @@ public class TrimMode extends AbstractGobyMode {
     private String inputFilename;
     private String outputFilename;
     private static final Logger LOG = Logger.getLogger(TrimMode.class);
-    private byte[] buffer = new byte[10000];
     private String adapterFilename;
     private boolean complementAdapters;
-    private int numTrimmedLeft;
-    private int numTrimmedRight;
-    private int numContained;
-    private double numSequencesInInput;
-    private int numTrimmed;
+    private final AtomicInteger numTrimmedLeft = new AtomicInteger();
+    private final AtomicInteger numTrimmedRight = new AtomicInteger();
+    private final AtomicInteger numContained = new AtomicInteger();
+    private final AtomicLong numSequencesInInput = new AtomicLong();
+    private final AtomicInteger numTrimmed = new AtomicInteger();
     private int minRightLength = 0;
     private int minLeftLength = 0;
 
     private boolean trimLeft = true;
     private boolean trimRight = true;
     private boolean verbose;
+    private boolean parallel;
+    private int numThreads = -1;
+
+    /**
+     * Buffers reused across the reads processed by one thread.
+     */
+    private static final class TrimBuffers {
+        private final byte[] buffer = new byte[10000];
+        private final ByteArrayList newQualScores = new ByteArrayList();
+        private final ByteArrayList newPairQualScores = new ByteArrayList();
+        private final MutableString sequence = new MutableString();
+        private final MutableString sequencePair = new MutableString();
+        private final AdapterMatcher.Match match = new AdapterMatcher.Match();
+    }
 
 
     /**
@@ -121,113 +138,143 @@ public class TrimMode extends AbstractGobyMode {
         trimLeft = jsapResult.getBoolean("trim-left");
         trimRight = jsapResult.getBoolean("trim-right");
         verbose = jsapResult.getBoolean("verbose");
+        parallel = jsapResult.getBoolean("parallel", false);
+        numThreads = jsapResult.getInt("num-threads", -1);
         return this;
     }
 
-    BitVector vector = LongArrayBitVector.getInstance();
-    double maxCount;
-
     @Override
     public void execute() throws IOException {
 
-        ReadsReader reader = null;
-        ReadsWriter writer = null;
         final ProgressLogger progress = new ProgressLogger(LOG);
-        try {
-
-            reader = new ReadsReader(inputFilename);
-            final LineIterator lines = new LineIterator(new FileReader(adapterFilename));
-            final ObjectArrayList<MutableString> adapterList = new ObjectArrayList<MutableString>();
-            while (lines.hasNext()) {
-                final String next = lines.nextLine();
-                adapterList.add(new MutableString(next));
-            }
-            final MutableString[] adapters;
-            if (complementAdapters) {
-                adapters = addComplementAdapters(adapterList);
-            } else {
-                adapters = adapterList.toArray(new MutableString[adapterList.size()]);
-            }
-            progress.start();
-            writer = new ReadsWriterImpl(new FileOutputStream(outputFilename));
+        final LineIterator lines = new LineIterator(new FileReader(adapterFilename));
+        final ObjectArrayList<MutableString> adapterList = new ObjectArrayList<MutableString>();
+        while (lines.hasNext()) {
+            final String next = lines.nextLine();
+            adapterList.add(new MutableString(next));
+        }
+        final MutableString[] adapters;
+        if (complementAdapters) {
+            adapters = addComplementAdapters(adapterList);
+        } else {
+            adapters = adapterList.toArray(new MutableString[adapterList.size()]);
+        }
+        // compile the adapters once, the matcher is then shared without locking by the threads that trim reads:
+        final AdapterMatcher matcher = new AdapterMatcher(adapters, minLeftLength, minRightLength);
+        if (parallel) {
+            // the processor logs progress as slices complete:
+            final ParallelReadsToCompactProcessor<TrimBuffers> processor =
+                    new ParallelReadsToCompactProcessor<TrimBuffers>(inputFilename, outputFilename) {
+                        @Override
+                        protected TrimBuffers createScratch() {
+                            return new TrimBuffers();
+                        }
 
-            final ByteArrayList newQualScores = new ByteArrayList();
-            final ByteArrayList newPairQualScores = new ByteArrayList();
-            final MutableString sequence = new MutableString();
-            final MutableString sequencePair = new MutableString();
+                        @Override
+                        protected void writeRead(final ReadsWriter writer, final TrimBuffers buffers,
+                                                 final Reads.ReadEntry entry) throws IOException {
+                            final Reads.ReadEntry.Builder builder = trimEntry(matcher, adapters, buffers, entry);
+                            if (builder != null) {
+                                writer.appendEntry(builder);
+                            }
+                        }
+                    };
+            processor.setNumThreads(numThreads);
+            processor.execute();
+        } else {
+            progress.start();
+            final ReadsReader reader = new ReadsReader(inputFilename);
+            final ReadsWriter writer = new ReadsWriterImpl(new FileOutputStream(outputFilename));
+            try {
+                final TrimBuffers buffers = new TrimBuffers();
+                for (final Reads.ReadEntry entry : reader) {
+                    final Reads.ReadEntry.Builder builder = trimEntry(matcher, adapters, buffers, entry);
+                    if (builder != null) {
+                        writer.appendEntry(builder);
+                    }
+                    progress.lightUpdate();
+                }
+            } finally {
+                writer.close();
+                reader.close();
+            }
+            progress.stop();
+        }
 
-            for (final Reads.ReadEntry entry : reader) {
-                //      observe(counters, entry.getSequence(), entry.getReadIndex());
-                ReadsReader.decodeSequence(entry, sequence);
+        final int numSequencesTrimmed = numTrimmed.get();
+        double percent = 100d * numSequencesTrimmed;
+        percent /= numSequencesInInput.get();
+        System.out.printf("Number of reads trimmed %d (%g %% of input sequences), including: %n" +
+                "left: %d (%g%%)%n" +
+                "right: %d (%g%%), %n" +
+                "fully contained: %d (%g%%)%n",
+                numSequencesTrimmed, percent, numTrimmedLeft.get(),
+                percent(numTrimmedLeft.get(), numSequencesTrimmed),
+                numTrimmedRight.get(),
+                percent(numTrimmedRight.get(), numSequencesTrimmed),
+                numContained.get(),
+                percent(numContained.get(), numSequencesTrimmed));
+        System.out.flush();
+    }
 
-                final ByteString qualityScores = entry.getQualityScores();
-                newQualScores.clear();
-                final MutableString seq1 = trim(adapters, newQualScores, sequence, qualityScores);
-                MutableString pairSeq = null;
+    /**
+     * Trim one read, and its pair if any.
+     *
+     * @return builder for the trimmed entry, or null when no sequence remains after trimming.
+     */
+    private Reads.ReadEntry.Builder trimEntry(final AdapterMatcher matcher, final MutableString[] adapters,
+                                              final TrimBuffers buffers, final Reads.ReadEntry entry) {
+        final MutableString sequence = buffers.sequence;
+        final MutableString sequencePair = buffers.sequencePair;
+        final ByteArrayList newQualScores = buffers.newQualScores;
+        final ByteArrayList newPairQualScores = buffers.newPairQualScores;
+        ReadsReader.decodeSequence(entry, sequence);
+        final int length = sequence.length();
 
-                numSequencesInInput++;
-                if (entry.hasSequencePair()) {
-                    newPairQualScores.clear();
+        final ByteString qualityScores = entry.getQualityScores();
+        newQualScores.clear();
+        final MutableString seq1 = trim(matcher, adapters, newQualScores, sequence, qualityScores, buffers.match);
+        MutableString pairSeq = null;
+        int pairLength = 0;
 
-                    ReadsReader.decodeSequence(entry, sequencePair, true);
+        numSequencesInInput.incrementAndGet();
+        if (entry.hasSequencePair()) {
+            newPairQualScores.clear();
 
-                    final ByteString pairQualityScores = entry.getQualityScoresPair();
-                    pairSeq = trim(adapters, newPairQualScores, sequencePair, pairQualityScores);
-                    numSequencesInInput++;
-                }
+            ReadsReader.decodeSequence(entry, sequencePair, true);
+            pairLength = sequencePair.length();
 
-                //    System.out.printf(">seq%n%s%n", c);
-                Reads.ReadEntry.Builder builder = Reads.ReadEntry.newBuilder();
-                builder = builder.mergeFrom(entry).setSequence(ReadsWriterImpl.encodeSequence(seq1, buffer)).setReadLength(seq1.length());
-                if (sequence.length() != seq1.length()) {
-                    numTrimmed++;
-                    final byte[] bytes1 = newQualScores.toByteArray();
-                    builder = builder.setQualityScores(ByteString.copyFrom(bytes1));
-                    assert builder.getQualityScores().size() == builder.getSequence().size() : "sequence length and quality scores must match.";
-                }
+            final ByteString pairQualityScores = entry.getQualityScoresPair();
+            pairSeq = trim(matcher, adapters, newPairQualScores, sequencePair, pairQualityScores, buffers.match);
+            numSequencesInInput.incrementAndGet();
+        }
 
-                if (entry.hasSequencePair()) {
-                    builder = builder.mergeFrom(entry)
-                            .setSequencePair(ReadsWriterImpl.encodeSequence(pairSeq, buffer))
-                            .setReadLengthPair(pairSeq.length());
+        Reads.ReadEntry.Builder builder = Reads.ReadEntry.newBuilder();
+        builder = builder.mergeFrom(entry).setSequence(ReadsWriterImpl.encodeSequence(seq1, buffers.buffer))
+                .setReadLength(seq1.length());
+        if (length != seq1.length()) {
+            numTrimmed.incrementAndGet();
+            final byte[] bytes1 = newQualScores.toByteArray();
+            builder = builder.setQualityScores(ByteString.copyFrom(bytes1));
+            assert builder.getQualityScores().size() == builder.getSequence().size() : "sequence length and quality scores must match.";
+        }
 
-                    if (sequencePair.length() != pairSeq.length()) {
-                        numTrimmed++;
-                        builder = builder.setQualityScoresPair(ByteString.copyFrom(newPairQualScores.toByteArray()));
-                        assert builder.getQualityScoresPair().size() == builder.getSequencePair().size() : "sequence length and quality scores must match.";
+        if (entry.hasSequencePair()) {
+            builder = builder.setSequencePair(ReadsWriterImpl.encodeSequence(pairSeq, buffers.buffer))
+                    .setReadLengthPair(pairSeq.length());
 
-                    }
-                }
-                if (seq1.length() > 0 || sequencePair.length() > 0) {
-                    // some sequence must remain to append to the output:
-                    writer.appendEntry(builder);
-                }
-                progress.lightUpdate();
-            }
-            progress.stop();
+            if (pairLength != pairSeq.length()) {
+                numTrimmed.incrementAndGet();
+                builder = builder.setQualityScoresPair(ByteString.copyFrom(newPairQualScores.toByteArray()));
+                assert builder.getQualityScoresPair().size() == builder.getSequencePair().size() : "sequence length and quality scores must match.";
 
-            final int numSequencesTrimmed = numTrimmed;
-            double percent = 100d * numSequencesTrimmed;
-            percent /= numSequencesInInput;
-            System.out.printf("Number of reads trimmed %d (%g %% of input sequences), including: %n" +
-                    "left: %d (%g%%)%n" +
-                    "right: %d (%g%%), %n" +
-                    "fully contained: %d (%g%%)%n",
-                    numSequencesTrimmed, percent, numTrimmedLeft,
-                    percent(numTrimmedLeft, numSequencesTrimmed),
-                    numTrimmedRight,
-                    percent(numTrimmedRight, numSequencesTrimmed),
-                    numContained,
-                    percent(numContained, numSequencesTrimmed));
-            System.out.flush();
-        } finally {
-            if (writer != null) {
-                writer.close();
             }
-
         }
-
-        progress.stop();
+        if (seq1.length() > 0 || (pairSeq != null && pairSeq.length() > 0)) {
+            // some sequence must remain to append to the output:
+            return builder;
+        }
+        return null;
     }
 
     private double percent(final double a, final double b) {
@@ -235,10 +282,24 @@ public class TrimMode extends AbstractGobyMode {
     }
 
     protected MutableString trim(final MutableString[] adapters, final ByteArrayList newQualScores, final MutableString sequence, final ByteString qualityScores) {
+        return trim(compile(adapters), adapters, newQualScores, sequence, qualityScores, new AdapterMatcher.Match());
+    }
+
+    private MutableString trim(final AdapterMatcher matcher, final MutableString[] adapters,
+                               final ByteArrayList newQualScores,
+                               final MutableString sequence, final ByteString qualityScores,
+                               final AdapterMatcher.Match match) {
         final int length = sequence.length();
-        final MutableString a = contains(length, sequence, qualityScores, newQualScores, adapters);
-        final MutableString b = trimLeft(length, a, qualityScores, newQualScores, adapters);
-        return trimRight(length, b, qualityScores, newQualScores, adapters);
+        final MutableString a = contains(matcher, length, sequence, qualityScores, newQualScores, adapters, match);
+        final MutableString b = trimLeft(matcher, length, a, qualityScores, newQualScores, adapters, match);
+        return trimRight(matcher, length, b, qualityScores, newQualScores, adapters, match);
+    }
+
+    /**
+     * Compile adapters for the current minimum lengths.
+     */
+    private AdapterMatcher compile(final MutableString[] adapters) {
+        return new AdapterMatcher(adapters, minLeftLength, minRightLength);
     }
 
     protected void convert(final ByteString bytes, final MutableString sequence) {
@@ -290,102 +351,124 @@ public class TrimMode extends AbstractGobyMode {
                                       final ByteString qualityScores,
                                       final ByteArrayList newQualScores,
                                       final MutableString[] adapters) {
+        return trimRight(compile(adapters), length, sequence, qualityScores, newQualScores, adapters,
+                new AdapterMatcher.Match());
+    }
+
+    /**
+     * Trim the longest suffix of the first adapter (in adapter order) that overlaps the end of the sequence.
+     * The sequence is modified in place.
+     */
+    private MutableString trimRight(final AdapterMatcher matcher, final int length, final MutableString sequence,
+                                    final ByteString qualityScores,
+                                    final ByteArrayList newQualScores,
+                                    final MutableString[] adapters,
+                                    final AdapterMatcher.Match match) {
         if (!trimRight) {
             return sequence;
         }
         final int currentLength = sequence.length();
-        for (final MutableString adapter : adapters) {
-            final int adaptLength = adapter.length();
-
-            for (int j = minRightLength; j < adaptLength; j++) {
-                if (sequence.endsWith(adapter.subSequence(j, adaptLength))) {
-                    final int trimedLength = adaptLength - j;
-                    if (verbose && trimedLength > 10) {
-                        System.out.printf("%d bases matching right %s %s %n", trimedLength, sequence, adapter);
-                    }
-                    if (currentLength == length) {
-                        if (newQualScores.size() == 0) {
-                            copy(qualityScores, newQualScores);
-                        }
-                    }
-                    if (!qualityScores.isEmpty()) {
-                        newQualScores.removeElements(currentLength - trimedLength, Math.min(currentLength + 1, newQualScores.size()));
-                    }
-                    numTrimmedRight++;
-                    return sequence.substring(0, currentLength - trimedLength);
+        if (matcher.findRightOverlap(sequence, match)) {
+            final int trimedLength = match.getLength();
+            if (verbose && trimedLength > 10) {
+                System.out.printf("%d bases matching right %s %s %n", trimedLength, sequence,
+                        adapters[match.getAdapterIndex()]);
+            }
+            if (currentLength == length) {
+                if (newQualScores.size() == 0) {
+                    copy(qualityScores, newQualScores);
                 }
-
             }
+            if (!qualityScores.isEmpty()) {
+                newQualScores.removeElements(currentLength - trimedLength, Math.min(currentLength + 1, newQualScores.size()));
+            }
+            numTrimmedRight.incrementAndGet();
+            return sequence.length(currentLength - trimedLength);
         }
         return sequence;
     }
 
     protected MutableString trimLeft(final int length, final MutableString sequence, final ByteString qualityScores, final ByteArrayList newQualScores, final MutableString[] adapters) {
+        return trimLeft(compile(adapters), length, sequence, qualityScores, newQualScores, adapters,
+                new AdapterMatcher.Match());
+    }
+
+    /**
+     * Trim the longest prefix of the first adapter (in adapter order) that overlaps the start of the sequence
+     * by at least minLeftLength bases. The sequence is modified in place.
+     */
+    private MutableString trimLeft(final AdapterMatcher matcher, final int length, final MutableString sequence,
+                                   final ByteString qualityScores, final ByteArrayList newQualScores,
+                                   final MutableString[] adapters, final AdapterMatcher.Match match) {
         final int currentLength = sequence.length();
         if (!trimLeft) {
             return sequence;
         }
-        for (final MutableString adapter : adapters) {
-            final int adaptLength = adapter.length();
-            for (int j = adaptLength; j >= minLeftLength; --j) {
-                if (sequence.startsWith(adapter.subSequence(0, j))) {
-                    final int trimedLength = j;
-                    if (verbose && trimedLength > 10) {
-                        System.out.printf("%d bases matching left %s %s %n", trimedLength, sequence, adapter);
-                    }
-                    if (currentLength == length) { // previously unchanged, we need to copy quality score to the list representation for editing.
-                        if (newQualScores.size() == 0) {
-                            copy(qualityScores, newQualScores);
-                        }
-                    }
-                    if (!qualityScores.isEmpty()) {
-                        newQualScores.removeElements(0, trimedLength);
-                    }
-                    numTrimmedLeft++;
-                    return sequence.substring(trimedLength, currentLength);
-
-
+        if (matcher.findLeftOverlap(sequence, match)) {
+            final int trimedLength = match.getLength();
+            if (verbose && trimedLength > 10) {
+                System.out.printf("%d bases matching left %s %s %n", trimedLength, sequence,
+                        adapters[match.getAdapterIndex()]);
+            }
+            if (currentLength == length) { // previously unchanged, we need to copy quality score to the list representation for editing.
+                if (newQualScores.size() == 0) {
+                    copy(qualityScores, newQualScores);
                 }
             }
+            if (!qualityScores.isEmpty()) {
+                newQualScores.removeElements(0, trimedLength);
+            }
+            numTrimmedLeft.incrementAndGet();
+            return sequence.delete(0, trimedLength);
         }
         return sequence;
     }
 
     protected MutableString contains(final int length, final MutableString sequence, final ByteString qualityScores, final ByteArrayList newQualScores, final MutableString[] adapters) {
-        int midPoint = sequence.length() / 2;
-        for (final MutableString adapter : adapters) {
+        return contains(compile(adapters), length, sequence, qualityScores, newQualScores, adapters,
+                new AdapterMatcher.Match());
+    }
 
+    /**
+     * Remove the first adapter (in adapter order) fully contained in the sequence, together with the bases
+     * on its shorter side. The sequence is modified in place.
+     */
+    private MutableString contains(final AdapterMatcher matcher, final int length, final MutableString sequence,
+                                   final ByteString qualityScores, final ByteArrayList newQualScores,
+                                   final MutableString[] adapters, final AdapterMatcher.Match match) {
+        final int midPoint = sequence.length() / 2;
+        if (matcher.findContained(sequence, match)) {
+            final int index = match.getStart();
+            final int adapterLength = match.getLength();
+            if (verbose) {
+                System.out.printf("adapter %s contained entirely in sequence %s%n",
+                        adapters[match.getAdapterIndex()], sequence);
+            }
+            copy(qualityScores, newQualScores);
+            // if the adapter is contained towards the end of the sequence, remove the end past the adapter,
+            // if not, only remove remove the beginning of the sequence up to the end of the adapter.
+            final int start, end;
+            if (index + adapterLength / 2 > midPoint) {
+                start = index;
+                end = sequence.length();
 
-            final int index = sequence.indexOf(adapter);
-            if (index >= 0) {
-                if (verbose) {
-                    System.out.printf("adapter %s contained entirely in sequence %s%n", adapter, sequence);
-                }
-                copy(qualityScores, newQualScores);
-                // if the adapter is contained towards the end of the sequence, remove the end past the adapter,
-                // if not, only remove remove the beginning of the sequence up to the end of the adapter.
-                final int start, end;
-                if (index + adapter.length() / 2 > midPoint) {
-                    start = index;
-                    end = sequence.length();
-
-                } else {
-                    end = adapter.length() + index;
-                    start = 0;
-                }
+            } else {
+                end = adapterLength + index;
+                start = 0;
+            }
+            if (!qualityScores.isEmpty()) {
                 newQualScores.removeElements(start, end);
-                numContained++;
-                return sequence.delete(start, end);
             }
-
+            numContained.incrementAndGet();
+            return sequence.delete(start, end);
         }
         return sequence;
     }
 
     private void copy(final ByteString qualityScores, final ByteArrayList newQualScores) {
-        for (final byte qual : qualityScores.toByteArray()) {
-            newQualScores.add(qual);
-        }
+        final int size = qualityScores.size();
+        newQualScores.size(newQualScores.size() + size);
+        qualityScores.copyTo(newQualScores.elements(), 0, newQualScores.size() - size, size);
     }
 
 
@@ -26,7 +26,6 @@ import edu.cornell.med.icb.goby.util.GrepReader;
 import edu.cornell.med.icb.goby.util.LongNamedCounter;
 import edu.cornell.med.icb.identifier.DoubleIndexedIdentifier;
 import edu.cornell.med.icb.identifier.IndexedIdentifier;
-import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.objects.*;
 import it.unimi.dsi.lang.MutableString;
 import it.unimi.dsi.logging.ProgressLogger;
@@ -37,10 +36,10 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.Arrays;
-import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 
 /**
@@ -48,6 +47,9 @@ import java.util.List;
  * <LI/>Can handle non diploid genotype calls.
  * <LI/>Can compare specific pairs of samples identified by their name (or a keyword matching one sample name) on
  * the command line.
+ * <LI/>Streams the input files: each file is parsed on its own thread, and the files are merged on their sorted
+ * (chromosome, position) keys, so that only the lines at the current position are held in memory. Input files must
+ * be sorted by position, with the chromosomes they share in the same order.
  *
  * @author Fabien Campagne
  */
@@ -76,14 +78,17 @@ public class VCFCompareMode extends AbstractGobyMode {
     /**
      * The mode description help text.
      */
-    private static final String MODE_DESCRIPTION = "Compare genotype calls across VCF files. This mode compares genotypes in specific samples from large input files. It does not need indexed VCF, but loads all genotypes to compare into memory.";
+    private static final String MODE_DESCRIPTION = "Compare genotype calls across VCF files. This mode compares genotypes in specific samples from large input files. It does not need indexed VCF, but input files must be sorted by position, with chromosomes in the same order.";
+
+    /**
+     * Number of lines parsed together by a reader thread.
+     */
+    private static final int LINES_PER_BATCH = 1000;
 
     private int[] chromosomeFieldIndex;
     private int[] positionFieldIndex;
 
     private String[] genotypeColumnSet;
-    private ObjectArrayList<VCFLine>[] lines;
-    private Object2IntMap<VCFPosition>[] indices;
     private int[] refFieldIndex;
     private int[] altFieldIndex;
 
@@ -168,8 +173,6 @@ public class VCFCompareMode extends AbstractGobyMode {
         return array;
     }
 
-    Object2IntMap<String> sampleIndexToGenotypeIndex;
-
     /**
      * Compare VCF files.
      *
@@ -177,6 +180,18 @@ public class VCFCompareMode extends AbstractGobyMode {
      */
     @Override
     public void execute() throws IOException {
+        compare();
+        System.out.flush();
+        System.exit(0);
+    }
+
+    /**
+     * Compare the genotypes of the input files at the positions they share, print statistics and write them to
+     * the output file, when one is set.
+     *
+     * @throws IOException if an input file cannot be read, or is not sorted.
+     */
+    public void compare() throws IOException {
         if (inputFiles == null || inputFiles.size() == 0) {
             throw new IOException("--input not specified");
         }
@@ -191,118 +206,69 @@ public class VCFCompareMode extends AbstractGobyMode {
         refFieldIndex = new int[numInputFiles];
         altFieldIndex = new int[numInputFiles];
 
+        identifiers = new IndexedIdentifier();
         scanInput(parsers, parserIndex);
-        // brute force, load everything in memory:
-        loadGenotypes(numInputFiles, parsers);
-
-        System.out.println("Determining common positions");
-        ObjectSet<VCFPosition> commonPositions = new ObjectAVLTreeSet<VCFPosition>();
+        final VCFLineReader[] readers = startReaders(numInputFiles, parsers);
 
-        commonPositions.addAll(reduce(lines[0]));
-        System.out.printf("# position parser[0] %d%n", commonPositions.size());
-
-        for (parserIndex = 1; parserIndex < numInputFiles; parserIndex++) {
-
-            commonPositions.retainAll(reduce(lines[parserIndex]));
-        }
-        DoubleIndexedIdentifier reverseIdentifiers = new DoubleIndexedIdentifier(identifiers);
-        for (int i = 0; i < numInputFiles; i++) {
-            dumpPositionsUniqueTo(i, inputFiles, lines, commonPositions, reverseIdentifiers);
-        }
-        System.out.println("Sorting..");
-        ObjectArrayList<VCFPosition> sortedPositions = new ObjectArrayList<VCFPosition>();
-        sortedPositions.addAll(commonPositions);
-        Collections.sort(sortedPositions);
-        System.out.println("Done sorting.");
-
-        printStats(numInputFiles, commonPositions, sortedPositions, reverseIdentifiers);
-        System.out.flush();
-        System.exit(0);
-    }
-
-    private void loadGenotypes(int numInputFiles, VCFParser[] parsers) throws IOException {
-        int parserIndex;
-        final IntArrayList[] keepGlobalGenotypeIndex = new IntArrayList[numInputFiles];
-        sampleIndexToGenotypeIndex = new Object2IntAVLTreeMap<String>();
-        lines = new ObjectArrayList[numInputFiles];
-        indices = new Object2IntMap[numInputFiles];
-        IntArrayList[] allGenotypeFieldIndices = new IntArrayList[numInputFiles];
-        for (parserIndex = 0; parserIndex < numInputFiles; parserIndex++) {
-            keepGlobalGenotypeIndex[parserIndex] = new IntArrayList(numInputFiles);
-            lines[parserIndex] = new ObjectArrayList<VCFLine>(10000000);
-            indices[parserIndex] = new Object2IntAVLTreeMap<VCFPosition>();
-            allGenotypeFieldIndices[parserIndex] = new IntArrayList(parsers[parserIndex].getColumnNamesUsingFormat().length);
-            for (String sample : genotypeColumnSet) {
-                allGenotypeFieldIndices[parserIndex].add(parsers[parserIndex].getGlobalFieldIndex(getSampleColumn(parsers[parserIndex], sample), "GT"));
-            }
-            sampleIndexToGenotypeIndex = new Object2IntArrayMap<String>();
-            sampleIndexToGenotypeIndex.defaultReturnValue(-1);
-
-            for (String keepColumn : genotypeColumnSet) {
-
-                String sampleId = getSampleColumn(parsers[parserIndex], keepColumn);
-                final int index = parsers[parserIndex].getGlobalFieldIndex(sampleId, "GT");
-                if (index != -1) {
-                    keepGlobalGenotypeIndex[parserIndex].add(index);
-
-                    sampleIndexToGenotypeIndex.put(sampleId, Arrays.binarySearch(genotypeColumnSet, keepColumn));
+        System.out.println("Comparing genotypes at common positions");
+        sampleStats = new SampleStats[genotypeColumnSet.length];
+        // the line of file i at the current key is alignedLines[i] in alignedBatches[i]:
+        final LineBatch[] alignedBatches = new LineBatch[numInputFiles];
+        final int[] alignedLines = new int[numInputFiles];
+        final long[] numLines = new long[numInputFiles];
+        long numCommonPositions = 0;
+        while (true) {
+            // find the smallest (chromosome, position) key among the next lines of the inputs:
+            long key = Long.MAX_VALUE;
+            boolean found = false;
+            for (final VCFLineReader reader : readers) {
+                if (reader.hasNext()) {
+                    key = Math.min(key, reader.peekKey());
+                    found = true;
                 }
-
             }
-            int[] indicesToKeep = keepGlobalGenotypeIndex[parserIndex].toIntArray();
-            System.out.printf("Loading %s..%n", inputFiles.get(parserIndex).getName());
-            int index = 0;
-            ProgressLogger pg = new ProgressLogger(LOG);
-            pg.displayFreeMemory = true;
-            pg.priority = Level.INFO;
-            pg.start();
-            try {
-
-                int earlyStopCount = Integer.MAX_VALUE; //30000;
-                //int earlyStopCount = 300;
-                int count = 0;
-                while (parsers[parserIndex].hasNextDataLine()) {
-                    final VCFLine line = new VCFLine();
-
-                    final String chr = parsers[parserIndex].getFieldValue(chromosomeFieldIndex[parserIndex]).toString();
-                    String ref = parsers[parserIndex].getStringFieldValue(refFieldIndex[parserIndex]);
-                    String alts = parsers[parserIndex].getStringFieldValue(altFieldIndex[parserIndex]);
-                    line.pos.chromosome = identifiers.registerIdentifier(new MutableString(chr));
-                    line.pos.position = Integer.parseInt(parsers[parserIndex].
-                            getFieldValue(positionFieldIndex[parserIndex]).toString());
-                    line.ref = ref;
-                    // keep this line since there is a variant somewhere on it.
-                    int sampleIndex = 0;
-                    for (final int fieldIndex : indicesToKeep) {
-                        final String genotypeCode = parsers[parserIndex].getFieldValue(fieldIndex).toString();
-                        if (genotypeCode == null) {
-                            // skip position, not typed in some sample.
-                            parsers[parserIndex].next();
-                            pg.lightUpdate();
-                            continue;
-                        }
-                        final String genotype = convertCode(genotypeCode, parsers[parserIndex], ref, alts);
-
-                        line.genotypes.add(genotype);
-
-                    }
-                    lines[parserIndex].add(line);
-                    indices[parserIndex].put(line.pos, index++);
-
-                    parsers[parserIndex].next();
-                    pg.lightUpdate();
-                    /* if (count++ > earlyStopCount) {
-                       break;
-                   } */
+            if (!found) {
+                break;
+            }
+            int numFilesAtKey = 0;
+            for (parserIndex = 0; parserIndex < numInputFiles; parserIndex++) {
+                // when a file has several lines at the key, the last one is compared:
+                final VCFLineReader reader = readers[parserIndex];
+                alignedBatches[parserIndex] = null;
+                while (reader.hasNext() && reader.peekKey() == key) {
+                    alignedBatches[parserIndex] = reader.batch;
+                    alignedLines[parserIndex] = reader.take();
+                    numLines[parserIndex]++;
                 }
-            } catch (Exception e) {
-                e.printStackTrace();
-            } finally {
-                pg.done();
-                parsers[parserIndex].close();
+                numFilesAtKey += alignedBatches[parserIndex] != null ? 1 : 0;
+            }
+            if (numFilesAtKey == numInputFiles) {
+                compareGenotypes(alignedBatches, alignedLines, key);
+                numCommonPositions++;
+            }
+        }
+        final DoubleIndexedIdentifier reverseIdentifiers = new DoubleIndexedIdentifier(identifiers);
+        printStats(numInputFiles, numCommonPositions, numLines, reverseIdentifiers);
+    }
+
+    /**
+     * Start one thread per input file, that parses the lines of the file.
+     */
+    private VCFLineReader[] startReaders(final int numInputFiles, final VCFParser[] parsers) {
+        final VCFLineReader[] readers = new VCFLineReader[numInputFiles];
+        for (int parserIndex = 0; parserIndex < numInputFiles; parserIndex++) {
+            // one field per sample kept, -1 when the sample has no GT field:
+            final int[] genotypeFieldIndices = new int[genotypeColumnSet.length];
+            for (int sampleIndex = 0; sampleIndex < genotypeColumnSet.length; sampleIndex++) {
+                final String sampleId = getSampleColumn(parsers[parserIndex], genotypeColumnSet[sampleIndex]);
+                genotypeFieldIndices[sampleIndex] = parsers[parserIndex].getGlobalFieldIndex(sampleId, "GT");
             }
-            System.out.println("Line.size() " + lines[parserIndex].size());
+            readers[parserIndex] = new VCFLineReader(parserIndex, parsers[parserIndex], genotypeFieldIndices);
+            final Thread thread = new Thread(readers[parserIndex], "vcf-reader-" + parserIndex);
+            thread.setDaemon(true);
+            thread.start();
         }
+        return readers;
     }
 
     private void scanInput(VCFParser[] parsers, int parserIndex) throws IOException {
@@ -335,73 +301,70 @@ public class VCFCompareMode extends AbstractGobyMode {
 
     SampleStats[] sampleStats;
 
-    private void printStats(int numInputFiles,
-                            ObjectSet<VCFPosition> commonPositions,
-                            ObjectArrayList<VCFPosition> sortedPositions, DoubleIndexedIdentifier reverseIdentifiers) throws IOException {
-        final VCFLine alignedLines[] = new VCFLine[numInputFiles];
-        int parserIndex = 0;
-
-        ObjectSet<String> distinctGenotypes = new ObjectArraySet(numInputFiles);
-        ObjectList<String> sampleGenotypes = new ObjectArrayList(numInputFiles);
-
-        sampleStats = new SampleStats[genotypeColumnSet.length];
-        for (VCFPosition pos : sortedPositions) {
-            for (parserIndex = 0; parserIndex < numInputFiles; parserIndex++) {
-                alignedLines[parserIndex] = lines[parserIndex].get(indices[parserIndex].get(pos));
-                alignedLines[parserIndex].ref = lines[parserIndex].get(indices[parserIndex].get(pos)).ref;
+    /**
+     * Compare the genotypes of the samples at a position found in every input file.
+     *
+     * @param alignedBatches the batch that holds the line of each input file at the position.
+     * @param alignedLines   the index of the line of each input file in its batch.
+     * @param position       the (chromosome index, position) key of the position.
+     */
+    private void compareGenotypes(final LineBatch[] alignedBatches, final int[] alignedLines, final long position) {
+        final int numInputFiles = alignedLines.length;
+        final int numSamples = genotypeColumnSet.length;
+        int sampleIndex = 0;
+        for (String sample : genotypeColumnSet) {
+            SampleStats sampleStat = sampleStats[sampleIndex];
+            if (sampleStat == null) {
+                sampleStat = new SampleStats(numInputFiles);
+                sampleStats[sampleIndex] = sampleStat;
+                sampleStat.sampleId = sample;
+            }
+            distinctGenotypes.clear();
+            sampleGenotypes.clear();
+            String ref = null;
+            for (int fileIndex = 0; fileIndex < numInputFiles; fileIndex++) {
+                final LineBatch batch = alignedBatches[fileIndex];
+                final int line = alignedLines[fileIndex];
+                final String genotype = batch.genotypes[line * numSamples + sampleIndex];
+                ref = batch.refs[line];
+                distinctGenotypes.add(genotype);
+                // index in this list is the file in which the given sample genotype was observed.
+                sampleGenotypes.add(genotype);
+            }
+            for (int fileIndex = 0; fileIndex < numInputFiles; fileIndex++) {
+                sampleStat.observeTransitionToTransversions(fileIndex, sampleGenotypes, ref);
             }
+            if (distinctGenotypes.size() > 1) {
+                sampleStat.counters().get("numGenotypeDisagreements", 0).increment(position);
 
-            int sampleIndex = 0;
-            for (String sample : genotypeColumnSet) {
-                SampleStats sampleStat = sampleStats[sampleIndex];
-                if (sampleStat == null) {
-                    sampleStat = new SampleStats(numInputFiles);
-                    sampleStats[sampleIndex] = sampleStat;
-                    sampleStat.sampleId = sample;
-                }
-                distinctGenotypes.clear();
-                sampleGenotypes.clear();
-                String ref = null;
-                VCFPosition position = null;
-                for (final VCFLine line : alignedLines) {
-                    final String genotype = line.genotypes.get(sampleIndex);
-                    ref = line.ref;
-                    distinctGenotypes.add(genotype);
-                    // index in this list is the file in which the given sample genotype was observed.
-                    sampleGenotypes.add(genotype);
-                    position = line.pos;
-                }
-                for (int fileIndex = 0; fileIndex < numInputFiles; fileIndex++) {
-                    sampleStat.observeTransitionToTransversions(fileIndex, sampleGenotypes, ref);
-                }
-                if (distinctGenotypes.size() > 1) {
-                    sampleStat.counters().get("numGenotypeDisagreements", 0).increment(position);
-
-                    if (distinctGenotypes.contains("")) {
-                        final int fileIndex = sampleGenotypes.indexOf("");
-                        //  System.out.printf("position %s sample %s incrementing numGenotypeNotInFile[fileIndex=%d] %s %n",position, sample, fileIndex,sampleGenotypes);
-                        assert fileIndex != -1 : "some sample must not have not called a genotype";
-                        sampleStat.counters().get("numGenotypeNotInFile", fileIndex).increment(position);
-
-
-                    } else {
-                        /*System.out.printf("%s\t%d\tdisagreement: %s %n",
-                                reverseIdentifiers.getId(alignedLines[0].pos.chromosome).toString(),
-                                alignedLines[0].pos.position,
-                                ObjectArrayList.wrap(distinctGenotypes.toArray()));
-                          */
-                        sampleStat.analyze(distinctGenotypes, sampleGenotypes, position);
-                    }
-                } else {
-                    sampleStat.counters().get("numGenotypeAgreements", 0).increment();
+                if (distinctGenotypes.contains("")) {
+                    final int fileIndex = sampleGenotypes.indexOf("");
+                    assert fileIndex != -1 : "some sample must not have not called a genotype";
+                    sampleStat.counters().get("numGenotypeNotInFile", fileIndex).increment(position);
 
+                } else {
+                    sampleStat.analyze(distinctGenotypes, sampleGenotypes, position);
                 }
-                sampleIndex++;
+            } else {
+                sampleStat.counters().get("numGenotypeAgreements", 0).increment();
+
             }
+            sampleIndex++;
+        }
+    }
+
+    private final ObjectSet<String> distinctGenotypes = new ObjectArraySet<String>();
+    private final ObjectList<String> sampleGenotypes = new ObjectArrayList<String>();
+
+    private void printStats(final int numInputFiles, final long numCommonPositions, final long[] numLines,
+                            final DoubleIndexedIdentifier reverseIdentifiers) throws IOException {
+        if (numCommonPositions == 0) {
+            System.out.println("No position is common to all the input files.");
+            return;
         }
         System.out.printf("# common positions across files: %d (overlap with larger set: %g %%) " +
-                "(overlap with smaller set: %g%%) %n", commonPositions.size(),
-                fraction(commonPositions.size(), maxSize(lines)), fraction(commonPositions.size(), minSize(lines)));
+                "(overlap with smaller set: %g%%) %n", numCommonPositions,
+                fraction(numCommonPositions, maxSize(numLines)), fraction(numCommonPositions, minSize(numLines)));
         int sampleIndex = 0;
         for (final SampleStats sampleStat : sampleStats) {
             System.out.println("Sample: " + sampleStat.sampleId);
@@ -482,57 +445,6 @@ public class VCFCompareMode extends AbstractGobyMode {
 
     }
 
-    private void dumpPositionsUniqueTo(int i, List<File> inputFiles, ObjectArrayList<VCFLine>[] lines, ObjectSet<VCFPosition> commonPositions, DoubleIndexedIdentifier reverseIdentifiers) {
-        /*
-   System.out.printf("Unique to %s ---------:%n", inputFiles.get(i).getName());
-   for (VCFLine line : lines[i]) {
-       if (!commonPositions.contains(line.pos)) {
-           System.out.printf("%s GT=%s %n", line.pos.toString(reverseIdentifiers), line.genotypes);
-
-       }
-   }
-   System.out.printf("<---------%n");
-        */
-    }
-
-
-    MutableString buffer = new MutableString();
-    ObjectArrayList<String> list = new ObjectArrayList<String>();
-
-    private String convertCode(String genotypeCode, VCFParser parser, String ref, String alts) {
-        String[] tokens = genotypeCode.split("[/|]");
-        buffer.setLength(0);
-        String[] altArray = alts.split(",");
-        list.clear();
-        for (String token : tokens) {
-            try {
-                if (".".equals(token)) {
-                    return "";
-                }
-                int index = Integer.parseInt(token);
-                if (index == 0) {
-
-                    list.add("ref");
-
-                } else {
-                    list.add(altArray[index - 1]);
-
-                }
-            } catch (NumberFormatException e) {
-                LOG.info("genotype could not be parsed: " + genotypeCode);
-                return "genotype-error:" + genotypeCode;
-            }
-
-
-        }
-        Collections.sort(list);
-        for (String allele : list) {
-            buffer.append(allele);
-            buffer.append('/');
-        }
-        return buffer.toString();
-    }
-
     private String getSampleColumn(VCFParser parser, String keepColumn) {
         String[] samples = parser.getColumnNamesUsingFormat();
         ObjectArraySet<String> set = new ObjectArraySet<String>();
@@ -549,18 +461,18 @@ public class VCFCompareMode extends AbstractGobyMode {
         }
     }
 
-    private double maxSize(final ObjectArrayList<VCFLine>[] lines) {
-        int max = 0;
-        for (final ObjectArrayList<VCFLine> line : lines) {
-            max = Math.max(line.size(), max);
+    private double maxSize(final long[] numLines) {
+        long max = 0;
+        for (final long count : numLines) {
+            max = Math.max(count, max);
         }
         return max;
     }
 
-    private double minSize(final ObjectArrayList<VCFLine>[] lines) {
-        int min = Integer.MAX_VALUE;
-        for (final ObjectArrayList<VCFLine> line : lines) {
-            min = Math.min(line.size(), min);
+    private double minSize(final long[] numLines) {
+        long min = Long.MAX_VALUE;
+        for (final long count : numLines) {
+            min = Math.min(count, min);
         }
         return min;
     }
@@ -573,16 +485,6 @@ public class VCFCompareMode extends AbstractGobyMode {
         return (a / (a + b)) * 100;
     }
 
-    private ObjectOpenHashSet<VCFPosition> reduce(ObjectArrayList<VCFLine> lines) {
-        ObjectOpenHashSet<VCFPosition> positions = new ObjectOpenHashSet<VCFPosition>();
-        for (VCFLine line : lines) {
-            positions.add(line.pos);
-
-        }
-        return positions;
-    }
-
-
     /**
      * Main mode for splitting compact reads files from a start position
      * to and end position.
@@ -596,55 +498,373 @@ public class VCFCompareMode extends AbstractGobyMode {
         new VCFCompareMode().configure(args).execute();
     }
 
-    private class VCFLine {
-        VCFPosition
-                pos = new VCFPosition();
-        String ref;
-        String alt;
+    /**
+     * Parses the lines of an input file on its own thread, and hands them to the merge in batches.
+     */
+    private class VCFLineReader implements Runnable {
+        private final int fileIndex;
+        private final VCFParser parser;
+        private final int[] genotypeFieldIndices;
+        private final BlockingQueue<LineBatch> batches = new ArrayBlockingQueue<LineBatch>(4);
+        private volatile Throwable error;
+        // used by the reading thread only:
+        private final GenotypeDecoder decoder = new GenotypeDecoder();
+        // accessed by the merging thread only:
+        private LineBatch batch = new LineBatch(0, 0);
+        private int batchIndex;
+        private int numLocated;
+        private boolean ended;
+        private String lastChromosomeName;
+        private int lastChromosome = -1;
+        private long lastKey = -1;
+
+        VCFLineReader(final int fileIndex, final VCFParser parser, final int[] genotypeFieldIndices) {
+            this.fileIndex = fileIndex;
+            this.parser = parser;
+            this.genotypeFieldIndices = genotypeFieldIndices;
+        }
+
+        public void run() {
+            final ProgressLogger pg = new ProgressLogger(LOG);
+            pg.displayFreeMemory = true;
+            pg.priority = Level.INFO;
+            pg.start(String.format("Reading %s..", inputFiles.get(fileIndex).getName()));
+            final int numSamples = genotypeFieldIndices.length;
+            final int chromosomeField = chromosomeFieldIndex[fileIndex];
+            final int positionField = positionFieldIndex[fileIndex];
+            final int refField = refFieldIndex[fileIndex];
+            final int altField = altFieldIndex[fileIndex];
+            LineBatch lines = new LineBatch(LINES_PER_BATCH, numSamples);
+            String chromosomeName = null;
+            try {
+                while (parser.hasNextDataLine()) {
+                    final char[] chars = parser.getLineChars();
+                    final int line = lines.size;
+                    final int chromosomeStart = parser.getFieldStart(chromosomeField);
+                    final int chromosomeEnd = parser.getFieldEnd(chromosomeField);
+                    if (chromosomeName == null || !equals(chromosomeName, chars, chromosomeStart, chromosomeEnd)) {
+                        chromosomeName = new String(chars, chromosomeStart, chromosomeEnd - chromosomeStart);
+                    }
+                    lines.chromosomeNames[line] = chromosomeName;
+                    lines.positions[line] = parsePosition(chars, parser.getFieldStart(positionField),
+                            parser.getFieldEnd(positionField));
+                    lines.refs[line] = decoder.ref(chars, parser.getFieldStart(refField), parser.getFieldEnd(refField));
+                    final int altStart = parser.getFieldStart(altField);
+                    final int altEnd = parser.getFieldEnd(altField);
+                    for (int sampleIndex = 0; sampleIndex < numSamples; sampleIndex++) {
+                        final int fieldIndex = genotypeFieldIndices[sampleIndex];
+                        final int start = fieldIndex == -1 ? -1 : parser.getFieldStart(fieldIndex);
+                        final int end = fieldIndex == -1 ? -1 : parser.getFieldEnd(fieldIndex);
+                        lines.genotypes[line * numSamples + sampleIndex] =
+                                decoder.genotype(chars, start, end, altStart, altEnd);
+                    }
+                    lines.size++;
+                    if (lines.size == LINES_PER_BATCH) {
+                        batches.put(lines);
+                        lines = new LineBatch(LINES_PER_BATCH, numSamples);
+                    }
+                    parser.next();
+                    pg.lightUpdate();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                error = e;
+            } catch (Throwable e) {
+                error = e;
+            } finally {
+                pg.done();
+                try {
+                    parser.close();
+                    if (lines.size != 0) {
+                        batches.put(lines);
+                    }
+                    // an empty batch marks the end of the file:
+                    batches.put(new LineBatch(0, 0));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (IOException e) {
+                    LOG.warn("Unable to close " + inputFiles.get(fileIndex), e);
+                }
+            }
+        }
+
+        private int parsePosition(final char[] chars, final int start, final int end) {
+            int position = 0;
+            for (int i = start; i < end; i++) {
+                final char c = chars[i];
+                if (c < '0' || c > '9') {
+                    throw new NumberFormatException("Invalid position: " + new String(chars, start, end - start));
+                }
+                position = position * 10 + c - '0';
+            }
+            if (start >= end) {
+                throw new NumberFormatException("Missing position.");
+            }
+            return position;
+        }
+
+        /**
+         * Determine if there is a next line in the file. Assign the key of the next line when it is first seen.
+         */
+        boolean hasNext() throws IOException {
+            while (batchIndex == batch.size) {
+                if (ended) {
+                    return false;
+                }
+                try {
+                    batch = batches.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while reading " + inputFiles.get(fileIndex));
+                }
+                batchIndex = 0;
+                numLocated = 0;
+                if (batch.size == 0) {
+                    ended = true;
+                    if (error != null) {
+                        throw new IOException("Unable to read " + inputFiles.get(fileIndex), error);
+                    }
+                }
+            }
+            if (numLocated == batchIndex) {
+                locate(batchIndex);
+                numLocated++;
+            }
+            return true;
+        }
+
+        /**
+         * Return the (chromosome index, position) key of the next line. Valid after hasNext() returned true.
+         */
+        long peekKey() {
+            return batch.keys[batchIndex];
+        }
+
+        /**
+         * Consume the next line, and return its index in the current batch.
+         */
+        int take() {
+            return batchIndex++;
+        }
+
         /**
-         * One genotype per sample kept:
+         * Assign the key of a line of the current batch, with chromosome indices assigned in the order chromosomes
+         * are first merged, and check that the file is sorted in that order.
          */
-        ObjectArrayList<String> genotypes = new ObjectArrayList<String>(2);
+        private void locate(final int line) throws IOException {
+            final String chromosomeName = batch.chromosomeNames[line];
+            if (!chromosomeName.equals(lastChromosomeName)) {
+                lastChromosomeName = chromosomeName;
+                lastChromosome = identifiers.registerIdentifier(new MutableString(chromosomeName));
+            }
+            final long key = key(lastChromosome, batch.positions[line]);
+            if (key < lastKey) {
+                throw new IOException(String.format("%s must be sorted by position, with chromosomes in the same " +
+                        "order as the other input files. Found %s %d after %s.", inputFiles.get(fileIndex),
+                        chromosomeName, batch.positions[line],
+                        formatPosition(lastKey, new DoubleIndexedIdentifier(identifiers))));
+            }
+            batch.keys[line] = key;
+            lastKey = key;
+        }
+
+        private boolean equals(final String value, final char[] chars, final int start, final int end) {
+            final int length = end - start;
+            if (value.length() != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (value.charAt(i) != chars[start + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
     }
 
-    static IndexedIdentifier identifiers = new IndexedIdentifier();
+    /**
+     * Converts genotype fields to the representation compared across files: alleles sorted and followed by '/',
+     * with "ref" for the reference allele, and the bases of the other alleles. Alleles are read in place in the
+     * characters of the line. Converted genotypes and single base reference alleles are shared across lines.
+     */
+    private static class GenotypeDecoder {
+        private static final int MAX_CACHED_GENOTYPES = 10000;
+        private static final String[] SINGLE_CHARACTERS = new String[128];
 
-    public class VCFPosition implements Comparable {
+        static {
+            for (char c = 0; c < SINGLE_CHARACTERS.length; c++) {
+                SINGLE_CHARACTERS[c] = String.valueOf(c).intern();
+            }
+        }
 
-        int chromosome;
-        int position;
+        private final Object2ObjectOpenHashMap<MutableString, String> genotypes =
+                new Object2ObjectOpenHashMap<MutableString, String>();
+        private final MutableString buffer = new MutableString();
+        private MutableString[] alleles = new MutableString[0];
+        private int numAlleles;
 
-        @Override
-        public String toString() {
-            return String.format("%s\t%d", chromosome, position);
+        String ref(final char[] chars, final int start, final int end) {
+            if (end - start == 1 && chars[start] < SINGLE_CHARACTERS.length) {
+                return SINGLE_CHARACTERS[chars[start]];
+            }
+            return new String(chars, start, end - start);
         }
 
-        public String toString(DoubleIndexedIdentifier reverse) {
-            return String.format("%s\t%d", reverse.getId(chromosome), position);
+        /**
+         * Convert a genotype field.
+         *
+         * @param chars    characters of the line.
+         * @param start    offset of the genotype field, or -1 when the field is missing.
+         * @param end      offset after the genotype field.
+         * @param altStart offset of the ALT field.
+         * @param altEnd   offset after the ALT field.
+         * @return the converted genotype, an empty string when an allele was not called.
+         */
+        String genotype(final char[] chars, final int start, final int end, final int altStart, final int altEnd) {
+            if (start == -1) {
+                return "genotype-error:";
+            }
+            numAlleles = 0;
+            int tokenStart = start;
+            for (int i = start; i <= end; i++) {
+                if (i < end && chars[i] != '/' && chars[i] != '|') {
+                    continue;
+                }
+                if (i - tokenStart == 1 && chars[tokenStart] == '.') {
+                    return "";
+                }
+                final int alleleIndex = parseAlleleIndex(chars, tokenStart, i);
+                final MutableString allele = nextAllele();
+                if (alleleIndex == 0) {
+                    allele.append("ref");
+                } else if (alleleIndex < 0 || !appendAlt(chars, altStart, altEnd, alleleIndex, allele)) {
+                    final String code = new String(chars, start, end - start);
+                    LOG.info("genotype could not be parsed: " + code);
+                    return "genotype-error:" + code;
+                }
+                tokenStart = i + 1;
+            }
+            // sort the alleles:
+            for (int i = 1; i < numAlleles; i++) {
+                final MutableString allele = alleles[i];
+                int j = i - 1;
+                while (j >= 0 && alleles[j].compareTo(allele) > 0) {
+                    alleles[j + 1] = alleles[j];
+                    j--;
+                }
+                alleles[j + 1] = allele;
+            }
+            buffer.length(0);
+            for (int i = 0; i < numAlleles; i++) {
+                buffer.append(alleles[i]);
+                buffer.append('/');
+            }
+            String genotype = genotypes.get(buffer);
+            if (genotype == null) {
+                genotype = buffer.toString();
+                if (genotypes.size() < MAX_CACHED_GENOTYPES) {
+                    genotypes.put(buffer.copy(), genotype);
+                }
+            }
+            return genotype;
         }
 
-        @Override
-        public boolean equals(Object o) {
-            VCFPosition other = (VCFPosition) o;
-            return position == other.position && chromosome == other.chromosome;
+        private MutableString nextAllele() {
+            if (numAlleles == alleles.length) {
+                alleles = ObjectArrays.grow(alleles, numAlleles + 1);
+                for (int i = numAlleles; i < alleles.length; i++) {
+                    alleles[i] = new MutableString();
+                }
+            }
+            final MutableString allele = alleles[numAlleles++];
+            allele.length(0);
+            return allele;
         }
 
-        @Override
-        public int hashCode() {
-            int hash = 1;
-            hash = hash * 31 + position;
-            hash = hash * 31 + chromosome;
-            return hash;
+        /**
+         * Parse the index of an allele.
+         *
+         * @return the index, or -1 if the token is not a number.
+         */
+        private int parseAlleleIndex(final char[] chars, final int start, final int end) {
+            if (start == end) {
+                return -1;
+            }
+            int index = 0;
+            for (int i = start; i < end; i++) {
+                final char c = chars[i];
+                if (c < '0' || c > '9') {
+                    return -1;
+                }
+                index = index * 10 + c - '0';
+            }
+            return index;
         }
 
-        public int compareTo(Object o) {
-            VCFPosition other = (VCFPosition) o;
-            int result = chromosome - other.chromosome;
-            if (result != 0) return result;
-            else {
-                return position - other.position;
+        /**
+         * Append the alternative allele with a given index, when the ALT field has one.
+         */
+        private boolean appendAlt(final char[] chars, final int altStart, final int altEnd, final int alleleIndex,
+                                  final MutableString allele) {
+            int altIndex = 1;
+            int tokenStart = altStart;
+            for (int i = altStart; i <= altEnd; i++) {
+                if (i == altEnd || chars[i] == ',') {
+                    if (altIndex == alleleIndex) {
+                        allele.append(chars, tokenStart, i - tokenStart);
+                        return true;
+                    }
+                    altIndex++;
+                    tokenStart = i + 1;
+                }
             }
+            return false;
         }
     }
 
-}
\ No newline at end of file
+    /**
+     * Lines parsed by a reader thread, stored in arrays indexed by the line in the batch.
+     */
+    private static final class LineBatch {
+        private final String[] chromosomeNames;
+        private final int[] positions;
+        private final String[] refs;
+        /**
+         * One genotype per sample kept, for line i the genotypes are at indices i*numSamples to (i+1)*numSamples.
+         */
+        private final String[] genotypes;
+        /**
+         * (chromosome index, position) key of each line, assigned when the line is merged.
+         */
+        private final long[] keys;
+        private int size;
+
+        LineBatch(final int capacity, final int numSamples) {
+            chromosomeNames = new String[capacity];
+            positions = new int[capacity];
+            refs = new String[capacity];
+            genotypes = new String[capacity * numSamples];
+            keys = new long[capacity];
+        }
+    }
+
+    private IndexedIdentifier identifiers = new IndexedIdentifier();
+
+    /**
+     * Return the key of a position. Keys sort in (chromosome index, position) order.
+     */
+    private static long key(final int chromosome, final int position) {
+        return ((long) chromosome << 32) | (position & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Format the key of a position as the chromosome and position separated by a tab.
+     *
+     * @param key                the (chromosome index, position) key of the position.
+     * @param reverseIdentifiers identifiers of the chromosome indices.
+     * @return the chromosome and position.
+     */
+    public static String formatPosition(final long key, final DoubleIndexedIdentifier reverseIdentifiers) {
+        return String.format("%s\t%d", reverseIdentifiers.getId((int) (key >>> 32)), (int) key);
+    }
+}
@@ -31,7 +31,6 @@ import it.unimi.dsi.fastutil.ints.*;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import it.unimi.dsi.fastutil.objects.ObjectArraySet;
 import it.unimi.dsi.logging.ProgressLogger;
-import net.sf.samtools.util.BlockCompressedOutputStream;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
@@ -254,7 +253,7 @@ public class VCFSubsetMode extends AbstractGobyMode {
         int previousSampleIndex = -1;
 
         // transfer the reduced schema to the output writer:
-        VCFWriter writer = new VCFWriter(new BlockCompressedOutputStream(inputFilename + outputFilename + ".vcf.gz"));
+        VCFWriter writer = new VCFWriter(inputFilename + outputFilename + ".vcf.gz");
 
         writer.defineSchema(columns);
         writer.defineSamples(sampleIdList.toArray(new String[sampleIdList.size()]));
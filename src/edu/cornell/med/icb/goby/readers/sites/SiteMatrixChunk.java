@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.readers.sites;
+
+import it.unimi.dsi.fastutil.doubles.DoubleArrays;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The sites of one chunk of a site matrix, stored column by column. Each column is a primitive array with
+ * one element per site. Arrays are reused from one chunk to the next, and may be longer than the number
+ * of sites in the chunk. Copy the values that must be kept after the next chunk is read.
+ *
+ * @author Fabien Campagne
+ *         Date: Oct 19, 2012
+ */
+public class SiteMatrixChunk {
+    private final SiteMatrixHeader header;
+    int numSites;
+    int[] targetIndices = IntArrays.EMPTY_ARRAY;
+    int[] positions = IntArrays.EMPTY_ARRAY;
+    final int[][] intColumns;
+    final double[][] doubleColumns;
+    int firstSite;
+    int endSite;
+
+    SiteMatrixChunk(final SiteMatrixHeader header) {
+        super();
+        this.header = header;
+        intColumns = new int[header.numSlots][];
+        doubleColumns = new double[header.numSlots][];
+        for (int fieldIndex = 0; fieldIndex < header.getNumFields(); fieldIndex++) {
+            final int numColumns = header.getNumColumns(fieldIndex);
+            for (int column = 0; column < numColumns; column++) {
+                final int slot = header.firstSlots[fieldIndex] + column;
+                if (header.getFieldKind(fieldIndex) == SiteMatrixHeader.INT) {
+                    intColumns[slot] = IntArrays.EMPTY_ARRAY;
+                } else {
+                    doubleColumns[slot] = DoubleArrays.EMPTY_ARRAY;
+                }
+            }
+        }
+    }
+
+    /**
+     * Return the number of sites in this chunk.
+     *
+     * @return number of sites.
+     */
+    public int getNumSites() {
+        return numSites;
+    }
+
+    /**
+     * Return the index of the first site that belongs to the region being read. Zero when no region was set.
+     *
+     * @return index of a site in this chunk.
+     */
+    public int getFirstSite() {
+        return firstSite;
+    }
+
+    /**
+     * Return the index after the last site that belongs to the region being read. The number of sites when
+     * no region was set.
+     *
+     * @return index of a site in this chunk (exclusive).
+     */
+    public int getEndSite() {
+        return endSite;
+    }
+
+    /**
+     * Return the chromosome index of each site. Chromosome names are obtained from the header.
+     *
+     * @return chromosome indices.
+     */
+    public int[] getTargetIndices() {
+        return targetIndices;
+    }
+
+    /**
+     * Return the position of each site.
+     *
+     * @return positions, as written.
+     */
+    public int[] getPositions() {
+        return positions;
+    }
+
+    /**
+     * Return the values of an INT field.
+     *
+     * @param fieldIndex index of the field.
+     * @param column     index of the sample for per-sample fields, zero for fields with one value per site.
+     * @return values, MISSING_INT for sites where the value was not set.
+     */
+    public int[] getIntColumn(final int fieldIndex, final int column) {
+        if (header.getFieldKind(fieldIndex) != SiteMatrixHeader.INT) {
+            throw new IllegalArgumentException("Field " + header.getFieldName(fieldIndex) + " does not store ints.");
+        }
+        return intColumns[slot(fieldIndex, column)];
+    }
+
+    /**
+     * Return the values of a DOUBLE field.
+     *
+     * @param fieldIndex index of the field.
+     * @param column     index of the sample for per-sample fields, zero for fields with one value per site.
+     * @return values, NaN for sites where the value was not set.
+     */
+    public double[] getDoubleColumn(final int fieldIndex, final int column) {
+        if (header.getFieldKind(fieldIndex) != SiteMatrixHeader.DOUBLE) {
+            throw new IllegalArgumentException("Field " + header.getFieldName(fieldIndex) + " does not store doubles.");
+        }
+        return doubleColumns[slot(fieldIndex, column)];
+    }
+
+    private int slot(final int fieldIndex, final int column) {
+        if (column < 0 || column >= header.getNumColumns(fieldIndex)) {
+            throw new IndexOutOfBoundsException("Field " + header.getFieldName(fieldIndex) + " has no column " + column);
+        }
+        return header.firstSlots[fieldIndex] + column;
+    }
+
+    /**
+     * Make room for the given number of sites in every column, preserving the sites already stored.
+     */
+    void ensureCapacity(final int capacity) {
+        targetIndices = IntArrays.grow(targetIndices, capacity);
+        positions = IntArrays.grow(positions, capacity);
+        for (int slot = 0; slot < intColumns.length; slot++) {
+            if (intColumns[slot] != null) {
+                intColumns[slot] = IntArrays.grow(intColumns[slot], capacity);
+            } else {
+                doubleColumns[slot] = DoubleArrays.grow(doubleColumns[slot], capacity);
+            }
+        }
+    }
+
+    /**
+     * Return the number of bytes needed to encode the sites of this chunk.
+     */
+    int encodedSize() {
+        int bytesPerSite = 8;
+        for (final int[] column : intColumns) {
+            bytesPerSite += column != null ? 4 : 8;
+        }
+        return 4 + bytesPerSite * numSites;
+    }
+
+    /**
+     * Encode the sites of this chunk. The number of sites is followed by the columns, one after the other.
+     */
+    void encode(final ByteBuffer buffer) {
+        buffer.putInt(numSites);
+        putInts(buffer, targetIndices);
+        putInts(buffer, positions);
+        for (int slot = 0; slot < intColumns.length; slot++) {
+            if (intColumns[slot] != null) {
+                putInts(buffer, intColumns[slot]);
+            } else {
+                buffer.asDoubleBuffer().put(doubleColumns[slot], 0, numSites);
+                buffer.position(buffer.position() + numSites * 8);
+            }
+        }
+    }
+
+    private void putInts(final ByteBuffer buffer, final int[] values) {
+        buffer.asIntBuffer().put(values, 0, numSites);
+        buffer.position(buffer.position() + numSites * 4);
+    }
+
+    /**
+     * Decode the sites of a chunk, replacing the sites of this chunk.
+     */
+    void decode(final ByteBuffer buffer) {
+        numSites = buffer.getInt();
+        ensureCapacity(numSites);
+        getInts(buffer, targetIndices);
+        getInts(buffer, positions);
+        for (int slot = 0; slot < intColumns.length; slot++) {
+            if (intColumns[slot] != null) {
+                getInts(buffer, intColumns[slot]);
+            } else {
+                buffer.asDoubleBuffer().get(doubleColumns[slot], 0, numSites);
+                buffer.position(buffer.position() + numSites * 8);
+            }
+        }
+        firstSite = 0;
+        endSite = numSites;
+    }
+
+    private void getInts(final ByteBuffer buffer, final int[] values) {
+        buffer.asIntBuffer().get(values, 0, numSites);
+        buffer.position(buffer.position() + numSites * 4);
+    }
+}
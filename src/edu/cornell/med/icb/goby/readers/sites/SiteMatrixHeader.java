@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.readers.sites;
+
+import it.unimi.dsi.fastutil.booleans.BooleanArrayList;
+import it.unimi.dsi.fastutil.bytes.ByteArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Schema and genomic index of a site matrix. The header lists the samples, the fields stored for each site,
+ * the chromosomes, and for each chunk its offset in the .sites file together with the first and last site it
+ * contains. The header is stored in basename.sites-header.
+ *
+ * @author Fabien Campagne
+ *         Date: Oct 19, 2012
+ */
+public class SiteMatrixHeader {
+    /**
+     * Kind of fields whose values are stored as int.
+     */
+    public static final byte INT = 0;
+    /**
+     * Kind of fields whose values are stored as double.
+     */
+    public static final byte DOUBLE = 1;
+    /**
+     * Value of int fields that were not set for a site.
+     */
+    public static final int MISSING_INT = Integer.MIN_VALUE;
+
+    private static final String MAGIC = "goby-site-matrix";
+    private static final int VERSION = 1;
+
+    String[] samples;
+    final ObjectArrayList<String> fieldNames = new ObjectArrayList<String>();
+    final ByteArrayList fieldKinds = new ByteArrayList();
+    final BooleanArrayList fieldPerSample = new BooleanArrayList();
+    final ObjectArrayList<String> chromosomes = new ObjectArrayList<String>();
+    boolean sorted = true;
+    long numSites;
+
+    final LongArrayList chunkOffsets = new LongArrayList();
+    final IntArrayList chunkNumSites = new IntArrayList();
+    final IntArrayList chunkFirstTargets = new IntArrayList();
+    final IntArrayList chunkFirstPositions = new IntArrayList();
+    final IntArrayList chunkLastTargets = new IntArrayList();
+    final IntArrayList chunkLastPositions = new IntArrayList();
+
+    /**
+     * Column slot of the first column of each field. Slots number the columns of all fields consecutively.
+     */
+    int[] firstSlots;
+    int numSlots;
+
+    SiteMatrixHeader() {
+        super();
+    }
+
+    /**
+     * Return the filename of the header of a site matrix.
+     *
+     * @param basename basename of the site matrix.
+     * @return basename.sites-header
+     */
+    public static String getFilename(final String basename) {
+        return basename + ".sites-header";
+    }
+
+    /**
+     * Assign column slots to fields, once all fields are defined.
+     */
+    void assignSlots() {
+        firstSlots = new int[fieldNames.size()];
+        numSlots = 0;
+        for (int fieldIndex = 0; fieldIndex < firstSlots.length; fieldIndex++) {
+            firstSlots[fieldIndex] = numSlots;
+            numSlots += getNumColumns(fieldIndex);
+        }
+    }
+
+    /**
+     * Return the identifiers of the samples.
+     *
+     * @return sample identifiers.
+     */
+    public String[] getSamples() {
+        return samples;
+    }
+
+    /**
+     * Return the number of fields stored for each site.
+     *
+     * @return number of fields.
+     */
+    public int getNumFields() {
+        return fieldNames.size();
+    }
+
+    /**
+     * Return the index of a field.
+     *
+     * @param name name of the field.
+     * @return index of the field, or -1 if the matrix has no field with this name.
+     */
+    public int getFieldIndex(final String name) {
+        return fieldNames.indexOf(name);
+    }
+
+    public String getFieldName(final int fieldIndex) {
+        return fieldNames.get(fieldIndex);
+    }
+
+    /**
+     * Return the kind of values stored for a field.
+     *
+     * @param fieldIndex index of the field.
+     * @return INT or DOUBLE.
+     */
+    public byte getFieldKind(final int fieldIndex) {
+        return fieldKinds.getByte(fieldIndex);
+    }
+
+    /**
+     * Return true when a field has one value per sample, false when it has one value per site.
+     *
+     * @param fieldIndex index of the field.
+     * @return True or False.
+     */
+    public boolean isPerSample(final int fieldIndex) {
+        return fieldPerSample.getBoolean(fieldIndex);
+    }
+
+    /**
+     * Return the number of columns of a field: the number of samples for per-sample fields, one otherwise.
+     *
+     * @param fieldIndex index of the field.
+     * @return number of columns.
+     */
+    public int getNumColumns(final int fieldIndex) {
+        return isPerSample(fieldIndex) ? samples.length : 1;
+    }
+
+    /**
+     * Return the chromosomes, in the order they were first written. Sites refer to chromosomes by their
+     * index in this array.
+     *
+     * @return chromosome names.
+     */
+    public String[] getChromosomes() {
+        return chromosomes.toArray(new String[chromosomes.size()]);
+    }
+
+    /**
+     * Return true when sites were written grouped by chromosome and sorted by position. Region queries
+     * require sorted sites.
+     *
+     * @return True or False.
+     */
+    public boolean isSorted() {
+        return sorted;
+    }
+
+    public long getNumSites() {
+        return numSites;
+    }
+
+    public int getNumChunks() {
+        return chunkOffsets.size();
+    }
+
+    void addChunk(final long offset, final int numSitesInChunk, final int firstTarget, final int firstPosition,
+                  final int lastTarget, final int lastPosition) {
+        chunkOffsets.add(offset);
+        chunkNumSites.add(numSitesInChunk);
+        chunkFirstTargets.add(firstTarget);
+        chunkFirstPositions.add(firstPosition);
+        chunkLastTargets.add(lastTarget);
+        chunkLastPositions.add(lastPosition);
+        numSites += numSitesInChunk;
+    }
+
+    /**
+     * Compare two sites by chromosome index, then position.
+     */
+    static int compare(final int target, final int position, final int otherTarget, final int otherPosition) {
+        if (target != otherTarget) {
+            return target < otherTarget ? -1 : 1;
+        }
+        return position < otherPosition ? -1 : position == otherPosition ? 0 : 1;
+    }
+
+    void write(final String filename) throws IOException {
+        final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename)));
+        try {
+            output.writeUTF(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(samples.length);
+            for (final String sample : samples) {
+                output.writeUTF(sample);
+            }
+            output.writeInt(fieldNames.size());
+            for (int fieldIndex = 0; fieldIndex < fieldNames.size(); fieldIndex++) {
+                output.writeUTF(fieldNames.get(fieldIndex));
+                output.writeByte(fieldKinds.getByte(fieldIndex));
+                output.writeBoolean(fieldPerSample.getBoolean(fieldIndex));
+            }
+            output.writeInt(chromosomes.size());
+            for (final String chromosome : chromosomes) {
+                output.writeUTF(chromosome);
+            }
+            output.writeBoolean(sorted);
+            output.writeLong(numSites);
+            output.writeInt(chunkOffsets.size());
+            for (int chunkIndex = 0; chunkIndex < chunkOffsets.size(); chunkIndex++) {
+                output.writeLong(chunkOffsets.getLong(chunkIndex));
+                output.writeInt(chunkNumSites.getInt(chunkIndex));
+                output.writeInt(chunkFirstTargets.getInt(chunkIndex));
+                output.writeInt(chunkFirstPositions.getInt(chunkIndex));
+                output.writeInt(chunkLastTargets.getInt(chunkIndex));
+                output.writeInt(chunkLastPositions.getInt(chunkIndex));
+            }
+        } finally {
+            output.close();
+        }
+    }
+
+    static SiteMatrixHeader load(final String filename) throws IOException {
+        final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(filename)));
+        try {
+            if (!MAGIC.equals(input.readUTF())) {
+                throw new IOException(filename + " is not a site matrix header.");
+            }
+            final int version = input.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported site matrix version " + version + " in " + filename);
+            }
+            final SiteMatrixHeader header = new SiteMatrixHeader();
+            header.samples = new String[input.readInt()];
+            for (int i = 0; i < header.samples.length; i++) {
+                header.samples[i] = input.readUTF();
+            }
+            final int numFields = input.readInt();
+            for (int i = 0; i < numFields; i++) {
+                header.fieldNames.add(input.readUTF());
+                header.fieldKinds.add(input.readByte());
+                header.fieldPerSample.add(input.readBoolean());
+            }
+            final int numChromosomes = input.readInt();
+            for (int i = 0; i < numChromosomes; i++) {
+                header.chromosomes.add(input.readUTF());
+            }
+            header.sorted = input.readBoolean();
+            final long numSites = input.readLong();
+            final int numChunks = input.readInt();
+            for (int i = 0; i < numChunks; i++) {
+                header.addChunk(input.readLong(), input.readInt(), input.readInt(), input.readInt(),
+                        input.readInt(), input.readInt());
+            }
+            header.numSites = numSites;
+            header.assignSlots();
+            return header;
+        } finally {
+            input.close();
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.readers.sites;
+
+import edu.cornell.med.icb.goby.compression.MessageChunksReader;
+import it.unimi.dsi.fastutil.bytes.ByteArrays;
+import it.unimi.dsi.fastutil.io.FastByteArrayInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads a site matrix written with SiteMatrixWriter, one chunk at a time. Values are returned as primitive
+ * column arrays, without parsing text. When a region is set, only the chunks that overlap the region are
+ * read, using the genomic index stored in the header.
+ *
+ * @author Fabien Campagne
+ *         Date: Oct 19, 2012
+ */
+public class SiteMatrixReader implements Closeable {
+    private final String basename;
+    private final SiteMatrixHeader header;
+    private final SiteMatrixChunk chunk;
+    private MessageChunksReader chunksReader;
+    private byte[] decompressed = ByteArrays.EMPTY_ARRAY;
+    /**
+     * Index of the next chunk to read.
+     */
+    private int chunkIndex;
+    /**
+     * Index after the last chunk to read.
+     */
+    private int endChunk;
+    private boolean regionSet;
+    private int regionTarget;
+    private int regionStart;
+    private int regionEnd;
+
+    /**
+     * Open a site matrix.
+     *
+     * @param basename basename of the site matrix.
+     * @throws IOException if the matrix cannot be read.
+     */
+    public SiteMatrixReader(final String basename) throws IOException {
+        super();
+        this.basename = basename;
+        header = SiteMatrixHeader.load(SiteMatrixHeader.getFilename(basename));
+        chunk = new SiteMatrixChunk(header);
+        seek(0);
+        endChunk = header.getNumChunks();
+    }
+
+    /**
+     * Return the header of the matrix, which describes samples, fields and chromosomes.
+     *
+     * @return the header.
+     */
+    public SiteMatrixHeader getHeader() {
+        return header;
+    }
+
+    /**
+     * Restrict reading to the sites of a region. Chunks that do not overlap the region are skipped, and
+     * getFirstSite/getEndSite of each chunk delimit the sites of the region.
+     *
+     * @param chromosome chromosome of the region.
+     * @param start      first position of the region (inclusive).
+     * @param end        last position of the region (inclusive).
+     * @throws IOException if the matrix cannot be read.
+     */
+    public void setRegion(final String chromosome, final int start, final int end) throws IOException {
+        if (!header.isSorted()) {
+            throw new UnsupportedOperationException("Region queries require sites sorted by chromosome and position, "
+                    + "but the sites of " + basename + " are not sorted.");
+        }
+        regionSet = true;
+        regionTarget = header.chromosomes.indexOf(chromosome);
+        regionStart = start;
+        regionEnd = end;
+        final int numChunks = header.getNumChunks();
+        int first = numChunks;
+        int last = 0;
+        if (regionTarget != -1) {
+            // chunks are sorted, so the chunks that overlap the region are consecutive:
+            for (int i = 0; i < numChunks; i++) {
+                final boolean endsBeforeRegion = SiteMatrixHeader.compare(header.chunkLastTargets.getInt(i),
+                        header.chunkLastPositions.getInt(i), regionTarget, start) < 0;
+                final boolean startsAfterRegion = SiteMatrixHeader.compare(header.chunkFirstTargets.getInt(i),
+                        header.chunkFirstPositions.getInt(i), regionTarget, end) > 0;
+                if (startsAfterRegion) {
+                    break;
+                }
+                if (!endsBeforeRegion) {
+                    first = Math.min(first, i);
+                    last = i + 1;
+                }
+            }
+        }
+        if (first < last) {
+            seek(first);
+            endChunk = last;
+        } else {
+            chunkIndex = endChunk = 0;
+        }
+    }
+
+    private void seek(final int chunk) throws IOException {
+        if (chunksReader != null) {
+            chunksReader.close();
+        }
+        final FileInputStream input = new FileInputStream(basename + ".sites");
+        if (chunk < header.getNumChunks()) {
+            input.getChannel().position(header.chunkOffsets.getLong(chunk));
+        }
+        chunksReader = new MessageChunksReader(new BufferedInputStream(input));
+        chunkIndex = chunk;
+    }
+
+    /**
+     * Read the next chunk.
+     *
+     * @return True when a chunk was read, false when no chunk is left.
+     * @throws IOException if the chunk cannot be read.
+     */
+    public boolean nextChunk() throws IOException {
+        if (chunkIndex >= endChunk || !chunksReader.hasNext(null, 0)) {
+            return false;
+        }
+        decode(chunksReader.getCompressedBytes());
+        chunkIndex++;
+        if (regionSet) {
+            chunk.firstSite = firstSiteAfter(regionTarget, regionStart, false);
+            chunk.endSite = firstSiteAfter(regionTarget, regionEnd, true);
+        }
+        return true;
+    }
+
+    /**
+     * Return the index of the first site of the chunk located after target:position, or at target:position
+     * when inclusive is false.
+     */
+    private int firstSiteAfter(final int target, final int position, final boolean inclusive) {
+        int low = 0;
+        int high = chunk.numSites;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            final int comparison = SiteMatrixHeader.compare(chunk.targetIndices[middle], chunk.positions[middle],
+                    target, position);
+            if (comparison < 0 || inclusive && comparison == 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private void decode(final byte[] compressedBytes) throws IOException {
+        final GZIPInputStream input = new GZIPInputStream(new FastByteArrayInputStream(compressedBytes));
+        try {
+            int length = 0;
+            while (true) {
+                if (length == decompressed.length) {
+                    decompressed = ByteArrays.grow(decompressed, Math.max(1 << 16, length + 1));
+                }
+                final int read = input.read(decompressed, length, decompressed.length - length);
+                if (read == -1) {
+                    break;
+                }
+                length += read;
+            }
+            if (length < 4) {
+                throw new EOFException("Truncated chunk in " + basename + ".sites");
+            }
+        } finally {
+            input.close();
+        }
+        chunk.decode(ByteBuffer.wrap(decompressed));
+    }
+
+    /**
+     * Return the chunk that was last read. The same instance is returned for every chunk.
+     *
+     * @return the current chunk.
+     */
+    public SiteMatrixChunk getChunk() {
+        return chunk;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void close() {
+        if (chunksReader != null) {
+            chunksReader.close();
+            chunksReader = null;
+        }
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.readers.sites;
+
+import edu.cornell.med.icb.goby.compression.GZipChunkCodec;
+import edu.cornell.med.icb.goby.compression.GzipOutputStreamWithCustomLevel;
+import edu.cornell.med.icb.goby.compression.MessageChunksWriter;
+import edu.cornell.med.icb.goby.util.dynoptions.DynamicOptionClient;
+import edu.cornell.med.icb.goby.util.dynoptions.RegisterThis;
+import it.unimi.dsi.fastutil.bytes.ByteArrays;
+import it.unimi.dsi.fastutil.io.FastByteArrayOutputStream;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a site matrix: numeric values for genomic sites (rows) across samples, stored column by column.
+ * Sites are buffered in chunks. Each chunk is gzip compressed and written to basename.sites with the chunk
+ * framing of MessageChunksWriter. The schema and a genomic index of the chunks are written to
+ * basename.sites-header when the writer is closed.
+ * <p/>
+ * Typical use: define fields, then for each site call setSite, set values and call writeSite. Values that are
+ * not set for a site are stored as missing (MISSING_INT for int fields, NaN for double fields).
+ *
+ * @author Fabien Campagne
+ *         Date: Oct 19, 2012
+ */
+public class SiteMatrixWriter implements Closeable {
+    /**
+     * Used to log debug and informational messages.
+     */
+    private static final Log LOG = LogFactory.getLog(SiteMatrixWriter.class);
+
+    @RegisterThis
+    public static final DynamicOptionClient doc = new DynamicOptionClient(SiteMatrixWriter.class,
+            "chunk-size:integer, the number of sites per chunk.:4096"
+    );
+
+    public static DynamicOptionClient doc() {
+        return doc;
+    }
+
+    private final String basename;
+    private final SiteMatrixHeader header = new SiteMatrixHeader();
+    private final Object2IntOpenHashMap<String> chromosomeIndices = new Object2IntOpenHashMap<String>();
+    private final int chunkSize;
+    private OutputStream output;
+    private MessageChunksWriter chunksWriter;
+    private SiteMatrixChunk chunk;
+    private final FastByteArrayOutputStream compressed = new FastByteArrayOutputStream();
+    private byte[] encoded = ByteArrays.EMPTY_ARRAY;
+    private int currentTarget = -1;
+    private int currentPosition;
+    private int previousTarget = -1;
+    private int previousPosition;
+    private boolean siteStarted;
+    private String lastChromosome = "";
+    private int lastChromosomeIndex = -1;
+
+    /**
+     * Construct a writer.
+     *
+     * @param basename basename of the site matrix.
+     * @param samples  identifiers of the samples.
+     */
+    public SiteMatrixWriter(final String basename, final String[] samples) {
+        super();
+        this.basename = basename;
+        header.samples = samples;
+        chromosomeIndices.defaultReturnValue(-1);
+        chunkSize = Math.max(1, doc.getInteger("chunk-size"));
+    }
+
+    /**
+     * Return the basename of the site matrix that accompanies an output file, without the .vcf.gz, .vcf or .tsv
+     * extension.
+     *
+     * @param filename name of a VCF or TSV output file.
+     * @return basename for the site matrix.
+     */
+    public static String getBasename(final String filename) {
+        for (final String extension : new String[]{".vcf.gz", ".vcf", ".tsv"}) {
+            if (filename.endsWith(extension)) {
+                return filename.substring(0, filename.length() - extension.length());
+            }
+        }
+        return filename;
+    }
+
+    /**
+     * Define a field. Fields must be defined before the first site is written.
+     *
+     * @param name      name of the field.
+     * @param kind      SiteMatrixHeader.INT or SiteMatrixHeader.DOUBLE.
+     * @param perSample true when the field has one value per sample, false when it has one value per site.
+     * @return index of the field.
+     */
+    public int defineField(final String name, final byte kind, final boolean perSample) {
+        if (chunk != null) {
+            throw new IllegalStateException("Fields must be defined before sites are written.");
+        }
+        if (kind != SiteMatrixHeader.INT && kind != SiteMatrixHeader.DOUBLE) {
+            throw new IllegalArgumentException("Unknown kind of field: " + kind);
+        }
+        header.fieldNames.add(name);
+        header.fieldKinds.add(kind);
+        header.fieldPerSample.add(perSample);
+        return header.fieldNames.size() - 1;
+    }
+
+    /**
+     * Start a new site. The values of the previous site are discarded unless writeSite was called.
+     *
+     * @param chromosome the chromosome of the site.
+     * @param position   the position of the site.
+     * @throws IOException if the site matrix cannot be created.
+     */
+    public void setSite(final CharSequence chromosome, final int position) throws IOException {
+        if (chunk == null) {
+            start();
+        }
+        currentTarget = chromosomeIndex(chromosome);
+        currentPosition = position;
+        final int site = chunk.numSites;
+        chunk.targetIndices[site] = currentTarget;
+        chunk.positions[site] = position;
+        for (int slot = 0; slot < header.numSlots; slot++) {
+            if (chunk.intColumns[slot] != null) {
+                chunk.intColumns[slot][site] = SiteMatrixHeader.MISSING_INT;
+            } else {
+                chunk.doubleColumns[slot][site] = Double.NaN;
+            }
+        }
+        siteStarted = true;
+    }
+
+    private int chromosomeIndex(final CharSequence chromosome) {
+        if (lastChromosomeIndex != -1 && lastChromosome.contentEquals(chromosome)) {
+            return lastChromosomeIndex;
+        }
+        lastChromosome = chromosome.toString();
+        lastChromosomeIndex = chromosomeIndices.getInt(lastChromosome);
+        if (lastChromosomeIndex == -1) {
+            lastChromosomeIndex = header.chromosomes.size();
+            header.chromosomes.add(lastChromosome);
+            chromosomeIndices.put(lastChromosome, lastChromosomeIndex);
+        }
+        return lastChromosomeIndex;
+    }
+
+    /**
+     * Set a value of the current site.
+     *
+     * @param fieldIndex index of the field.
+     * @param column     index of the sample for per-sample fields, zero for fields with one value per site.
+     * @param value      value of the field.
+     */
+    public void setInt(final int fieldIndex, final int column, final int value) {
+        final int slot = slot(fieldIndex, column);
+        if (chunk.intColumns[slot] != null) {
+            chunk.intColumns[slot][chunk.numSites] = value;
+        } else {
+            chunk.doubleColumns[slot][chunk.numSites] = value;
+        }
+    }
+
+    /**
+     * Set a value of the current site. Values of INT fields are rounded to the nearest int.
+     *
+     * @param fieldIndex index of the field.
+     * @param column     index of the sample for per-sample fields, zero for fields with one value per site.
+     * @param value      value of the field.
+     */
+    public void setDouble(final int fieldIndex, final int column, final double value) {
+        final int slot = slot(fieldIndex, column);
+        if (chunk.intColumns[slot] != null) {
+            chunk.intColumns[slot][chunk.numSites] = (int) Math.round(value);
+        } else {
+            chunk.doubleColumns[slot][chunk.numSites] = value;
+        }
+    }
+
+    private int slot(final int fieldIndex, final int column) {
+        if (!siteStarted) {
+            throw new IllegalStateException("setSite must be called before values are set.");
+        }
+        if (column < 0 || column >= header.getNumColumns(fieldIndex)) {
+            throw new IndexOutOfBoundsException("Field " + header.getFieldName(fieldIndex) + " has no column " + column);
+        }
+        return header.firstSlots[fieldIndex] + column;
+    }
+
+    /**
+     * Append the current site to the matrix.
+     *
+     * @throws IOException if the site cannot be written.
+     */
+    public void writeSite() throws IOException {
+        if (!siteStarted) {
+            throw new IllegalStateException("setSite must be called before writeSite.");
+        }
+        siteStarted = false;
+        if (header.sorted && previousTarget != -1
+                && SiteMatrixHeader.compare(currentTarget, currentPosition, previousTarget, previousPosition) < 0) {
+            LOG.warn(String.format("Sites of %s are not sorted (%s:%d follows %s:%d). The matrix will not support region queries.",
+                    basename, header.chromosomes.get(currentTarget), currentPosition,
+                    header.chromosomes.get(previousTarget), previousPosition));
+            header.sorted = false;
+        }
+        previousTarget = currentTarget;
+        previousPosition = currentPosition;
+        if (++chunk.numSites == chunkSize) {
+            flush();
+        }
+    }
+
+    private void start() throws IOException {
+        header.assignSlots();
+        chunk = new SiteMatrixChunk(header);
+        chunk.ensureCapacity(chunkSize);
+        output = new BufferedOutputStream(new FileOutputStream(basename + ".sites"));
+        chunksWriter = new MessageChunksWriter(output);
+    }
+
+    private void flush() throws IOException {
+        final int numSites = chunk.numSites;
+        if (numSites == 0) {
+            return;
+        }
+        final int size = chunk.encodedSize();
+        if (encoded.length < size) {
+            encoded = new byte[size];
+        }
+        chunk.encode(ByteBuffer.wrap(encoded, 0, size));
+
+        compressed.reset();
+        final OutputStream gzipOutputStream = new GzipOutputStreamWithCustomLevel(Deflater.DEFAULT_COMPRESSION,
+                compressed);
+        gzipOutputStream.write(encoded, 0, size);
+        gzipOutputStream.close();
+        chunksWriter.writeChunk(GZipChunkCodec.REGISTRATION_CODE, compressed.array, compressed.length, numSites);
+
+        final int last = numSites - 1;
+        header.addChunk(chunksWriter.getCurrentChunkStartOffset(), numSites,
+                chunk.targetIndices[0], chunk.positions[0], chunk.targetIndices[last], chunk.positions[last]);
+        chunk.numSites = 0;
+    }
+
+    /**
+     * Write the remaining sites and the header of the matrix.
+     *
+     * @throws IOException if the matrix cannot be written.
+     */
+    public void close() throws IOException {
+        if (chunk == null) {
+            // no site was written:
+            start();
+        }
+        if (output == null) {
+            return;
+        }
+        flush();
+        chunksWriter.close();
+        output.close();
+        output = null;
+        header.write(SiteMatrixHeader.getFilename(basename));
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(String.format("Wrote %d sites in %d chunks to %s.sites, chromosomes: %s", header.numSites,
+                    header.getNumChunks(), basename, Arrays.toString(header.getChromosomes())));
+        }
+    }
+}
@@ -0,0 +1,372 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.readers.vcf;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import net.sf.samtools.util.BlockCompressedInputStream;
+import net.sf.samtools.util.BlockCompressedOutputStream;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Tabix index of a bgzip compressed VCF file. Records are assigned to the bins of the UCSC binning scheme
+ * and to 16kb windows of a linear index, and both point to BGZF virtual offsets. The index is written in the
+ * .tbi format, so that files indexed by Goby can also be queried with tabix, and files indexed with tabix
+ * can be queried with VCFParser.
+ * <p/>
+ * Intervals are zero-based, end exclusive. A VCF record at POS p with a reference allele of length l spans
+ * [p-1, p-1+l).
+ *
+ * @author Fabien Campagne
+ *         Date: Oct 19, 2012
+ */
+public class TabixIndex {
+    private static final byte[] MAGIC = {'T', 'B', 'I', 1};
+    private static final int LINEAR_SHIFT = 14;
+    /**
+     * Bins beyond this value are pseudo-bins that hold meta-data rather than chunks.
+     */
+    private static final int MAX_BIN = 37449;
+    private static final int FORMAT_VCF = 2;
+    private static final long NO_OFFSET = -1;
+    /**
+     * Largest position covered by the binning scheme.
+     */
+    private static final int MAX_POSITION = 1 << 29;
+
+    private final ObjectArrayList<String> names = new ObjectArrayList<String>();
+    private final Object2IntMap<String> nameToIndex = new Object2IntOpenHashMap<String>();
+    /**
+     * For each reference sequence, the chunks of each bin as (start, end) virtual offset pairs.
+     */
+    private final ObjectArrayList<Int2ObjectMap<LongArrayList>> binChunks =
+            new ObjectArrayList<Int2ObjectMap<LongArrayList>>();
+    /**
+     * For each reference sequence, the virtual offset of the first record that overlaps each 16kb window.
+     */
+    private final ObjectArrayList<LongArrayList> linearOffsets = new ObjectArrayList<LongArrayList>();
+    private int previousReference = -1;
+    private int previousStart;
+
+    public TabixIndex() {
+        super();
+        nameToIndex.defaultReturnValue(-1);
+    }
+
+    /**
+     * Index a record. Records must be added in the order they appear in the file, grouped by reference
+     * sequence and sorted by start position.
+     *
+     * @param chromosome  reference sequence of the record.
+     * @param start       zero-based start position of the record.
+     * @param end         end position (exclusive) of the record.
+     * @param startOffset virtual offset of the first byte of the record.
+     * @param endOffset   virtual offset just after the last byte of the record.
+     * @throws IllegalArgumentException when the record is not sorted with respect to the previous records.
+     */
+    public void add(final String chromosome, final int start, final int end,
+                    final long startOffset, final long endOffset) {
+        int referenceIndex = nameToIndex.getInt(chromosome);
+        if (referenceIndex == -1) {
+            referenceIndex = names.size();
+            names.add(chromosome);
+            nameToIndex.put(chromosome, referenceIndex);
+            binChunks.add(new Int2ObjectOpenHashMap<LongArrayList>());
+            linearOffsets.add(new LongArrayList());
+        } else if (referenceIndex != previousReference) {
+            throw new IllegalArgumentException("Records must be grouped by chromosome, found " + chromosome
+                    + " again after " + names.get(previousReference));
+        } else if (start < previousStart) {
+            throw new IllegalArgumentException(String.format("Records must be sorted by position, found %s:%d after %s:%d",
+                    chromosome, start + 1, chromosome, previousStart + 1));
+        }
+        previousReference = referenceIndex;
+        previousStart = start;
+        final int safeEnd = Math.max(end, start + 1);
+
+        final Int2ObjectMap<LongArrayList> bins = binChunks.get(referenceIndex);
+        final int bin = reg2bin(start, safeEnd);
+        LongArrayList chunks = bins.get(bin);
+        if (chunks == null) {
+            chunks = new LongArrayList();
+            bins.put(bin, chunks);
+        }
+        final int size = chunks.size();
+        if (size > 0 && chunks.getLong(size - 1) == startOffset) {
+            // the record follows the last chunk of the bin, extend the chunk:
+            chunks.set(size - 1, endOffset);
+        } else {
+            chunks.add(startOffset);
+            chunks.add(endOffset);
+        }
+
+        final LongArrayList linear = linearOffsets.get(referenceIndex);
+        final int lastWindow = (safeEnd - 1) >> LINEAR_SHIFT;
+        for (int window = start >> LINEAR_SHIFT; window <= lastWindow; window++) {
+            while (linear.size() <= window) {
+                linear.add(NO_OFFSET);
+            }
+            if (linear.getLong(window) == NO_OFFSET) {
+                linear.set(window, startOffset);
+            }
+        }
+    }
+
+    /**
+     * Return the virtual offset where to start reading to find the records that overlap an interval. Records
+     * before the interval may be found after this offset and must be skipped by the caller.
+     *
+     * @param chromosome reference sequence of the interval.
+     * @param start      zero-based start of the interval.
+     * @param end        end of the interval (exclusive).
+     * @return a virtual offset, or -1 when no record overlaps the interval.
+     */
+    public long getStartOffset(final String chromosome, final int start, final int end) {
+        final int referenceIndex = nameToIndex.getInt(chromosome);
+        if (referenceIndex == -1 || end <= start) {
+            return NO_OFFSET;
+        }
+        final LongArrayList linear = linearOffsets.get(referenceIndex);
+        long minOffset = 0;
+        if (!linear.isEmpty()) {
+            final int window = Math.min(Math.max(start, 0) >> LINEAR_SHIFT, linear.size() - 1);
+            minOffset = Math.max(0, linear.getLong(window));
+        }
+        final Int2ObjectMap<LongArrayList> bins = binChunks.get(referenceIndex);
+        final IntArrayList candidateBins = new IntArrayList();
+        reg2bins(Math.max(start, 0), Math.min(end, MAX_POSITION), candidateBins);
+        long best = Long.MAX_VALUE;
+        for (final int bin : candidateBins) {
+            final LongArrayList chunks = bins.get(bin);
+            if (chunks == null) {
+                continue;
+            }
+            for (int i = 0; i < chunks.size(); i += 2) {
+                if (chunks.getLong(i + 1) > minOffset) {
+                    best = Math.min(best, chunks.getLong(i));
+                }
+            }
+        }
+        return best == Long.MAX_VALUE ? NO_OFFSET : best;
+    }
+
+    /**
+     * @return the names of the indexed reference sequences, in file order.
+     */
+    public String[] getChromosomes() {
+        return names.toArray(new String[names.size()]);
+    }
+
+    /**
+     * Write the index in the tabix format.
+     *
+     * @param filename name of the index file, usually the name of the VCF file followed by .tbi
+     * @throws IOException if the index cannot be written.
+     */
+    public void write(final String filename) throws IOException {
+        final OutputStream output = new BlockCompressedOutputStream(filename);
+        try {
+            output.write(MAGIC);
+            writeInt(output, names.size());
+            writeInt(output, FORMAT_VCF);
+            // columns of sequence name, start and end (0 when the end is given by the length of REF):
+            writeInt(output, 1);
+            writeInt(output, 2);
+            writeInt(output, 0);
+            // meta-character and number of lines to skip:
+            writeInt(output, '#');
+            writeInt(output, 0);
+            int namesLength = 0;
+            for (final String name : names) {
+                namesLength += name.getBytes("UTF-8").length + 1;
+            }
+            writeInt(output, namesLength);
+            for (final String name : names) {
+                output.write(name.getBytes("UTF-8"));
+                output.write(0);
+            }
+            for (int referenceIndex = 0; referenceIndex < names.size(); referenceIndex++) {
+                final Int2ObjectMap<LongArrayList> bins = binChunks.get(referenceIndex);
+                final int[] sortedBins = bins.keySet().toIntArray();
+                IntArrays.quickSort(sortedBins);
+                writeInt(output, sortedBins.length);
+                for (final int bin : sortedBins) {
+                    final LongArrayList chunks = bins.get(bin);
+                    writeInt(output, bin);
+                    writeInt(output, chunks.size() / 2);
+                    for (int i = 0; i < chunks.size(); i++) {
+                        writeLong(output, chunks.getLong(i));
+                    }
+                }
+                final LongArrayList linear = linearOffsets.get(referenceIndex);
+                writeInt(output, linear.size());
+                long previous = 0;
+                for (int window = 0; window < linear.size(); window++) {
+                    final long offset = linear.getLong(window);
+                    // windows without records point to the last record of the preceding windows:
+                    previous = offset == NO_OFFSET ? previous : offset;
+                    writeLong(output, previous);
+                }
+            }
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * Load an index in the tabix format.
+     *
+     * @param filename name of the index file.
+     * @return the index.
+     * @throws IOException if the index cannot be read or is not in the tabix format.
+     */
+    public static TabixIndex load(final String filename) throws IOException {
+        // BlockCompressedInputStream.read() returns signed bytes, only read through the buffer:
+        final DataInputStream input = new DataInputStream(new BufferedInputStream(
+                new BlockCompressedInputStream(new File(filename))));
+        try {
+            final byte[] magic = new byte[MAGIC.length];
+            input.readFully(magic);
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (magic[i] != MAGIC[i]) {
+                    throw new IOException("Not a tabix index: " + filename);
+                }
+            }
+            final TabixIndex index = new TabixIndex();
+            final int numReferences = readInt(input);
+            // format, column indices, meta-character and lines to skip:
+            for (int i = 0; i < 6; i++) {
+                readInt(input);
+            }
+            final byte[] namesBytes = new byte[readInt(input)];
+            input.readFully(namesBytes);
+            int nameStart = 0;
+            for (int i = 0; i < namesBytes.length; i++) {
+                if (namesBytes[i] == 0) {
+                    final String name = new String(namesBytes, nameStart, i - nameStart, "UTF-8");
+                    index.nameToIndex.put(name, index.names.size());
+                    index.names.add(name);
+                    nameStart = i + 1;
+                }
+            }
+            for (int referenceIndex = 0; referenceIndex < numReferences; referenceIndex++) {
+                final Int2ObjectMap<LongArrayList> bins = new Int2ObjectOpenHashMap<LongArrayList>();
+                final int numBins = readInt(input);
+                for (int b = 0; b < numBins; b++) {
+                    final int bin = readInt(input);
+                    final int numChunks = readInt(input);
+                    final LongArrayList chunks = new LongArrayList(numChunks * 2);
+                    for (int i = 0; i < numChunks * 2; i++) {
+                        chunks.add(readLong(input));
+                    }
+                    if (bin <= MAX_BIN) {
+                        bins.put(bin, chunks);
+                    }
+                }
+                final int numWindows = readInt(input);
+                final LongArrayList linear = new LongArrayList(numWindows);
+                for (int i = 0; i < numWindows; i++) {
+                    linear.add(readLong(input));
+                }
+                index.binChunks.add(bins);
+                index.linearOffsets.add(linear);
+            }
+            return index;
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Calculate the smallest bin that contains an interval.
+     */
+    static int reg2bin(final int start, final int end) {
+        final int last = end - 1;
+        if (start >> 14 == last >> 14) {
+            return ((1 << 15) - 1) / 7 + (start >> 14);
+        }
+        if (start >> 17 == last >> 17) {
+            return ((1 << 12) - 1) / 7 + (start >> 17);
+        }
+        if (start >> 20 == last >> 20) {
+            return ((1 << 9) - 1) / 7 + (start >> 20);
+        }
+        if (start >> 23 == last >> 23) {
+            return ((1 << 6) - 1) / 7 + (start >> 23);
+        }
+        if (start >> 26 == last >> 26) {
+            return ((1 << 3) - 1) / 7 + (start >> 26);
+        }
+        return 0;
+    }
+
+    /**
+     * Collect the bins that may contain records overlapping an interval.
+     */
+    static void reg2bins(final int start, final int end, final IntArrayList bins) {
+        final int last = end - 1;
+        bins.add(0);
+        for (int k = 1 + (start >> 26); k <= 1 + (last >> 26); k++) {
+            bins.add(k);
+        }
+        for (int k = 9 + (start >> 23); k <= 9 + (last >> 23); k++) {
+            bins.add(k);
+        }
+        for (int k = 73 + (start >> 20); k <= 73 + (last >> 20); k++) {
+            bins.add(k);
+        }
+        for (int k = 585 + (start >> 17); k <= 585 + (last >> 17); k++) {
+            bins.add(k);
+        }
+        for (int k = 4681 + (start >> 14); k <= 4681 + (last >> 14); k++) {
+            bins.add(k);
+        }
+    }
+
+    private static void writeInt(final OutputStream output, final int value) throws IOException {
+        output.write(value);
+        output.write(value >>> 8);
+        output.write(value >>> 16);
+        output.write(value >>> 24);
+    }
+
+    private static void writeLong(final OutputStream output, final long value) throws IOException {
+        writeInt(output, (int) value);
+        writeInt(output, (int) (value >>> 32));
+    }
+
+    private static int readInt(final DataInputStream input) throws IOException {
+        return Integer.reverseBytes(input.readInt());
+    }
+
+    private static long readLong(final DataInputStream input) throws IOException {
+        return Long.reverseBytes(input.readLong());
+    }
+}
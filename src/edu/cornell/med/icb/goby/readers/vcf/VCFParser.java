@@ -21,6 +21,9 @@
 package edu.cornell.med.icb.goby.readers.vcf;
 
 import edu.cornell.med.icb.goby.modes.TabToColumnInfoMode;
+import edu.cornell.med.icb.goby.util.ParallelBlockCompressedInputStream;
+import edu.cornell.med.icb.goby.util.dynoptions.DynamicOptionClient;
+import edu.cornell.med.icb.goby.util.dynoptions.RegisterThis;
 import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
 import it.unimi.dsi.fastutil.ints.IntArrayList;
@@ -30,12 +33,22 @@ import it.unimi.dsi.io.LineIterator;
 import it.unimi.dsi.lang.MutableString;
 import net.sf.samtools.util.BlockCompressedInputStream;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 
 import java.io.*;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Parser for files in the <a href="http://vcftools.sourceforge.net/specs.html">Variant Call Format</a>, or in plain TSV format.
@@ -46,39 +59,55 @@ import java.util.Map;
  * <pre>##INFO=&lt;ID=AF1,Number=1,Type=Float,Description="Max-likelihood ..."&gt;</pre>
  * This parser can additionally read a Group attribute, such as in:
  * <pre>##INFO=&lt;ID=AF1,Number=1,Type=Float,Group=LIKELIHOODS,Description="Max-likelihood ..."&gt;</pre>
+ * <p/>
+ * In parallel mode (see setParallel), data lines are read by a background thread and tokenised in batches
+ * on a pool of worker threads. Blocks of bgzip compressed input are also inflated on the worker threads.
+ * Lines are still returned in file order through hasNextDataLine/getFieldValue.
  *
  * @author Fabien Campagne
  *         Date: Mar 26, 2011
  *         Time: 3:01:47 PM
  */
 public class VCFParser implements Closeable {
+    /**
+     * Used to log informational and debug messages.
+     */
+    private static final Log LOG = LogFactory.getLog(VCFParser.class);
+
+    @RegisterThis
+    public static final DynamicOptionClient doc = new DynamicOptionClient(VCFParser.class,
+            "parallel:boolean, when true, read and tokenise data lines with several threads:false",
+            "num-threads:integer, number of worker threads used in parallel mode, -1 to use all processors:-1",
+            "lines-per-batch:integer, number of data lines tokenised together by a worker thread in parallel mode:100"
+    );
+
+    public static DynamicOptionClient doc() {
+        return doc;
+    }
+
     private Reader input;
     private Columns columns = new Columns();
     private boolean hasNextDataLine;
     private int numberOfColumns;
-    private int[] columnStarts;
-    private int[] columnEnds;
+    /**
+     * Header line, or meta-information line, being parsed.
+     */
     private MutableString line;
     private char columnSeparatorCharacter = '\t';
-    private int[] fieldStarts;
-    private int[] fieldEnds;
     private char fieldSeparatorCharacter = ';';
     private char formatFieldSeparatorCharacter = ':';
     private int numberOfFields;
     private int globalFieldIndex;
     private int formatColumnIndex;
-    private int lineLength;
     private int globalColumnIndex;
     /**
      * Variable TSV is true if we determined the file is tab delimited.
      */
     private boolean TSV = true;
     /**
-     * An array with dimensions numAllFields that stores the permutation from the global field index
-     * to the observed field index (taking into account absence or presence of Flag attributes, and the fact that
-     * fields that occur in any order on each line in a column).
+     * Tokens of the current data line.
      */
-    private int[] fieldPermutation;
+    private LineTokens current;
     /**
      * Sorts columns in increasing columnIndex order.
      */
@@ -122,17 +151,23 @@ public class VCFParser implements Closeable {
      * Set to <= 0 to scan the entire file. This must be set before calling readHeader() for the value to be used.
      */
     private int tsvLinesToScanForColumnType = -1;
-    /**
-     * Indicate that the field permutation has already been computed. When this field is true, the permutation
-     * of the first line computed is reused for subsequent lines.
-     */
-    private boolean computedFieldPermutation;
     /**
      * When this field is true, the permutation of the first line computed is reused for subsequent lines.
      */
     private boolean cacheFieldPermutation;
     private String associationString;
 
+    private boolean parallel = doc().getBoolean("parallel");
+    private int numThreads = doc().getInteger("num-threads");
+    private int linesPerBatch = doc().getInteger("lines-per-batch");
+    private ExecutorService executor;
+    private Thread lineReader;
+    private ArrayBlockingQueue<LineBatch> freeBatches;
+    private ArrayBlockingQueue<Future<LineBatch>> tokenisedBatches;
+    private LineBatch batch;
+    private int batchPosition;
+    private boolean endOfBatches;
+
     /**
      * Constructs a VCF parser.
      *
@@ -158,6 +193,46 @@ public class VCFParser implements Closeable {
                 new FileReader(filename);
     }
 
+    /**
+     * Constructs a VCF parser that returns only the data lines of a region. The file must be compressed with bgzip
+     * and indexed with tabix (or written by VCFWriter, which writes the index). The parser reads the header, then
+     * seeks to the first block that may contain records of the region.
+     *
+     * @param filename   Input to parse
+     * @param chromosome Chromosome of the region.
+     * @param start      First position of the region (one-based, as POS in VCF files). Records that start before
+     *                   the region are returned when their REF allele overlaps it.
+     * @param end        Last position of the region (inclusive).
+     * @throws java.io.IOException when the file or its index (filename.tbi) cannot be read.
+     */
+    public VCFParser(final String filename, final String chromosome, final int start, final int end)
+            throws IOException {
+        inputFile = new File(filename);
+        final File indexFile = new File(filename + ".tbi");
+        if (!indexFile.exists()) {
+            throw new FileNotFoundException("Reading a region requires a tabix index: " + indexFile);
+        }
+        regionIndex = TabixIndex.load(indexFile.getPath());
+        regionChromosome = chromosome;
+        regionStart = start;
+        regionEnd = end;
+        compressedInput = new BlockCompressedInputStream(inputFile);
+        input = new InputStreamReader(compressedInput);
+    }
+
+    private BlockCompressedInputStream compressedInput;
+    private TabixIndex regionIndex;
+    private String regionChromosome;
+    private int regionStart;
+    private int regionEnd;
+    private boolean endOfRegion;
+    private int chromosomeColumnIndex;
+    private int positionColumnIndex;
+    /**
+     * Index of the REF column, or -1 when the file has none and records span one position.
+     */
+    private int referenceColumnIndex;
+
     /**
      * If we should cache the TSV column types to a .colinfo file when parsing TSV files. This must be set
      * before calling readHeader() for the value to be used.
@@ -290,19 +365,90 @@ public class VCFParser implements Closeable {
         if (hasNextDataLine) {
             return true;
         }
+        while (!endOfRegion && nextDataLine()) {
+            if (regionIndex == null || inRegion()) {
+                return true;
+            }
+            hasNextDataLine = false;
+        }
+        return false;
+    }
 
+    private boolean nextDataLine() {
+        if (parallel) {
+            current = nextTokenisedLine();
+            hasNextDataLine = current != null;
+            return hasNextDataLine;
+        }
         hasNextDataLine = lineIterator.hasNext();
         if (hasNextDataLine) {
-            line = lineIterator.next();
-            if (!TSV) {
-                parseCurrentLine();
+            current.line = lineIterator.next();
+            parse(current);
+        }
+        return hasNextDataLine;
+    }
 
-            } else {
-                parseTSVLine();
-            }
+    /**
+     * Determine if the current line belongs to the region, that is, if the positions of its REF allele overlap the
+     * region. Sets endOfRegion when the current line is after the region.
+     */
+    private boolean inRegion() {
+        final MutableString line = current.line;
+        final int chromosomeStart = current.columnStarts[chromosomeColumnIndex];
+        final int chromosomeLength = current.columnEnds[chromosomeColumnIndex] - chromosomeStart;
+        boolean sameChromosome = chromosomeLength == regionChromosome.length();
+        for (int i = 0; sameChromosome && i < chromosomeLength; i++) {
+            sameChromosome = line.charAt(chromosomeStart + i) == regionChromosome.charAt(i);
+        }
+        if (!sameChromosome) {
+            // records are grouped by chromosome, there is nothing left to read in the region:
+            endOfRegion = true;
+            return false;
+        }
+        int position = 0;
+        final int end = current.columnEnds[positionColumnIndex];
+        for (int i = current.columnStarts[positionColumnIndex]; i < end; i++) {
+            position = position * 10 + line.charAt(i) - '0';
+        }
+        if (position > regionEnd) {
+            endOfRegion = true;
+            return false;
+        }
+        int referenceLength = 1;
+        if (referenceColumnIndex != -1) {
+            referenceLength = Math.max(1, current.columnEnds[referenceColumnIndex] -
+                    current.columnStarts[referenceColumnIndex]);
+        }
+        // a record that starts before the region overlaps it when its REF allele reaches the region:
+        return position + referenceLength - 1 >= regionStart;
+    }
 
+    /**
+     * Position the parser at the start of the region, after the header has been read.
+     */
+    private void seekToRegion() {
+        hasNextDataLine = false;
+        final ColumnInfo chromosomeColumn = columns.find("CHROM");
+        final ColumnInfo positionColumn = columns.find("POS");
+        if (chromosomeColumn == null || positionColumn == null) {
+            throw new IllegalArgumentException("Regions can only be read from files with CHROM and POS columns.");
         }
-        return hasNextDataLine;
+        chromosomeColumnIndex = chromosomeColumn.columnIndex;
+        positionColumnIndex = positionColumn.columnIndex;
+        final ColumnInfo referenceColumn = columns.find("REF");
+        referenceColumnIndex = referenceColumn == null ? -1 : referenceColumn.columnIndex;
+        final long offset = regionIndex.getStartOffset(regionChromosome, regionStart - 1, regionEnd);
+        if (offset == -1) {
+            endOfRegion = true;
+            return;
+        }
+        try {
+            compressedInput.seek(offset);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to seek to region " + regionChromosome + ":" + regionStart, e);
+        }
+        bufferedReader = new FastBufferedReader(new InputStreamReader(compressedInput));
+        lineIterator = new LineIterator(bufferedReader);
     }
 
 
@@ -324,7 +470,7 @@ public class VCFParser implements Closeable {
     public CharSequence getColumnValue(final int columnIndex) {
         if (hasNextDataLine) {
 
-            return line.subSequence(columnStarts[columnIndex], columnEnds[columnIndex]);
+            return current.line.subSequence(current.columnStarts[columnIndex], current.columnEnds[columnIndex]);
 
         } else return null;
     }
@@ -353,23 +499,57 @@ public class VCFParser implements Closeable {
      */
     public CharSequence getFieldValue(final int globalFieldIndex) {
         if (hasNextDataLine) {
-
-            final int lineFieldIndex = fieldPermutation[globalFieldIndex];
+            final LineTokens tokens = current;
+            final int lineFieldIndex = tokens.fieldPermutation[globalFieldIndex];
             if (lineFieldIndex == -1) {
                 // missing field in this row;
                 return "";
             }
-            final int start = fieldStarts[lineFieldIndex];
-            final int end = fieldEnds[lineFieldIndex];
+            final int start = tokens.fieldStarts[lineFieldIndex];
+            final int end = tokens.fieldEnds[lineFieldIndex];
 
-            assert (start >= 0 && end <= lineLength) :
-                    String.format("position indices must be within line boundaries start: %d end: %d length: %d", start, end, lineLength);
-            return line.subSequence(start, end);
+            assert (start >= 0 && end <= tokens.lineLength) :
+                    String.format("position indices must be within line boundaries start: %d end: %d length: %d",
+                            start, end, tokens.lineLength);
+            return tokens.line.subSequence(start, end);
 
 
         } else return null;
     }
 
+    /**
+     * Returns the characters of the current line. Fields can be read in place from this array, between the offsets
+     * returned by getFieldStart and getFieldEnd, without creating a CharSequence for each field. The array is valid
+     * until next() is called.
+     *
+     * @return the characters of the current line, or null if there is no current line.
+     */
+    public char[] getLineChars() {
+        return hasNextDataLine ? current.line.array() : null;
+    }
+
+    /**
+     * Returns the offset in getLineChars() of the first character of a field.
+     *
+     * @param globalFieldIndex a global index that runs from zero to countAllFields()
+     * @return offset of the first character of the field, or -1 when the field is missing in the current line.
+     */
+    public int getFieldStart(final int globalFieldIndex) {
+        final int lineFieldIndex = current.fieldPermutation[globalFieldIndex];
+        return lineFieldIndex == -1 ? -1 : current.fieldStarts[lineFieldIndex];
+    }
+
+    /**
+     * Returns the offset in getLineChars() that follows the last character of a field.
+     *
+     * @param globalFieldIndex a global index that runs from zero to countAllFields()
+     * @return offset after the last character of the field, or -1 when the field is missing in the current line.
+     */
+    public int getFieldEnd(final int globalFieldIndex) {
+        final int lineFieldIndex = current.fieldPermutation[globalFieldIndex];
+        return lineFieldIndex == -1 ? -1 : current.fieldEnds[lineFieldIndex];
+    }
+
     /**
      * Returns the value of a field.
      * The field is identified by a global index that runs from zero (inclusive) to countAllFields() (exclusive).
@@ -422,6 +602,9 @@ public class VCFParser implements Closeable {
         headerParsed = true;
         globalFieldIndex = 0;
         fieldIndexToName = new Int2ObjectOpenHashMap<String>();
+        if (parallel) {
+            startExecutor();
+        }
         bufferedReader = new FastBufferedReader(input);
         lineIterator = new LineIterator(bufferedReader);
         int lineNumber = 1;
@@ -439,11 +622,8 @@ public class VCFParser implements Closeable {
 
                     } else {
                         // We are seeing an actual line of data. Prepare for parsing:
-                        if (!TSV) {
-                            parseCurrentLine();
-                        } else {
-                            parseTSVLine();
-                        }
+                        current.line = line;
+                        parse(current);
                         hasNextDataLine = true;
                     }
                     break;
@@ -473,25 +653,43 @@ public class VCFParser implements Closeable {
             };
 
         }
+        if (regionIndex != null) {
+            seekToRegion();
+        }
     }
 
     private boolean hasVcfMetaLine() {
         return line.startsWith("##") && line.indexOf('=')!=-1;
     }
 
-    private void parseTSVLine() {
+    /**
+     * Tokenise the data line held by tokens. This method does not modify the state of the parser and can
+     * be called concurrently on distinct tokens.
+     */
+    private void parse(final LineTokens tokens) {
+        if (!TSV) {
+            parseCurrentLine(tokens);
+        } else {
+            parseTSVLine(tokens);
+        }
+    }
+
+    private void parseTSVLine(final LineTokens tokens) {
+        final int[] columnStarts = tokens.columnStarts;
+        final int[] columnEnds = tokens.columnEnds;
+        final int[] fieldPermutation = tokens.fieldPermutation;
+        final MutableString line = tokens.line;
         Arrays.fill(columnStarts, 0);
         Arrays.fill(columnEnds, 0);
-        Arrays.fill(fieldStarts, 0);
-        Arrays.fill(fieldEnds, 0);
+        Arrays.fill(tokens.fieldStarts, 0);
+        Arrays.fill(tokens.fieldEnds, 0);
         int columnIndex = 0;
-        lineLength = line.length();
+        final int lineLength = line.length();
+        tokens.lineLength = lineLength;
         for (int i = 0; i < lineLength; i++) {
 
             final char c = line.charAt(i);
             if (c == '\t') {
-                final String columnName = columnList.get(columnIndex).columnName;
-
                 columnEnds[columnIndex] = i;
                 if (columnIndex + 1 < columnStarts.length) {
 
@@ -505,14 +703,18 @@ public class VCFParser implements Closeable {
         fieldPermutation[columnEnds.length - 1] = columnEnds.length - 1;
         columnEnds[columnEnds.length - 1] = lineLength;
         columnStarts[columnEnds.length - 1] = columnEnds[columnEnds.length - 2] + 1;
-        System.arraycopy(columnEnds, 0, fieldEnds, 0, columnEnds.length);
-        System.arraycopy(columnStarts, 0, fieldStarts, 0, columnStarts.length);
+        System.arraycopy(columnEnds, 0, tokens.fieldEnds, 0, columnEnds.length);
+        System.arraycopy(columnStarts, 0, tokens.fieldStarts, 0, columnStarts.length);
 
     }
 
-    final IntArrayList previousColumnFieldIndices = new IntArrayList();
-
-    private void parseCurrentLine() {
+    private void parseCurrentLine(final LineTokens tokens) {
+        final int[] columnStarts = tokens.columnStarts;
+        final int[] columnEnds = tokens.columnEnds;
+        final int[] fieldStarts = tokens.fieldStarts;
+        final int[] fieldEnds = tokens.fieldEnds;
+        final int[] fieldPermutation = tokens.fieldPermutation;
+        final MutableString line = tokens.line;
         Arrays.fill(columnStarts, 0);
         Arrays.fill(columnEnds, 0);
         Arrays.fill(fieldStarts, 0);
@@ -520,12 +722,14 @@ public class VCFParser implements Closeable {
         columnStarts[0] = 0;
         int columnIndex = 0;
         int fieldIndex = 0;
-        lineLength = line.length();
-        final int[] lineFieldIndexToColumnIndex = new int[numberOfFields];
+        final int lineLength = line.length();
+        tokens.lineLength = lineLength;
+        final int[] lineFieldIndexToColumnIndex = tokens.lineFieldIndexToColumnIndex;
         Arrays.fill(lineFieldIndexToColumnIndex, -1);
+        final IntArrayList previousColumnFieldIndices = tokens.previousColumnFieldIndices;
         previousColumnFieldIndices.clear();
         // determine the position of column and field delimiters:
-        final char[] chrs = line.toCharArray();
+        final char[] chrs = line.array();
         for (int i = 0; i < lineLength; i++) {
             final char c = chrs[i];
             if (c == columnSeparatorCharacter) {
@@ -577,18 +781,22 @@ public class VCFParser implements Closeable {
         int numberOfFieldsOnLine = Math.min(fieldIndex, fieldEnds.length - 1);
         int numberOfColumnsOnLine = Math.min(columnIndex, columnEnds.length - 1);
         columnStarts[0] = 0;
-        columnEnds[numberOfColumnsOnLine - (TSV ? 1 : 0)] = line.length();
+        columnEnds[numberOfColumnsOnLine - (TSV ? 1 : 0)] = lineLength;
         fieldStarts[0] = 0;
-        fieldEnds[numberOfFieldsOnLine - (TSV ? 1 : 0)] = line.length();
+        fieldEnds[numberOfFieldsOnLine - (TSV ? 1 : 0)] = lineLength;
         previousColumnFieldIndices.add(fieldIndex);
         push(columnIndex, lineFieldIndexToColumnIndex, previousColumnFieldIndices);
 
-        if (cacheFieldPermutation && computedFieldPermutation) return;
+        if (cacheFieldPermutation && tokens.computedFieldPermutation) return;
         Arrays.fill(fieldPermutation, -1);
-        for (ColumnInfo c : columns) {
-            c.formatIndex = 0;
-        }
+        final int[] formatIndices = tokens.formatIndices;
+        Arrays.fill(formatIndices, 0);
 
+        final int formatColumnIndex = TSV ? -1 : formatColumn.columnIndex;
+        final int startFormatColumn = TSV ? 0 : columnStarts[formatColumnIndex];
+        final int endFormatColumn = TSV ? 0 : columnEnds[formatColumnIndex];
+        // the FORMAT column is split once per line, it is the same for all the fields of the line:
+        final String[] formatTokens = split(tokens, formatFieldSeparatorCharacter, startFormatColumn, endFormatColumn);
 
         // determine the fieldPermutation for each possible field:
         for (int lineFieldIndex = 0; lineFieldIndex <= numberOfFieldsOnLine; lineFieldIndex++) {
@@ -615,13 +823,6 @@ public class VCFParser implements Closeable {
 
             }
 
-            final int formatColumnIndex = TSV ? -1 : formatColumn.columnIndex;
-            final int startFormatColumn = TSV ? 0 : columnStarts[formatColumnIndex];
-            final int endFormatColumn = TSV ? 0 : columnEnds[formatColumnIndex];
-
-
-            final String[] formatTokens = split(line, formatFieldSeparatorCharacter, startFormatColumn, endFormatColumn);
-
             for (int fi = 0; fi < fields.size(); ++fi) {
 
                 final ColumnField f = fields.get(fi);
@@ -645,7 +846,7 @@ public class VCFParser implements Closeable {
                             break;
                         }
 
-                        final char linechar = line.charAt(j);
+                        final char linechar = chrs[j];
 
                         if (id.charAt(i) != linechar) {
                             // found mimatch with field id, not this field.
@@ -670,14 +871,14 @@ public class VCFParser implements Closeable {
                         break;
                     } else {
 
-                        if (column.useFormat && column.formatIndex < formatTokens.length) {
+                        if (column.useFormat && formatIndices[cIndex] < formatTokens.length) {
 
-                            if (f.id.equals(formatTokens[column.formatIndex])) {
+                            if (f.id.equals(formatTokens[formatIndices[cIndex]])) {
                                 /*    System.out.printf("Assigning FORMAT global %s %d -> %d for field %s%n",
                                           f.id, f.globalFieldIndex, lineFieldIndex, line.subSequence(start, end));
                                 */
                                 fieldPermutation[f.globalFieldIndex] = lineFieldIndex;
-                                column.formatIndex++;
+                                formatIndices[cIndex]++;
                                 break;
                             }
                         }
@@ -685,63 +886,46 @@ public class VCFParser implements Closeable {
                 }
             }
         }
-        computedFieldPermutation = true;
+        tokens.computedFieldPermutation = true;
     }
 
-    String[] formatSplit = null;
-
-    private String[] split(final MutableString line, final char formatFieldSeparatorCharacter,
+    private String[] split(final LineTokens tokens, final char formatFieldSeparatorCharacter,
                            final int startFormatColumn, final int endFormatColumn) {
-        if (cacheFieldPermutation && formatSplit != null) {
-            return formatSplit;
+        if (cacheFieldPermutation && tokens.formatSplit != null) {
+            return tokens.formatSplit;
         } else {
-            final MutableString formatSpan = line.substring(startFormatColumn, endFormatColumn);
-
+            final MutableString line = tokens.line;
             int fieldCount = 0;
-
-            formatSpan.append(formatFieldSeparatorCharacter);
-            final int length = formatSpan.length();
-            for (int i = 0; i < length; i++) {
-                if (formatSpan.charAt(i) == formatFieldSeparatorCharacter) {
+            int last = startFormatColumn;
+            for (int i = startFormatColumn; i <= endFormatColumn; i++) {
+                if ((i == endFormatColumn || line.charAt(i) == formatFieldSeparatorCharacter) && i > last) {
                     ++fieldCount;
+                    last = i + 1;
                 }
             }
             final String[] result = new String[fieldCount];
-            final MutableString value = new MutableString();
-            int last = 0;
+            last = startFormatColumn;
             int j = 0;
-            for (int i = 0; i < length; i++) {
-                if (formatSpan.charAt(i) == formatFieldSeparatorCharacter && i > last) {
-                    value.append(formatSpan.substring(last, i));
+            for (int i = startFormatColumn; i <= endFormatColumn; i++) {
+                if ((i == endFormatColumn || line.charAt(i) == formatFieldSeparatorCharacter) && i > last) {
+                    result[j++] = line.substring(last, i).toString();
                     last = i + 1;
-                    result[j] = value.toString();
-                    value.setLength(0);
-                    ++j;
                 }
             }
-            formatSplit = result;
+            tokens.formatSplit = result;
             return result;
         }
     }
 
-    //     System.out.println("ned");
-
-
     private void push(final int columnIndex, final int[] lineFieldIndexToColumnIndex, final IntArrayList previousColumnFieldIndices) {
-        //    System.out.println("---");
         final int size = previousColumnFieldIndices.size();
         for (int i = 0; i < size; ++i) {
             final int fIndex = previousColumnFieldIndices.getInt(i);
-            /*        System.out.printf("field %s gfi:%d belongs to column %d %s%n ",
-           line.substring(fieldStarts[fIndex], fieldEnds[fIndex]),
-           fIndex,
-           columnIndex, columnList.get(columnIndex).columnName);*/
             lineFieldIndexToColumnIndex[fIndex] = columnIndex;
         }
         previousColumnFieldIndices.clear();
     }
 
-
     private void parseHeaderLine(MutableString line) {
         if (TSV) {
             // Attempt to determine the column types using TabToColumnInfoMode.
@@ -819,18 +1003,16 @@ public class VCFParser implements Closeable {
         formatColumnIndex = TSV ? -1 : formatColumn.columnIndex;
 
         numberOfColumns = globalColumnIndex;
-        columnStarts = new int[numberOfColumns];
-        columnEnds = new int[numberOfColumns];
         numberOfFields = globalFieldIndex;
-        fieldStarts = new int[numberOfFields];
-        fieldEnds = new int[numberOfFields];
-        fieldPermutation = new int[numberOfFields];
 
         columnList.addAll(columns);
         Collections.sort(columnList, COLUMN_SORT);
         for (final ColumnInfo column : columnList) {
+            // build the field lists now, so that they are only read when lines are tokenised:
+            column.fields.rebuildList();
             fieldList.addAll(column.fields);
         }
+        current = new LineTokens();
     }
 
 
@@ -1010,6 +1192,7 @@ public class VCFParser implements Closeable {
      */
     @Override
     public void close() throws IOException {
+        stopParallelParsing();
         if (bufferedReader != null) {
             IOUtils.closeQuietly(bufferedReader);
 
@@ -1037,6 +1220,247 @@ public class VCFParser implements Closeable {
         this.cacheFieldPermutation = cacheFieldPermutation;
     }
 
+    /**
+     * Enable or disable parallel parsing. This must be set before calling readHeader() for the value to be used.
+     * The default value is given by the parallel dynamic option.
+     *
+     * @param parallel True to read and tokenise data lines with several threads.
+     */
+    public void setParallel(final boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    public boolean isParallel() {
+        return parallel;
+    }
+
+    /**
+     * Set the number of worker threads used in parallel mode. This must be set before calling readHeader()
+     * for the value to be used.
+     *
+     * @param numThreads number of threads, or a negative value to use one thread per processor.
+     */
+    public void setNumThreads(final int numThreads) {
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * Set the number of data lines tokenised together by a worker thread in parallel mode. This must be set
+     * before the first data line is read for the value to be used.
+     *
+     * @param linesPerBatch number of lines in a batch.
+     */
+    public void setLinesPerBatch(final int linesPerBatch) {
+        this.linesPerBatch = linesPerBatch;
+    }
+
+    /**
+     * Positions of the columns and fields of a data line. Each instance can be reused to tokenise
+     * successive lines.
+     */
+    private final class LineTokens {
+        private MutableString line;
+        private int lineLength;
+        private final int[] columnStarts = new int[numberOfColumns];
+        private final int[] columnEnds = new int[numberOfColumns];
+        private final int[] fieldStarts = new int[numberOfFields];
+        private final int[] fieldEnds = new int[numberOfFields];
+        /**
+         * An array with dimensions numAllFields that stores the permutation from the global field index
+         * to the observed field index (taking into account absence or presence of Flag attributes, and the fact
+         * that fields that occur in any order on each line in a column).
+         */
+        private final int[] fieldPermutation = new int[numberOfFields];
+        private final int[] lineFieldIndexToColumnIndex = new int[numberOfFields];
+        private final IntArrayList previousColumnFieldIndices = new IntArrayList();
+        /**
+         * Index of the next FORMAT token to match, for each column.
+         */
+        private final int[] formatIndices = new int[columnList.size()];
+        /**
+         * Indicate that the field permutation has already been computed. When this field is true and
+         * cacheFieldPermutation is set, the permutation of the first line computed is reused for subsequent lines.
+         */
+        private boolean computedFieldPermutation;
+        private String[] formatSplit;
+
+        /**
+         * Create tokens that own their line, and share the cached field permutation of other tokens.
+         */
+        private LineTokens(final LineTokens cached) {
+            this();
+            line = new MutableString();
+            if (cached != null && cached.computedFieldPermutation) {
+                System.arraycopy(cached.fieldPermutation, 0, fieldPermutation, 0, numberOfFields);
+                formatSplit = cached.formatSplit;
+                computedFieldPermutation = true;
+            }
+        }
+
+        private LineTokens() {
+            super();
+        }
+    }
+
+    /**
+     * A batch of lines tokenised together on a worker thread.
+     */
+    private final class LineBatch implements Callable<LineBatch> {
+        private final LineTokens[] lines;
+        private int size;
+
+        private LineBatch(final int capacity, final LineTokens cached) {
+            super();
+            lines = new LineTokens[capacity];
+            for (int i = 0; i < capacity; i++) {
+                lines[i] = new LineTokens(cached);
+            }
+        }
+
+        @Override
+        public LineBatch call() {
+            for (int i = 0; i < size; i++) {
+                parse(lines[i]);
+            }
+            return this;
+        }
+    }
+
+    private void startExecutor() {
+        if (numThreads <= 0) {
+            numThreads = Runtime.getRuntime().availableProcessors();
+        }
+        executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "VCFParser-worker");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        if (inputFile != null && inputFile.getName().endsWith(".gz") && regionIndex == null) {
+            // inflate blocks of bgzip files on the worker threads:
+            try {
+                final InputStream compressed = new BufferedInputStream(new FileInputStream(inputFile));
+                if (BlockCompressedInputStream.isValidFile(compressed)) {
+                    IOUtils.closeQuietly(input);
+                    input = new InputStreamReader(new ParallelBlockCompressedInputStream(compressed, executor,
+                            4 * numThreads));
+                } else {
+                    compressed.close();
+                }
+            } catch (IOException e) {
+                LOG.warn("Unable to inflate " + inputFile + " in parallel, inflating with a single thread.", e);
+            }
+        }
+    }
+
+    /**
+     * Start the thread that reads lines in batches and submits each batch to the workers.
+     */
+    private void startLineReader() {
+        final int numBatches = 2 * numThreads + 2;
+        freeBatches = new ArrayBlockingQueue<LineBatch>(numBatches);
+        // one more slot for the end of input:
+        tokenisedBatches = new ArrayBlockingQueue<Future<LineBatch>>(numBatches + 1);
+        for (int i = 0; i < numBatches; i++) {
+            freeBatches.add(new LineBatch(Math.max(1, linesPerBatch), current));
+        }
+        lineReader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    try {
+                        while (lineIterator.hasNext()) {
+                            final LineBatch lines = freeBatches.take();
+                            lines.size = 0;
+                            while (lines.size < lines.lines.length && lineIterator.hasNext()) {
+                                lines.lines[lines.size++].line.replace(lineIterator.next());
+                            }
+                            tokenisedBatches.put(executor.submit(lines));
+                        }
+                        tokenisedBatches.put(completed(null, null));
+                    } catch (RuntimeException e) {
+                        tokenisedBatches.put(completed(null, e));
+                    }
+                } catch (InterruptedException e) {
+                    // the parser was closed.
+                }
+            }
+        }, "VCFParser-line-reader");
+        lineReader.setDaemon(true);
+        lineReader.start();
+    }
+
+    private static Future<LineBatch> completed(final LineBatch batch, final RuntimeException error) {
+        final FutureTask<LineBatch> task = new FutureTask<LineBatch>(new Callable<LineBatch>() {
+            @Override
+            public LineBatch call() {
+                if (error != null) {
+                    throw error;
+                }
+                return batch;
+            }
+        });
+        task.run();
+        return task;
+    }
+
+    /**
+     * Return the tokens of the next line, in file order, or null when all lines have been returned.
+     */
+    private LineTokens nextTokenisedLine() {
+        if (lineReader == null) {
+            startLineReader();
+        }
+        while (batch == null || batchPosition >= batch.size) {
+            if (endOfBatches) {
+                return null;
+            }
+            if (batch != null) {
+                // the lines of this batch have all been consumed, the batch can be refilled:
+                freeBatches.add(batch);
+                batch = null;
+            }
+            try {
+                batch = tokenisedBatches.take().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for lines to be parsed.", e);
+            } catch (ExecutionException e) {
+                endOfBatches = true;
+                final Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new RuntimeException(cause);
+            }
+            if (batch == null) {
+                endOfBatches = true;
+                return null;
+            }
+            batchPosition = 0;
+        }
+        return batch.lines[batchPosition++];
+    }
+
+    private void stopParallelParsing() {
+        if (lineReader != null) {
+            lineReader.interrupt();
+            try {
+                lineReader.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            lineReader = null;
+            endOfBatches = true;
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
     public GroupAssociations getGroupAssociations() {
         return new GroupAssociations(associationString, columns.find("FORMAT"), getColumnNamesUsingFormat());
     }
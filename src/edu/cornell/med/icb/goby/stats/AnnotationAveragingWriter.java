@@ -44,6 +44,15 @@ import java.io.IOException;
 import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * A VCF Writer that averages values of some fields over a set of annotations,
@@ -68,6 +77,7 @@ public class AnnotationAveragingWriter extends VCFWriter implements RegionWriter
             "annotations:annotation filename:",
             "write-counts:boolean, when true write C and Cm for regions:false",
             "write-observations:boolean, when true write oservations to disk: false",
+            "record-threads:integer, number of threads that calculate the statistics of annotations while sites are read. -1 uses all processors. Records are calculated on the reading thread when observations are written or intra-group differences are estimated.:1",
             "contexts:string, coma delimited list of contexts for which to evaluate methylation rate. Contexts can be CpG, CpA,CpC,CpT,CpN. Default is CpG only:CpG"
     );
 
@@ -80,7 +90,25 @@ public class AnnotationAveragingWriter extends VCFWriter implements RegionWriter
     private int[] sampleIndexToGroupIndex;
     private boolean fisherRInstalled;
     private SortedAnnotations annotations = new SortedAnnotations();
-    private Int2ObjectMap<FormatFieldCounter> counterMap = new Int2ObjectAVLTreeMap<FormatFieldCounter>();
+    /**
+     * Counters of the annotations that have been seen, indexed by annotation index.
+     */
+    private FormatFieldCounter[] counters;
+    /**
+     * Indices of the annotations that have been seen and not written yet, in increasing order.
+     */
+    private final IntAVLTreeSet openAnnotations = new IntAVLTreeSet();
+    private final IntArrayList closedAnnotations = new IntArrayList();
+    private int numRecordThreads;
+    private ExecutorService recordExecutor;
+    /**
+     * Records calculated by the worker threads, in annotation order.
+     */
+    private final LinkedList<Future<String>> pendingRecords = new LinkedList<Future<String>>();
+    /**
+     * One copy of the p-value estimator per worker thread, taken by a worker for the duration of a record.
+     */
+    private BlockingQueue<EmpiricalPValueEstimator> workerEstimators;
 
     /**
      * Used to log debug and informational messages.
@@ -107,7 +135,6 @@ public class AnnotationAveragingWriter extends VCFWriter implements RegionWriter
     private Boolean estimateIntraGroupP;
     private Boolean writeNumSites = true;
     final EmpiricalPValueEstimator empiricalPValueEstimator = new EmpiricalPValueEstimator();
-    private final String[] identifiers = new String[5];
     private Boolean writeObservations;
 
 
@@ -141,6 +168,8 @@ public class AnnotationAveragingWriter extends VCFWriter implements RegionWriter
         estimateIntraGroupP = doc.getBoolean("estimate-empirical-P");
         writeCounts = doc.getBoolean("write-counts");
         writeObservations = doc.getBoolean("write-observations");
+        final int recordThreads = doc.getInteger("record-threads");
+        numRecordThreads = recordThreads == -1 ? Runtime.getRuntime().availableProcessors() : Math.max(1, recordThreads);
 
         if (estimateIntraGroupDifferences || estimateIntraGroupP) {
             String basename = FilenameUtils.removeExtension(outputInfo.getFilename());
@@ -207,6 +236,7 @@ public class AnnotationAveragingWriter extends VCFWriter implements RegionWriter
                 return;
             }
 
+            counters = new FormatFieldCounter[annotations.size()];
             //write headers
             writeHeaders();
 
@@ -225,10 +255,35 @@ public class AnnotationAveragingWriter extends VCFWriter implements RegionWriter
             }
             if ((estimateIntraGroupDifferences || estimateIntraGroupP) && !(obsWriter instanceof DummyObservationWriter)) {
                 empiricalPValueEstimator.getStatAdaptor().setObservationWriter(obsWriter);
+                // the observation writer records pairs one at a time, in the order they are observed:
+                empiricalPValueEstimator.setNumThreads(1);
+            }
+            if (numRecordThreads > 1 && !writeObservations && !estimateIntraGroupDifferences) {
+                startRecordWorkers();
             }
         }
     }
 
+    /**
+     * Start the threads that calculate the records of closed annotations. Records only depend on the counters of
+     * their annotation, so they can be calculated in any order while sites are read, and are written in the order
+     * the annotations were closed.
+     */
+    private void startRecordWorkers() {
+        workerEstimators = new ArrayBlockingQueue<EmpiricalPValueEstimator>(numRecordThreads);
+        for (int i = 0; i < numRecordThreads; i++) {
+            workerEstimators.add(estimateIntraGroupP ? empiricalPValueEstimator.copy() : empiricalPValueEstimator);
+        }
+        recordExecutor = Executors.newFixedThreadPool(numRecordThreads, new ThreadFactory() {
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "annotation-records");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        LOG.debug(String.format("Calculating annotation records with %d threads.", numRecordThreads));
+    }
+
     private void writeHeaders() {
         try {
             //  IGV format - maintain fidelity
@@ -394,11 +449,12 @@ public class AnnotationAveragingWriter extends VCFWriter implements RegionWriter
             for (int sampleIndex = 0; sampleIndex < numSamples; sampleIndex++) {
                 for (int each : validOverlappingAnnotations) {
                     // increment counters for each annotation overlapping at this position
-                    FormatFieldCounter cntr = counterMap.get(each);
+                    FormatFieldCounter cntr = counters[each];
 
                     if (cntr == null) {
                         cntr = new FormatFieldCounter(each, numSamples, numGroups, contexts);
-                        counterMap.put(each, cntr);
+                        counters[each] = cntr;
+                        openAnnotations.add(each);
                     }
                     cntr.incrementCounts(sampleIndex, sampleIndexToGroupIndex,
                             provider.getC(sampleIndex),
@@ -416,10 +472,24 @@ public class AnnotationAveragingWriter extends VCFWriter implements RegionWriter
         }
 
 
-        final IntSet currentAnnotations = counterMap.keySet();
+        writeClosedAnnotations(chromosome, pos);
+    }
 
-        for (final int annot : currentAnnotations) {
-            buildAnnotationRecordForOutput(chromosome, pos, annot);
+    /**
+     * Write the records of the open annotations that end before (chromosome, pos), in annotation index order.
+     */
+    private void writeClosedAnnotations(final String chromosome, final int pos) {
+        closedAnnotations.clear();
+        for (final int anno : openAnnotations) {
+            if (annotations.pastChosenAnnotation(anno, chromosome, pos)) {
+                closedAnnotations.add(anno);
+            }
+        }
+        for (int i = 0; i < closedAnnotations.size(); i++) {
+            final int anno = closedAnnotations.getInt(i);
+            buildAnnotationRecordForOutput(anno);
+            openAnnotations.remove(anno);
+            counters[anno] = null;
         }
     }
 
@@ -444,175 +514,238 @@ public class AnnotationAveragingWriter extends VCFWriter implements RegionWriter
 
     private ObservationWriter obsWriter = new DummyObservationWriter();
 
-    private void buildAnnotationRecordForOutput(String chromosome, int pos, int anno) {
-
-        if (annotations.pastChosenAnnotation(anno, chromosome, pos)) {
-            // this annotation is ready to be written
-            Annotation annoOut = annotations.getAnnotation(anno);
-            FormatFieldCounter counter = counterMap.get(anno);
-
-            StringBuilder lineToOutput = new StringBuilder("");
-            try {
-                if (writeObservations) {
-                    identifiers[0] = "context"; // will be filled below.
-                    identifiers[1] = annoOut.getChromosome();
-                    identifiers[2] = String.valueOf(annoOut.getStart());
-                    identifiers[3] = String.valueOf(annoOut.getEnd());
-                    identifiers[4] = annoOut.getId();
-                    obsWriter.setElementIds(identifiers);
+    private void buildAnnotationRecordForOutput(final int anno) {
+        final Annotation annoOut = annotations.getAnnotation(anno);
+        final FormatFieldCounter counter = counters[anno];
+        try {
+            if (recordExecutor == null) {
+                outputWriter.append(formatRecord(annoOut, counter, empiricalPValueEstimator));
+                return;
+            }
+            pendingRecords.add(recordExecutor.submit(new Callable<String>() {
+                public String call() throws InterruptedException {
+                    final EmpiricalPValueEstimator estimator = workerEstimators.take();
+                    try {
+                        return formatRecord(annoOut, counter, estimator);
+                    } finally {
+                        workerEstimators.put(estimator);
+                    }
                 }
-                lineToOutput.append(annoOut.getChromosome());
-                lineToOutput.append("\t");
-                lineToOutput.append(String.valueOf(annoOut.getStart()));
-                lineToOutput.append("\t");
-                lineToOutput.append(String.valueOf(annoOut.getEnd())).append("\t");
-                lineToOutput.append(annoOut.getId());
+            }));
+            // write the records that are done, and wait when too many are pending, to bound memory:
+            while (!pendingRecords.isEmpty() &&
+                    (pendingRecords.getFirst().isDone() || pendingRecords.size() > numRecordThreads * 64)) {
+                outputWriter.append(pendingRecords.removeFirst().get());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
 
-                if (writeCounts) {
-                    for (int currentContext = 0; currentContext < contexts.length; currentContext++) {
-                        for (int sampleIndex = 0; sampleIndex < numSamples; sampleIndex++) {
-                            lineToOutput.append("\t");
-                            final int unMethylatedCCounterPerSample = counter.getUnmethylatedCCountPerSample(currentContext, sampleIndex);
-                            lineToOutput.append(unMethylatedCCounterPerSample);
-                        }
-                    }
+    /**
+     * Write the records that are still being calculated, and stop the worker threads.
+     */
+    private void flushPendingRecords() {
+        if (recordExecutor == null) {
+            return;
+        }
+        try {
+            while (!pendingRecords.isEmpty()) {
+                outputWriter.append(pendingRecords.removeFirst().get());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            recordExecutor.shutdownNow();
+            recordExecutor = null;
+        }
+    }
 
-                    for (int currentContext = 0; currentContext < contexts.length; currentContext++) {
-                        for (int sampleIndex = 0; sampleIndex < numSamples; sampleIndex++) {
-                            lineToOutput.append("\t");
-                            final int methylatedCCounterPerSample = counter.getMethylatedCCountPerSample(currentContext, sampleIndex);
-                            lineToOutput.append(methylatedCCounterPerSample);
-                        }
-                    }
+    /**
+     * Calculate the record of an annotation, terminated by a new line.
+     *
+     * @param annoOut   the annotation.
+     * @param counter   counts over the sites of the annotation.
+     * @param estimator estimator of empirical p-values, not shared with other threads.
+     * @return the record.
+     */
+    private String formatRecord(final Annotation annoOut, final FormatFieldCounter counter,
+                                final EmpiricalPValueEstimator estimator) {
+        final StringBuilder lineToOutput = new StringBuilder("");
+        // the observation writer keeps this array: each record gets its own. Observations are only written
+        // when records are calculated on the reading thread.
+        final String[] identifiers = new String[5];
+        if (writeObservations) {
+            identifiers[0] = "context"; // will be filled below.
+            identifiers[1] = annoOut.getChromosome();
+            identifiers[2] = String.valueOf(annoOut.getStart());
+            identifiers[3] = String.valueOf(annoOut.getEnd());
+            identifiers[4] = annoOut.getId();
+            obsWriter.setElementIds(identifiers);
+        }
+        lineToOutput.append(annoOut.getChromosome());
+        lineToOutput.append("\t");
+        lineToOutput.append(String.valueOf(annoOut.getStart()));
+        lineToOutput.append("\t");
+        lineToOutput.append(String.valueOf(annoOut.getEnd())).append("\t");
+        lineToOutput.append(annoOut.getId());
+
+        if (writeCounts) {
+            for (int currentContext = 0; currentContext < contexts.length; currentContext++) {
+                for (int sampleIndex = 0; sampleIndex < numSamples; sampleIndex++) {
+                    lineToOutput.append("\t");
+                    final int unMethylatedCCounterPerSample = counter.getUnmethylatedCCountPerSample(currentContext, sampleIndex);
+                    lineToOutput.append(unMethylatedCCounterPerSample);
                 }
+            }
 
-                for (int currentContext = 0; currentContext < contexts.length; currentContext++) {
-                    for (int sampleIndex = 0; sampleIndex < numSamples; sampleIndex++) {
-                        lineToOutput.append("\t");
-                        final double methylationRatePerSample = counter.getMethylationRatePerSample(currentContext, sampleIndex);
-                        //     System.out.printf("context=%s sample=%s mr=%g %n", contexts[currentContext], samples[sampleIndex], methylationRatePerSample);
-                        lineToOutput.append(formatDouble(methylationRatePerSample));
-                    }
+            for (int currentContext = 0; currentContext < contexts.length; currentContext++) {
+                for (int sampleIndex = 0; sampleIndex < numSamples; sampleIndex++) {
+                    lineToOutput.append("\t");
+                    final int methylatedCCounterPerSample = counter.getMethylatedCCountPerSample(currentContext, sampleIndex);
+                    lineToOutput.append(methylatedCCounterPerSample);
                 }
+            }
+        }
 
-                if (writeCounts) {
-                    for (int currentContext = 0; currentContext < contexts.length; currentContext++) {
-                        for (int groupIndex = 0; groupIndex < numGroups; groupIndex++) {
-                            lineToOutput.append("\t");
-                            final int unMethylatedCCounterPerGroup = counter.getUnmethylatedCcountPerGroup(currentContext, groupIndex);
-                            lineToOutput.append(unMethylatedCCounterPerGroup);
-                        }
-                    }
+        for (int currentContext = 0; currentContext < contexts.length; currentContext++) {
+            for (int sampleIndex = 0; sampleIndex < numSamples; sampleIndex++) {
+                lineToOutput.append("\t");
+                final double methylationRatePerSample = counter.getMethylationRatePerSample(currentContext, sampleIndex);
+                //     System.out.printf("context=%s sample=%s mr=%g %n", contexts[currentContext], samples[sampleIndex], methylationRatePerSample);
+                lineToOutput.append(formatDouble(methylationRatePerSample));
+            }
+        }
 
-                    for (int currentContext = 0; currentContext < contexts.length; currentContext++) {
-                        for (int groupIndex = 0; groupIndex < numGroups; groupIndex++) {
-                            lineToOutput.append("\t");
-                            final int methylatedCCounterPerGroup = counter.getMethylatedCCountPerGroup(currentContext, groupIndex);
-                            lineToOutput.append(methylatedCCounterPerGroup);
-                        }
-                    }
+        if (writeCounts) {
+            for (int currentContext = 0; currentContext < contexts.length; currentContext++) {
+                for (int groupIndex = 0; groupIndex < numGroups; groupIndex++) {
+                    lineToOutput.append("\t");
+                    final int unMethylatedCCounterPerGroup = counter.getUnmethylatedCcountPerGroup(currentContext, groupIndex);
+                    lineToOutput.append(unMethylatedCCounterPerGroup);
                 }
+            }
 
-                for (int currentContext = 0; currentContext < contexts.length; currentContext++) {
-
-                    for (int groupIndex = 0; groupIndex < numGroups; groupIndex++) {
-
-                        lineToOutput.append("\t");
-                        lineToOutput.append(formatDouble(counter.getMethylationRatePerGroup(currentContext, groupIndex)));
-                    }
+            for (int currentContext = 0; currentContext < contexts.length; currentContext++) {
+                for (int groupIndex = 0; groupIndex < numGroups; groupIndex++) {
+                    lineToOutput.append("\t");
+                    final int methylatedCCounterPerGroup = counter.getMethylatedCCountPerGroup(currentContext, groupIndex);
+                    lineToOutput.append(methylatedCCounterPerGroup);
                 }
-                if (writeNumSites) {
-                    for (int currentContext = 0; currentContext < contexts.length; currentContext++) {
+            }
+        }
 
-                        for (int sampleIndex = 0; sampleIndex < numSamples; sampleIndex++) {
+        for (int currentContext = 0; currentContext < contexts.length; currentContext++) {
 
-                            lineToOutput.append("\t");
-                            final int numSitesPerSample = counter.getNumberOfSitesPerSample(currentContext, sampleIndex);
-                            lineToOutput.append(numSitesPerSample);
-                        }
-                    }
-                    for (int currentContext = 0; currentContext < contexts.length; currentContext++) {
+            for (int groupIndex = 0; groupIndex < numGroups; groupIndex++) {
 
-                        for (int groupIndex = 0; groupIndex < numGroups; groupIndex++) {
+                lineToOutput.append("\t");
+                lineToOutput.append(formatDouble(counter.getMethylationRatePerGroup(currentContext, groupIndex)));
+            }
+        }
+        if (writeNumSites) {
+            for (int currentContext = 0; currentContext < contexts.length; currentContext++) {
 
-                            lineToOutput.append("\t");
-                            final int numSitesPerGroup = counter.getNumberOfSitesPerGroup(currentContext, groupIndex);
-                            lineToOutput.append(numSitesPerGroup);
-                        }
-                    }
-                }
-                for (int currentContext = 0; currentContext < contexts.length; currentContext++) {
+                for (int sampleIndex = 0; sampleIndex < numSamples; sampleIndex++) {
 
-                    for (final GroupComparison comparison : groupComparisons) {
-                        final int indexGroup1 = comparison.indexGroup1;
-                        final int indexGroup2 = comparison.indexGroup2;
-                        double fisherP = Double.NaN;
-
-                        final boolean ok = checkCounts(counter, currentContext);
-                        if (ok) {
-                            fisherP = fisherRInstalled ? FisherExactRCalculator.getFisherPValue(
-                                    counter.getUnmethylatedCcountPerGroup(currentContext, indexGroup1),
-                                    counter.getMethylatedCCountPerGroup(currentContext, indexGroup1),
-                                    counter.getUnmethylatedCcountPerGroup(currentContext, indexGroup2),
-                                    counter.getMethylatedCCountPerGroup(currentContext, indexGroup2)) : Double.NaN;
-
-                        } else {
-                            LOG.error(String.format("An exception was caught evaluation the Fisher Exact test P-value. " +
-                                    "Details are provided below%n" + "[[%s  %s] [%s   %s]]",
-                                    counter.getUnmethylatedCcountPerGroup(currentContext, indexGroup1),
-                                    counter.getMethylatedCCountPerGroup(currentContext, indexGroup1),
-                                    counter.getUnmethylatedCcountPerGroup(currentContext, indexGroup2),
-                                    counter.getMethylatedCCountPerGroup(currentContext, indexGroup2)
-                            ));
-                        }
-                        lineToOutput.append("\t");
-                        lineToOutput.append(formatDouble(fisherP));
-                    }
+                    lineToOutput.append("\t");
+                    final int numSitesPerSample = counter.getNumberOfSitesPerSample(currentContext, sampleIndex);
+                    lineToOutput.append(numSitesPerSample);
                 }
-                for (int currentContext = 0; currentContext < contexts.length; currentContext++) {
+            }
+            for (int currentContext = 0; currentContext < contexts.length; currentContext++) {
 
-                    for (final GroupComparison comparison : groupComparisons) {
-                        final int indexGroup1 = comparison.indexGroup1;
-                        final int indexGroup2 = comparison.indexGroup2;
-                        final double deltaMR = Math.abs(counter.getMethylationRatePerGroup(currentContext, indexGroup1)
-                                - counter.getMethylationRatePerGroup(currentContext, indexGroup2));
+                for (int groupIndex = 0; groupIndex < numGroups; groupIndex++) {
 
-                        lineToOutput.append("\t");
-                        lineToOutput.append(formatDouble(deltaMR));
-                    }
+                    lineToOutput.append("\t");
+                    final int numSitesPerGroup = counter.getNumberOfSitesPerGroup(currentContext, groupIndex);
+                    lineToOutput.append(numSitesPerGroup);
                 }
-                if (estimateIntraGroupDifferences) {
-                    obsWriter.setTypeOfPair(ObservationWriter.TypeOfPair.WITHIN_GROUP_PAIR);
-                    for (int currentContext = 0; currentContext < contexts.length; currentContext++) {
-                        identifiers[0] = contexts[currentContext];
-                        int groupIndex = 0;
-                        for (String group : groups) {
-                            empiricalPValueEstimator.estimateNullDensity(currentContext, groupIndex, counter);
-                            groupIndex++;
-                        }
+            }
+        }
+        for (int currentContext = 0; currentContext < contexts.length; currentContext++) {
+
+            for (final GroupComparison comparison : groupComparisons) {
+                final int indexGroup1 = comparison.indexGroup1;
+                final int indexGroup2 = comparison.indexGroup2;
+                double fisherP = Double.NaN;
+
+                final boolean ok = checkCounts(counter, currentContext);
+                if (ok) {
+                    // records are formatted on worker threads: FisherExact serializes the calls to the R engine.
+                    fisherP = fisherRInstalled ? FisherExactRCalculator.getFisherPValue(
+                            counter.getUnmethylatedCcountPerGroup(currentContext, indexGroup1),
+                            counter.getMethylatedCCountPerGroup(currentContext, indexGroup1),
+                            counter.getUnmethylatedCcountPerGroup(currentContext, indexGroup2),
+                            counter.getMethylatedCCountPerGroup(currentContext, indexGroup2)) : Double.NaN;
+
+                } else {
+                    LOG.error(String.format("An exception was caught evaluation the Fisher Exact test P-value. " +
+                            "Details are provided below%n" + "[[%s  %s] [%s   %s]]",
+                            counter.getUnmethylatedCcountPerGroup(currentContext, indexGroup1),
+                            counter.getMethylatedCCountPerGroup(currentContext, indexGroup1),
+                            counter.getUnmethylatedCcountPerGroup(currentContext, indexGroup2),
+                            counter.getMethylatedCCountPerGroup(currentContext, indexGroup2)
+                    ));
+                }
+                lineToOutput.append("\t");
+                lineToOutput.append(formatDouble(fisherP));
+            }
+        }
+        for (int currentContext = 0; currentContext < contexts.length; currentContext++) {
 
-                    }
+            for (final GroupComparison comparison : groupComparisons) {
+                final int indexGroup1 = comparison.indexGroup1;
+                final int indexGroup2 = comparison.indexGroup2;
+                final double deltaMR = Math.abs(counter.getMethylationRatePerGroup(currentContext, indexGroup1)
+                        - counter.getMethylationRatePerGroup(currentContext, indexGroup2));
+
+                lineToOutput.append("\t");
+                lineToOutput.append(formatDouble(deltaMR));
+            }
+        }
+        if (estimateIntraGroupDifferences) {
+            if (writeObservations) {
+                obsWriter.setTypeOfPair(ObservationWriter.TypeOfPair.WITHIN_GROUP_PAIR);
+            }
+            for (int currentContext = 0; currentContext < contexts.length; currentContext++) {
+                identifiers[0] = contexts[currentContext];
+                int groupIndex = 0;
+                for (String group : groups) {
+                    estimator.estimateNullDensity(currentContext, groupIndex, counter);
+                    groupIndex++;
                 }
-                if (estimateIntraGroupP) {
-                    obsWriter.setTypeOfPair(ObservationWriter.TypeOfPair.BETWEEN_GROUP_PAIR);
-                    for (int contextIndex = 0; contextIndex < contexts.length; contextIndex++) {
-                        identifiers[0] = contexts[contextIndex];
-                        for (final GroupComparison comparison : groupComparisons) {
-
-                            obsWriter.setComparison(comparison);
-                            final double p = empiricalPValueEstimator.estimateEmpiricalPValue(contextIndex, comparison, counter);
-                            lineToOutput.append("\t");
-                            lineToOutput.append(formatDouble(p));
-                        }
+
+            }
+        }
+        if (estimateIntraGroupP) {
+            if (writeObservations) {
+                obsWriter.setTypeOfPair(ObservationWriter.TypeOfPair.BETWEEN_GROUP_PAIR);
+            }
+            for (int contextIndex = 0; contextIndex < contexts.length; contextIndex++) {
+                identifiers[0] = contexts[contextIndex];
+                for (final GroupComparison comparison : groupComparisons) {
+                    if (writeObservations) {
+                        obsWriter.setComparison(comparison);
                     }
+                    final double p = estimator.estimateEmpiricalPValue(contextIndex, comparison, counter);
+                    lineToOutput.append("\t");
+                    lineToOutput.append(formatDouble(p));
                 }
-                outputWriter.append(lineToOutput.toString());
-                outputWriter.append("\n");
-                counterMap.remove(anno);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
             }
         }
+        lineToOutput.append("\n");
+        return lineToOutput.toString();
     }
 
 
@@ -653,13 +786,10 @@ public class AnnotationAveragingWriter extends VCFWriter implements RegionWriter
     @Override
     public void close
             () {
-        if (!counterMap.isEmpty()) {
-            IntSet currentAnnotations = counterMap.keySet();
-
-            for (int anno : currentAnnotations) {
-                buildAnnotationRecordForOutput(annotations.getAnnotationsLastChromosome(), Integer.MAX_VALUE, anno);
-            }
+        if (!openAnnotations.isEmpty()) {
+            writeClosedAnnotations(annotations.getAnnotationsLastChromosome(), Integer.MAX_VALUE);
         }
+        flushPendingRecords();
         outWriter.close();
         IOUtils.closeQuietly(outputWriter);
 
@@ -672,6 +802,7 @@ public class AnnotationAveragingWriter extends VCFWriter implements RegionWriter
                 LOG.error("Unable to write estimator to file", e);
             }
         }
+        empiricalPValueEstimator.close();
         if (obsWriter != null) {
             obsWriter.close();
 
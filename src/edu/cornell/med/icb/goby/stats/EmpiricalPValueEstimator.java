@@ -25,10 +25,22 @@ import edu.cornell.med.icb.goby.algorithmic.data.SamplePairEnumerator;
 import edu.cornell.med.icb.goby.util.dynoptions.DynamicOptionClient;
 import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.apache.commons.lang.SerializationUtils;
 import org.apache.log4j.Logger;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
 /**
  * Helper class to derive empirical p-values from discrete observed null distributions.
+ * <p/>
+ * Null distributions can be estimated with several threads. Each thread observes the pairs of samples it is given
+ * in its own accumulator: a copy of the statistic adaptor, which keeps the state of the current pair, and an empty
+ * distribution. Accumulators are merged into the null distribution before the distribution is used.
  *
  * @author Fabien Campagne
  * @since Goby 1.9.8.4
@@ -51,6 +63,15 @@ public class EmpiricalPValueEstimator {
     private EstimatedDistribution nullDistribution;
     private EstimatedTestDistributions testDistributions;
     private boolean densityLoadedFromDisk;
+    /**
+     * Minimum number of sample pairs observed by each thread when null densities are estimated with several threads.
+     * Fewer pairs are observed on the calling thread.
+     */
+    private static final int MIN_PAIRS_PER_THREAD = 256;
+    private int numThreads = 1;
+    private ExecutorService executor;
+    private NullDensityAccumulator[] accumulators;
+    private boolean accumulatorsPending;
 
     public void setEstimateFdr(boolean state) {
         this.fdr = state;
@@ -87,7 +108,8 @@ public class EmpiricalPValueEstimator {
             "combinator: string, the method to combine p-values, one of qfast, average, sum, max.:median",
             "serialized-estimator-filename: string, the path to a serialized version of the density estimator populated with the empirical null-distribution.:",
             "statistic: string, the name of the statistic to evaluate between pairs of samples, one of stat4,stat5,dMR:ptest",
-            "binning-strategy: string, name of the binning strategy:fastslog10"
+            "binning-strategy: string, name of the binning strategy:fastslog10",
+            "num-threads: integer, number of threads used to estimate null distributions from within group sample pairs. -1 uses all processors.:1"
     };
 
     /**
@@ -212,6 +234,10 @@ public class EmpiricalPValueEstimator {
         } else {
             binningStrategy = nullDistribution.getBinningStrategy();
         }
+        final Integer threads = clientDoc.getInteger("num-threads");
+        if (threads != null) {
+            setNumThreads(threads);
+        }
         if (nullDistribution == null) {
 
             nullDistribution = new EstimatedDistribution(numberOfContexts, statAdaptor);
@@ -261,6 +287,7 @@ public class EmpiricalPValueEstimator {
     public double estimateEmpiricalPValue(final int contextIndex,
                                           final GroupComparison comparison,
                                           final Object dataProvider) {
+        mergeAccumulators();
         combinator.reset();
         final ObjectArrayList<SamplePair> pairs = groupEnumerator.getPairs(comparison);
         for (final SamplePair pair : pairs) {
@@ -316,6 +343,7 @@ public class EmpiricalPValueEstimator {
                                               final IntArrayList[] valuesA, final IntArrayList[] valuesB,
                                               final IntArrayList[] covariatesA, final IntArrayList[] covariatesB) {
         int num = valuesA.length;
+        mergeAccumulators();
         combinator.reset();
         for (int pairIndex = 0; pairIndex < num; pairIndex++) {
             statAdaptor.reset();
@@ -351,6 +379,7 @@ public class EmpiricalPValueEstimator {
                                              final IntArrayList[] valuesA, final IntArrayList[] valuesB,
                                              final IntArrayList[] covariatesA, final IntArrayList[] covariatesB) {
         int num = valuesA.length;
+        mergeAccumulators();
         combinator.reset();
         for (int pairIndex = 0; pairIndex < num; pairIndex++) {
             statAdaptor.reset();
@@ -382,12 +411,219 @@ public class EmpiricalPValueEstimator {
 
         // enumerate sample pairs that belong to the group of interest:
         final ObjectArrayList<SamplePair> pairs = groupEnumerator.getPairs(groupIndex);
-        for (final SamplePair next : pairs) {
+        final int numTasks = numTasks(pairs.size());
+        if (numTasks == 1) {
+            for (final SamplePair next : pairs) {
+
+                observe(dataProvider, next.sampleIndexA, next.sampleIndexB, contextIndex);
+
+            }
+            return;
+        }
+        final NullDensityAccumulator[] accumulators = getAccumulators();
+        final ObjectArrayList<Future<Void>> tasks = new ObjectArrayList<Future<Void>>(numTasks);
+        for (int task = 0; task < numTasks; task++) {
+            final NullDensityAccumulator accumulator = accumulators[task];
+            final int start = (int) ((long) pairs.size() * task / numTasks);
+            final int end = (int) ((long) pairs.size() * (task + 1) / numTasks);
+            tasks.add(executor.submit(new Callable<Void>() {
+                public Void call() {
+                    for (int i = start; i < end; i++) {
+                        final SamplePair pair = pairs.get(i);
+                        accumulator.observe(dataProvider, pair.sampleIndexA, pair.sampleIndexB, contextIndex);
+                    }
+                    return null;
+                }
+            }));
+        }
+        waitFor(tasks);
+    }
+
+    /**
+     * Observe differences between pairs of samples of the same group and estimate discrete null distributions.
+     * Element i of each array describes pair i.
+     *
+     * @param valuesA     values for sample A of each pair
+     * @param valuesB     values for sample B of each pair
+     * @param covariatesA covariates for sample A of each pair
+     * @param covariatesB covariates for sample B of each pair
+     */
+    public void estimateNullDensity(final IntArrayList[] valuesA, final IntArrayList[] valuesB,
+                                    final IntArrayList[] covariatesA, final IntArrayList[] covariatesB) {
+        final int numPairs = valuesA.length;
+        final int numTasks = numTasks(numPairs);
+        if (numTasks == 1) {
+            for (int i = 0; i < numPairs; i++) {
+                estimateNullDensity(valuesA[i], valuesB[i], covariatesA[i], covariatesB[i]);
+            }
+            return;
+        }
+        final NullDensityAccumulator[] accumulators = getAccumulators();
+        final ObjectArrayList<Future<Void>> tasks = new ObjectArrayList<Future<Void>>(numTasks);
+        for (int task = 0; task < numTasks; task++) {
+            final NullDensityAccumulator accumulator = accumulators[task];
+            final int start = (int) ((long) numPairs * task / numTasks);
+            final int end = (int) ((long) numPairs * (task + 1) / numTasks);
+            tasks.add(executor.submit(new Callable<Void>() {
+                public Void call() {
+                    for (int i = start; i < end; i++) {
+                        accumulator.observe(valuesA[i], valuesB[i], covariatesA[i], covariatesB[i]);
+                    }
+                    return null;
+                }
+            }));
+        }
+        waitFor(tasks);
+    }
 
-            observe(dataProvider, next.sampleIndexA, next.sampleIndexB, contextIndex);
+    /**
+     * Return the number of threads to observe a number of pairs with.
+     */
+    private int numTasks(final int numPairs) {
+        return Math.max(1, Math.min(numThreads, numPairs / MIN_PAIRS_PER_THREAD));
+    }
 
+    private void waitFor(final ObjectArrayList<Future<Void>> tasks) {
+        accumulatorsPending = true;
+        try {
+            for (final Future<Void> task : tasks) {
+                task.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while estimating null densities", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Unable to estimate null densities", e.getCause());
         }
+    }
 
+    private NullDensityAccumulator[] getAccumulators() {
+        if (accumulators == null) {
+            accumulators = new NullDensityAccumulator[numThreads];
+            for (int i = 0; i < numThreads; i++) {
+                accumulators[i] = new NullDensityAccumulator(statAdaptor, nullDistribution.createAccumulator());
+            }
+        }
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+                public Thread newThread(final Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "EmpiricalPValueEstimator-worker");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return accumulators;
+    }
+
+    /**
+     * Merge the observations of the accumulators into the null distribution.
+     */
+    private void mergeAccumulators() {
+        if (!accumulatorsPending) {
+            return;
+        }
+        for (final NullDensityAccumulator accumulator : accumulators) {
+            nullDistribution.merge(accumulator.density);
+            accumulator.density = nullDistribution.createAccumulator();
+        }
+        accumulatorsPending = false;
+    }
+
+    /**
+     * Set the number of threads used to estimate null distributions.
+     *
+     * @param numThreads number of threads, or -1 to use all processors.
+     */
+    public void setNumThreads(final int numThreads) {
+        final int threads = numThreads == -1 ? Runtime.getRuntime().availableProcessors() : Math.max(1, numThreads);
+        if (threads != this.numThreads) {
+            close();
+            this.numThreads = threads;
+        }
+    }
+
+    public int getNumThreads() {
+        return numThreads;
+    }
+
+    /**
+     * Merge pending observations into the null distribution and stop the threads of this estimator.
+     */
+    public void close() {
+        releaseAccumulators();
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    private void releaseAccumulators() {
+        mergeAccumulators();
+        accumulators = null;
+    }
+
+    /**
+     * Return an estimator that shares the distributions and sample pairs of this estimator, with its own statistic
+     * adaptor and combinator. Adaptors and combinators keep the state of the p-value being estimated, so threads
+     * that estimate p-values concurrently must each use a copy. Copies do not estimate null distributions.
+     *
+     * @return a copy of this estimator.
+     */
+    public EmpiricalPValueEstimator copy() {
+        mergeAccumulators();
+        final EmpiricalPValueEstimator copy = new EmpiricalPValueEstimator();
+        copy.statAdaptor = (StatisticAdaptor) SerializationUtils.clone(statAdaptor);
+        try {
+            copy.combinator = combinator.getClass().newInstance();
+        } catch (InstantiationException e) {
+            throw new RuntimeException("Unable to create combinator " + combinator.getClass(), e);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException("Unable to create combinator " + combinator.getClass(), e);
+        }
+        copy.serializedFilename = serializedFilename;
+        copy.groupEnumerator = groupEnumerator;
+        copy.nullDistribution = nullDistribution;
+        copy.testDistributions = testDistributions;
+        copy.densityLoadedFromDisk = densityLoadedFromDisk;
+        copy.fdr = fdr;
+        return copy;
+    }
+
+    /**
+     * Observes pairs of samples on one thread.
+     */
+    private static class NullDensityAccumulator {
+        /**
+         * A copy of the statistic adaptor of the estimator. Adaptors keep the state of the pair being observed.
+         */
+        private final StatisticAdaptor statAdaptor;
+        private EstimatedDistribution density;
+
+        NullDensityAccumulator(final StatisticAdaptor statAdaptor, final EstimatedDistribution density) {
+            this.statAdaptor = (StatisticAdaptor) SerializationUtils.clone(statAdaptor);
+            this.density = density;
+        }
+
+        void observe(final Object sampleDataPool, final int sampleIndexA, final int sampleIndexB, final int contextIndex) {
+            statAdaptor.reset();
+            final double unscaledStatistic = statAdaptor.calculate(sampleDataPool, sampleIndexA, sampleIndexB, contextIndex);
+            increment(unscaledStatistic);
+        }
+
+        void observe(final IntArrayList valuesA, final IntArrayList valuesB,
+                     final IntArrayList covariatesA, final IntArrayList covariatesB) {
+            statAdaptor.reset();
+            final double unscaledStatistic = statAdaptor.calculate(valuesA, valuesB, covariatesA, covariatesB);
+            increment(unscaledStatistic);
+        }
+
+        private void increment(final double unscaledStatistic) {
+            if (!statAdaptor.ignorePair()) {
+                final int scaledStatistic = (int) Math.round(unscaledStatistic * density.getScalingFactor());
+                density.getDensity(statAdaptor.pairCovariates()).incrementCount(scaledStatistic);
+            }
+        }
     }
 
     /**
@@ -483,10 +719,12 @@ public class EmpiricalPValueEstimator {
 
 
     public EstimatedDistribution getNullDistribution() {
+        mergeAccumulators();
         return nullDistribution;
     }
 
     public void setNullDistribution(EstimatedDistribution nullDistribution) {
+        releaseAccumulators();
         this.nullDistribution = nullDistribution;
     }
 
@@ -495,6 +733,7 @@ public class EmpiricalPValueEstimator {
     }
 
     public void setStatAdaptor(StatisticAdaptor statAdaptor) {
+        releaseAccumulators();
         this.statAdaptor = statAdaptor;
 
     }
@@ -111,7 +111,7 @@ public class SampleStats {
     }
 
 
-    public void analyze(ObjectSet<String> distinctGenotypes, ObjectList<String> sampleGenotypes, VCFCompareMode.VCFPosition position) {
+    public void analyze(ObjectSet<String> distinctGenotypes, ObjectList<String> sampleGenotypes, final long position) {
         int numAllelesAgreed = 0;
         int numAllelesMissed = 0;
         int numAlleleDifference = 0;
@@ -265,8 +265,7 @@ public class SampleStats {
         if (count != 0) {
             randomSampleText.append("File " + fileIndex + ", out of a total of " + count + ", random sample of positions for counter " + counterName + " (chromosome tab position): \n");
             for (Object o : randomSample) {
-                VCFCompareMode.VCFPosition pos = (VCFCompareMode.VCFPosition) o;
-                randomSampleText.append(pos.toString(reverseIdentifiers));
+                randomSampleText.append(VCFCompareMode.formatPosition((Long) o, reverseIdentifiers));
                 randomSampleText.append("\n");
             }
         }
@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.stats;
+
+import edu.cornell.med.icb.goby.readers.vcf.TabixIndex;
+import it.unimi.dsi.fastutil.bytes.ByteArrays;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.lang.MutableString;
+import net.sf.samtools.util.BlockCompressedOutputStream;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Compresses VCF records on a background thread. Records are encoded to bytes by the thread that writes them,
+ * and collected in batches. Each batch is handed to a compressor thread that writes it to a BGZF stream and,
+ * when an index is provided, indexes each record with the virtual offsets where the record starts and ends.
+ *
+ * @author Fabien Campagne
+ *         Date: Oct 19, 2012
+ */
+public class VCFBlockCompressor implements Closeable {
+    /**
+     * Used to log informational and debug messages.
+     */
+    private static final Log LOG = LogFactory.getLog(VCFBlockCompressor.class);
+    private static final int BATCH_BYTES = 1 << 16;
+    private static final int NUM_BATCHES = 4;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final BlockCompressedOutputStream output;
+    private final String indexFilename;
+    private TabixIndex index;
+    private final ArrayBlockingQueue<Batch> freeBatches = new ArrayBlockingQueue<Batch>(NUM_BATCHES);
+    private final ArrayBlockingQueue<Batch> fullBatches = new ArrayBlockingQueue<Batch>(NUM_BATCHES + 1);
+    private final Batch endOfRecords = new Batch();
+    private final Thread compressor;
+    private Batch batch;
+    /**
+     * The first error of the compressor thread. It is thrown by the next call to add or close.
+     */
+    private volatile Throwable error;
+    private boolean closed;
+
+    /**
+     * Records encoded to bytes, with the coordinates needed to index them.
+     */
+    private static final class Batch {
+        private byte[] bytes = new byte[BATCH_BYTES];
+        private int length;
+        private final IntArrayList recordEnds = new IntArrayList();
+        private final ObjectArrayList<String> chromosomes = new ObjectArrayList<String>();
+        private final IntArrayList starts = new IntArrayList();
+        private final IntArrayList ends = new IntArrayList();
+
+        private void clear() {
+            length = 0;
+            recordEnds.clear();
+            chromosomes.clear();
+            starts.clear();
+            ends.clear();
+        }
+    }
+
+    /**
+     * Start a compressor.
+     *
+     * @param output        where compressed records are written. The stream is closed by close().
+     * @param index         index to which records are added, or null to write records without indexing them.
+     * @param indexFilename where the index is written when the compressor is closed.
+     */
+    public VCFBlockCompressor(final BlockCompressedOutputStream output, final TabixIndex index,
+                              final String indexFilename) {
+        super();
+        this.output = output;
+        this.index = index;
+        this.indexFilename = indexFilename;
+        for (int i = 0; i < NUM_BATCHES; i++) {
+            freeBatches.add(new Batch());
+        }
+        batch = freeBatches.poll();
+        compressor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                compressBatches();
+            }
+        }, "VCF-compressor");
+        compressor.setDaemon(true);
+        compressor.start();
+    }
+
+    /**
+     * Add a record.
+     *
+     * @param record     the text of the record, including the line separator.
+     * @param chromosome the chromosome of the record.
+     * @param start      zero-based start position of the record, or -1 when the record has no position.
+     * @param end        end position of the record (exclusive).
+     */
+    public void add(final MutableString record, final String chromosome, final int start, final int end) {
+        if (error != null) {
+            throw new RuntimeException("Unable to write VCF records", error);
+        }
+        final int recordLength = record.length();
+        final char[] chars = record.array();
+        batch.bytes = ByteArrays.grow(batch.bytes, batch.length + recordLength);
+        final byte[] bytes = batch.bytes;
+        int length = batch.length;
+        for (int i = 0; i < recordLength; i++) {
+            final char c = chars[i];
+            if (c >= 0x80) {
+                // not ASCII, encode the whole record:
+                final byte[] encoded = record.toString().getBytes(UTF8);
+                batch.bytes = ByteArrays.grow(batch.bytes, batch.length + encoded.length);
+                System.arraycopy(encoded, 0, batch.bytes, batch.length, encoded.length);
+                length = batch.length + encoded.length;
+                break;
+            }
+            bytes[length++] = (byte) c;
+        }
+        batch.length = length;
+        batch.recordEnds.add(length);
+        batch.chromosomes.add(chromosome);
+        batch.starts.add(start);
+        batch.ends.add(end);
+        if (batch.length >= BATCH_BYTES) {
+            submit();
+            batch = takeFreeBatch();
+        }
+    }
+
+    private void submit() {
+        try {
+            fullBatches.put(batch);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while writing VCF records", e);
+        }
+    }
+
+    private Batch takeFreeBatch() {
+        try {
+            return freeBatches.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while writing VCF records", e);
+        }
+    }
+
+    private void compressBatches() {
+        try {
+            while (true) {
+                final Batch full = fullBatches.take();
+                if (full == endOfRecords) {
+                    return;
+                }
+                if (error == null) {
+                    try {
+                        write(full);
+                    } catch (Throwable t) {
+                        // keep recycling batches, so that the writing thread never waits for a free batch:
+                        error = t;
+                    }
+                }
+                full.clear();
+                freeBatches.put(full);
+            }
+        } catch (InterruptedException e) {
+            // the compressor was stopped.
+        }
+    }
+
+    private void write(final Batch full) throws IOException {
+        if (index == null) {
+            output.write(full.bytes, 0, full.length);
+            return;
+        }
+        int recordStart = 0;
+        final int numRecords = full.recordEnds.size();
+        for (int i = 0; i < numRecords; i++) {
+            final int recordEnd = full.recordEnds.getInt(i);
+            final long startOffset = output.getFilePointer();
+            output.write(full.bytes, recordStart, recordEnd - recordStart);
+            recordStart = recordEnd;
+            try {
+                final int start = full.starts.getInt(i);
+                final String chromosome = full.chromosomes.get(i);
+                if (start < 0 || chromosome.length() == 0) {
+                    throw new IllegalArgumentException("Records must have a chromosome and a position.");
+                }
+                index.add(chromosome, start, full.ends.getInt(i), startOffset, output.getFilePointer());
+            } catch (IllegalArgumentException e) {
+                LOG.warn("Unable to index " + indexFilename + ", the index will not be written. "
+                        + e.getMessage());
+                index = null;
+                // write the remaining records without indexing them:
+                output.write(full.bytes, recordStart, full.length - recordStart);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Write the remaining records, close the output and write the index.
+     *
+     * @throws IOException if the records or the index cannot be written.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        submit();
+        batch = endOfRecords;
+        submit();
+        try {
+            compressor.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing VCF records");
+        }
+        output.close();
+        final Throwable compressorError = error;
+        if (compressorError instanceof IOException) {
+            throw (IOException) compressorError;
+        }
+        if (compressorError instanceof Error) {
+            throw (Error) compressorError;
+        }
+        if (compressorError != null) {
+            throw new IOException("Unable to write VCF records", compressorError);
+        }
+        if (index != null) {
+            index.write(indexFilename);
+        }
+    }
+}
@@ -18,8 +18,14 @@
 
 package edu.cornell.med.icb.goby.stats;
 
+import edu.cornell.med.icb.goby.exception.GobyRuntimeException;
 import edu.cornell.med.icb.goby.modes.GobyDriver;
+import edu.cornell.med.icb.goby.readers.sites.SiteMatrixHeader;
+import edu.cornell.med.icb.goby.readers.sites.SiteMatrixWriter;
 import edu.cornell.med.icb.goby.readers.vcf.*;
+import edu.cornell.med.icb.goby.util.OutputInfo;
+import edu.cornell.med.icb.goby.util.dynoptions.DynamicOptionClient;
+import edu.cornell.med.icb.goby.util.dynoptions.RegisterThis;
 import edu.cornell.med.icb.util.VersionUtils;
 import it.unimi.dsi.fastutil.ints.Int2IntMap;
 import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
@@ -30,7 +36,12 @@ import it.unimi.dsi.fastutil.objects.Object2IntMap;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import it.unimi.dsi.lang.MutableString;
 import net.sf.samtools.util.BlockCompressedOutputStream;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 
+import java.io.FileWriter;
+import java.io.FilterOutputStream;
+import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.Writer;
@@ -45,6 +56,20 @@ import java.util.Collections;
  *         Time: 1:26:56 PM
  */
 public class VCFWriter {
+    /**
+     * Used to log informational and debug messages.
+     */
+    private static final Log LOG = LogFactory.getLog(VCFWriter.class);
+
+    @RegisterThis
+    public static final DynamicOptionClient doc = new DynamicOptionClient(VCFWriter.class,
+            "site-matrix:boolean, when true numeric INFO and FORMAT fields are also written to a binary columnar site matrix (basename.sites) next to the VCF output.:false"
+    );
+
+    public static DynamicOptionClient doc() {
+        return doc;
+    }
+
     PrintWriter outWriter;
     private Int2ObjectMap<ColumnType> indexTypes;
     private boolean VCFmode;
@@ -99,8 +124,45 @@ public class VCFWriter {
 
     public VCFWriter(final BlockCompressedOutputStream stream) {
         this(new PrintWriter(new OutputStreamWriter(stream)));
+        compressedStream = stream;
     }
 
+    /**
+     * Construct a VCFWriter that writes to a file. When the filename ends in .gz, the file is compressed
+     * with bgzip and a tabix index is written next to it (filename.tbi) when the writer is closed. Records
+     * must then be written grouped by chromosome and sorted by position. If they are not, no index is written.
+     *
+     * @param filename Name of the file to write.
+     * @throws IOException if the file cannot be created.
+     */
+    public VCFWriter(final String filename) throws IOException {
+        this(filename.endsWith(".gz") ? null : new PrintWriter(new FileWriter(filename)));
+        if (filename.endsWith(".gz")) {
+            compressedStream = new BlockCompressedOutputStream(filename);
+            // flushing the writer must not force the end of the current BGZF block:
+            outWriter = new PrintWriter(new OutputStreamWriter(new FilterOutputStream(compressedStream) {
+                @Override
+                public void write(final byte[] bytes, final int offset, final int length) throws IOException {
+                    out.write(bytes, offset, length);
+                }
+
+                @Override
+                public void flush() {
+                }
+            }));
+            tabixIndex = new TabixIndex();
+            indexFilename = filename + ".tbi";
+        }
+    }
+
+    private BlockCompressedOutputStream compressedStream;
+    private TabixIndex tabixIndex;
+    private String indexFilename;
+    /**
+     * Compresses records on a background thread when the output is BGZF compressed.
+     */
+    private VCFBlockCompressor compressor;
+
     /**
      * Indicate whether the genotypes should be recorded as phased (true) or unphased (false).
      * Default value at construction of the writer is unphased.
@@ -235,8 +297,13 @@ public class VCFWriter {
         outWriter.print("#");
         outWriter.print(tsvHeaderLine);
         outWriter.flush();
+        if (compressedStream != null) {
+            compressor = new VCFBlockCompressor(compressedStream, tabixIndex, indexFilename);
+        }
 
         infoValues = new CharSequence[columns.find("INFO").fields.size()];
+        infoKinds = new byte[infoValues.length];
+        infoNumbers = new double[infoValues.length];
         final int numFormatTypes = columns.find("FORMAT").fields.size();
         formatFieldIds = new CharSequence[numFormatTypes];
         formatFieldActive = new boolean[numFormatTypes];
@@ -247,7 +314,7 @@ public class VCFWriter {
             index += 1;
             numFormatFields++;
         }
-        formatValues = new CharSequence[formatFieldActive.length][sampleIds.length];
+        allocateFormatValues(formatFieldActive.length);
         ref.setLength(0);
         alt.setLength(0);
         filter = ".";
@@ -272,6 +339,111 @@ public class VCFWriter {
                     columnField.id;
             infoFlag[infoFieldIndex] = infoField.type == ColumnType.Flag;
         }
+        if (siteMatrixBasename != null) {
+            defineSiteMatrix(fieldList);
+        }
+    }
+
+    private String siteMatrixBasename;
+    private SiteMatrixWriter siteMatrix;
+    /**
+     * Index of the site matrix field where each INFO field is stored, or -1 for INFO fields that are not numeric.
+     */
+    private int[] infoSiteFields;
+    /**
+     * Index of the site matrix field where each FORMAT field is stored, or -1 for FORMAT fields that are not numeric.
+     */
+    private int[] formatSiteFields;
+
+    /**
+     * Also write the numeric INFO and FORMAT fields of each record to a site matrix, when the site-matrix
+     * option is enabled and the output is written to a file.
+     *
+     * @param outputInfo where the VCF output is written.
+     */
+    public void configureSiteMatrix(final OutputInfo outputInfo) {
+        final String filename = outputInfo.getFilename();
+        if (doc.getBoolean("site-matrix") && filename != null && !outputInfo.isToConsole(filename)) {
+            setSiteMatrixBasename(SiteMatrixWriter.getBasename(filename));
+        }
+    }
+
+    /**
+     * Also write the numeric INFO and FORMAT fields of each record to a site matrix. Integer fields are
+     * stored as ints, Float fields as doubles. Must be called before writeHeader.
+     *
+     * @param basename basename of the site matrix.
+     */
+    public void setSiteMatrixBasename(final String basename) {
+        siteMatrixBasename = basename;
+    }
+
+    private void defineSiteMatrix(final ObjectArrayList<ColumnField> infoFields) {
+        siteMatrix = new SiteMatrixWriter(siteMatrixBasename, sampleIds);
+        infoSiteFields = new int[infoFields.size()];
+        for (int infoFieldIndex = 0; infoFieldIndex < infoSiteFields.length; infoFieldIndex++) {
+            final ColumnField field = infoFields.get(infoFieldIndex);
+            infoSiteFields[infoFieldIndex] = defineSiteField("INFO/" + field.id, field.type, false);
+        }
+        formatSiteFields = new int[numFormatFields];
+        int formatIndex = 0;
+        for (final ColumnField field : columns.find("FORMAT").fields) {
+            formatSiteFields[formatIndex++] = defineSiteField("FORMAT/" + field.id, field.type, true);
+        }
+    }
+
+    private int defineSiteField(final String name, final ColumnType type, final boolean perSample) {
+        switch (type) {
+            case Integer:
+                return siteMatrix.defineField(name, SiteMatrixHeader.INT, perSample);
+            case Float:
+                return siteMatrix.defineField(name, SiteMatrixHeader.DOUBLE, perSample);
+            default:
+                return -1;
+        }
+    }
+
+    private void writeSiteMatrixRecord() throws IOException {
+        siteMatrix.setSite(chrom, position);
+        for (int infoFieldIndex = 0; infoFieldIndex < infoSiteFields.length; infoFieldIndex++) {
+            final int siteField = infoSiteFields[infoFieldIndex];
+            if (siteField != -1) {
+                setSiteValue(siteField, 0, infoKinds[infoFieldIndex], infoValues[infoFieldIndex],
+                        infoNumbers[infoFieldIndex]);
+            }
+        }
+        for (int formatIndex = 0; formatIndex < numFormatFields; formatIndex++) {
+            final int siteField = formatSiteFields[formatIndex];
+            if (siteField != -1 && formatFieldActive[formatIndex]) {
+                for (int sampleIndex = 0; sampleIndex < sampleIds.length; sampleIndex++) {
+                    setSiteValue(siteField, sampleIndex, formatKinds[formatIndex][sampleIndex],
+                            formatValues[formatIndex][sampleIndex], formatNumbers[formatIndex][sampleIndex]);
+                }
+            }
+        }
+        siteMatrix.writeSite();
+    }
+
+    private void setSiteValue(final int siteField, final int column, final byte kind, final CharSequence text,
+                              final double number) {
+        switch (kind) {
+            case INT:
+                siteMatrix.setInt(siteField, column, (int) number);
+                break;
+            case FLOAT:
+            case DOUBLE:
+                siteMatrix.setDouble(siteField, column, number);
+                break;
+            default:
+                // values set as text are parsed, values that are not numbers are stored as missing:
+                if (text != null && text.length() != 0) {
+                    try {
+                        siteMatrix.setDouble(siteField, column, Double.parseDouble(text.toString()));
+                    } catch (NumberFormatException e) {
+                        // leave the value missing.
+                    }
+                }
+        }
     }
 
     /**
@@ -323,92 +495,211 @@ public class VCFWriter {
      */
 
     public void writeRecord() {
-        outWriter.append(chrom);
-        outWriter.append('\t');
-        outWriter.append(position == -1 ? "" : Integer.toString(position));
-        outWriter.append('\t');
-        outWriter.append(id);
-        outWriter.append('\t');
-        outWriter.append(constructAlleleString(refAlleles));
-        outWriter.append('\t');
-        outWriter.append(constructAlleleString(altAlleles));
-        outWriter.append('\t');
-        outWriter.append(qual);
-        outWriter.append('\t');
-        outWriter.append(filter);
-        outWriter.append('\t');
-        int max;
-        int index = 0;
-        max = infoValues.length;
-
-        MutableString infoString = new MutableString();
-        for (CharSequence infoValue : infoValues) {
-            assert infoValue != null : "value cannot be null for INFO field " + infoIds[index];
-            if (infoValue.length() != 0) {
-                if (infoFlag[index]) {
-                    infoString.append(infoIds[index]);
-                } else {
-
-
-                    infoString.append(infoIds[index]);
-                    infoString.append('=');
-                    infoString.append(infoValue);
+        record.setLength(0);
+        appendText(chrom);
+        record.append('\t');
+        if (position != -1) {
+            appendInt(position);
+        }
+        record.append('\t');
+        appendText(id);
+        record.append('\t');
+        appendAlleles(refAlleles);
+        record.append('\t');
+        appendAlleles(altAlleles);
+        record.append('\t');
+        appendText(qual);
+        record.append('\t');
+        appendText(filter);
+        record.append('\t');
+
+        boolean first = true;
+        for (int index = 0; index < infoValues.length; index++) {
+            final byte kind = infoKinds[index];
+            if (kind == TEXT) {
+                final CharSequence infoValue = infoValues[index];
+                assert infoValue != null : "value cannot be null for INFO field " + infoIds[index];
+                if (infoValue.length() == 0) {
+                    continue;
                 }
-                infoString.append(';');
-
             }
-
-            index += 1;
-
+            if (!first) {
+                record.append(';');
+            }
+            first = false;
+            record.append(infoIds[index]);
+            if (!infoFlag[index]) {
+                record.append('=');
+                appendValue(kind, infoValues[index], infoNumbers[index]);
+            }
         }
-        if (infoString.length() > 0) outWriter.append(infoString.subSequence(0, infoString.length() - 1));
-        outWriter.append('\t');
+        record.append('\t');
 
-        max = formatFieldIds.length;
-        index = 0;
-        MutableString formatString = new MutableString();
+        first = true;
         for (int formatIndex = 0; formatIndex < numFormatFields; formatIndex++) {
             if (formatFieldActive[formatIndex]) {
-                formatString.append(formatFieldIds[formatIndex]);
-                formatString.append(':');
+                if (!first) {
+                    record.append(':');
+                }
+                first = false;
+                record.append(formatFieldIds[formatIndex]);
             }
         }
-        if (formatString.length() > 0) outWriter.append(formatString.subSequence(0, formatString.length() - 1));
-
-        outWriter.append('\t');
-        int sampleIndex = 0;
-
-        max = sampleIds.length;
-
-        for (CharSequence value : sampleIds) {
+        record.append('\t');
 
-            MutableString sampleString = new MutableString();
+        final int numSamples = sampleIds.length;
+        for (int sampleIndex = 0; sampleIndex < numSamples; sampleIndex++) {
+            first = true;
             for (int formatIndex = 0; formatIndex < numFormatFields; formatIndex++) {
-                //  for (CharSequence formatType : formatFieldIds) {
                 if (formatFieldActive[formatIndex]) {
+                    if (!first) {
+                        record.append(':');
+                    }
+                    first = false;
+                    final byte kind = formatKinds[formatIndex][sampleIndex];
                     final CharSequence v = formatValues[formatIndex][sampleIndex];
-                    if (v != null) {
-                        sampleString.append(v);
+                    if (kind != TEXT || v != null) {
+                        appendValue(kind, v, formatNumbers[formatIndex][sampleIndex]);
                     }
-                    sampleString.append(':');
                 }
             }
-
-            sampleIndex++;
-            if (sampleString.length() > 0) outWriter.append(sampleString.subSequence(0, sampleString.length() - 1));
-            if (sampleIndex != max) outWriter.append('\t');
+            if (sampleIndex != numSamples - 1) {
+                record.append('\t');
+            }
+        }
+        record.append(LINE_SEPARATOR);
+        if (compressor != null) {
+            int refLength = 1;
+            for (final String allele : refAlleles) {
+                refLength = Math.max(refLength, allele.length());
+            }
+            compressor.add(record, chromosomeString(), position - 1, position - 1 + refLength);
+        } else {
+            outWriter.write(record.array(), 0, record.length());
+        }
+        if (siteMatrix != null) {
+            try {
+                writeSiteMatrixRecord();
+            } catch (IOException e) {
+                throw new GobyRuntimeException("Unable to write site matrix " + siteMatrixBasename, e);
+            }
         }
-        outWriter.println();
         clear();
     }
 
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+    private static final byte TEXT = 0;
+    private static final byte INT = 1;
+    private static final byte FLOAT = 2;
+    private static final byte DOUBLE = 3;
+
+    /**
+     * The record being encoded, reused across records.
+     */
+    private final MutableString record = new MutableString();
+    /**
+     * Scratch space used to format numbers.
+     */
+    private final StringBuilder numberBuffer = new StringBuilder();
+    private char[] digits = new char[32];
+    private String lastChromosome = "";
+
+    /**
+     * Return the chromosome of the current record as a String, reusing the previous instance when the
+     * chromosome has not changed.
+     */
+    private String chromosomeString() {
+        if (chrom instanceof String) {
+            lastChromosome = (String) chrom;
+        } else if (!lastChromosome.contentEquals(chrom)) {
+            lastChromosome = chrom.toString();
+        }
+        return lastChromosome;
+    }
+
+    private void appendText(final CharSequence text) {
+        if (text == null) {
+            record.append("null");
+        } else {
+            record.append(text);
+        }
+    }
+
+    private void appendAlleles(final ObjectArrayList<String> alleles) {
+        final int size = alleles.size();
+        if (size == 0) {
+            // set REF or ALT to the VCF missing value if there are no alleles to write:
+            record.append('.');
+            return;
+        }
+        for (int i = 0; i < size; i++) {
+            if (i != 0) {
+                record.append(',');
+            }
+            appendText(alleles.get(i));
+        }
+    }
+
+    private void appendValue(final byte kind, final CharSequence text, final double number) {
+        switch (kind) {
+            case INT:
+                appendInt((int) number);
+                break;
+            case FLOAT:
+                numberBuffer.setLength(0);
+                numberBuffer.append((float) number);
+                appendNumberBuffer();
+                break;
+            case DOUBLE:
+                numberBuffer.setLength(0);
+                numberBuffer.append(number);
+                appendNumberBuffer();
+                break;
+            default:
+                appendText(text);
+        }
+    }
+
+    private void appendNumberBuffer() {
+        final int length = numberBuffer.length();
+        if (digits.length < length) {
+            digits = new char[length];
+        }
+        numberBuffer.getChars(0, length, digits, 0);
+        record.append(digits, 0, length);
+    }
+
+    /**
+     * Append the decimal representation of an int, without creating a String.
+     */
+    private void appendInt(final int value) {
+        if (value == Integer.MIN_VALUE) {
+            record.append("-2147483648");
+            return;
+        }
+        int remaining = Math.abs(value);
+        int offset = digits.length;
+        do {
+            digits[--offset] = (char) ('0' + remaining % 10);
+            remaining /= 10;
+        } while (remaining != 0);
+        if (value < 0) {
+            digits[--offset] = '-';
+        }
+        record.append(digits, offset, digits.length - offset);
+    }
+
     /**
      * Clear the record without writing to the output and prepare for the next record.
      */
     public void clear() {
         Arrays.fill(formatFieldActive, false);
-        for (int i = 0; i < formatFieldActive.length; i++) Arrays.fill(formatValues[i], "");
+        for (int i = 0; i < formatFieldActive.length; i++) {
+            Arrays.fill(formatValues[i], "");
+            Arrays.fill(formatKinds[i], TEXT);
+        }
         Arrays.fill(infoValues, "");
+        Arrays.fill(infoKinds, TEXT);
 
         filter = ".";
         id = ".";
@@ -419,23 +710,6 @@ public class VCFWriter {
         qual = ".";
     }
 
-    MutableString buffer = new MutableString();
-
-    private MutableString constructAlleleString(ObjectArrayList<String> refAlleles) {
-        buffer.setLength(0);
-        int max = refAlleles.size();
-        int index = 0;
-        for (String allele : refAlleles) {
-            buffer.append(allele);
-            if (++index != max) buffer.append(',');
-        }
-        if (buffer.length() == 0) {
-            // set REF or ALT to the VCF missing value if there are no alleles to write:
-            buffer.append('.');
-        }
-        return buffer;
-    }
-
     /**
      * Set a flag to true.
      *
@@ -454,6 +728,7 @@ public class VCFWriter {
     public void setFlag(final int infoFlagIndex, final boolean state) {
 
         infoValues[infoFlagIndex] = state ? infoIds[infoFlagIndex] : "";
+        infoKinds[infoFlagIndex] = TEXT;
 
     }
 
@@ -560,10 +835,40 @@ public class VCFWriter {
      * Close the writer.
      */
     public void close() {
-        outWriter.close();
+        if (siteMatrix != null) {
+            try {
+                siteMatrix.close();
+            } catch (IOException e) {
+                LOG.error("Unable to write site matrix " + siteMatrixBasename, e);
+            }
+        }
+        if (compressor != null) {
+            // the compressor owns the compressed stream after the header was written:
+            try {
+                compressor.close();
+            } catch (IOException e) {
+                LOG.error("Unable to write " + (indexFilename == null ? "VCF output" : indexFilename), e);
+            }
+        } else {
+            outWriter.close();
+            if (tabixIndex != null) {
+                try {
+                    tabixIndex.write(indexFilename);
+                } catch (IOException e) {
+                    LOG.error("Unable to write index " + indexFilename, e);
+                }
+            }
+        }
     }
 
     CharSequence[] infoValues;
+    /**
+     * Kind of value stored for each INFO field: TEXT values are in infoValues, numbers in infoNumbers.
+     */
+    private byte[] infoKinds;
+    private double[] infoNumbers;
+    private byte[][] formatKinds;
+    private double[][] formatNumbers;
 
 
     ColumnInfo infoColumn = new ColumnInfo("INFO");
@@ -618,6 +923,7 @@ public class VCFWriter {
      * @param value          Value of the field.
      */
     public void setInfo(int infoFieldIndex, CharSequence value) {
+        infoKinds[infoFieldIndex] = TEXT;
         infoValues[infoFieldIndex] = value;
     }
 
@@ -628,7 +934,8 @@ public class VCFWriter {
      * @param value          Value of the field.
      */
     public void setInfo(int infoFieldIndex, double value) {
-        infoValues[infoFieldIndex] = Double.toString(value);
+        infoKinds[infoFieldIndex] = DOUBLE;
+        infoNumbers[infoFieldIndex] = value;
     }
 
     /**
@@ -638,7 +945,8 @@ public class VCFWriter {
      * @param value          Value of the field.
      */
     public void setInfo(int infoFieldIndex, float value) {
-        infoValues[infoFieldIndex] = Float.toString(value);
+        infoKinds[infoFieldIndex] = FLOAT;
+        infoNumbers[infoFieldIndex] = value;
     }
 
     /**
@@ -648,7 +956,8 @@ public class VCFWriter {
      * @param value          Value of the field.
      */
     public void setInfo(int infoFieldIndex, int value) {
-        infoValues[infoFieldIndex] = Integer.toString(value);
+        infoKinds[infoFieldIndex] = INT;
+        infoNumbers[infoFieldIndex] = value;
     }
 
     private String[] sampleIds;
@@ -671,7 +980,13 @@ public class VCFWriter {
      */
     public void defineSamples(String[] samples) {
         sampleIds = samples;
-        formatValues = new CharSequence[getNumFormatFields()][samples.length];
+        allocateFormatValues(getNumFormatFields());
+    }
+
+    private void allocateFormatValues(final int numFormatTypes) {
+        formatValues = new CharSequence[numFormatTypes][sampleIds.length];
+        formatKinds = new byte[numFormatTypes][sampleIds.length];
+        formatNumbers = new double[numFormatTypes][sampleIds.length];
     }
 
     /**
@@ -683,11 +998,29 @@ public class VCFWriter {
      */
     public void setSampleValue(final int formatFieldIndex, final int sampleIndex, final CharSequence value) {
         formatFieldActive[formatFieldIndex] = true;
+        formatKinds[formatFieldIndex][sampleIndex] = TEXT;
         formatValues[formatFieldIndex][sampleIndex] = value;
     }
 
+    private void setSampleNumber(final int formatFieldIndex, final int sampleIndex, final byte kind,
+                                 final double value) {
+        formatFieldActive[formatFieldIndex] = true;
+        formatKinds[formatFieldIndex][sampleIndex] = kind;
+        formatNumbers[formatFieldIndex][sampleIndex] = value;
+    }
+
     protected CharSequence getSampleValue(final int formatFieldIndex, final int sampleIndex) {
-        return formatValues[formatFieldIndex][sampleIndex];
+        final double number = formatNumbers[formatFieldIndex][sampleIndex];
+        switch (formatKinds[formatFieldIndex][sampleIndex]) {
+            case INT:
+                return Integer.toString((int) number);
+            case FLOAT:
+                return Float.toString((float) number);
+            case DOUBLE:
+                return Double.toString(number);
+            default:
+                return formatValues[formatFieldIndex][sampleIndex];
+        }
     }
 
     /**
@@ -698,7 +1031,7 @@ public class VCFWriter {
      * @param value            Value to set the field to for the current record.
      */
     public void setSampleValue(int formatFieldIndex, int sampleIndex, double value) {
-        setSampleValue(formatFieldIndex, sampleIndex, Double.toString(value));
+        setSampleNumber(formatFieldIndex, sampleIndex, DOUBLE, value);
     }
 
     /**
@@ -713,12 +1046,10 @@ public class VCFWriter {
                                   final String newValueAtSampleIndex) {
 
         int minIndex = Math.min(sampleIndex, newSampleIndex);
-        int maxIndex = Math.max(sampleIndex, newSampleIndex);
-        if (maxIndex == maxIndex) {
-            setSampleValue(formatFieldIndex, newSampleIndex, formatValues[formatFieldIndex][minIndex]);
-        }
         // move value from sampleIndex to newSampleIndex, put newValueAtSampleIndex at sampleIndex
-        setSampleValue(formatFieldIndex, newSampleIndex, formatValues[formatFieldIndex][minIndex]);
+        formatKinds[formatFieldIndex][newSampleIndex] = formatKinds[formatFieldIndex][minIndex];
+        formatNumbers[formatFieldIndex][newSampleIndex] = formatNumbers[formatFieldIndex][minIndex];
+        formatValues[formatFieldIndex][newSampleIndex] = formatValues[formatFieldIndex][minIndex];
         setSampleValue(formatFieldIndex, sampleIndex, newValueAtSampleIndex);
 
 
@@ -732,7 +1063,7 @@ public class VCFWriter {
      * @param value            Value to set the field to for the current record.
      */
     public void setSampleValue(int formatFieldIndex, int sampleIndex, int value) {
-        setSampleValue(formatFieldIndex, sampleIndex, Integer.toString(value));
+        setSampleNumber(formatFieldIndex, sampleIndex, INT, value);
     }
 
     /**
@@ -743,7 +1074,7 @@ public class VCFWriter {
      * @param value            Value to set the field to for the current record.
      */
     public void setSampleValue(int formatFieldIndex, int sampleIndex, float value) {
-        setSampleValue(formatFieldIndex, sampleIndex, Float.toString(value));
+        setSampleNumber(formatFieldIndex, sampleIndex, FLOAT, value);
     }
 
     public void setSampleValue(String formatToken, int sampleIndex, String value) {
@@ -18,9 +18,9 @@
 
 package edu.cornell.med.icb.goby.util;
 
-import it.unimi.dsi.fastutil.objects.ObjectHeapPriorityQueue;
-import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
-import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectHeapIndirectPriorityQueue;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
 import edu.cornell.med.icb.goby.methylation.MethylationSimilarityMatch;
 
 
@@ -32,13 +32,25 @@ import edu.cornell.med.icb.goby.methylation.MethylationSimilarityMatch;
 public class HitBoundedPriorityQueue {
 
     /**
-     * The underlying queue.
+     * The hits in the queue, indexed by slot.
      */
-    protected final ObjectHeapPriorityQueue<MethylationSimilarityMatch> queue;
+    protected final MethylationSimilarityMatch[] hits;
+    /**
+     * The underlying queue, over the slots of {@link #hits}.
+     */
+    protected final ObjectHeapIndirectPriorityQueue<MethylationSimilarityMatch> queue;
     /**
      * The maximum number of documents to be ranked.
      */
     protected final int maxSize;
+    /**
+     * Slots freed by {@link #dequeue()}.
+     */
+    private final IntArrayList freeSlots = new IntArrayList();
+    /**
+     * Number of slots used at least once.
+     */
+    private int numSlots;
 
 
     /**
@@ -51,15 +63,21 @@ public class HitBoundedPriorityQueue {
     public HitBoundedPriorityQueue(final int capacity) {
         super();
         maxSize = capacity;
-        queue = new ObjectHeapPriorityQueue<MethylationSimilarityMatch>(capacity, MethylationSimilarityMatch.INCREASING_SCORE_COMPARATOR);
-
+        hits = new MethylationSimilarityMatch[capacity];
+        queue = new ObjectHeapIndirectPriorityQueue<MethylationSimilarityMatch>(hits, capacity,
+                MethylationSimilarityMatch.INCREASING_SCORE_COMPARATOR);
+        slotsByTarget.defaultReturnValue(-1);
     }
 
 
-    IntOpenHashSet targetPositions = new IntOpenHashSet();
+    /**
+     * Slots of the hits currently in the queue, indexed by chromosome and target position.
+     */
+    private final Long2IntOpenHashMap slotsByTarget = new Long2IntOpenHashMap();
 
     /**
-     * Enqueues a transcript with given score and info.
+     * Enqueues a transcript with given score and info. A single hit is kept per chromosome and target position:
+     * the hit with the best score.
      *
      * @param targetPosition position on the target
      * @param score          its score
@@ -72,43 +90,41 @@ public class HitBoundedPriorityQueue {
                                         final int windowLength, final float sumForwardStrand,
                                         float sumReverseStrand) {
 
-        if (maxSize == 0 || targetPositions.contains(targetPosition)) {
+        if (maxSize == 0) {
             return false;
         }
-        if (queue.size() < maxSize) {
-            if (targetPositions.contains(targetPosition)) {
+        final long target = target(chromosome, targetPosition);
+        final int previousSlot = slotsByTarget.get(target);
+        if (previousSlot != -1) {
+            final MethylationSimilarityMatch previous = hits[previousSlot];
+            if (score <= previous.score) {
                 return false;
             }
+            // the previous hit is not necessarily at the head of the queue, move it down to its new rank:
+            set(previous, chromosome, targetPosition, score, startForward, endForward, startReverse, endReverse,
+                    windowLength, sumForwardStrand, sumReverseStrand);
+            queue.changed(previousSlot);
+            return true;
+        }
+        if (queue.size() < maxSize) {
+            final int slot = freeSlots.isEmpty() ? numSlots++ : freeSlots.popInt();
             final MethylationSimilarityMatch dsi = new MethylationSimilarityMatch(score, chromosome, targetPosition);
-            dsi.targetPosition = targetPosition;
-            dsi.chromosome = chromosome;
-            dsi.score = score;
-            dsi.windowLength = windowLength;
-            dsi.sumForwardStrand = sumForwardStrand;
-            dsi.sumReverseStrand = sumReverseStrand;
-            dsi.startForward = startForward;
-            dsi.endForward = endForward;
-            dsi.startReverse = startReverse;
-            dsi.endReverse = endReverse;
-            queue.enqueue(dsi);
+            set(dsi, chromosome, targetPosition, score, startForward, endForward, startReverse, endReverse,
+                    windowLength, sumForwardStrand, sumReverseStrand);
+            hits[slot] = dsi;
+            queue.enqueue(slot);
+            slotsByTarget.put(target, slot);
             return true;
         } else {
-            final MethylationSimilarityMatch dsi = queue.first();
-
-            if (score > dsi.score) {
-                targetPositions.remove(dsi.targetPosition);
-                dsi.targetPosition = targetPosition;
-                dsi.chromosome = chromosome;
-                dsi.score = score;
-                dsi.windowLength = windowLength;
-                dsi.sumForwardStrand = sumForwardStrand;
-                dsi.sumReverseStrand = sumReverseStrand;
-                dsi.startForward = startForward;
-                dsi.endForward = endForward;
-                dsi.startReverse = startReverse;
-                dsi.endReverse = endReverse;
+            final int slot = queue.first();
+            final MethylationSimilarityMatch dsi = hits[slot];
+
+            if (isBetter(score, chromosome, targetPosition, dsi)) {
+                slotsByTarget.remove(target(dsi.chromosome, dsi.targetPosition));
+                set(dsi, chromosome, targetPosition, score, startForward, endForward, startReverse, endReverse,
+                        windowLength, sumForwardStrand, sumReverseStrand);
                 queue.changed();
-                targetPositions.add(targetPosition);
+                slotsByTarget.put(target, slot);
 
                 return true;
             }
@@ -116,6 +132,67 @@ public class HitBoundedPriorityQueue {
         }
     }
 
+    /**
+     * Hits with the same score are ranked by chromosome and target position, so that the hits kept do not
+     * depend on the order in which they were enqueued. Same order as
+     * {@link MethylationSimilarityMatch#INCREASING_SCORE_COMPARATOR}.
+     */
+    private static boolean isBetter(final float score, final int chromosome, final int targetPosition,
+                                    final MethylationSimilarityMatch hit) {
+        final int scoreComparison = Float.compare(score, hit.score);
+        if (scoreComparison != 0) {
+            return scoreComparison > 0;
+        }
+        // with equal scores, hits located first in the genome rank higher:
+        if (chromosome != hit.chromosome) {
+            return chromosome < hit.chromosome;
+        }
+        return targetPosition < hit.targetPosition;
+    }
+
+    private static long target(final int chromosome, final int targetPosition) {
+        return ((long) chromosome << 32) | (targetPosition & 0xFFFFFFFFL);
+    }
+
+    private static void set(final MethylationSimilarityMatch dsi, final int chromosome, final int targetPosition,
+                            final float score, final int startForward, final int endForward,
+                            final int startReverse, final int endReverse, final int windowLength,
+                            final float sumForwardStrand, final float sumReverseStrand) {
+        dsi.targetPosition = targetPosition;
+        dsi.chromosome = chromosome;
+        dsi.score = score;
+        dsi.windowLength = windowLength;
+        dsi.sumForwardStrand = sumForwardStrand;
+        dsi.sumReverseStrand = sumReverseStrand;
+        dsi.startForward = startForward;
+        dsi.endForward = endForward;
+        dsi.startReverse = startReverse;
+        dsi.endReverse = endReverse;
+    }
+
+    /**
+     * Enqueues a copy of a hit.
+     *
+     * @param hit the hit to enqueue.
+     * @return true if the hit has been actually enqueued.
+     */
+    public boolean enqueue(final MethylationSimilarityMatch hit) {
+        return enqueue(hit.chromosome, hit.targetPosition, hit.score, hit.startForward, hit.endForward,
+                hit.startReverse, hit.endReverse, hit.windowLength, hit.sumForwardStrand, hit.sumReverseStrand);
+    }
+
+    /**
+     * Moves the hits of another queue to this queue. Queues filled by different threads can be merged
+     * this way once the threads are done. The other queue is empty after this call.
+     *
+     * @param other the queue to merge into this one.
+     */
+    public void addAll(final HitBoundedPriorityQueue other) {
+        while (!other.isEmpty()) {
+            enqueue(other.dequeue());
+        }
+    }
+
     public boolean isEmpty() {
         return queue.isEmpty();
     }
@@ -133,7 +210,11 @@ public class HitBoundedPriorityQueue {
      */
     public final MethylationSimilarityMatch dequeue() {
 
-        final MethylationSimilarityMatch transcriptScore = queue.dequeue();
+        final int slot = queue.dequeue();
+        final MethylationSimilarityMatch transcriptScore = hits[slot];
+        hits[slot] = null;
+        freeSlots.add(slot);
+        slotsByTarget.remove(target(transcriptScore.chromosome, transcriptScore.targetPosition));
 
         return transcriptScore;
     }
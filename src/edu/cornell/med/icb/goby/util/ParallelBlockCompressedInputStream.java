@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.util;
+
+import net.sf.samtools.FileTruncatedException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a BGZF (bgzip) compressed stream, inflating blocks on the threads of an executor. The compressed
+ * blocks are read sequentially, but up to a fixed number of blocks ahead of the reader are inflated
+ * concurrently. Decompressed bytes are returned in file order, so this stream can be used in place of
+ * BlockCompressedInputStream when the input is read from start to end.
+ *
+ * @author Fabien Campagne
+ *         Date: Oct 19, 2012
+ */
+public class ParallelBlockCompressedInputStream extends InputStream {
+    private static final int GZIP_HEADER_LENGTH = 12;
+    private static final int GZIP_FOOTER_LENGTH = 8;
+
+    private static final ThreadLocal<Inflater> INFLATERS = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater(true);
+        }
+    };
+
+    private final InputStream input;
+    private final ExecutorService executor;
+    private final int blocksAhead;
+    private final ArrayDeque<Future<byte[]>> inflating = new ArrayDeque<Future<byte[]>>();
+    private final byte[] header = new byte[GZIP_HEADER_LENGTH];
+    private boolean endOfInput;
+    private byte[] block = new byte[0];
+    private int position;
+
+    /**
+     * Construct a stream.
+     *
+     * @param input       the compressed stream.
+     * @param executor    executor that inflates blocks.
+     * @param blocksAhead maximum number of blocks read and inflated ahead of the reader.
+     */
+    public ParallelBlockCompressedInputStream(final InputStream input, final ExecutorService executor,
+                                              final int blocksAhead) {
+        super();
+        this.input = input;
+        this.executor = executor;
+        this.blocksAhead = Math.max(1, blocksAhead);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (position == block.length && !nextBlock()) {
+            return -1;
+        }
+        return block[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (position == block.length && !nextBlock()) {
+            return -1;
+        }
+        final int n = Math.min(length, block.length - position);
+        System.arraycopy(block, position, buffer, offset, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return block.length - position;
+    }
+
+    /**
+     * Advance to the next non-empty block.
+     *
+     * @return False at the end of the stream.
+     */
+    private boolean nextBlock() throws IOException {
+        do {
+            while (!endOfInput && inflating.size() < blocksAhead) {
+                final byte[] compressed = readCompressedBlock();
+                if (compressed == null) {
+                    endOfInput = true;
+                } else {
+                    inflating.add(executor.submit(new Callable<byte[]>() {
+                        @Override
+                        public byte[] call() throws IOException {
+                            return inflate(compressed);
+                        }
+                    }));
+                }
+            }
+            if (inflating.isEmpty()) {
+                return false;
+            }
+            try {
+                block = inflating.removeFirst().get();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while inflating a block.");
+            } catch (ExecutionException e) {
+                final Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                throw new IOException(cause);
+            }
+            position = 0;
+        } while (block.length == 0);
+        return true;
+    }
+
+    /**
+     * Read the next block, without its fixed gzip header.
+     *
+     * @return the extra fields, compressed data and footer of the block, or null at the end of the input.
+     */
+    private byte[] readCompressedBlock() throws IOException {
+        final int headerLength = readFully(header, 0, GZIP_HEADER_LENGTH);
+        if (headerLength == 0) {
+            return null;
+        }
+        if (headerLength < GZIP_HEADER_LENGTH) {
+            throw new FileTruncatedException("Premature end of file in block header.");
+        }
+        if ((header[0] & 0xFF) != 31 || (header[1] & 0xFF) != 139 || header[2] != 8 || (header[3] & 4) == 0) {
+            throw new IOException("Input is not in the BGZF format.");
+        }
+        final int extraLength = unsignedShort(header, 10);
+        final byte[] extra = new byte[extraLength];
+        if (readFully(extra, 0, extraLength) < extraLength) {
+            throw new FileTruncatedException("Premature end of file in block header.");
+        }
+        int blockSize = -1;
+        for (int i = 0; i + 4 <= extraLength; i += 4 + unsignedShort(extra, i + 2)) {
+            if (extra[i] == 'B' && extra[i + 1] == 'C' && unsignedShort(extra, i + 2) == 2) {
+                blockSize = unsignedShort(extra, i + 4) + 1;
+                break;
+            }
+        }
+        if (blockSize == -1) {
+            throw new IOException("Block does not declare its size. Input is not in the BGZF format.");
+        }
+        final int remaining = blockSize - GZIP_HEADER_LENGTH - extraLength;
+        if (remaining < GZIP_FOOTER_LENGTH) {
+            throw new IOException("Invalid BGZF block size: " + blockSize);
+        }
+        final byte[] compressed = new byte[remaining];
+        if (readFully(compressed, 0, remaining) < remaining) {
+            throw new FileTruncatedException("Premature end of file in compressed block.");
+        }
+        return compressed;
+    }
+
+    private static byte[] inflate(final byte[] compressed) throws IOException {
+        final int compressedLength = compressed.length - GZIP_FOOTER_LENGTH;
+        final int uncompressedLength = (compressed[compressed.length - 4] & 0xFF)
+                | (compressed[compressed.length - 3] & 0xFF) << 8
+                | (compressed[compressed.length - 2] & 0xFF) << 16
+                | (compressed[compressed.length - 1] & 0xFF) << 24;
+        final byte[] result = new byte[uncompressedLength];
+        final Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        inflater.setInput(compressed, 0, compressedLength);
+        try {
+            final int inflated = inflater.inflate(result, 0, uncompressedLength);
+            if (inflated != uncompressedLength) {
+                throw new IOException(String.format("Block inflated to %d bytes, expected %d",
+                        inflated, uncompressedLength));
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        }
+        return result;
+    }
+
+    private int readFully(final byte[] buffer, final int offset, final int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            final int n = input.read(buffer, offset + total, length - total);
+            if (n == -1) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    private static int unsignedShort(final byte[] buffer, final int offset) {
+        return (buffer[offset] & 0xFF) | (buffer[offset + 1] & 0xFF) << 8;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (final Future<byte[]> future : inflating) {
+            future.cancel(true);
+        }
+        inflating.clear();
+        endOfInput = true;
+        input.close();
+    }
+}
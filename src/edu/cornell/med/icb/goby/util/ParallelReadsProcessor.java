@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.util;
+
+import edu.cornell.med.icb.goby.compression.FastBufferedMessageChunksReader;
+import edu.cornell.med.icb.goby.compression.MessageChunksWriter;
+import edu.cornell.med.icb.goby.exception.GobyRuntimeException;
+import edu.cornell.med.icb.goby.reads.Reads;
+import edu.cornell.med.icb.goby.reads.ReadsReader;
+import edu.rit.pj.IntegerForLoop;
+import edu.rit.pj.IntegerSchedule;
+import edu.rit.pj.ParallelRegion;
+import edu.rit.pj.ParallelTeam;
+import it.unimi.dsi.fastutil.io.FastBufferedInputStream;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.logging.ProgressLogger;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Processes the reads of a compact-reads file in parallel, in process. The file is cut into byte-range
+ * slices, and each slice is read by a worker thread with its own
+ * {@link edu.cornell.med.icb.goby.reads.ReadsReader}. Every slice accumulates its results in a slice
+ * state object (of type T) created by {@link #createSliceState(int)}. When all slices have been processed,
+ * the slice states are handed to {@link #combine(ObjectArrayList)} in slice order on the calling thread,
+ * so that results are merged deterministically, independently of the number of threads used.
+ *
+ * @param <T> type of the per-slice state (e.g., a writer for the slice, or a statistic accumulator).
+ * @author Fabien Campagne
+ *         Date: Oct 19, 2012
+ */
+public abstract class ParallelReadsProcessor<T> {
+    protected static final Logger LOG = Logger.getLogger(ParallelReadsProcessor.class);
+
+    /**
+     * Number of slices created per thread. More slices than threads help balance the load when some
+     * slices are more expensive to process than others.
+     */
+    private static final int SLICES_PER_THREAD = 4;
+
+    private final String inputFilename;
+    private int numThreads = -1;
+    private int numSlices = -1;
+    private boolean parallel = true;
+
+    /**
+     * Construct a processor for the given compact-reads file.
+     *
+     * @param inputFilename name of the compact-reads file to process.
+     */
+    protected ParallelReadsProcessor(final String inputFilename) {
+        super();
+        this.inputFilename = inputFilename;
+    }
+
+    /**
+     * Set the number of threads to use. When -1, one thread per processing core is used (or as many as
+     * specified with -Dpj.nt).
+     *
+     * @param numThreads number of threads.
+     */
+    public void setNumThreads(final int numThreads) {
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * Set the number of slices the input file is cut into. When -1, the number of slices is derived from
+     * the number of threads.
+     *
+     * @param numSlices number of slices.
+     */
+    public void setNumSlices(final int numSlices) {
+        this.numSlices = numSlices;
+    }
+
+    /**
+     * Indicate whether slices should be processed in parallel. When false, slices are processed one after
+     * the other on a single thread, which is useful to debug and to compare results.
+     *
+     * @param parallel True to process slices in parallel.
+     */
+    public void setParallel(final boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    public String getInputFilename() {
+        return inputFilename;
+    }
+
+    /**
+     * Create the state that will accumulate results for one slice. This method may be called
+     * concurrently from several threads.
+     *
+     * @param sliceIndex index of the slice, in file order.
+     * @return a new state object for the slice.
+     * @throws IOException if the state cannot be created (e.g., a temporary file cannot be opened).
+     */
+    protected abstract T createSliceState(int sliceIndex) throws IOException;
+
+    /**
+     * Process one read of a slice. Reads of a slice are presented in file order, always on the same
+     * thread. Reads of different slices are processed concurrently.
+     *
+     * @param sliceState state of the slice the read belongs to.
+     * @param entry      the read.
+     * @throws IOException if an error occurs processing the read.
+     */
+    protected abstract void processRead(T sliceState, Reads.ReadEntry entry) throws IOException;
+
+    /**
+     * Called when all the reads of a slice have been processed, on the thread that processed the
+     * slice. The default implementation does nothing.
+     *
+     * @param sliceState state of the slice.
+     * @throws IOException if an error occurs finishing the slice (e.g., closing a writer).
+     */
+    protected void sliceDone(final T sliceState) throws IOException {
+    }
+
+    /**
+     * Combine the results of all slices. Called once, on the thread that invoked {@link #execute()},
+     * with the slice states in file order.
+     *
+     * @param sliceStates states of the slices, in the order of the slices in the input file.
+     * @throws IOException if an error occurs combining the results.
+     */
+    protected abstract void combine(ObjectArrayList<T> sliceStates) throws IOException;
+
+    /**
+     * Process the input file and combine the results of each slice.
+     *
+     * @throws IOException if an error occurs reading the input or processing the reads.
+     */
+    public void execute() throws IOException {
+        final File file = new File(inputFilename);
+        if (!(file.isFile() && file.canRead())) {
+            throw new IOException("Input file cannot be read: " + inputFilename);
+        }
+        final ParallelTeam team = parallel ? (numThreads == -1 ? new ParallelTeam() : new ParallelTeam(numThreads))
+                : new ParallelTeam(1);
+        final long[] sliceStarts = alignToChunks(sliceOffsets(file.length(),
+                numSlices == -1 ? team.getThreadCount() * SLICES_PER_THREAD : numSlices));
+        final int sliceCount = sliceStarts.length - 1;
+        final ObjectArrayList<T> sliceStates = new ObjectArrayList<T>(sliceCount);
+        sliceStates.size(sliceCount);
+        LOG.info(String.format("Processing %s in %d slices on %d threads.", inputFilename, sliceCount,
+                team.getThreadCount()));
+
+        final ProgressLogger progress = new ProgressLogger("slices");
+        progress.expectedUpdates = sliceCount;
+        progress.start();
+        try {
+            team.execute(new ParallelRegion() {
+                @Override
+                public void run() throws Exception {
+                    execute(0, sliceCount - 1 /* end index must be inclusive. */, new IntegerForLoop() {
+                        @Override
+                        public IntegerSchedule schedule() {
+                            return IntegerSchedule.dynamic(1);
+                        }
+
+                        @Override
+                        public void run(final int startIndex, final int endIndex) throws Exception {
+                            for (int sliceIndex = startIndex; sliceIndex <= endIndex; ++sliceIndex) {
+                                final T sliceState = processSlice(sliceIndex, sliceStarts[sliceIndex],
+                                        sliceStarts[sliceIndex + 1]);
+                                synchronized (sliceStates) {
+                                    sliceStates.set(sliceIndex, sliceState);
+                                    progress.update();
+                                }
+                            }
+                        }
+                    });
+                }
+            });
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new GobyRuntimeException(e);
+        }
+        progress.stop();
+        combine(sliceStates);
+    }
+
+    private T processSlice(final int sliceIndex, final long start, final long end) throws IOException {
+        final T sliceState = createSliceState(sliceIndex);
+        // The reader returns collections that start before end + DELIMITER_LENGTH + 4. Since end is the exact
+        // start of the next slice's first collection, pull it back so that each collection is read once:
+        final long readerEnd = end == Long.MAX_VALUE ? end
+                : Math.max(start + 1, end - (MessageChunksWriter.DELIMITER_LENGTH + 4));
+        final ReadsReader reader = new ReadsReader(start, readerEnd, inputFilename);
+        try {
+            for (final Reads.ReadEntry entry : reader) {
+                processRead(sliceState, entry);
+            }
+        } finally {
+            reader.close();
+        }
+        sliceDone(sliceState);
+        return sliceState;
+    }
+
+    /**
+     * Move slice boundaries to the start of the first collection at or after each boundary. Slices that
+     * would not contain the start of any collection are removed.
+     *
+     * @param offsets tentative boundaries, as returned by {@link #sliceOffsets(long, int)}.
+     * @return boundaries that coincide with collection starts (last element is Long.MAX_VALUE).
+     * @throws IOException if the input cannot be read.
+     */
+    private long[] alignToChunks(final long[] offsets) throws IOException {
+        final LongArrayList aligned = new LongArrayList();
+        aligned.add(0);
+        for (int i = 1; i < offsets.length - 1; i++) {
+            final FastBufferedMessageChunksReader chunks = new FastBufferedMessageChunksReader(offsets[i],
+                    Long.MAX_VALUE, new FastBufferedInputStream(new FileInputStream(inputFilename)));
+            try {
+                final long chunkStart = chunks.position();
+                if (chunkStart > aligned.getLong(aligned.size() - 1)) {
+                    aligned.add(chunkStart);
+                }
+            } finally {
+                chunks.close();
+            }
+        }
+        aligned.add(Long.MAX_VALUE);
+        return aligned.toLongArray();
+    }
+
+    /**
+     * Cut a file of the given length into contiguous slices. Slice i spans [offsets[i], offsets[i+1]).
+     * The last slice extends to the end of the file. Empty slices are never created, so that fewer slices
+     * than requested are returned for very small files.
+     *
+     * @param fileLength length of the file in bytes.
+     * @param numSlices  requested number of slices.
+     * @return offsets of the slice boundaries (number of slices + 1 elements).
+     */
+    static long[] sliceOffsets(final long fileLength, final int numSlices) {
+        final int count = (int) Math.max(1, Math.min(numSlices, fileLength));
+        final long[] offsets = new long[count + 1];
+        final long sliceLength = fileLength / count;
+        for (int i = 0; i < count; i++) {
+            offsets[i] = i * sliceLength;
+        }
+        offsets[count] = Long.MAX_VALUE;
+        return offsets;
+    }
+}
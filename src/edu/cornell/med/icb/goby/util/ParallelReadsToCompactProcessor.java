@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.util;
+
+import edu.cornell.med.icb.goby.modes.ConcatenateCompactReadsMode;
+import edu.cornell.med.icb.goby.reads.Reads;
+import edu.cornell.med.icb.goby.reads.ReadsWriter;
+import edu.cornell.med.icb.goby.reads.ReadsWriterImpl;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Transforms a compact-reads file into another compact-reads file, processing slices of the input in
+ * parallel. Each slice is written to a temporary compact-reads file next to the output. Slice files are
+ * concatenated in slice order when all slices have been processed, so the output contains reads in the
+ * same order as the input, whatever the number of threads. Implementations may keep per-slice scratch
+ * space (of type S), for instance to reuse buffers across the reads of a slice.
+ *
+ * @param <S> type of the per-slice scratch space.
+ * @author Fabien Campagne
+ *         Date: Oct 19, 2012
+ */
+public abstract class ParallelReadsToCompactProcessor<S>
+        extends ParallelReadsProcessor<ParallelReadsToCompactProcessor.SliceOutput<S>> {
+    private final String outputFilename;
+    private int sequencePerChunk = 10000;
+
+    /**
+     * Output of one slice.
+     */
+    public static class SliceOutput<S> {
+        private final File file;
+        private final ReadsWriter writer;
+        private final S scratch;
+
+        SliceOutput(final File file, final ReadsWriter writer, final S scratch) {
+            this.file = file;
+            this.writer = writer;
+            this.scratch = scratch;
+        }
+
+        public ReadsWriter getWriter() {
+            return writer;
+        }
+
+        public S getScratch() {
+            return scratch;
+        }
+    }
+
+    /**
+     * Construct a processor.
+     *
+     * @param inputFilename  compact-reads file to read.
+     * @param outputFilename compact-reads file to write.
+     */
+    protected ParallelReadsToCompactProcessor(final String inputFilename, final String outputFilename) {
+        super(inputFilename);
+        this.outputFilename = outputFilename;
+    }
+
+    public void setSequencePerChunk(final int sequencePerChunk) {
+        this.sequencePerChunk = sequencePerChunk;
+    }
+
+    /**
+     * Create the scratch space of a slice. The default implementation returns null.
+     *
+     * @return scratch space, used only by the thread that processes the slice.
+     */
+    protected S createScratch() {
+        return null;
+    }
+
+    /**
+     * Transform one read and write the result (if any) to the writer of the slice. Implementations must
+     * not share mutable state across slices without synchronization, since slices are processed
+     * concurrently.
+     *
+     * @param writer  writer for the slice the read belongs to.
+     * @param scratch scratch space of the slice.
+     * @param entry   the read.
+     * @throws IOException if an error occurs writing the read.
+     */
+    protected abstract void writeRead(ReadsWriter writer, S scratch, Reads.ReadEntry entry) throws IOException;
+
+    @Override
+    protected SliceOutput<S> createSliceState(final int sliceIndex) throws IOException {
+        final File file = new File(String.format("%s-slice-%d.tmp", outputFilename, sliceIndex));
+        file.deleteOnExit();
+        final ReadsWriter writer = new ReadsWriterImpl(new FileOutputStream(file));
+        writer.setNumEntriesPerChunk(sequencePerChunk);
+        return new SliceOutput<S>(file, writer, createScratch());
+    }
+
+    @Override
+    protected final void processRead(final SliceOutput<S> sliceState, final Reads.ReadEntry entry)
+            throws IOException {
+        writeRead(sliceState.writer, sliceState.scratch, entry);
+    }
+
+    @Override
+    protected void sliceDone(final SliceOutput<S> sliceState) throws IOException {
+        sliceState.writer.close();
+    }
+
+    @Override
+    protected void combine(final ObjectArrayList<SliceOutput<S>> sliceStates) throws IOException {
+        final File output = new File(outputFilename);
+        if (output.exists() && !output.delete()) {
+            throw new IOException("Unable to overwrite output file " + outputFilename);
+        }
+        final ConcatenateCompactReadsMode concat = new ConcatenateCompactReadsMode();
+        concat.setQuickConcat(true);
+        for (final SliceOutput<S> slice : sliceStates) {
+            concat.addInputFile(slice.file);
+        }
+        concat.setOutputFilename(outputFilename);
+        try {
+            concat.execute();
+        } finally {
+            for (final SliceOutput<S> slice : sliceStates) {
+                if (!slice.file.delete()) {
+                    LOG.warn("Could not delete temporary slice file " + slice.file);
+                }
+            }
+        }
+    }
+}
@@ -20,6 +20,7 @@ package edu.cornell.med.icb.goby.util.barcode;
 
 import it.unimi.dsi.fastutil.ints.Int2LongLinkedOpenHashMap;
 import it.unimi.dsi.fastutil.ints.Int2LongMap;
+import it.unimi.dsi.fastutil.ints.IntList;
 import it.unimi.dsi.lang.MutableString;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -79,9 +80,28 @@ public abstract class BarcodeMatcher {
      * @return the barcode for the sequence or null if not found
      */
     public BarcodeMatcherResult matchSequence(final MutableString sequence) {
+        final BarcodeMatcherResult bestMatch = bestMatchAmong(sequence, null, barcodes.length);
+        if (bestMatch != null) {
+            final int bestBarcodeNum = bestMatch.getBarcodeIndex();
+            barcodeIndexToHitsMap.put(bestBarcodeNum, barcodeIndexToHitsMap.get(bestBarcodeNum) + 1);
+        }
+        return bestMatch;
+    }
+
+    /**
+     * Determines which of the candidate barcodes this sequence matches best. Does not record the hit.
+     * @param sequence the sequence to get the barcode for
+     * @param barcodeIndices indices of the candidate barcodes, in increasing order, or null to consider
+     * all the barcodes
+     * @param numCandidates the number of candidates to consider in barcodeIndices
+     * @return the barcode for the sequence or null if not found
+     */
+    BarcodeMatcherResult bestMatchAmong(final MutableString sequence, final int[] barcodeIndices,
+                                        final int numCandidates) {
         BarcodeMatcherResult bestMatch = null;
         int numAtBestMatch = 0;
-        for (int barcodeNum = 0; barcodeNum < barcodes.length; barcodeNum++) {
+        for (int i = 0; i < numCandidates; i++) {
+            final int barcodeNum = barcodeIndices == null ? i : barcodeIndices[i];
             final MutableString barcode = barcodes[barcodeNum];
             final BarcodeMatcherResult result = bestMatch(sequence, barcode, barcodeNum);
             if (bestMatch == null) {
@@ -104,11 +124,23 @@ public abstract class BarcodeMatcher {
         if (numAtBestMatch > 1) {
             bestMatch.setAmbiguous(true);
         }
-        final int bestBarcodeNum = bestMatch.getBarcodeIndex();
-        barcodeIndexToHitsMap.put(bestBarcodeNum, barcodeIndexToHitsMap.get(bestBarcodeNum) + 1);
         return bestMatch;
     }
 
+    /**
+     * Collect the positions in sequence where the first barcodeLength characters of a barcode are compared
+     * by {@link #bestMatch(MutableString, MutableString, int, int)}. The default implementation returns
+     * every position where a barcode could start. Sub-classes return the positions actually compared.
+     * @param sequence the sequence to get the barcode for
+     * @param maxBarcodeLength the length of the longest barcode (including adapter)
+     * @param positions where the start positions will be added
+     */
+    void barcodeStartPositions(final MutableString sequence, final int maxBarcodeLength, final IntList positions) {
+        for (int position = 0; position <= sequence.length() - barcodeLength; position++) {
+            positions.add(position);
+        }
+    }
+
     /**
      * Get the map of barcode index to the number of entries found for that barcode.
      * @return the map of barcode index to the number of entries found for that barcode
@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.util.barcode;
+
+import it.unimi.dsi.fastutil.ints.Int2LongLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2LongMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.lang.MutableString;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A barcode matcher that pre-computes the neighbourhood of every barcode: all the sequences of barcodeLength
+ * characters within allowedMismatches substitutions of the first barcodeLength characters of a barcode.
+ * Matching a sequence then only requires one table lookup per position where a barcode may start, followed
+ * by the exact comparison of the few candidate barcodes found in the table (usually one). Results are
+ * identical to those of the matcher this index is built for, but the cost per read no longer grows
+ * with the number of barcodes.
+ * <p/>
+ * Instances are safe to use from several threads: matching does not modify the index, and hits are
+ * counted atomically.
+ *
+ * @author Fabien Campagne
+ *         Date: Oct 19, 2012
+ */
+public class IndexedBarcodeMatcher extends BarcodeMatcher {
+
+    /** Logging. */
+    private static final Log LOG = LogFactory.getLog(IndexedBarcodeMatcher.class);
+
+    /** Index is not built if the neighbourhood table would have more entries than this. */
+    private static final long MAX_TABLE_SIZE = 50000000L;
+
+    /** Code of characters that do not occur in any barcode. */
+    private static final int OTHER_CODE = 0;
+
+    /** The matcher that compares sequence and barcodes (prefix or suffix semantic). */
+    private final BarcodeMatcher delegate;
+
+    /** Code of each character, OTHER_CODE for characters that do not occur in barcodes. */
+    private final int[] charCodes = new int[Character.MAX_VALUE + 1];
+
+    /** Number of distinct codes, including OTHER_CODE. */
+    private int numCodes;
+
+    /** Length of the longest barcode, including adapter. */
+    private int maxBarcodeLength;
+
+    /**
+     * Key of a neighbourhood sequence to the index of the only barcode in its neighbourhood (when
+     * positive), or to -(i+1) where i is the index of the list of barcodes in {@link #candidateLists}.
+     */
+    private Long2IntOpenHashMap neighbourhood;
+
+    private final ObjectArrayList<int[]> candidateLists = new ObjectArrayList<int[]>();
+
+    private final AtomicLongArray hits;
+
+    /**
+     * Index the barcodes of the given matcher.
+     * @param delegate the matcher to index.
+     */
+    public IndexedBarcodeMatcher(final BarcodeMatcher delegate) {
+        super();
+        this.delegate = delegate;
+        barcodes = delegate.barcodes;
+        barcodeLength = delegate.barcodeLength;
+        allowedMismatches = delegate.allowedMismatches;
+        hits = new AtomicLongArray(barcodes == null ? 0 : barcodes.length);
+        buildIndex();
+    }
+
+    @Override
+    BarcodeMatcherResult bestMatch(final MutableString sequence, final MutableString toFind,
+                                   final int barcodeIndex, final int minMatchLength) {
+        return delegate.bestMatch(sequence, toFind, barcodeIndex, minMatchLength);
+    }
+
+    /**
+     * Determines which barcode this sequence matches or returns null if a barcode isn't found for
+     * the sequence (withing the number of allowedMismatches).
+     * @param sequence the sequence to get the barcode for
+     * @return the barcode for the sequence or null if not found
+     */
+    @Override
+    public BarcodeMatcherResult matchSequence(final MutableString sequence) {
+        final BarcodeMatcherResult bestMatch;
+        if (neighbourhood == null) {
+            bestMatch = bestMatchAmong(sequence, null, barcodes.length);
+        } else {
+            final IntArrayList positions = new IntArrayList();
+            delegate.barcodeStartPositions(sequence, maxBarcodeLength, positions);
+            final IntArrayList candidates = new IntArrayList();
+            for (int i = 0; i < positions.size(); i++) {
+                final int value = neighbourhood.get(key(sequence, positions.getInt(i)));
+                if (value >= 0) {
+                    candidates.add(value);
+                } else if (value != Integer.MIN_VALUE) {
+                    candidates.addElements(candidates.size(), candidateLists.get(-value - 1));
+                }
+            }
+            final int numCandidates = sortUnique(candidates);
+            bestMatch = numCandidates == 0 ? null : bestMatchAmong(sequence, candidates.elements(), numCandidates);
+        }
+        if (bestMatch != null) {
+            hits.incrementAndGet(bestMatch.getBarcodeIndex());
+        }
+        return bestMatch;
+    }
+
+    /**
+     * Get the map of barcode index to the number of entries found for that barcode.
+     * @return a snapshot of the map of barcode index to the number of entries found for that barcode
+     */
+    @Override
+    public Int2LongMap getBarcodeIndexToHitsMap() {
+        final Int2LongMap result = new Int2LongLinkedOpenHashMap();
+        for (int i = 0; i < hits.length(); i++) {
+            result.put(i, hits.get(i));
+        }
+        return result;
+    }
+
+    private void buildIndex() {
+        if (barcodes == null || barcodeLength <= 0) {
+            return;
+        }
+        numCodes = 1;
+        for (final MutableString barcode : barcodes) {
+            maxBarcodeLength = Math.max(maxBarcodeLength, barcode.length());
+            for (int i = 0; i < Math.min(barcodeLength, barcode.length()); i++) {
+                final char c = barcode.charAt(i);
+                if (charCodes[c] == OTHER_CODE) {
+                    charCodes[c] = numCodes++;
+                }
+            }
+        }
+        final int maxMismatches = Math.min(allowedMismatches, barcodeLength);
+        long neighbourhoodSize = 0;
+        long binomial = 1;
+        for (int k = 0; k <= maxMismatches; k++) {
+            neighbourhoodSize += binomial * (long) Math.pow(numCodes - 1, k);
+            binomial = binomial * (barcodeLength - k) / (k + 1);
+        }
+        if (Math.pow(numCodes, barcodeLength) >= Long.MAX_VALUE
+                || neighbourhoodSize * barcodes.length > MAX_TABLE_SIZE) {
+            LOG.warn(String.format("Barcode neighbourhood table too large for %d barcodes with %d mismatches, "
+                    + "comparing every barcode to each read.", barcodes.length, allowedMismatches));
+            return;
+        }
+        neighbourhood = new Long2IntOpenHashMap((int) (neighbourhoodSize * barcodes.length));
+        neighbourhood.defaultReturnValue(Integer.MIN_VALUE);
+        final int[] codes = new int[barcodeLength];
+        for (int barcodeIndex = 0; barcodeIndex < barcodes.length; barcodeIndex++) {
+            final MutableString barcode = barcodes[barcodeIndex];
+            if (barcode.length() < barcodeLength) {
+                // such barcodes can never be matched.
+                continue;
+            }
+            for (int i = 0; i < barcodeLength; i++) {
+                codes[i] = charCodes[barcode.charAt(i)];
+            }
+            addVariants(codes, 0, maxMismatches, barcodeIndex);
+        }
+        LOG.info(String.format("Indexed %d barcode variants.", neighbourhood.size()));
+    }
+
+    /**
+     * Add every variant of codes with at most maxMismatches substitutions at positions from position on.
+     */
+    private void addVariants(final int[] codes, final int position, final int maxMismatches,
+                             final int barcodeIndex) {
+        addCandidate(key(codes), barcodeIndex);
+        if (maxMismatches == 0) {
+            return;
+        }
+        for (int i = position; i < codes.length; i++) {
+            final int original = codes[i];
+            for (int code = 0; code < numCodes; code++) {
+                if (code != original) {
+                    codes[i] = code;
+                    addVariants(codes, i + 1, maxMismatches - 1, barcodeIndex);
+                }
+            }
+            codes[i] = original;
+        }
+    }
+
+    private void addCandidate(final long key, final int barcodeIndex) {
+        final int value = neighbourhood.get(key);
+        if (value == Integer.MIN_VALUE) {
+            neighbourhood.put(key, barcodeIndex);
+        } else if (value >= 0) {
+            candidateLists.add(new int[]{value, barcodeIndex});
+            neighbourhood.put(key, -candidateLists.size());
+        } else {
+            final int[] previous = candidateLists.get(-value - 1);
+            final int[] list = IntArrays.setLength(previous, previous.length + 1);
+            list[previous.length] = barcodeIndex;
+            candidateLists.set(-value - 1, list);
+        }
+    }
+
+    private long key(final int[] codes) {
+        long key = 0;
+        for (final int code : codes) {
+            key = key * numCodes + code;
+        }
+        return key;
+    }
+
+    private long key(final MutableString sequence, final int start) {
+        long key = 0;
+        for (int i = start; i < start + barcodeLength; i++) {
+            key = key * numCodes + charCodes[sequence.charAt(i)];
+        }
+        return key;
+    }
+
+    /**
+     * Sort the list and remove duplicates in place.
+     * @return the number of distinct elements, stored at the start of the list.
+     */
+    private static int sortUnique(final IntArrayList list) {
+        final int size = list.size();
+        if (size < 2) {
+            return size;
+        }
+        final int[] elements = list.elements();
+        IntArrays.quickSort(elements, 0, size);
+        int unique = 1;
+        for (int i = 1; i < size; i++) {
+            if (elements[i] != elements[unique - 1]) {
+                elements[unique++] = elements[i];
+            }
+        }
+        return unique;
+    }
+}
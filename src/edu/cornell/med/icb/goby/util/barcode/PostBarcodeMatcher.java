@@ -18,6 +18,7 @@
 
 package edu.cornell.med.icb.goby.util.barcode;
 
+import it.unimi.dsi.fastutil.ints.IntList;
 import it.unimi.dsi.lang.MutableString;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -98,4 +99,18 @@ public class PostBarcodeMatcher extends BarcodeMatcher {
         return overlapResult;
     }
 
+    /**
+     * The barcode starts where each overlap of barcode and adapter with the end of the sequence starts.
+     * @param sequence the sequence to get the barcode for
+     * @param maxBarcodeLength the length of the longest barcode (including adapter)
+     * @param positions where the start positions will be added
+     */
+    @Override
+    void barcodeStartPositions(final MutableString sequence, final int maxBarcodeLength, final IntList positions) {
+        final int sequenceLength = sequence.length();
+        for (int matchLength = Math.min(sequenceLength, maxBarcodeLength); matchLength >= barcodeLength;
+             matchLength--) {
+            positions.add(sequenceLength - matchLength);
+        }
+    }
 }
@@ -18,6 +18,7 @@
 
 package edu.cornell.med.icb.goby.util.barcode;
 
+import it.unimi.dsi.fastutil.ints.IntList;
 import it.unimi.dsi.lang.MutableString;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -86,4 +87,16 @@ public class PreBarcodeMatcher extends BarcodeMatcher {
         return new OverlapResult(0, Math.min(sequence.length(), toFind.length()));
     }
 
+    /**
+     * The barcode is always compared to the beginning of the sequence.
+     * @param sequence the sequence to get the barcode for
+     * @param maxBarcodeLength the length of the longest barcode (including adapter)
+     * @param positions where the start positions will be added
+     */
+    @Override
+    void barcodeStartPositions(final MutableString sequence, final int maxBarcodeLength, final IntList positions) {
+        if (sequence.length() >= barcodeLength) {
+            positions.add(0);
+        }
+    }
 }
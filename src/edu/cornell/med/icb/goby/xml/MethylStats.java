@@ -120,8 +120,18 @@ public class MethylStats {
     long[] numberCpGsPerFragmentBinObserved;
 
     public void genomeHasCpG(final int fragmentLength) {
-        numberCpGsInGenome += 1;
-        numberCpGsPerFragmentBinGenome[indexToIncrement(fragmentLengthBins, fragmentLength)] += 1;
+        genomeHasCpGs(fragmentLength, 1);
+    }
+
+    /**
+     * Record several CpGs of the genome that start fragments of the same length.
+     *
+     * @param fragmentLength Length of the fragments.
+     * @param count          Number of CpGs that start a fragment of this length.
+     */
+    public void genomeHasCpGs(final int fragmentLength, final long count) {
+        numberCpGsInGenome += count;
+        numberCpGsPerFragmentBinGenome[indexToIncrement(fragmentLengthBins, fragmentLength)] += count;
     }
 
     private int indexToIncrement(final int[] array, final int depth) {
@@ -203,6 +213,32 @@ public class MethylStats {
         return copy;
     }
 
+    /**
+     * Add the counts of other stats to these stats. Other must have been collected with the same depths and
+     * fragment length bins. This makes it possible to collect stats on parts of the data concurrently.
+     *
+     * @param other stats to add.
+     */
+    public void add(final MethylStats other) {
+        numberCpGsInGenome += other.numberCpGsInGenome;
+        numberCpGsObserved += other.numberCpGsObserved;
+        numConvertedNotCpGContext += other.numConvertedNotCpGContext;
+        numNotCpGContext += other.numNotCpGContext;
+        numCTpG += other.numCTpG;
+        add(numberCpGsPerDepth, other.numberCpGsPerDepth);
+        add(numberCpGsPerFragmentBinGenome, other.numberCpGsPerFragmentBinGenome);
+        add(numberCpGsPerFragmentBinObserved, other.numberCpGsPerFragmentBinObserved);
+        add(mcpXFrequencies, other.mcpXFrequencies);
+        add(observedcpXFrequencies, other.observedcpXFrequencies);
+    }
+
+    private static void add(final long[] counts, final long[] otherCounts) {
+        assert counts.length == otherCounts.length : "stats must have the same number of bins.";
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += otherCounts[i];
+        }
+    }
+
     /**
      * Frequency of methylated C followed by G A C or T (in array order).
      */
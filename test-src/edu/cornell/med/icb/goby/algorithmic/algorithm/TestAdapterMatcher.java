@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.algorithmic.algorithm;
+
+import it.unimi.dsi.lang.MutableString;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Validates that {@link AdapterMatcher} finds the same adapters as trying each adapter in turn.
+ */
+public class TestAdapterMatcher {
+    private static final char[] ACGTN = {'A', 'C', 'G', 'T', 'N'};
+
+    private static MutableString randomSequence(final Random random, final int length, final int alphabetSize) {
+        final MutableString result = new MutableString(length);
+        for (int i = 0; i < length; i++) {
+            result.append(ACGTN[random.nextInt(alphabetSize)]);
+        }
+        return result;
+    }
+
+    /**
+     * @return {adapter index, start, length} or null.
+     */
+    private static int[] naiveContained(final MutableString[] adapters, final MutableString sequence) {
+        for (int i = 0; i < adapters.length; i++) {
+            final int index = sequence.indexOf(adapters[i]);
+            if (index >= 0) {
+                return new int[]{i, index, adapters[i].length()};
+            }
+        }
+        return null;
+    }
+
+    private static int[] naiveLeft(final MutableString[] adapters, final MutableString sequence,
+                                   final int minLeftLength) {
+        for (int i = 0; i < adapters.length; i++) {
+            for (int j = adapters[i].length(); j >= minLeftLength; --j) {
+                if (sequence.startsWith(adapters[i].subSequence(0, j))) {
+                    return new int[]{i, 0, j};
+                }
+            }
+        }
+        return null;
+    }
+
+    private static int[] naiveRight(final MutableString[] adapters, final MutableString sequence,
+                                    final int minRightLength) {
+        for (int i = 0; i < adapters.length; i++) {
+            final int adaptLength = adapters[i].length();
+            for (int j = minRightLength; j < adaptLength; j++) {
+                if (sequence.endsWith(adapters[i].subSequence(j, adaptLength))) {
+                    return new int[]{i, sequence.length() - (adaptLength - j), adaptLength - j};
+                }
+            }
+        }
+        return null;
+    }
+
+    private static int[] toArray(final boolean found, final AdapterMatcher.Match match) {
+        return found ? new int[]{match.getAdapterIndex(), match.getStart(), match.getLength()} : null;
+    }
+
+    private static void assertSame(final String message, final int[] expected, final int[] actual) {
+        if (expected == null || actual == null) {
+            assertEquals(message, expected, actual);
+        } else {
+            assertEquals(message, expected[0], actual[0]);
+            assertEquals(message, expected[1], actual[1]);
+            assertEquals(message, expected[2], actual[2]);
+        }
+    }
+
+    @Test
+    public void sameAsNaive() {
+        final Random random = new Random(8273L);
+        final AdapterMatcher.Match match = new AdapterMatcher.Match();
+        for (int trial = 0; trial < 50; trial++) {
+            // small alphabets and short adapters make overlapping matches frequent:
+            final MutableString[] adapters = new MutableString[1 + random.nextInt(30)];
+            for (int i = 0; i < adapters.length; i++) {
+                adapters[i] = randomSequence(random, 1 + random.nextInt(8), 3);
+            }
+            final int minLeftLength = random.nextInt(4);
+            final int minRightLength = random.nextInt(4);
+            final AdapterMatcher matcher = new AdapterMatcher(adapters, minLeftLength, minRightLength);
+            for (int i = 0; i < 200; i++) {
+                final MutableString sequence = randomSequence(random, random.nextInt(25), 4);
+                final String message = sequence + " min=" + minLeftLength + "/" + minRightLength;
+                assertSame(message, naiveContained(adapters, sequence),
+                        toArray(matcher.findContained(sequence, match), match));
+                assertSame(message, naiveLeft(adapters, sequence, minLeftLength),
+                        toArray(matcher.findLeftOverlap(sequence, match), match));
+                assertSame(message, naiveRight(adapters, sequence, minRightLength),
+                        toArray(matcher.findRightOverlap(sequence, match), match));
+            }
+        }
+    }
+
+    @Test
+    public void firstAdapterWins() {
+        final MutableString[] adapters = {new MutableString("GGTT"), new MutableString("AC")};
+        final AdapterMatcher matcher = new AdapterMatcher(adapters, 2, 0);
+        final AdapterMatcher.Match match = new AdapterMatcher.Match();
+        assertTrue(matcher.findContained("ACxxGGTTxxAC", match));
+        assertEquals(0, match.getAdapterIndex());
+        assertEquals(4, match.getStart());
+        assertTrue(matcher.findLeftOverlap("GGTA", match));
+        assertEquals(0, match.getAdapterIndex());
+        assertEquals(3, match.getLength());
+        assertFalse(matcher.findLeftOverlap("GA", match));
+        assertTrue(matcher.findRightOverlap("GGTAC", match));
+        assertEquals(1, match.getAdapterIndex());
+        assertEquals(2, match.getLength());
+        assertEquals(0, new AdapterMatcher(new MutableString[0], 0, 0).getNumAdapters());
+    }
+}
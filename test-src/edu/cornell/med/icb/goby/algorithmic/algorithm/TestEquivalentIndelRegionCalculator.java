@@ -27,7 +27,9 @@ import org.junit.Before;
 import org.junit.Test;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotSame;
 import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
 
 /**
  * @author Fabien Campagne
@@ -114,4 +116,40 @@ public class TestEquivalentIndelRegionCalculator {
         EquivalentIndelRegion result = equivalentIndelRegionCalculator.determine(2, indel);
         assertNull("indel outside the genome should return null", result);
     }
+    @Test
+    public void testSameIndelFromSeveralReads() throws Exception {
+        final EquivalentIndelRegion first = equivalentIndelRegionCalculator.determine(2, new ObservedIndel(6, 8, "TA", "--", 3));
+        final EquivalentIndelRegion second = equivalentIndelRegionCalculator.determine(2, new ObservedIndel(6, 8, "TA", "--", 7));
+        assertNotSame("each read must get its own region", first, second);
+        assertEquals(first.startPosition, second.startPosition);
+        assertEquals(first.endPosition, second.endPosition);
+        assertEquals(first.fromInContext(), second.fromInContext());
+        assertEquals(first.toInContext(), second.toInContext());
+        assertEquals(1, first.readIndices.size());
+        assertTrue(first.readIndices.contains(3));
+        assertEquals(1, second.readIndices.size());
+        assertTrue(second.readIndices.contains(7));
+        second.incrementFrequency();
+        assertEquals(1, equivalentIndelRegionCalculator.determine(2, new ObservedIndel(6, 8, "TA", "--", 9)).getFrequency());
+    }
+
+    @Test
+    public void testLongDeletion() throws Exception {
+        final StringBuilder reference = new StringBuilder("ACGT");
+        for (int i = 0; i < 100; i++) {
+            reference.append(i % 2 == 0 ? 'C' : 'T');
+        }
+        reference.append("GGGG");
+        final EquivalentIndelRegionCalculator calculator =
+                new EquivalentIndelRegionCalculator(new RandomAccessSequenceTestSupport(new String[]{reference.toString()}));
+        calculator.setFlankLeftSize(1);
+        final String deleted = reference.substring(4, 84);
+        final EquivalentIndelRegion result = calculator.determine(0,
+                new ObservedIndel(3, 84, deleted, deleted.replaceAll(".", "-")));
+        // the T before the repeat can also be deleted:
+        assertEquals(2, result.startPosition);
+        assertEquals(104, result.endPosition);
+        assertEquals(reference.substring(3, 104), result.from);
+        assertEquals(deleted.replaceAll(".", "-") + reference.substring(83, 104), result.to);
+    }
 }
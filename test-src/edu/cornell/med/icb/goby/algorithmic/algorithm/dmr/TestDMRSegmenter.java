@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.algorithmic.algorithm.dmr;
+
+import edu.cornell.med.icb.goby.algorithmic.data.GroupComparison;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * @author Fabien Campagne
+ *         Date: Oct 19, 2012
+ */
+public class TestDMRSegmenter {
+    private static final int WINDOW_SITES = 5;
+    private final GroupComparison comparison = new GroupComparison("A", "B", 0, 1, 0);
+
+    /**
+     * Sites of both groups are methylated at the same rate, except sites [200, 230[ of chromosome 1, methylated
+     * in group A only.
+     */
+    private GroupMethylationCounts simulate(final Random random) {
+        final GroupMethylationCounts counts = new GroupMethylationCounts(2);
+        final int[] numSites = {500, 1000, 3};
+        for (int chromosome = 0; chromosome < numSites.length; chromosome++) {
+            for (int site = 0; site < numSites[chromosome]; site++) {
+                final boolean differential = chromosome == 1 && site >= 200 && site < 230;
+                final int[] methylated = new int[2];
+                final int[] unmethylated = new int[2];
+                for (int group = 0; group < 2; group++) {
+                    final double rate = differential ? (group == 0 ? 0.9 : 0.1) : 0.5;
+                    for (int read = 0; read < 10; read++) {
+                        if (random.nextDouble() < rate) {
+                            methylated[group]++;
+                        } else {
+                            unmethylated[group]++;
+                        }
+                    }
+                }
+                counts.addSite(chromosome, 10 + site * 7, methylated, unmethylated);
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Estimate the null distribution of the statistic over windows of sites methylated at the same rate.
+     */
+    private EstimatedDistribution estimateNull(final StatisticAdaptor adaptor) {
+        final EstimatedDistribution nullDistribution = new EstimatedDistribution(1, adaptor);
+        nullDistribution.setBinningStrategy(new OneBinStrategy());
+        final Random random = new Random(3);
+        for (int i = 0; i < 20000; i++) {
+            final int[] c = new int[4];
+            for (int read = 0; read < 10 * WINDOW_SITES * 2; read++) {
+                c[(read % 2) * 2 + (random.nextBoolean() ? 0 : 1)]++;
+            }
+            nullDistribution.observe(0, c);
+        }
+        return nullDistribution;
+    }
+
+    private ObjectArrayList<String> toStrings(final ObjectArrayList<DifferentiallyMethylatedRegion> regions) {
+        final ObjectArrayList<String> result = new ObjectArrayList<String>();
+        for (final DifferentiallyMethylatedRegion region : regions) {
+            result.add(region.toString());
+        }
+        return result;
+    }
+
+    @Test
+    public void testCounts() {
+        final GroupMethylationCounts counts = new GroupMethylationCounts(2);
+        counts.addSite(0, 5, new int[]{1, 2}, new int[]{3, 4});
+        counts.addSite(0, 9, new int[]{10, 20}, new int[]{30, 40});
+        counts.addSite(0, 12, new int[]{100, 200}, new int[]{300, 400});
+        assertEquals(3, counts.getNumSites(0));
+        assertEquals(110, counts.getMethylated(0, 0, 1, 3));
+        assertEquals(44, counts.getUnmethylated(0, 1, 0, 2));
+        assertEquals(0, counts.getMethylated(0, 1, 2, 2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSitesMustBeSorted() {
+        final GroupMethylationCounts counts = new GroupMethylationCounts(1);
+        counts.addSite(0, 5, new int[]{1}, new int[]{1});
+        counts.addSite(0, 5, new int[]{1}, new int[]{1});
+    }
+
+    @Test
+    public void testFindsDifferentialRegion() throws Exception {
+        final GroupMethylationCounts counts = simulate(new Random(7));
+        final StatisticAdaptor adaptor = new PTestStatisticAdaptor();
+        final DMRSegmenter segmenter = new DMRSegmenter(counts, adaptor, estimateNull(adaptor), 0.0001, WINDOW_SITES);
+        final ObjectArrayList<DifferentiallyMethylatedRegion> regions = segmenter.segment(comparison);
+        assertFalse(regions.isEmpty());
+        boolean found = false;
+        for (final DifferentiallyMethylatedRegion region : regions) {
+            assertTrue(region.getPValue() < 0.0001);
+            if (region.getChromosome() == 1 && region.getStart() <= 10 + 205 * 7 && region.getEnd() >= 10 + 225 * 7) {
+                found = true;
+            }
+        }
+        assertTrue("the differential region must be found: " + regions, found);
+    }
+
+    @Test
+    public void testRegionsDoNotDependOnTiles() throws Exception {
+        final GroupMethylationCounts counts = simulate(new Random(11));
+        final StatisticAdaptor adaptor = new PTestStatisticAdaptor();
+        final EstimatedDistribution nullDistribution = estimateNull(adaptor);
+        final DMRSegmenter sequential = new DMRSegmenter(counts, adaptor, nullDistribution, 0.01, WINDOW_SITES);
+        final ObjectArrayList<String> expected = toStrings(sequential.segment(comparison));
+        assertTrue(expected.size() > 1);
+        for (final int tileSize : new int[]{1, 3, 17, 1000}) {
+            final DMRSegmenter tiled = new DMRSegmenter(counts, adaptor, nullDistribution, 0.01, WINDOW_SITES);
+            tiled.setNumThreads(4);
+            tiled.setTileSize(tileSize);
+            assertEquals("tileSize=" + tileSize, expected, toStrings(tiled.segment(comparison)));
+        }
+    }
+
+    @Test
+    public void testPValueProvider() {
+        final GroupMethylationCounts counts = simulate(new Random(5));
+        final StatisticAdaptor adaptor = new PTestStatisticAdaptor();
+        final DMRSegmenter segmenter = new DMRSegmenter(counts, adaptor, estimateNull(adaptor), 0.0001, WINDOW_SITES);
+        final PVAlueProvider provider = segmenter.getPValueProvider(1);
+        assertTrue(provider.getPValue(200, 230, comparison) < 0.0001);
+        assertEquals(segmenter.getPValue(1, 10, 20, comparison), provider.getPValue(10, 20, comparison));
+    }
+}
@@ -18,8 +18,14 @@
 
 package edu.cornell.med.icb.goby.algorithmic.algorithm.dmr;
 
+import it.unimi.dsi.fastutil.io.BinIO;
+import org.apache.commons.io.FileUtils;
+import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.io.File;
+import java.io.IOException;
+
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertTrue;
 
@@ -45,6 +51,120 @@ public class TestDensityEstimator {
         }
     }
 
+    private static final String BASE_TEST_DIR = "test-results/density-estimator";
+
+    @BeforeClass
+    public static void initializeTestDirectory() throws IOException {
+        FileUtils.forceMkdir(new File(BASE_TEST_DIR));
+    }
+
+    private EstimatedDistribution observeMany() {
+        final EstimatedDistribution estimator = new EstimatedDistribution(3, new DeltaStatisticAdaptor());
+        for (int i = 0; i < 1000; i++) {
+            final int sumTotal = 10 + (i * 37) % 5000;
+            estimator.observeWithCovariate(0, sumTotal, i % 7, 13, i % 11, 9);
+        }
+        estimator.logObservation(12, 150);
+        estimator.logObservation(7);
+        estimator.logObservation(3, 10, 20);
+        return estimator;
+    }
+
+    @Test
+    public void testBinaryRoundTrip() throws Exception {
+        final EstimatedDistribution estimator = observeMany();
+        final String filename = BASE_TEST_DIR + "/round-trip.bin";
+        EstimatedDistribution.store(estimator, filename);
+        final EstimatedDistribution loaded = EstimatedDistribution.load(filename);
+        assertEquals(estimator.getScalingFactor(), loaded.getScalingFactor());
+        assertEquals(estimator.getStatAdaptor().statName(), loaded.getStatAdaptor().statName());
+        for (int sumTotal = 10; sumTotal < 5010; sumTotal += 53) {
+            for (int scaledStatistic = 0; scaledStatistic < 10000; scaledStatistic += 97) {
+                assertEquals(estimator.getCumulativeCount(scaledStatistic, sumTotal),
+                        loaded.getCumulativeCount(scaledStatistic, sumTotal));
+                assertEquals(estimator.getP(scaledStatistic, sumTotal), loaded.getP(scaledStatistic, sumTotal));
+            }
+        }
+        assertEquals(3, loaded.getNumObservations());
+        assertEquals(12, loaded.getObservedStatistic(0));
+        assertEquals(1, loaded.getObservedCovariates(0).length);
+        assertEquals(150, loaded.getObservedCovariates(0)[0]);
+        assertEquals(0, loaded.getObservedCovariates(1).length);
+        assertEquals(20, loaded.getObservedCovariates(2)[1]);
+    }
+
+    @Test
+    public void testLoadSerializedDistribution() throws Exception {
+        final EstimatedDistribution estimator = observeMany();
+        final String filename = BASE_TEST_DIR + "/serialized.bin";
+        BinIO.storeObject(estimator, filename);
+        final EstimatedDistribution loaded = EstimatedDistribution.load(filename);
+        for (int sumTotal = 10; sumTotal < 5010; sumTotal += 211) {
+            assertEquals(estimator.getCumulativeCount(500, sumTotal), loaded.getCumulativeCount(500, sumTotal));
+        }
+        assertEquals(3, loaded.getNumObservations());
+    }
+
+    @Test
+    public void testObserveLoadedDistribution() throws Exception {
+        final String filename = BASE_TEST_DIR + "/observe-loaded.bin";
+        EstimatedDistribution.store(observeMany(), filename);
+        final EstimatedDistribution loaded = EstimatedDistribution.load(filename);
+        final long before = loaded.getCumulativeCount(10000, 100);
+        loaded.observeWithCovariate(0, 100, 1, 13, 2, 9);
+        assertEquals(before + 1, loaded.getCumulativeCount(10000, 100));
+        // the mapped file is not modified:
+        assertEquals(before, EstimatedDistribution.load(filename).getCumulativeCount(10000, 100));
+    }
+
+    @Test
+    public void testObserveEmptyContextOfLoadedDistribution() throws Exception {
+        final String filename = BASE_TEST_DIR + "/observe-empty-context.bin";
+        final EstimatedDistribution stored = new EstimatedDistribution(3, new DeltaStatisticAdaptor());
+        // only the context of large sum totals is populated, contexts of smaller sum totals are stored empty:
+        stored.observeWithCovariate(0, 3000, 1, 13, 2, 9);
+        EstimatedDistribution.store(stored, filename);
+
+        final EstimatedDistribution loaded = EstimatedDistribution.load(filename);
+        assertEquals(0, loaded.getCumulativeCount(10000, 100));
+        loaded.observeWithCovariate(0, 100, 1, 13, 2, 9);
+        final EstimatedDistribution expected = new EstimatedDistribution(3, new DeltaStatisticAdaptor());
+        expected.observeWithCovariate(0, 100, 1, 13, 2, 9);
+        for (int scaledStatistic = 0; scaledStatistic < 10000; scaledStatistic += 97) {
+            assertEquals(expected.getCumulativeCount(scaledStatistic, 100),
+                    loaded.getCumulativeCount(scaledStatistic, 100));
+        }
+
+        final EstimatedDistribution accumulator = loaded.createAccumulator();
+        accumulator.observeWithCovariate(0, 10, 1, 13, 2, 9);
+        loaded.merge(accumulator);
+        expected.observeWithCovariate(0, 10, 1, 13, 2, 9);
+        for (int scaledStatistic = 0; scaledStatistic < 10000; scaledStatistic += 97) {
+            assertEquals(expected.getCumulativeCount(scaledStatistic, 10),
+                    loaded.getCumulativeCount(scaledStatistic, 10));
+        }
+        assertEquals(1, loaded.getCumulativeCount(10000, 3000));
+    }
+
+    @Test
+    public void testMerge() throws Exception {
+        final EstimatedDistribution expected = observeMany();
+        final EstimatedDistribution merged = new EstimatedDistribution(3, new DeltaStatisticAdaptor());
+        final EstimatedDistribution[] accumulators = {merged.createAccumulator(), merged.createAccumulator()};
+        for (int i = 0; i < 1000; i++) {
+            final int sumTotal = 10 + (i * 37) % 5000;
+            accumulators[i % 2].observeWithCovariate(0, sumTotal, i % 7, 13, i % 11, 9);
+        }
+        merged.merge(accumulators[0]);
+        merged.merge(accumulators[1]);
+        for (int sumTotal = 10; sumTotal < 5010; sumTotal += 53) {
+            for (int scaledStatistic = 0; scaledStatistic < 10000; scaledStatistic += 97) {
+                assertEquals(expected.getCumulativeCount(scaledStatistic, sumTotal),
+                        merged.getCumulativeCount(scaledStatistic, sumTotal));
+            }
+        }
+    }
+
     @Test
     public void testObserve() throws Exception {
         final EstimatedDistribution estimator = new EstimatedDistribution(2, new BuggyDeltaStatisticAdaptor());
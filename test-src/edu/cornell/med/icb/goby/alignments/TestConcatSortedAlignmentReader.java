@@ -27,6 +27,7 @@ import org.apache.commons.logging.LogFactory;
 import org.junit.AfterClass;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -171,6 +172,31 @@ public class TestConcatSortedAlignmentReader {
     }
 
 
+    @Test
+    public void testSortConcatDownsampled() throws IOException {
+        final IntList first = downsampledPositions(42);
+        // at most one read per sample per window of 5 bases:
+        assertEquals(7, first.size());
+        for (int i = 1; i < first.size(); i++) {
+            assertTrue("entries must remain sorted", first.getInt(i - 1) <= first.getInt(i));
+        }
+        assertEquals(99, first.getInt(6));
+        assertEquals("the same seed must keep the same reads", first, downsampledPositions(42));
+    }
+
+    private IntList downsampledPositions(final long seed) throws IOException {
+        final ConcatSortedAlignmentReader concat = new ConcatSortedAlignmentReader(basename1, basename2, basename3);
+        concat.setAdjustSampleIndices(true);
+        concat.setDownsampler(new ReadDownsampler(1, 5, seed));
+        final IntList positions = new IntArrayList();
+        Alignments.AlignmentEntry entry;
+        while ((entry = concat.skipTo(1, 0)) != null) {
+            positions.add(entry.getPosition());
+        }
+        concat.close();
+        return positions;
+    }
+
     @Test
        public void testSortConcatWithReadGroupOverride() throws IOException {
         final ReadGroupHelper readGroupHelper=new ReadGroupHelper();
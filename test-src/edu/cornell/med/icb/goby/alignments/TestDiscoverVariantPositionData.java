@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.alignments;
+
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.objects.ObjectArraySet;
+import it.unimi.dsi.fastutil.objects.ObjectSet;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Fabien Campagne
+ *         Date: Oct 19, 2012
+ */
+public class TestDiscoverVariantPositionData {
+
+    private DiscoverVariantPositionData makeList(final int numBases) {
+        final DiscoverVariantPositionData list = new DiscoverVariantPositionData(12);
+        for (int i = 0; i < numBases; i++) {
+            list.add(i % 3, i, (byte) (10 + i), 'A', i % 2 == 0 ? 'A' : 'C', i % 2 == 0, i % 4 < 2);
+        }
+        return list;
+    }
+
+    @Test
+    public void testColumnsAndElements() {
+        final DiscoverVariantPositionData list = makeList(40);
+        assertEquals(40, list.size());
+        for (int i = 0; i < 40; i++) {
+            final PositionBaseInfo info = list.get(i);
+            assertEquals(list.getReaderIndex(i), info.readerIndex);
+            assertEquals(i, info.readIndex);
+            assertEquals(10 + i, info.qualityScore);
+            assertEquals(list.getTo(i), info.to);
+            assertEquals(i % 2 == 0, info.matchesReference);
+            assertEquals(i % 4 < 2, info.matchesForwardStrand);
+            assertEquals(12, info.position);
+            // elements are created once:
+            assertSame(info, list.get(i));
+        }
+    }
+
+    @Test
+    public void testRemoveFiltered() {
+        final DiscoverVariantPositionData list = makeList(10);
+        final ObjectSet<PositionBaseInfo> filtered = new ObjectArraySet<PositionBaseInfo>();
+        filtered.add(list.get(3));
+        filtered.add(list.get(7));
+        assertTrue(list.isFiltered(3, filtered));
+        assertFalse(list.isFiltered(4, filtered));
+        assertTrue(list.removeAll(filtered));
+        assertEquals(8, list.size());
+        for (int i = 0; i < list.size(); i++) {
+            assertTrue(list.getReadIndex(i) != 3 && list.getReadIndex(i) != 7);
+        }
+        assertEquals(8, list.getReadIndex(6));
+    }
+
+    @Test
+    public void testSubSample() {
+        final DiscoverVariantPositionData list = makeList(1000);
+        list.subSample(100, new Random(37));
+        assertEquals(100, list.size());
+        final IntOpenHashSet readIndices = new IntOpenHashSet();
+        for (int i = 0; i < list.size(); i++) {
+            assertEquals((byte) (10 + list.getReadIndex(i)), list.getQualityScore(i));
+            readIndices.add(list.getReadIndex(i));
+        }
+        assertEquals(100, readIndices.size());
+    }
+
+    @Test
+    public void testSubSampleWithSameSeedKeepsSameBases() {
+        final DiscoverVariantPositionData first = makeList(1000);
+        final DiscoverVariantPositionData second = makeList(1000);
+        first.subSample(100, new Random(37));
+        second.subSample(100, new Random(37));
+        for (int i = 0; i < first.size(); i++) {
+            assertEquals(first.getReadIndex(i), second.getReadIndex(i));
+        }
+    }
+
+    @Test
+    public void testArenaRecyclesStorage() {
+        final PileupArena arena = new PileupArena(2, 64);
+        final DiscoverVariantPositionData list = arena.allocate(5);
+        for (int i = 0; i < 1000; i++) {
+            list.add(0, i, (byte) 40, 'A', 'T', false, true);
+        }
+        arena.release(list);
+        final DiscoverVariantPositionData recycled = arena.allocate(6);
+        assertSame(list, recycled);
+        assertEquals(0, recycled.size());
+        assertEquals(6, recycled.getZeroBasedPosition());
+        assertEquals(64, recycled.capacity());
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.alignments;
+
+import edu.cornell.med.icb.identifier.DoubleIndexedIdentifier;
+import edu.cornell.med.icb.identifier.IndexedIdentifier;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.lang.MutableString;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Fabien Campagne
+ *         Date: Oct 19, 2012
+ */
+public class TestGenomicRegionSet {
+    private static final String BASE_TEST_DIR = "test-results/alignments-regions";
+
+    @BeforeClass
+    public static void initializeTestDirectory() throws IOException {
+        FileUtils.forceMkdir(new File(BASE_TEST_DIR));
+    }
+
+    @AfterClass
+    public static void cleanupTestDirectory() throws IOException {
+        FileUtils.forceDeleteOnExit(new File(BASE_TEST_DIR));
+    }
+
+    @Test
+    public void testMergeBedRegions() throws IOException {
+        final GenomicRegionSet regions = new GenomicRegionSet();
+        regions.loadBed(new StringReader("track name=panel\n" +
+                "chr2\t500\t501\n" +
+                "chr1\t120\t130\n" +
+                "chr1\t100\t110\n" +
+                "chr1\t110\t125\n" +
+                "chrUn\t0\t1000\n"));
+        regions.resolve(referenceIds());
+
+        assertEquals(2, regions.size());
+        assertEquals(1, regions.getReferenceIndex(0));
+        assertEquals(100, regions.getStart(0));
+        assertEquals(129, regions.getEnd(0));
+        assertEquals(2, regions.getReferenceIndex(1));
+        assertEquals(500, regions.getStart(1));
+        assertEquals(500, regions.getEnd(1));
+
+        assertFalse(regions.hasRegions(0));
+        assertTrue(regions.hasRegions(1));
+        assertTrue(regions.contains(1, 100));
+        assertTrue(regions.contains(1, 129));
+        assertFalse(regions.contains(1, 99));
+        assertFalse(regions.contains(1, 130));
+        assertFalse(regions.contains(2, 501));
+
+        assertFalse(regions.overlapsReadStart(1, 90));
+        regions.setStartMargin(10);
+        assertTrue(regions.overlapsReadStart(1, 90));
+        assertFalse(regions.overlapsReadStart(1, 89));
+    }
+
+    @Test
+    public void testReadRegions() throws IOException {
+        final String basename = FilenameUtils.concat(BASE_TEST_DIR, "align-regions");
+        final AlignmentWriterImpl writer = new AlignmentWriterImpl(basename);
+        writer.setNumAlignmentEntriesPerChunk(2);
+        writer.setTargetLengths(new int[]{1000, 1000, 1000});
+        writer.setTargetIdentifiers(targetIdentifiers());
+        writer.setSorted(true);
+        int queryIndex = 0;
+        for (int targetIndex = 0; targetIndex < 3; targetIndex++) {
+            for (int position = 0; position < 1000; position += 7) {
+                writer.setAlignmentEntry(queryIndex++, targetIndex, position, 30, false, 40);
+                writer.appendEntry();
+            }
+        }
+        writer.close();
+
+        final GenomicRegionSet regions = new GenomicRegionSet();
+        regions.add("chr1", 100, 129);
+        regions.add("chr2", 500, 500);
+        regions.add("chr2", 990, 2000);
+        regions.setStartMargin(20);
+        regions.resolve(referenceIds());
+
+        final IntArrayList expected = new IntArrayList();
+        final AlignmentReader allReader = new AlignmentReaderImpl(basename);
+        for (final Alignments.AlignmentEntry entry : allReader) {
+            if (regions.overlapsReadStart(entry.getTargetIndex(), entry.getPosition())) {
+                expected.add(entry.getQueryIndex());
+            }
+        }
+        allReader.close();
+
+        final IntArrayList observed = new IntArrayList();
+        final AlignmentReader reader = new AlignmentReaderImpl(basename);
+        reader.setRegions(regions);
+        for (final Alignments.AlignmentEntry entry : reader) {
+            observed.add(entry.getQueryIndex());
+        }
+        reader.close();
+        assertEquals(14, expected.size());
+        assertEquals(expected, observed);
+    }
+
+    private static IndexedIdentifier targetIdentifiers() {
+        final IndexedIdentifier ids = new IndexedIdentifier();
+        ids.registerIdentifier(new MutableString("chr0"));
+        ids.registerIdentifier(new MutableString("chr1"));
+        ids.registerIdentifier(new MutableString("chr2"));
+        return ids;
+    }
+
+    private static DoubleIndexedIdentifier referenceIds() {
+        return new DoubleIndexedIdentifier(targetIdentifiers());
+    }
+}
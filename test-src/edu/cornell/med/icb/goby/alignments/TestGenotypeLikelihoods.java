@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.alignments;
+
+import it.unimi.dsi.lang.MutableString;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Fabien Campagne
+ *         Date: Oct 19, 2012
+ */
+public class TestGenotypeLikelihoods {
+
+    @Test
+    public void testHomozygousReference() {
+        final GenotypeLikelihoods likelihoods = new GenotypeLikelihoods(30);
+        likelihoods.calculate(new int[]{20, 0}, 2);
+        assertEquals("0,60,695", phredLikelihoods(likelihoods));
+        assertEquals(60, likelihoods.getGenotypeQuality());
+    }
+
+    @Test
+    public void testHeterozygous() {
+        final GenotypeLikelihoods likelihoods = new GenotypeLikelihoods(30);
+        likelihoods.calculate(new int[]{10, 10}, 2);
+        assertEquals("287,0,287", phredLikelihoods(likelihoods));
+        assertEquals(GenotypeLikelihoods.MAX_GENOTYPE_QUALITY, likelihoods.getGenotypeQuality());
+    }
+
+    @Test
+    public void testTwoAlternateAlleles() {
+        final GenotypeLikelihoods likelihoods = new GenotypeLikelihoods(30);
+        // genotypes in VCF order: 0/0, 0/1, 1/1, 0/2, 1/2, 2/2
+        likelihoods.calculate(new int[]{0, 12, 3}, 3);
+        assertEquals(6, likelihoods.getNumGenotypes());
+        assertEquals("476,95,59,381,0,372", phredLikelihoods(likelihoods));
+        assertEquals(59, likelihoods.getGenotypeQuality());
+    }
+
+    @Test
+    public void testReuseWithFewerAlleles() {
+        final GenotypeLikelihoods likelihoods = new GenotypeLikelihoods(30);
+        likelihoods.calculate(new int[]{0, 12, 3}, 3);
+        likelihoods.calculate(new int[]{5, 0, 0}, 1);
+        assertEquals("0", phredLikelihoods(likelihoods));
+        assertEquals(GenotypeLikelihoods.MAX_GENOTYPE_QUALITY, likelihoods.getGenotypeQuality());
+    }
+
+    @Test
+    public void testBasesOfConstructorQualityMatchCounts() {
+        final GenotypeLikelihoods likelihoods = new GenotypeLikelihoods(20);
+        likelihoods.clear(2);
+        for (int i = 0; i < 10; i++) {
+            likelihoods.addBase(0, 30);
+            likelihoods.addBase(1, 30);
+        }
+        likelihoods.calculate();
+        assertEquals("287,0,287", phredLikelihoods(likelihoods));
+    }
+
+    @Test
+    public void testLowQualityBasesWeighLess() {
+        final GenotypeLikelihoods likelihoods = new GenotypeLikelihoods(30);
+        likelihoods.clear(2);
+        likelihoods.addBases(0, 20);
+        for (int i = 0; i < 3; i++) {
+            likelihoods.addBase(1, 5);
+        }
+        likelihoods.calculate();
+        // three alternate bases of quality 5 are likely errors: the homozygous reference genotype is most likely.
+        assertEquals(0, likelihoods.getPhredLikelihood(0));
+        assertTrue(likelihoods.getPhredLikelihood(1) > 0);
+
+        likelihoods.clear(2);
+        likelihoods.addBases(0, 20);
+        for (int i = 0; i < 3; i++) {
+            likelihoods.addBase(1, 30);
+        }
+        likelihoods.calculate();
+        // the same bases at quality 30 support the heterozygous genotype:
+        assertEquals(0, likelihoods.getPhredLikelihood(1));
+        assertTrue(likelihoods.getPhredLikelihood(0) > 0);
+    }
+
+    private String phredLikelihoods(final GenotypeLikelihoods likelihoods) {
+        final MutableString result = new MutableString();
+        likelihoods.appendPhredLikelihoods(result);
+        return result.toString();
+    }
+}
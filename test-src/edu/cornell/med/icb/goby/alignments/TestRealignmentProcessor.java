@@ -329,6 +329,37 @@ entry.position=0
         }
     }
 
+    @Test
+    public void testRealignWithThreads() throws IOException {
+        ObjectList<Alignments.AlignmentEntry> list1 = new ObjectArrayList<Alignments.AlignmentEntry>();
+        addEntry(list1, "ACTGACTGACTGAACTAGTTACTAGCTAAAGTTA", "AC-------CTGAACTAGTTACTAGCTA"); // this read carries the candidate indel
+        addEntry(list1, "ACTGACTGACTGAACTAGTTACTAGCTAAAGTTA", "       ACCTGAACTAGTTACTAGCTA");  // this read should be realigned to the right
+        addEntry(list1, "ACTGACTGACTGAACTAGTTACTAGCTAAAGTTA", "        CCTGAACTAGTTACTAGCTA");  // this read should be realigned to the right
+        addEntry(list1, "ACTGACTGACTGAACTAGTTACTAGCTAAAGTTA", "ACTGACTGACTGAATTACTAA");
+        addEntry(list1, "ACTGACTGACTGAACTAGTTACTAGCTAAAGTTA", "     CTGACTGAA----TTACTAG"); // this read carries the candidate indel
+
+        final RealignmentProcessor sequential = new RealignmentProcessor(list1.iterator());
+        sequential.setGenome(new RandomAccessSequenceTestSupport(list2Refs()));
+        final ObjectList<Alignments.AlignmentEntry> expected = realignAll(sequential);
+
+        final RealignmentProcessor parallel = new RealignmentProcessor(list1.iterator());
+        parallel.setGenome(new RandomAccessSequenceTestSupport(list2Refs()));
+        parallel.setNumThreads(3);
+        assertEquals(expected, realignAll(parallel));
+        assertTrue("some entries must be realigned", sequential.getModifiedCount() > 0);
+        assertEquals(sequential.getModifiedCount(), parallel.getModifiedCount());
+        assertEquals(list1.size(), parallel.getProcessedCount());
+    }
+
+    private ObjectList<Alignments.AlignmentEntry> realignAll(final RealignmentProcessor realigner) throws IOException {
+        final ObjectList<Alignments.AlignmentEntry> result = new ObjectArrayList<Alignments.AlignmentEntry>();
+        Alignments.AlignmentEntry entry;
+        while ((entry = realigner.nextRealignedEntry(0, 0)) != null) {
+            result.add(entry);
+        }
+        return result;
+    }
+
     /**
      * Test case 6
      *
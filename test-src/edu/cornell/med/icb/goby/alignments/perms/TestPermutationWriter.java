@@ -32,6 +32,7 @@ import java.io.File;
 import java.io.IOException;
 
 import static junit.framework.Assert.assertEquals;
+import static org.junit.Assert.assertArrayEquals;
 
 /**
  * @author Fabien Campagne
@@ -121,6 +122,13 @@ public class TestPermutationWriter {
         assertEquals("got wrong answer", -1, reader.getQueryIndex(200));
         assertEquals("got wrong answer", -1, reader.getQueryIndex(250));
         assertEquals("got wrong answer", -1, reader.getQueryIndex(0));
-
+        // just past the end of a block:
+        assertEquals("got wrong answer", -1, reader.getQueryIndex(101));
+        assertEquals("got wrong answer", -1, reader.getQueryIndex(311));
+
+        final int[] smallIndices = {305, 1, 2, 101, 300, 100, 310};
+        final int[] queryIndices = new int[smallIndices.length];
+        reader.getQueryIndices(smallIndices, queryIndices, smallIndices.length);
+        assertArrayEquals(new int[]{304, 0, 1, -1, -1, 99, 309}, queryIndices);
     }
 }
@@ -101,4 +101,34 @@ public class TestQueryIndexPermutation {
         assertEquals(2, perm.permutate(100, 2));
         perm.close();
     }
+
+    @Test
+    public void sameBasenameSpillsToDistinctFiles() throws IOException {
+        final File tmpDir = new File("test-results/permutations/tmp-same-basename");
+        FileUtils.forceMkdir(tmpDir);
+        FileUtils.cleanDirectory(tmpDir);
+        QueryIndexPermutation.doc().setValue("tmp-dir", tmpDir.getPath());
+        QueryIndexPermutation.doc().setValue("max-in-memory", 1);
+        try {
+            // two permutations of the same alignment, both spilling pending indices to the same directory:
+            final QueryIndexPermutation perm1 = new QueryIndexPermutation("test-results/permutations/test-same");
+            final QueryIndexPermutation perm2 = new QueryIndexPermutation("test-results/permutations/test-same");
+            perm1.setPruneLimit((byte) 2);
+            perm2.setPruneLimit((byte) 2);
+            for (int queryIndex = 0; queryIndex < 10; queryIndex++) {
+                assertEquals(queryIndex, perm1.permutate(queryIndex));
+                assertEquals(queryIndex, perm2.permutate(9 - queryIndex));
+            }
+            for (int queryIndex = 0; queryIndex < 10; queryIndex++) {
+                assertEquals(queryIndex, perm1.permutate(queryIndex));
+                assertEquals(9 - queryIndex, perm2.permutate(queryIndex));
+            }
+            perm1.close();
+            perm2.close();
+            assertEquals("temporary files must be removed on close", 0, tmpDir.list().length);
+        } finally {
+            QueryIndexPermutation.doc().setValue("tmp-dir", "");
+            QueryIndexPermutation.doc().setValue("max-in-memory", 5000000);
+        }
+    }
 }
@@ -20,6 +20,8 @@ package edu.cornell.med.icb.goby.alignments.perms;
 
 import org.junit.Test;
 
+import java.util.Random;
+
 import static junit.framework.Assert.assertEquals;
 
 /**
@@ -55,4 +57,18 @@ public class TestReadNameToIndex {
         assertEquals(5, rnti.getQueryIndex("name-3", 3));
         assertEquals(6, rnti.getQueryIndex("name-3", 3));
     }
+
+    @Test
+    public void testSpilled() {
+        final ReadNameToIndex small = new ReadNameToIndex("test-results/permutations/rnti-spilled", 10);
+        final ReadNameToIndex large = new ReadNameToIndex("test-results/permutations/rnti-spilled", 1000000);
+        final Random random = new Random(12);
+        for (int i = 0; i < 10000; i++) {
+            final String name = "read-" + random.nextInt(3000);
+            final int maxObservations = 1 + random.nextInt(3);
+            assertEquals(large.getQueryIndex(name, maxObservations), small.getQueryIndex(name, maxObservations));
+        }
+        small.close();
+        large.close();
+    }
 }
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.alignments.perms;
+
+import it.unimi.dsi.fastutil.longs.Long2LongAVLTreeMap;
+import it.unimi.dsi.fastutil.longs.Long2LongSortedMap;
+import org.apache.commons.io.FileUtils;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Validates that {@link SpillingLong2LongMap} behaves like a map when entries are spilled to disk.
+ */
+public class TestSpillingLong2LongMap {
+    private static final File BASE_TEST_DIR = new File("test-results/permutations");
+
+    @BeforeClass
+    public static void initializeTestDirectory() throws IOException {
+        FileUtils.forceMkdir(BASE_TEST_DIR);
+    }
+
+    @Test
+    public void sameAsMap() throws IOException {
+        final Random random = new Random(2938L);
+        final Long2LongSortedMap expected = new Long2LongAVLTreeMap();
+        expected.defaultReturnValue(SpillingLong2LongMap.ABSENT);
+        final SpillingLong2LongMap map = new SpillingLong2LongMap(BASE_TEST_DIR, "spilling-same-as-map", 100);
+        int maxRuns = 0;
+        for (int i = 0; i < 50000; i++) {
+            final long key = random.nextInt(5000) - 2500;
+            switch (random.nextInt(3)) {
+                case 0:
+                    final long value = random.nextInt(Integer.MAX_VALUE);
+                    expected.put(key, value);
+                    map.put(key, value);
+                    break;
+                case 1:
+                    expected.remove(key);
+                    map.remove(key);
+                    break;
+                default:
+                    assertEquals(expected.get(key), map.get(key));
+            }
+            maxRuns = Math.max(maxRuns, map.getNumRuns());
+        }
+        assertTrue("entries must have been spilled", maxRuns > 1);
+        final Long2LongSortedMap visited = new Long2LongAVLTreeMap();
+        visited.defaultReturnValue(SpillingLong2LongMap.ABSENT);
+        map.visitAll(new SpillingLong2LongMap.EntryVisitor() {
+            public void visit(final long key, final long value) {
+                assertEquals(SpillingLong2LongMap.ABSENT, visited.put(key, value));
+            }
+        });
+        assertEquals(expected, visited);
+        map.close();
+        assertEquals(0, map.getNumRuns());
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.methylation;
+
+import edu.cornell.med.icb.goby.util.HitBoundedPriorityQueue;
+import it.unimi.dsi.fastutil.ints.IntAVLTreeSet;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * @author Fabien Campagne
+ *         Date: Oct 19, 2012
+ */
+public class TestStrandSimilarityScanner {
+    private int[][] forwardPositions;
+    private float[][] forwardRates;
+    private int[][] reversePositions;
+    private float[][] reverseRates;
+
+    private MethylationPrefixSums randomSites(final long seed) {
+        final Random random = new Random(seed);
+        final int[] lengths = {20000, 3000};
+        forwardPositions = new int[lengths.length][];
+        forwardRates = new float[lengths.length][];
+        reversePositions = new int[lengths.length][];
+        reverseRates = new float[lengths.length][];
+        for (int chromosome = 0; chromosome < lengths.length; chromosome++) {
+            final IntArrayList forward = new IntArrayList();
+            final IntArrayList reverse = new IntArrayList();
+            for (int position = 0; position < lengths[chromosome]; position++) {
+                if (random.nextInt(8) == 0) {
+                    forward.add(position);
+                }
+                if (random.nextInt(8) == 0) {
+                    reverse.add(position);
+                }
+            }
+            forwardPositions[chromosome] = forward.toIntArray();
+            reversePositions[chromosome] = reverse.toIntArray();
+            forwardRates[chromosome] = randomRates(random, forward.size());
+            reverseRates[chromosome] = randomRates(random, reverse.size());
+        }
+        return new MethylationPrefixSums(forwardPositions, forwardRates, reversePositions, reverseRates);
+    }
+
+    private float[] randomRates(final Random random, final int size) {
+        final float[] rates = new float[size];
+        for (int i = 0; i < size; i++) {
+            // multiples of 1/16 are summed exactly whatever the order of additions:
+            rates[i] = random.nextInt(17) / 16f;
+        }
+        return rates;
+    }
+
+    /**
+     * Sum the rates of the sites of a window by looking at every site. Returns {sum, count, start, end}.
+     */
+    private float[] bruteForceWindow(final int[] positions, final float[] rates, final int index, final int width) {
+        int start = -1;
+        for (final int position : positions) {
+            if (position >= index && position <= index + width) {
+                start = position;
+                break;
+            }
+        }
+        if (start == -1) {
+            return null;
+        }
+        int last = -1;
+        for (final int position : positions) {
+            if (position >= start && position <= start + 2 * width) {
+                last = position;
+            }
+        }
+        if (last < start + width) {
+            return null;
+        }
+        float sum = 0;
+        int count = 0;
+        for (int i = 0; i < positions.length; i++) {
+            if (positions[i] >= start && positions[i] <= last) {
+                sum += rates[i];
+                count++;
+            }
+        }
+        return new float[]{sum, count, start, last + 1};
+    }
+
+    private HitBoundedPriorityQueue bruteForceScan(final int chromosome, final int width, final int maxBestHits) {
+        final HitBoundedPriorityQueue results = new HitBoundedPriorityQueue(maxBestHits);
+        final IntAVLTreeSet anchors = new IntAVLTreeSet(forwardPositions[chromosome]);
+        anchors.addAll(IntArrayList.wrap(reversePositions[chromosome]));
+        int skipToIndex = Integer.MIN_VALUE;
+        for (final int index : anchors) {
+            if (index < skipToIndex) {
+                continue;
+            }
+            final float[] forward = bruteForceWindow(forwardPositions[chromosome], forwardRates[chromosome], index, width);
+            final float[] reverse = bruteForceWindow(reversePositions[chromosome], reverseRates[chromosome], index, width);
+            final float denominator = Math.max(forward == null ? 0 : forward[1], reverse == null ? 0 : reverse[1]);
+            if (denominator == 0) {
+                continue;
+            }
+            final float sumForward = forward == null ? 0 : forward[0];
+            final float sumReverse = reverse == null ? 0 : reverse[0];
+            final int startForward = forward == null ? index : (int) forward[2];
+            final int endForward = forward == null ? index : (int) forward[3];
+            final int startReverse = reverse == null ? index : (int) reverse[2];
+            final int endReverse = reverse == null ? index : (int) reverse[3];
+            final int windowLength = forward != null && reverse != null ?
+                    Math.min(endForward - startForward, endReverse - startReverse) :
+                    Math.max(endForward - startForward, endReverse - startReverse);
+            if (results.enqueue(chromosome, startForward, Math.abs(sumForward - sumReverse) / denominator,
+                    startForward, endForward, startReverse, endReverse, windowLength, sumForward, sumReverse)) {
+                skipToIndex = index + width;
+            }
+        }
+        return results;
+    }
+
+    private ObjectArrayList<String> toStrings(final HitBoundedPriorityQueue hits) {
+        final ObjectArrayList<String> result = new ObjectArrayList<String>();
+        while (!hits.isEmpty()) {
+            final MethylationSimilarityMatch hit = hits.dequeue();
+            result.add(String.format("%d:%d-%d/%d-%d %d %.4f", hit.chromosome, hit.startForward, hit.endForward,
+                    hit.startReverse, hit.endReverse, hit.windowLength, hit.score));
+        }
+        return result;
+    }
+
+    @Test
+    public void testTileMatchesBruteForce() {
+        final MethylationPrefixSums sums = randomSites(7);
+        final StrandSimilarityScanner scanner = new StrandSimilarityScanner(sums, 1, Integer.MAX_VALUE);
+        for (final int width : new int[]{1, 5, 10, 50}) {
+            final HitBoundedPriorityQueue hits = new HitBoundedPriorityQueue(50);
+            scanner.scanTile(hits, width, 0, 0, Integer.MAX_VALUE);
+            final ObjectArrayList<String> expected = toStrings(bruteForceScan(0, width, 50));
+            assertFalse(expected.isEmpty());
+            assertEquals("width=" + width, expected, toStrings(hits));
+        }
+    }
+
+    @Test
+    public void testResultsDoNotDependOnThreads() throws ExecutionException, InterruptedException {
+        final MethylationPrefixSums sums = randomSites(13);
+        for (final int width : new int[]{5, 20}) {
+            final ObjectArrayList<String> expected =
+                    toStrings(new StrandSimilarityScanner(sums, 1, 1000).scan(width, 30));
+            assertEquals(30, expected.size());
+            assertEquals(expected, toStrings(new StrandSimilarityScanner(sums, 4, 1000).scan(width, 30)));
+        }
+    }
+}
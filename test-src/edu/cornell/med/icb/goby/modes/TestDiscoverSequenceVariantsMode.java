@@ -236,6 +236,35 @@ public class TestDiscoverSequenceVariantsMode extends TestFiles {
 
     }
 
+    @Test
+    public void testPipelinedAlleleImbalance() throws IOException, JSAPException {
+        DiscoverSequenceVariantsMode mode = new DiscoverSequenceVariantsMode();
+        String outputFilename = "out-pipelined-allele-1.tsv";
+        String[] args = constructArgumentString(
+                basenames, BASE_TEST_DIR + "/" + outputFilename, "samples").split("[\\s]");
+        args = add(args, new String[]{"--format", DiscoverSequenceVariantsMode.OutputFormat.ALLELE_FREQUENCIES.toString()});
+        args = add(args, new String[]{"--statistics-threads", "2"});
+
+        configureTestGenome(mode);
+        FormatConfigurator configurator = new FormatConfigurator() {
+
+            @Override
+            public void configureFormatter(final SequenceVariationOutputFormat formatter) {
+                ((AlleleFrequencyOutputFormat) formatter).setMinimumAllelicDifference(0);
+                ((AlleleFrequencyOutputFormat) formatter).setWriteFieldGroupAssociations(false);
+            }
+        };
+        mode.setFormatConfigurator(configurator);
+        mode.setStatisticsBatchSize(2);
+        mode.configure(args);
+
+        mode.execute();
+        assertEquals(
+                new File("test-data/discover-variants/expected-output-alleles.tsv"),
+                new File(BASE_TEST_DIR + "/" + outputFilename)
+        );
+    }
+
     @Test
     public void testDiscoverCheckSampleCountAssociation() throws IOException, JSAPException {
 
@@ -566,6 +595,76 @@ public class TestDiscoverSequenceVariantsMode extends TestFiles {
 
     }
 
+    @Test
+    public void testTalliedGenotypes() throws IOException, JSAPException {
+        DiscoverSequenceVariantsMode mode = new DiscoverSequenceVariantsMode();
+        String outputFilename = "out-tallied-genotypes-1.tsv";
+        String[] args = constructArgumentString(
+                basenames, BASE_TEST_DIR + "/" + outputFilename, "samples").split("[\\s]");
+        args = add(args, new String[]{"--format", DiscoverSequenceVariantsMode.OutputFormat.GENOTYPES.toString()});
+        args = add(args, new String[]{"--tally-genotypes", "true"});
+
+        mode.setDisableAtLeastQuarterFilter(true);
+        configureTestGenome(mode);
+        mode.configure(args);
+
+        mode.execute();
+        assertEquals(new File("test-data/discover-variants/expected-output-genotypes.tsv"),
+                new File(BASE_TEST_DIR + "/" + outputFilename)
+        );
+    }
+
+    @Test
+    public void testPipelinedGenotypes() throws IOException, JSAPException {
+        DiscoverSequenceVariantsMode mode = new DiscoverSequenceVariantsMode();
+        String outputFilename = "out-pipelined-genotypes-1.tsv";
+        String[] args = constructArgumentString(
+                basenames, BASE_TEST_DIR + "/" + outputFilename, "samples").split("[\\s]");
+        args = add(args, new String[]{"--format", DiscoverSequenceVariantsMode.OutputFormat.GENOTYPES.toString()});
+        args = add(args, new String[]{"--statistics-threads", "3"});
+
+        mode.setDisableAtLeastQuarterFilter(true);
+        // several batches per thread, so that batches complete out of order:
+        mode.setStatisticsBatchSize(1);
+        configureTestGenome(mode);
+        mode.configure(args);
+
+        mode.execute();
+        assertEquals(new File("test-data/discover-variants/expected-output-genotypes.tsv"),
+                new File(BASE_TEST_DIR + "/" + outputFilename)
+        );
+    }
+
+    @Test
+    public void testPipelinedSomaticVariation() throws IOException, JSAPException {
+        final CovariateInfo covInfo = CovariateInfo.parse("test-data/covariates/example-4.tsv");
+        FormatConfigurator configurator = new FormatConfigurator() {
+
+            @Override
+            public void configureFormatter(final SequenceVariationOutputFormat formatter) {
+                ((SomaticVariationOutputFormat) formatter).setCovariateInfo(covInfo);
+            }
+        };
+        String[] outputFilenames = {"out-somatic-sequential.vcf", "out-somatic-pipelined.vcf"};
+        for (int threads = 0; threads < 2; threads++) {
+            DiscoverSequenceVariantsMode mode = new DiscoverSequenceVariantsMode();
+            String[] args = constructArgumentString(
+                    add(basenames, specificAlignments), BASE_TEST_DIR + "/" + outputFilenames[threads],
+                    "samples").split("[\\s]");
+            args = add(args, new String[]{"--format", DiscoverSequenceVariantsMode.OutputFormat.SOMATIC_VARIATIONS.toString()});
+            args = add(args, new String[]{"--statistics-threads", Integer.toString(threads * 3)});
+
+            configureTestGenome(mode);
+            mode.setFormatConfigurator(configurator);
+            mode.setStatisticsBatchSize(1);
+            mode.configure(args);
+            mode.execute();
+        }
+        assertEquals(new File(BASE_TEST_DIR + "/" + outputFilenames[0]),
+                new File(BASE_TEST_DIR + "/" + outputFilenames[1])
+        );
+    }
+
     @Test
     public void testQualityScoreAdjuster() {
         QualityScoreFilter adjuster = new QualityScoreFilter();
@@ -669,6 +768,71 @@ public class TestDiscoverSequenceVariantsMode extends TestFiles {
 
     }
 
+    @Test
+    public void testTalliedFilters() {
+        // same bases and filters as testAdjustVarCount2, with bases tallied instead of stored in a list:
+        final SampleCountInfo[] listCounts = makeTwoSampleCounts();
+        final SampleCountInfo[] tallyCounts = makeTwoSampleCounts();
+        IntArrayList scores = IntArrayList.wrap(new int[]{40, 40, 40, 40, 40, 40, 10, 40, 40, 40, 40, 40, 40, 40, 40, 40});
+
+        final DiscoverVariantPositionData list = makeListWithScores(listCounts, scores);
+        final DiscoverVariantPositionData tallied = tally(list, 'A');
+        assertEquals(0, tallied.size());
+        assertEquals(32, tallied.getTally().getNumObserved());
+
+        final GenotypeFilter[] listFilters = {new QualityScoreFilter(), new LeftOverFilter(0)};
+        final GenotypeFilter[] tallyFilters = {new QualityScoreFilter(), new LeftOverFilter(0)};
+        ((QualityScoreFilter) listFilters[0]).setNoRandomSampling(true);
+        ((QualityScoreFilter) tallyFilters[0]).setNoRandomSampling(true);
+        ObjectSet<PositionBaseInfo> filteredList = new ObjectArraySet<PositionBaseInfo>();
+        for (int i = 0; i < listFilters.length; i++) {
+            assertTrue(tallyFilters[i].supportsTally());
+            listFilters[i].filterGenotypes(list, listCounts, filteredList);
+            tallyFilters[i].filterGenotypes(tallied.getTally(), tallied, tallyCounts);
+        }
+        assertEquals(3, filteredList.size());
+        assertEquals(3, tallied.getTally().getNumRemoved(0) + tallied.getTally().getNumRemoved(1));
+        assertEquals(Arrays.toString(listCounts), Arrays.toString(tallyCounts));
+        for (int sampleIndex = 0; sampleIndex < 2; sampleIndex++) {
+            assertEquals(listCounts[sampleIndex].refCount, tallyCounts[sampleIndex].refCount);
+            assertEquals(listCounts[sampleIndex].varCount, tallyCounts[sampleIndex].varCount);
+        }
+    }
+
+    @Test
+    public void testTalliedDiploidFilter() {
+        DiscoverVariantPositionData list = new DiscoverVariantPositionData();
+        appendInfo(list, 13, (byte) 40, false, 'A', 'T', 0);
+        appendInfo(list, 12, (byte) 40, false, 'A', 'C', 0);
+        appendInfo(list, 11, (byte) 40, false, 'A', 'G', 0);
+        appendInfo(list, 10, (byte) 40, true, 'A', 'A', 0);
+
+        final SampleCountInfo[] sampleCounts = sampleCounts(list);
+        final DiscoverVariantPositionData tallied = tally(list, 'A');
+        new DiploidFilter().filterGenotypes(tallied.getTally(), tallied, sampleCounts);
+        assertEquals(21, tallied.getTally().getNumRemoved(0));
+        // same counts as when the bases are stored in a list, see testDiploidFilter3:
+        assertEquals(0, sampleCounts[0].getGenotypeCount(SampleCountInfo.BASE_A_INDEX));
+        assertEquals(12, sampleCounts[0].getGenotypeCount(SampleCountInfo.BASE_C_INDEX));
+        assertEquals(0, sampleCounts[0].getGenotypeCount(SampleCountInfo.BASE_G_INDEX));
+        assertEquals(13, sampleCounts[0].getGenotypeCount(SampleCountInfo.BASE_T_INDEX));
+    }
+
+    /**
+     * Tally the bases of a list, as if they had been observed one at a time.
+     */
+    private DiscoverVariantPositionData tally(final DiscoverVariantPositionData list, final char referenceBase) {
+        final DiscoverVariantPositionData tallied = new DiscoverVariantPositionData(list.getZeroBasedPosition());
+        tallied.setTallyGenotypes(true);
+        for (int index = 0; index < list.size(); index++) {
+            tallied.add(list.getReaderIndex(index), list.getReadIndex(index), list.getQualityScore(index),
+                    list.getFrom(index), list.getTo(index), list.isMatchingReference(index),
+                    list.isMatchingForwardStrand(index));
+        }
+        tallied.getTally().setReferenceBase(referenceBase);
+        return tallied;
+    }
+
     private ObjectArrayList<ReadIndexStats> makeReadIndexStats() {
         ObjectArrayList<ReadIndexStats> result = new ObjectArrayList<ReadIndexStats>();
         ReadIndexStats stat = new ReadIndexStats();
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.modes;
+
+import com.martiansoftware.jsap.JSAPException;
+import edu.cornell.med.icb.goby.readers.vcf.ColumnType;
+import edu.cornell.med.icb.goby.reads.RandomAccessSequenceCache;
+import edu.cornell.med.icb.goby.stats.VCFWriter;
+import org.apache.commons.io.FileUtils;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Fabien Campagne
+ *         Date: Oct 19, 2012
+ */
+public class TestMethylStatsMode {
+    private static final String BASE_TEST_DIR = "test-results/methyl-stats";
+    private static final String GENOME = BASE_TEST_DIR + "/genome";
+    private static final String[] CHROMOSOMES = {"1", "2", "X"};
+
+    @BeforeClass
+    public static void initializeTestDirectory() throws IOException {
+        FileUtils.forceMkdir(new File(BASE_TEST_DIR));
+        final Random random = new Random(123);
+        final StringBuilder fasta = new StringBuilder();
+        final String[] sequences = new String[CHROMOSOMES.length];
+        for (int i = 0; i < CHROMOSOMES.length; i++) {
+            final StringBuilder sequence = new StringBuilder();
+            for (int position = 0; position < 3000; position++) {
+                sequence.append("ACGT".charAt(random.nextInt(4)));
+            }
+            sequences[i] = sequence.toString();
+            fasta.append('>').append(CHROMOSOMES[i]).append('\n').append(sequences[i]).append('\n');
+        }
+        final RandomAccessSequenceCache genome = new RandomAccessSequenceCache();
+        genome.loadFasta(new StringReader(fasta.toString()));
+        genome.save(GENOME);
+
+        writeSites(BASE_TEST_DIR + "/sites.vcf", sequences, 0, 2);
+        writeSites(BASE_TEST_DIR + "/sites.vcf.gz", sequences, 1, 2);
+    }
+
+    /**
+     * Write methylation sites for the cytosines of the genome, on both strands.
+     */
+    private static void writeSites(final String filename, final String[] sequences, final int first, final int step)
+            throws IOException {
+        final Random random = new Random(filename.hashCode());
+        new File(filename + ".tbi").delete();
+        final VCFWriter writer = new VCFWriter(filename);
+        final int strandIndex = writer.defineField("INFO", "Strand", 1, ColumnType.String, "Strand of the cytosine");
+        final int contextIndex = writer.defineField("INFO", "Context", 1, ColumnType.String, "Site genomic context");
+        writer.defineSamples(new String[]{"S1", "S2"});
+        final int depthIndex = writer.defineField("FORMAT", "GB", 1, ColumnType.Integer, "Depth");
+        final int rateIndex = writer.defineField("FORMAT", "MR", 1, ColumnType.Integer, "Methylation rate");
+        final int convertedIndex = writer.defineField("FORMAT", "C", 1, ColumnType.Integer, "Converted");
+        final int methylatedIndex = writer.defineField("FORMAT", "Cm", 1, ColumnType.Integer, "Methylated");
+        final int baseCallsIndex = writer.defineField("FORMAT", "BC", 1, ColumnType.String, "Base calls");
+        writer.writeHeader();
+        for (int chromosomeIndex = 0; chromosomeIndex < CHROMOSOMES.length; chromosomeIndex++) {
+            final String sequence = sequences[chromosomeIndex];
+            for (int position = first; position < sequence.length(); position += step) {
+                final char base = sequence.charAt(position);
+                if (base != 'C' && base != 'G') {
+                    continue;
+                }
+                writer.setChromosome(CHROMOSOMES[chromosomeIndex]);
+                writer.setPosition(position + 1);
+                writer.setReferenceAllele(Character.toString(base));
+                writer.setInfo(strandIndex, base == 'C' ? "+" : "-");
+                writer.setInfo(contextIndex, "C");
+                for (int sample = 0; sample < 2; sample++) {
+                    final int methylated = random.nextInt(30);
+                    final int converted = random.nextInt(30);
+                    final int depth = methylated + converted;
+                    writer.setSampleValue(depthIndex, sample, depth);
+                    writer.setSampleValue(rateIndex, sample, depth == 0 ? 0 : methylated * 100 / depth);
+                    writer.setSampleValue(convertedIndex, sample, converted);
+                    writer.setSampleValue(methylatedIndex, sample, methylated);
+                    writer.setSampleValue(baseCallsIndex, sample, "C=" + methylated + ",T=" + converted);
+                }
+                writer.writeRecord();
+            }
+        }
+        writer.close();
+    }
+
+    private String run(final String output, final String... options) throws IOException, JSAPException {
+        final String filename = BASE_TEST_DIR + "/" + output;
+        final String[] args = {
+                "--mode", "methyl-stats",
+                "--genome", GENOME,
+                "--output", filename,
+                "--fragments",
+                BASE_TEST_DIR + "/sites.vcf",
+                BASE_TEST_DIR + "/sites.vcf.gz",
+        };
+        final String[] allArgs = new String[args.length + options.length];
+        System.arraycopy(args, 0, allArgs, 0, args.length);
+        System.arraycopy(options, 0, allArgs, args.length, options.length);
+        new MethylStatsMode().configure(allArgs).execute();
+        return FileUtils.readFileToString(new File(filename));
+    }
+
+    @Test
+    public void testParallelScanMatchesSingleThread() throws IOException, JSAPException {
+        assertTrue(new File(BASE_TEST_DIR + "/sites.vcf.gz.tbi").exists());
+        final String expected = run("single-thread.tsv", "--num-threads", "1");
+        assertTrue(expected.contains("numCpGsObserved"));
+        assertEquals(expected, run("parallel.tsv", "--num-threads", "4"));
+    }
+
+    @Test
+    public void testBackgroundCache() throws IOException, JSAPException {
+        final String cacheFilename = BASE_TEST_DIR + "/genome.cpg-cache";
+        new File(cacheFilename).delete();
+        final String expected = run("no-cache.tsv");
+        assertEquals(expected, run("cache-created.tsv", "--cpg-background-cache", cacheFilename));
+        assertTrue(new File(cacheFilename).exists());
+        assertEquals(expected, run("cache-reused.tsv", "--cpg-background-cache", cacheFilename));
+    }
+}
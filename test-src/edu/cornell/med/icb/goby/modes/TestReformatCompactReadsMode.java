@@ -164,6 +164,44 @@ public class TestReformatCompactReadsMode {
         assertEquals("The entries of both files should be equal", inputEntries, outputEntries);
     }
 
+    /**
+     * Validates that reformatting slices of the input in parallel writes the same entries, in the same
+     * order, as reformatting sequentially.
+     *
+     * @throws IOException if there is a problem reading or writing to the files
+     */
+    @Test
+    public void reformatInParallel() throws IOException {
+        final String inputFilename = "test-data/compact-reads/s_1_sequence_short_1_per_chunk.compact-reads";
+        final String sequentialFilename = "test-results/reformat-test-sequential.compact-reads";
+        final String parallelFilename = "test-results/reformat-test-parallel.compact-reads";
+
+        ReformatCompactReadsMode reformat = new ReformatCompactReadsMode();
+        reformat.setInputFilenames(inputFilename);
+        reformat.setTrimReadLength(20);
+        reformat.setOutputFile(sequentialFilename);
+        reformat.execute();
+
+        reformat = new ReformatCompactReadsMode();
+        reformat.setInputFilenames(inputFilename);
+        reformat.setTrimReadLength(20);
+        reformat.setOutputFile(parallelFilename);
+        reformat.setParallel(true);
+        reformat.setNumThreads(3);
+        reformat.execute();
+
+        final List<Reads.ReadEntry> sequentialEntries = new ArrayList<Reads.ReadEntry>(73);
+        for (final Reads.ReadEntry entry : new ReadsReader(sequentialFilename)) {
+            sequentialEntries.add(entry);
+        }
+        final List<Reads.ReadEntry> parallelEntries = new ArrayList<Reads.ReadEntry>(73);
+        for (final Reads.ReadEntry entry : new ReadsReader(parallelFilename)) {
+            parallelEntries.add(entry);
+        }
+        assertTrue("There should be reads in this file", sequentialEntries.size() > 1);
+        assertEquals("The entries of both files should be equal", sequentialEntries, parallelEntries);
+    }
+
     /**
      * Validates that a subset of a compact reads file can be written.
      *
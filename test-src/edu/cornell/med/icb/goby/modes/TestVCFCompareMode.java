@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.modes;
+
+import com.martiansoftware.jsap.JSAPException;
+import org.apache.commons.io.FileUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test VCFCompareMode.
+ *
+ * @author Fabien Campagne
+ *         Date: Oct 19, 2012
+ */
+public class TestVCFCompareMode {
+    private static final String BASE_TEST_DIR = "test-results/vcf-compare";
+
+    private static final String HEADER = "##fileformat=VCFv4.1\n" +
+            "##FORMAT=<ID=GT,Number=1,Type=String,Description=\"Genotype\">\n" +
+            "#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT\tS1\tS2\n";
+
+    @BeforeClass
+    public static void initializeTestDirectory() throws IOException {
+        FileUtils.forceMkdir(new File(BASE_TEST_DIR));
+    }
+
+    @AfterClass
+    public static void cleanupTestDirectory() throws IOException {
+        FileUtils.forceDeleteOnExit(new File(BASE_TEST_DIR));
+    }
+
+    @Test
+    public void testCompareSorted() throws IOException, JSAPException {
+        // 1:200 is only in a, 1:250 only in b. 1:300 is multi-allelic, with ALT alleles listed in a different
+        // order in each file: the genotypes of both samples agree.
+        final String a = write("a.vcf", HEADER +
+            "1\t100\t.\tA\tG\t.\t.\t.\tGT\t0/1\t0/0\n" +
+            "1\t200\t.\tC\tT\t.\t.\t.\tGT\t1/1\t0/1\n" +
+            "1\t300\t.\tG\tA,T\t.\t.\t.\tGT\t1/2\t0/2\n" +
+            "2\t50\t.\tT\tC\t.\t.\t.\tGT\t0/1\t./.\n");
+        final String b = write("b.vcf", HEADER +
+            "1\t100\t.\tA\tG\t.\t.\t.\tGT\t0/1\t0/1\n" +
+            "1\t250\t.\tC\tT\t.\t.\t.\tGT\t1/1\t0/1\n" +
+            "1\t300\t.\tG\tT,A\t.\t.\t.\tGT\t2|1\t0/1\n" +
+            "2\t50\t.\tT\tC\t.\t.\t.\tGT\t1/1\t0/1\n");
+        final String output = BASE_TEST_DIR + "/compare-sorted.tsv";
+        final VCFCompareMode mode = new VCFCompareMode();
+        mode.configure(new String[]{"--mode", "vcf-compare", a, b, "--output", output});
+        mode.compare();
+        assertEquals(EXPECTED_SORTED, FileUtils.readFileToString(new File(output)));
+    }
+
+    @Test
+    public void testUnsortedInputReported() throws IOException, JSAPException {
+        final String sorted = write("sorted.vcf", HEADER +
+            "1\t100\t.\tA\tG\t.\t.\t.\tGT\t0/1\t0/0\n" +
+            "1\t300\t.\tG\tA\t.\t.\t.\tGT\t0/1\t0/0\n");
+        final String unsorted = write("unsorted.vcf", HEADER +
+            "1\t300\t.\tG\tA\t.\t.\t.\tGT\t0/1\t0/0\n" +
+            "1\t100\t.\tA\tG\t.\t.\t.\tGT\t0/1\t0/0\n");
+        final VCFCompareMode mode = new VCFCompareMode();
+        mode.configure(new String[]{"--mode", "vcf-compare", sorted, unsorted});
+        try {
+            mode.compare();
+            fail("unsorted input must be reported");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("unsorted.vcf must be sorted by position"));
+            assertTrue(e.getMessage(), e.getMessage().contains("Found 1 100 after 1\t300"));
+        }
+    }
+
+    private static String write(final String name, final String content) throws IOException {
+        final File file = new File(BASE_TEST_DIR, name);
+        FileUtils.writeStringToFile(file, content);
+        return file.getPath();
+    }
+
+    private static final String EXPECTED_SORTED =
+            "key\tfile\tsample\tnumGenotypeAgreements\tnumGenotypeDisagreements\tnumGenotypeNotInFile\tmissedOneAllele\tmissedTwoAlleles\tmissedMoreThanTwoAlleles\totherDifferenceInGenotype\tti/tv_ratio\n" +
+            "COUNT_STATS\t0\tS1\t2\t1\t0\t1\t0\t0\t0\t3.00000\n" +
+            "FREQ_STATS\t0\tS1\t66.6667\t33.3333\t0.00000\t100.000\t0.00000\t0.00000\t0.00000\t3.00000\n" +
+            "COUNT_STATS\t0\tS2\t1\t2\t1\t1\t0\t0\t0\t0.00000\n" +
+            "FREQ_STATS\t0\tS2\t33.3333\t66.6667\t50.0000\t50.0000\t0.00000\t0.00000\t0.00000\t0.00000\n" +
+            "COUNT_STATS\t1\tS1\t2\t1\t0\t0\t0\t0\t0\t3.00000\n" +
+            "FREQ_STATS\t1\tS1\t66.6667\t33.3333\tNaN\tNaN\tNaN\tNaN\tNaN\t3.00000\n" +
+            "COUNT_STATS\t1\tS2\t1\t2\t0\t0\t0\t0\t0\t2.00000\n" +
+            "FREQ_STATS\t1\tS2\t33.3333\t66.6667\tNaN\tNaN\tNaN\tNaN\tNaN\t2.00000\n" +
+            "File 0, out of a total of 1, random sample of positions for counter missedOneAllele (chromosome tab position): \n" +
+            "2\t50\n" +
+            "File 0, out of a total of 1, random sample of positions for counter numGenotypeDisagreements (chromosome tab position): \n" +
+            "2\t50\n" +
+            "File 0, out of a total of 1, random sample of positions for counter numGenotypeNotInFile (chromosome tab position): \n" +
+            "2\t50\n" +
+            "File 0, out of a total of 1, random sample of positions for counter missedOneAllele (chromosome tab position): \n" +
+            "1\t100\n" +
+            "File 0, out of a total of 2, random sample of positions for counter numGenotypeDisagreements (chromosome tab position): \n" +
+            "1\t100\n" +
+            "2\t50\n" +
+            "File 0, out of a total of 1, random sample of positions for counter numGenotypeDisagreements (chromosome tab position): \n" +
+            "2\t50\n" +
+            "File 0, out of a total of 2, random sample of positions for counter numGenotypeDisagreements (chromosome tab position): \n" +
+            "1\t100\n" +
+            "2\t50\n";
+}
@@ -22,6 +22,7 @@ import edu.cornell.med.icb.goby.readers.vcf.ColumnInfo;
 import edu.cornell.med.icb.goby.readers.vcf.ColumnType;
 import edu.cornell.med.icb.goby.readers.vcf.Columns;
 import edu.cornell.med.icb.goby.readers.vcf.VCFParser;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import org.junit.Test;
 
 import java.io.FileNotFoundException;
@@ -101,6 +102,45 @@ public class TestVCFParser {
                 format.getField("GL").description);
     }
 
+    private static ObjectArrayList<String> parseAll(final String filename, final boolean parallel,
+                                                    final boolean cacheFieldPermutation)
+            throws IOException, VCFParser.SyntaxException {
+        final VCFParser parser = new VCFParser(filename);
+        parser.setCacheTsvColumnTypes(false);
+        parser.setCacheFieldPermutation(cacheFieldPermutation);
+        parser.setParallel(parallel);
+        parser.setNumThreads(3);
+        parser.setLinesPerBatch(7);
+        parser.readHeader();
+        final ObjectArrayList<String> values = new ObjectArrayList<String>();
+        final int numFields = parser.countAllFields();
+        while (parser.hasNextDataLine()) {
+            for (int i = 0; i < numFields; i++) {
+                values.add(parser.getStringFieldValue(i));
+            }
+            for (int i = 0; i < parser.getNumberOfColumns(); i++) {
+                values.add(parser.getStringColumnValue(i));
+            }
+            parser.next();
+        }
+        assertFalse(parser.hasNextDataLine());
+        parser.close();
+        return values;
+    }
+
+    @Test
+    public void testParallelSameAsSequential() throws IOException, VCFParser.SyntaxException {
+        for (final String filename : new String[]{"test-data/vcf/example1.vcf", "test-data/vcf/example1.vcf.gz",
+                "test-data/vcf/tricky2.vcf", "test-data/vcf/example-flags.vcf", "test-data/vcf/issue-nov20-2012.vcf",
+                "test-data/vcf/example3.tsv", "test-data/vcf/tsv-with-header-spaces.tsv"}) {
+            for (final boolean cache : new boolean[]{false, true}) {
+                final ObjectArrayList<String> expected = parseAll(filename, false, cache);
+                assertTrue(filename, expected.size() > 0);
+                assertEquals(filename, expected, parseAll(filename, true, cache));
+            }
+        }
+    }
+
     @Test
     public void testParse1WithGroups() throws FileNotFoundException, VCFParser.SyntaxException {
         VCFParser parser = new VCFParser(new FileReader("test-data/vcf/example-with-groups.vcf"));
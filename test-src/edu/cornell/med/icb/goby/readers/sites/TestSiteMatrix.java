@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.readers.sites;
+
+import edu.cornell.med.icb.goby.readers.vcf.ColumnType;
+import edu.cornell.med.icb.goby.stats.VCFWriter;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Fabien Campagne
+ *         Date: Oct 19, 2012
+ */
+public class TestSiteMatrix {
+    private static final String BASE_DIR = "test-results/site-matrix/";
+
+    @Before
+    public void setUp() throws IOException {
+        FileUtils.forceMkdir(new File(BASE_DIR));
+        SiteMatrixWriter.doc().setValue("chunk-size", 100);
+    }
+
+    @After
+    public void tearDown() {
+        SiteMatrixWriter.doc().setValue("chunk-size", 4096);
+    }
+
+    /**
+     * Write sites with random values, keeping a text representation of each site to compare with what is read.
+     */
+    private ObjectArrayList<String> writeRandomMatrix(final String basename) throws IOException {
+        final Random random = new Random(37);
+        final SiteMatrixWriter writer = new SiteMatrixWriter(basename, new String[]{"A", "B", "C"});
+        final int depth = writer.defineField("DP", SiteMatrixHeader.INT, false);
+        final int count = writer.defineField("C", SiteMatrixHeader.INT, true);
+        final int pValue = writer.defineField("P", SiteMatrixHeader.DOUBLE, false);
+        final ObjectArrayList<String> sites = new ObjectArrayList<String>();
+        for (final String chromosome : new String[]{"chr1", "chr2", "chrX"}) {
+            int position = 0;
+            for (int i = 0; i < 1000; i++) {
+                position += 1 + random.nextInt(50);
+                writer.setSite(chromosome, position);
+                final int dp = random.nextInt(1000);
+                final double p = random.nextDouble();
+                writer.setInt(depth, 0, dp);
+                writer.setDouble(pValue, 0, p);
+                final StringBuilder site = new StringBuilder();
+                site.append(chromosome).append(':').append(position).append(' ').append(dp).append(' ').append(p);
+                for (int sample = 0; sample < 3; sample++) {
+                    if (random.nextInt(10) == 0) {
+                        site.append(' ').append(SiteMatrixHeader.MISSING_INT);
+                    } else {
+                        final int c = random.nextInt(100);
+                        writer.setInt(count, sample, c);
+                        site.append(' ').append(c);
+                    }
+                }
+                writer.writeSite();
+                sites.add(site.toString());
+            }
+        }
+        writer.close();
+        return sites;
+    }
+
+    private ObjectArrayList<String> readSites(final SiteMatrixReader reader) throws IOException {
+        final SiteMatrixHeader header = reader.getHeader();
+        final String[] chromosomes = header.getChromosomes();
+        final int depth = header.getFieldIndex("DP");
+        final int count = header.getFieldIndex("C");
+        final int pValue = header.getFieldIndex("P");
+        final ObjectArrayList<String> sites = new ObjectArrayList<String>();
+        while (reader.nextChunk()) {
+            final SiteMatrixChunk chunk = reader.getChunk();
+            final int[] targets = chunk.getTargetIndices();
+            final int[] positions = chunk.getPositions();
+            final int[] depths = chunk.getIntColumn(depth, 0);
+            final double[] pValues = chunk.getDoubleColumn(pValue, 0);
+            for (int site = chunk.getFirstSite(); site < chunk.getEndSite(); site++) {
+                final StringBuilder text = new StringBuilder();
+                text.append(chromosomes[targets[site]]).append(':').append(positions[site]).append(' ');
+                text.append(depths[site]).append(' ').append(pValues[site]);
+                for (int sample = 0; sample < 3; sample++) {
+                    text.append(' ').append(chunk.getIntColumn(count, sample)[site]);
+                }
+                sites.add(text.toString());
+            }
+        }
+        reader.close();
+        return sites;
+    }
+
+    @Test
+    public void testWriteRead() throws IOException {
+        final String basename = BASE_DIR + "random";
+        final ObjectArrayList<String> expected = writeRandomMatrix(basename);
+        final SiteMatrixReader reader = new SiteMatrixReader(basename);
+        final SiteMatrixHeader header = reader.getHeader();
+        assertEquals(3000, header.getNumSites());
+        assertEquals(30, header.getNumChunks());
+        assertTrue(header.isSorted());
+        assertTrue(header.isPerSample(header.getFieldIndex("C")));
+        assertFalse(header.isPerSample(header.getFieldIndex("DP")));
+        assertEquals(expected, readSites(reader));
+    }
+
+    @Test
+    public void testRegions() throws IOException {
+        final String basename = BASE_DIR + "regions";
+        final ObjectArrayList<String> all = writeRandomMatrix(basename);
+        final Random random = new Random(12);
+        for (int query = 0; query < 50; query++) {
+            final String chromosome = random.nextBoolean() ? "chr2" : "chrX";
+            final int start = random.nextInt(30000);
+            final int end = start + random.nextInt(5000);
+            final ObjectArrayList<String> expected = new ObjectArrayList<String>();
+            for (final String site : all) {
+                final String[] tokens = site.split("[: ]");
+                final int position = Integer.parseInt(tokens[1]);
+                if (tokens[0].equals(chromosome) && position >= start && position <= end) {
+                    expected.add(site);
+                }
+            }
+            final SiteMatrixReader reader = new SiteMatrixReader(basename);
+            reader.setRegion(chromosome, start, end);
+            assertEquals(chromosome + ":" + start + "-" + end, expected, readSites(reader));
+        }
+        final SiteMatrixReader reader = new SiteMatrixReader(basename);
+        reader.setRegion("chr3", 0, Integer.MAX_VALUE);
+        assertTrue(readSites(reader).isEmpty());
+    }
+
+    @Test
+    public void testFromVCFWriter() throws IOException {
+        final String basename = BASE_DIR + "vcf";
+        final VCFWriter writer = new VCFWriter(new StringWriter());
+        writer.setSiteMatrixBasename(basename);
+        final int depthIndex = writer.defineField("INFO", "DP", 1, ColumnType.Integer, "Depth");
+        final int pIndex = writer.defineField("INFO", "P", 1, ColumnType.Float, "P-value");
+        final int strandIndex = writer.defineField("INFO", "Strand", 1, ColumnType.String, "Strand");
+        writer.defineSamples(new String[]{"A", "B"});
+        final int rateIndex = writer.defineField("FORMAT", "MR", 1, ColumnType.Integer, "Rate");
+        writer.defineField("FORMAT", "GT", 1, ColumnType.String, "Genotype");
+        writer.writeHeader();
+        for (int position = 1; position <= 10; position++) {
+            writer.setChromosome("chr1");
+            writer.setPosition(position);
+            writer.setInfo(depthIndex, position * 10);
+            writer.setInfo(pIndex, 1.0 / position);
+            writer.setInfo(strandIndex, "+");
+            writer.setSampleValue(rateIndex, 0, position);
+            writer.setSampleValue(rateIndex, 1, Integer.toString(100 - position));
+            writer.writeRecord();
+        }
+        writer.close();
+
+        final SiteMatrixReader reader = new SiteMatrixReader(basename);
+        final SiteMatrixHeader header = reader.getHeader();
+        assertEquals(3, header.getNumFields());
+        assertEquals(-1, header.getFieldIndex("INFO/Strand"));
+        assertTrue(reader.nextChunk());
+        final SiteMatrixChunk chunk = reader.getChunk();
+        assertEquals(10, chunk.getNumSites());
+        final int mr = header.getFieldIndex("FORMAT/MR");
+        for (int site = 0; site < 10; site++) {
+            final int position = site + 1;
+            assertEquals(position, chunk.getPositions()[site]);
+            assertEquals(position * 10, chunk.getIntColumn(header.getFieldIndex("INFO/DP"), 0)[site]);
+            assertEquals(1.0 / position, chunk.getDoubleColumn(header.getFieldIndex("INFO/P"), 0)[site], 0);
+            assertEquals(position, chunk.getIntColumn(mr, 0)[site]);
+            assertEquals(100 - position, chunk.getIntColumn(mr, 1)[site]);
+        }
+        assertFalse(reader.nextChunk());
+        reader.close();
+    }
+}
@@ -251,6 +251,43 @@ public class TestAnnotationAveragingWriter {
     }
 
 
+    @Test
+    public void testRecordsDoNotDependOnThreads() {
+        final String expected = averageCase6(1);
+        assertEquals(expected, averageCase6(4));
+    }
+
+    private String averageCase6(final int numRecordThreads) {
+        String[] groups = new String[]{"group1", "group2"};
+        String[] samples = new String[]{"sample1", "sample2", "sample3", "sample4", "sample5", "sample6"};
+        int[] positions = new int[]{5, 7, 12, 14, 19, 24, 26, 29};
+        int[][] C = {{5, 3, 4, 8, 5, 2, 8, 7}, {5, 3, 9, 8, 9, 8, 4, 9}, {5, 3, 9, 8, 7, 9, 8, 0}, {5, 3, 9, 8, 9, 9, 8, 0},
+                {5, 3, 9, 8, 2, 9, 8, 0}, {0, 3, 5, 8, 8, 7, 8, 0}};
+        int[][] Cm = {{9, 7, 1, 5, 3, 7, 0, 3}, {9, 3, 1, 7, 4, 7, 0, 3}, {9, 6, 1, 2, 8, 7, 8, 3}, {9, 1, 1, 9, 2, 7, 8, 3},
+                {0, 7, 1, 8, 8, 7, 8, 3}, {8, 7, 1, 5, 3, 7, 8, 3}};
+        testSupport = new MethylCountProviderTestSupport(groups, samples, positions, "Case3", C, Cm);
+
+        AnnotationAveragingWriter.doc().setValue("record-threads", numRecordThreads);
+        final StringWriter stringWriter = new StringWriter();
+        try {
+            AnnotationAveragingWriter testWriter = new AnnotationAveragingWriter(stringWriter, genome, testSupport);
+            testWriter.setContexts(DEFAULT_TEST_CONTEXTS);
+            testWriter.setWriteCounts(true);
+            testWriter.setAnnotationFilename("test-data/vcf-averaging/annotations-1.tsv");
+            testWriter.setSampleIndexToGroupIndex(new int[]{0, 0, 0, 1, 1, 1});
+            ArrayList<GroupComparison> groupComparisons = new ArrayList<GroupComparison>();
+            groupComparisons.add(new GroupComparison("group1", "group2", 0, 1, 0));
+            testWriter.setGroupComparisons(groupComparisons);
+            for (int i = 0; i < positions.length; i++) {
+                testWriter.writeRecord();
+            }
+            testWriter.close();
+        } finally {
+            AnnotationAveragingWriter.doc().setValue("record-threads", 1);
+        }
+        return stringWriter.getBuffer().toString();
+    }
+
     @Test
     public void testCase7() {
         String[] groups = new String[]{"group1"};
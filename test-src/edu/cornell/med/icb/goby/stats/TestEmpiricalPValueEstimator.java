@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.stats;
+
+import edu.cornell.med.icb.goby.algorithmic.algorithm.dmr.EstimatedDistribution;
+import edu.cornell.med.icb.goby.algorithmic.algorithm.dmr.PTestMciProviderStatisticAdaptor;
+import edu.cornell.med.icb.goby.algorithmic.data.MethylCountInfo;
+import edu.cornell.med.icb.goby.algorithmic.data.SamplePairEnumerator;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import org.apache.commons.io.FileUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Fabien Campagne
+ *         Date: Oct 19, 2012
+ */
+public class TestEmpiricalPValueEstimator {
+    private static final int NUM_SAMPLES = 60;
+    private static final String BASE_TEST_DIR = "test-results/empirical-p";
+
+    @BeforeClass
+    public static void initializeTestDirectory() throws IOException {
+        FileUtils.forceMkdir(new File(BASE_TEST_DIR));
+    }
+
+    @AfterClass
+    public static void cleanupTestDirectory() throws IOException {
+        FileUtils.forceDeleteOnExit(new File(BASE_TEST_DIR));
+    }
+
+    private EmpiricalPValueEstimator createEstimator(final int numThreads) {
+        final EmpiricalPValueEstimator estimator = new EmpiricalPValueEstimator();
+        final PTestMciProviderStatisticAdaptor adaptor = new PTestMciProviderStatisticAdaptor();
+        estimator.setStatAdaptor(adaptor);
+        estimator.setNullDistribution(new EstimatedDistribution(1, adaptor));
+        final SamplePairEnumerator enumerator = new SamplePairEnumerator(new int[NUM_SAMPLES], NUM_SAMPLES, 1, 0);
+        enumerator.recordPairForGroup(0);
+        estimator.setGroupEnumerator(enumerator);
+        estimator.setNumThreads(numThreads);
+        return estimator;
+    }
+
+    private void assertSameDistributions(final EstimatedDistribution expected, final EstimatedDistribution actual) {
+        for (int sumTotal = 0; sumTotal < 400; sumTotal++) {
+            for (int scaledStatistic = 0; scaledStatistic < 10000; scaledStatistic += 50) {
+                assertEquals(expected.getCumulativeCount(scaledStatistic, sumTotal),
+                        actual.getCumulativeCount(scaledStatistic, sumTotal));
+            }
+        }
+    }
+
+    @Test
+    public void testPairsWithinGroup() {
+        final SamplePairEnumerator enumerator = new SamplePairEnumerator(new int[]{0, 1, 0, 0}, 4, 2, 0);
+        enumerator.recordPairForGroup(0);
+        assertEquals(3, enumerator.getPairs(0).size());
+        assertEquals(new SamplePair(0, 2), enumerator.getPairs(0).get(0));
+        assertEquals(new SamplePair(2, 3), enumerator.getPairs(0).get(2));
+    }
+
+    @Test
+    public void testNullDensityDoesNotDependOnThreads() {
+        final EmpiricalPValueEstimator sequential = createEstimator(1);
+        final EmpiricalPValueEstimator parallel = createEstimator(4);
+        final MethylCountInfo mci = new MethylCountInfo(NUM_SAMPLES, 1);
+        final Random random = new Random(37);
+        for (int site = 0; site < 20; site++) {
+            for (int sample = 0; sample < NUM_SAMPLES; sample++) {
+                mci.methylatedCCountPerSample[sample] = random.nextInt(100);
+                mci.unmethylatedCCountPerSample[sample] = random.nextInt(100);
+            }
+            sequential.estimateNullDensity(0, 0, mci);
+            parallel.estimateNullDensity(0, 0, mci);
+        }
+        parallel.close();
+        final EstimatedDistribution expected = sequential.getNullDistribution();
+        assertTrue(totalCount(expected) > 0);
+        assertSameDistributions(expected, parallel.getNullDistribution());
+    }
+
+    @Test
+    public void testNullDensityFromPairArrays() {
+        final EmpiricalPValueEstimator sequential = createEstimator(1);
+        final EmpiricalPValueEstimator parallel = createEstimator(3);
+        final PairArrays pairs = new PairArrays(2000, new Random(11));
+        sequential.estimateNullDensity(pairs.valuesA, pairs.valuesB, pairs.covariatesA, pairs.covariatesB);
+        parallel.estimateNullDensity(pairs.valuesA, pairs.valuesB, pairs.covariatesA, pairs.covariatesB);
+        assertTrue(totalCount(sequential.getNullDistribution()) > 0);
+        assertSameDistributions(sequential.getNullDistribution(), parallel.getNullDistribution());
+        parallel.close();
+    }
+
+    @Test
+    public void testEstimatePFromLoadedDensity() throws Exception {
+        final EmpiricalPValueEstimator reference = createEstimator(1);
+        final PairArrays nullPairs = new PairArrays(2000, new Random(5));
+        reference.estimateNullDensity(nullPairs.valuesA, nullPairs.valuesB, nullPairs.covariatesA, nullPairs.covariatesB);
+        final String filename = BASE_TEST_DIR + "/null-density.bin";
+        EstimatedDistribution.store(reference.getNullDistribution(), filename);
+
+        // observe more pairs on top of the loaded density, then estimate p-values before the accumulators of
+        // the threads are merged explicitly:
+        final EmpiricalPValueEstimator loaded = createEstimator(3);
+        loaded.setNullDistribution(EstimatedDistribution.load(filename));
+        final PairArrays morePairs = new PairArrays(1000, new Random(7));
+        reference.estimateNullDensity(morePairs.valuesA, morePairs.valuesB, morePairs.covariatesA, morePairs.covariatesB);
+        loaded.estimateNullDensity(morePairs.valuesA, morePairs.valuesB, morePairs.covariatesA, morePairs.covariatesB);
+
+        final Random random = new Random(13);
+        int numInformative = 0;
+        for (int site = 0; site < 50; site++) {
+            final PairArrays testPairs = new PairArrays(4, random);
+            final double expected = reference.estimateEmpiricalP("A/B", testPairs.valuesA, testPairs.valuesB,
+                    testPairs.covariatesA, testPairs.covariatesB);
+            final double p = loaded.estimateEmpiricalP("A/B", testPairs.valuesA, testPairs.valuesB,
+                    testPairs.covariatesA, testPairs.covariatesB);
+            assertTrue(p >= 0 && p <= 1);
+            assertEquals(expected, p, 0);
+            if (p < 1) {
+                numInformative++;
+            }
+        }
+        assertTrue(numInformative > 0);
+        assertSameDistributions(reference.getNullDistribution(), loaded.getNullDistribution());
+        loaded.close();
+    }
+
+    /**
+     * Random methylated and unmethylated counts for pairs of samples.
+     */
+    private static class PairArrays {
+        final IntArrayList[] valuesA;
+        final IntArrayList[] valuesB;
+        final IntArrayList[] covariatesA;
+        final IntArrayList[] covariatesB;
+
+        PairArrays(final int numPairs, final Random random) {
+            valuesA = new IntArrayList[numPairs];
+            valuesB = new IntArrayList[numPairs];
+            covariatesA = new IntArrayList[numPairs];
+            covariatesB = new IntArrayList[numPairs];
+            for (int i = 0; i < numPairs; i++) {
+                valuesA[i] = IntArrayList.wrap(new int[]{random.nextInt(100), random.nextInt(100)});
+                valuesB[i] = IntArrayList.wrap(new int[]{random.nextInt(100), random.nextInt(100)});
+                covariatesA[i] = new IntArrayList();
+                covariatesB[i] = new IntArrayList();
+            }
+        }
+    }
+
+    /**
+     * Sum the observations of the contexts of sumTotal covariates in [1, 400[.
+     */
+    private long totalCount(final EstimatedDistribution distribution) {
+        long total = 0;
+        int lastContextTotal = -1;
+        for (int sumTotal = 1; sumTotal < 400; sumTotal++) {
+            final long count = distribution.getCumulativeCount(Integer.MAX_VALUE, sumTotal);
+            final int context = distribution.getBinningStrategy().getBinIndex(sumTotal);
+            if (context != lastContextTotal) {
+                total += count;
+                lastContextTotal = context;
+            }
+        }
+        return total;
+    }
+}
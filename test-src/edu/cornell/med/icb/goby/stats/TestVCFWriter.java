@@ -24,15 +24,20 @@ import edu.cornell.med.icb.goby.readers.vcf.VCFParser;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import it.unimi.dsi.fastutil.objects.ObjectArraySet;
 import it.unimi.dsi.lang.MutableString;
+import org.apache.commons.io.FileUtils;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.util.Arrays;
+import java.util.Random;
 
 import static junit.framework.Assert.assertNotNull;
 import static junit.framework.Assert.assertTrue;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
 
@@ -138,4 +143,169 @@ public class TestVCFWriter {
             fail("some syntax error was reported: " + e.getMessage());
         }
     }
+
+    private static ObjectArrayList<String> readRegion(final String filename, final String chromosome,
+                                                      final int start, final int end, final boolean parallel)
+            throws IOException, VCFParser.SyntaxException {
+        final VCFParser parser = new VCFParser(filename, chromosome, start, end);
+        parser.setParallel(parallel);
+        parser.setNumThreads(2);
+        parser.readHeader();
+        final ObjectArrayList<String> result = new ObjectArrayList<String>();
+        while (parser.hasNextDataLine()) {
+            result.add(parser.getStringColumnValue(0) + ":" + parser.getStringColumnValue(1));
+            parser.next();
+        }
+        parser.close();
+        return result;
+    }
+
+    @Test
+    public void testRecordEncoding() {
+        final StringWriter stringWriter = new StringWriter();
+        final VCFWriter writer = new VCFWriter(stringWriter);
+        final int countIndex = writer.defineField("INFO", "COUNT", 1, ColumnType.Integer, "A count");
+        final int flagIndex = writer.defineField("INFO", "FLAG", 1, ColumnType.Flag, "A flag");
+        final int pValueIndex = writer.defineField("INFO", "P", 1, ColumnType.Float, "A P-value");
+        final int textIndex = writer.defineField("INFO", "TEXT", 1, ColumnType.String, "Some text");
+        writer.defineSamples(new String[]{"A", "B"});
+        final int gtIndex = writer.defineField("FORMAT", "GT", 1, ColumnType.String, "Genotype");
+        final int rateIndex = writer.defineField("FORMAT", "RATE", 1, ColumnType.Float, "A rate");
+        final int depthIndex = writer.defineField("FORMAT", "DP", 1, ColumnType.Integer, "Depth");
+        writer.writeHeader();
+
+        writer.setChromosome(new MutableString("chr1"));
+        writer.setPosition(-12345);
+        writer.setReferenceAllele("A");
+        writer.addAlternateAllele("C");
+        writer.addAlternateAllele("T");
+        writer.setInfo(countIndex, Integer.MIN_VALUE);
+        writer.setFlag(flagIndex);
+        writer.setInfo(pValueIndex, 1.0E-12);
+        writer.setInfo(textIndex, "text");
+        writer.setSampleValue(gtIndex, 0, "0/1");
+        writer.setSampleValue(gtIndex, 1, "1/2");
+        writer.setSampleValue(rateIndex, 0, 0.25f);
+        writer.setSampleValue(rateIndex, 1, 33.333333333333336);
+        writer.setSampleValue(depthIndex, 0, 0);
+        writer.setSampleValue(depthIndex, 1, 123456789);
+        writer.writeRecord();
+
+        writer.setChromosome("chr2");
+        writer.setPosition(7);
+        writer.setInfo(pValueIndex, 0.5f);
+        writer.setSampleValue(depthIndex, 1, -3);
+        writer.writeRecord();
+        writer.close();
+
+        final String separator = System.getProperty("line.separator");
+        final String[] lines = stringWriter.getBuffer().toString().split(separator);
+        assertEquals("chr1\t-12345\t.\tA\tC,T\t.\t.\tCOUNT=-2147483648;FLAG;P=1.0E-12;TEXT=text\tGT:RATE:DP\t"
+                + "0/1:0.25:0\t1/2:33.333333333333336:123456789", lines[lines.length - 2]);
+        assertEquals("chr2\t7\t.\t.\t.\t.\t.\tP=0.5\tDP\t\t-3", lines[lines.length - 1]);
+        assertTrue(stringWriter.getBuffer().toString().endsWith(separator));
+    }
+
+    @Test
+    public void testIndexedRegions() throws IOException, VCFParser.SyntaxException {
+        FileUtils.forceMkdir(new File("test-results/vcf-writer"));
+        final String filename = "test-results/vcf-writer/indexed.vcf.gz";
+        final Random random = new Random(2391L);
+        final String[] chromosomes = {"1", "2", "X"};
+        final ObjectArrayList<String> written = new ObjectArrayList<String>();
+        final ObjectArrayList<int[]> positions = new ObjectArrayList<int[]>();
+
+        final VCFWriter writer = new VCFWriter(filename);
+        final int pValueIndex = writer.defineField("INFO", "P", 1, ColumnType.Float, "A P-value");
+        final int countIndex = writer.defineField("FORMAT", "C", 1, ColumnType.Integer, "A count");
+        writer.defineSamples(new String[]{"SampleA", "SampleB"});
+        writer.writeHeader();
+        for (int chromosomeIndex = 0; chromosomeIndex < chromosomes.length; chromosomeIndex++) {
+            int position = 1;
+            for (int i = 0; i < 15000; i++) {
+                position += random.nextInt(200);
+                writer.setChromosome(chromosomes[chromosomeIndex]);
+                writer.setPosition(position);
+                final int referenceLength = 1 + random.nextInt(4);
+                writer.setReferenceAllele("ACGT".substring(0, referenceLength));
+                writer.setInfo(pValueIndex, random.nextDouble());
+                writer.setSampleValue(countIndex, 0, random.nextInt(100));
+                writer.setSampleValue(countIndex, 1, random.nextInt(100));
+                writer.writeRecord();
+                written.add(chromosomes[chromosomeIndex] + ":" + position);
+                positions.add(new int[]{chromosomeIndex, position, referenceLength});
+            }
+        }
+        writer.close();
+        assertTrue(new File(filename + ".tbi").exists());
+
+        for (int query = 0; query < 40; query++) {
+            final int chromosomeIndex = random.nextInt(chromosomes.length);
+            final int start = 1 + random.nextInt(1600000);
+            final int end = start + random.nextInt(query % 2 == 0 ? 500 : 200000);
+            final ObjectArrayList<String> expected = new ObjectArrayList<String>();
+            for (int i = 0; i < written.size(); i++) {
+                final int[] location = positions.get(i);
+                if (location[0] == chromosomeIndex && location[1] + location[2] - 1 >= start && location[1] <= end) {
+                    expected.add(written.get(i));
+                }
+            }
+            assertEquals(chromosomes[chromosomeIndex] + ":" + start + "-" + end, expected,
+                    readRegion(filename, chromosomes[chromosomeIndex], start, end, query % 3 == 0));
+        }
+        assertEquals(written.subList(0, 15000), readRegion(filename, "1", 1, Integer.MAX_VALUE, true));
+        assertEquals(0, readRegion(filename, "Y", 1, 1000000, false).size());
+        assertEquals(0, readRegion(filename, "2", 100000000, 200000000, false).size());
+    }
+
+    @Test
+    public void testRegionIncludesRecordsOverlappingItsStart() throws IOException, VCFParser.SyntaxException {
+        FileUtils.forceMkdir(new File("test-results/vcf-writer"));
+        final String filename = "test-results/vcf-writer/overlap.vcf.gz";
+        final VCFWriter writer = new VCFWriter(filename);
+        writer.defineSamples(new String[]{"SampleA"});
+        writer.writeHeader();
+        final int[] positions = {90, 95, 100, 104, 110};
+        final String[] references = {"A", "ACGTACGTAC", "A", "ACGTAC", "A"};
+        for (int i = 0; i < positions.length; i++) {
+            writer.setChromosome("1");
+            writer.setPosition(positions[i]);
+            writer.setReferenceAllele(references[i]);
+            writer.writeRecord();
+        }
+        writer.close();
+        // the deletion at 95 spans 95-104 and overlaps the region, the record at 90 does not:
+        assertEquals(new ObjectArrayList<String>(new String[]{"1:95", "1:100", "1:104"}),
+                readRegion(filename, "1", 100, 105, false));
+        assertEquals(new ObjectArrayList<String>(new String[]{"1:95", "1:104"}),
+                readRegion(filename, "1", 104, 109, true));
+    }
+
+    @Test
+    public void testUnsortedNotIndexed() throws IOException, VCFParser.SyntaxException {
+        FileUtils.forceMkdir(new File("test-results/vcf-writer"));
+        final String filename = "test-results/vcf-writer/unsorted.vcf.gz";
+        new File(filename + ".tbi").delete();
+        final VCFWriter writer = new VCFWriter(filename);
+        writer.writeHeader();
+        for (final int position : new int[]{10, 5, 20}) {
+            writer.setChromosome("1");
+            writer.setPosition(position);
+            writer.writeRecord();
+        }
+        writer.close();
+        assertTrue(new File(filename).exists());
+        assertFalse(new File(filename + ".tbi").exists());
+
+        // records that follow the first unsorted record are still written:
+        final VCFParser parser = new VCFParser(filename);
+        parser.readHeader();
+        final ObjectArrayList<String> positions = new ObjectArrayList<String>();
+        while (parser.hasNextDataLine()) {
+            positions.add(parser.getStringColumnValue(1));
+            parser.next();
+        }
+        parser.close();
+        assertEquals(Arrays.asList("10", "5", "20"), positions);
+    }
 }
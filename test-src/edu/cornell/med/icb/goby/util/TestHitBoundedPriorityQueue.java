@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.util;
+
+import edu.cornell.med.icb.goby.methylation.MethylationSimilarityMatch;
+import it.unimi.dsi.fastutil.ints.Int2FloatOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Validates the functionality of {@link HitBoundedPriorityQueue}.
+ *
+ * @author Fabien Campagne
+ *         Date: Oct 19, 2012
+ */
+public class TestHitBoundedPriorityQueue {
+
+    @Test
+    public void keepsBestHitPerTarget() {
+        final HitBoundedPriorityQueue queue = new HitBoundedPriorityQueue(2);
+        queue.enqueue(new MethylationSimilarityMatch(0.5f, 0, 10));
+        queue.enqueue(new MethylationSimilarityMatch(0.7f, 0, 20));
+        // a better score for a hit already in the queue, which is not at the head of the queue:
+        queue.enqueue(new MethylationSimilarityMatch(0.9f, 0, 20));
+        // a better score for the hit at the head of the queue:
+        queue.enqueue(new MethylationSimilarityMatch(0.8f, 0, 10));
+        // a worse score is ignored:
+        assertFalse(queue.enqueue(new MethylationSimilarityMatch(0.1f, 0, 20)));
+        assertEquals(2, queue.size());
+        MethylationSimilarityMatch hit = queue.dequeue();
+        assertEquals(10, hit.targetPosition);
+        assertEquals(0.8f, hit.score, 0f);
+        hit = queue.dequeue();
+        assertEquals(20, hit.targetPosition);
+        assertEquals(0.9f, hit.score, 0f);
+    }
+
+    /**
+     * Compares the hits kept by the queue to the best hits per target, ranked by
+     * {@link MethylationSimilarityMatch#INCREASING_SCORE_COMPARATOR}.
+     */
+    @Test
+    public void sameAsSortedBestHits() {
+        final Random random = new Random(1);
+        final int capacity = 10;
+        final int numTargets = 50;
+        for (int round = 0; round < 20; round++) {
+            final HitBoundedPriorityQueue queue = new HitBoundedPriorityQueue(capacity);
+            final Int2FloatOpenHashMap bestScores = new Int2FloatOpenHashMap();
+            for (int i = 0; i < 1000; i++) {
+                final int targetPosition = random.nextInt(numTargets);
+                // few distinct scores, so that ties are ranked by position:
+                final float score = random.nextInt(20) / 20f;
+                queue.enqueue(new MethylationSimilarityMatch(score, 1, targetPosition));
+                if (!bestScores.containsKey(targetPosition) || bestScores.get(targetPosition) < score) {
+                    bestScores.put(targetPosition, score);
+                }
+                if (i == 500) {
+                    // free slots of the queue, which later hits reuse:
+                    final HitBoundedPriorityQueue other = new HitBoundedPriorityQueue(capacity);
+                    other.addAll(queue);
+                    queue.addAll(other);
+                }
+            }
+            final ObjectArrayList<MethylationSimilarityMatch> expected = new ObjectArrayList<MethylationSimilarityMatch>();
+            for (final int targetPosition : bestScores.keySet()) {
+                expected.add(new MethylationSimilarityMatch(bestScores.get(targetPosition), 1, targetPosition));
+            }
+            Collections.sort(expected, MethylationSimilarityMatch.INCREASING_SCORE_COMPARATOR);
+            final int first = expected.size() - capacity;
+            assertEquals(capacity, queue.size());
+            for (int i = first; i < expected.size(); i++) {
+                final MethylationSimilarityMatch hit = queue.dequeue();
+                assertEquals(expected.get(i).targetPosition, hit.targetPosition);
+                assertEquals(expected.get(i).score, hit.score, 0f);
+            }
+        }
+    }
+}
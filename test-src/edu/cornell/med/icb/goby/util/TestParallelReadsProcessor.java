@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.util;
+
+import edu.cornell.med.icb.goby.reads.Reads;
+import edu.cornell.med.icb.goby.reads.ReadsReader;
+import edu.cornell.med.icb.goby.reads.ReadsWriter;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.apache.commons.io.FileUtils;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Validates the functionality of {@link ParallelReadsProcessor}.
+ */
+public class TestParallelReadsProcessor {
+    private static final String BASE_TEST_DIR = "test-results/parallel-reads";
+    private static final String INPUT = "test-data/compact-reads/s_1_sequence_short_1_per_chunk.compact-reads";
+
+    @BeforeClass
+    public static void initializeTestDirectory() throws IOException {
+        FileUtils.forceMkdir(new File(BASE_TEST_DIR));
+    }
+
+    /**
+     * Collect read indices of each slice. Slices must return every read exactly once, in file order.
+     */
+    private static class ReadIndices extends ParallelReadsProcessor<IntArrayList> {
+        private final IntArrayList readIndices = new IntArrayList();
+
+        ReadIndices(final String inputFilename) {
+            super(inputFilename);
+        }
+
+        @Override
+        protected IntArrayList createSliceState(final int sliceIndex) {
+            return new IntArrayList();
+        }
+
+        @Override
+        protected void processRead(final IntArrayList sliceState, final Reads.ReadEntry entry) {
+            sliceState.add(entry.getReadIndex());
+        }
+
+        @Override
+        protected void combine(final ObjectArrayList<IntArrayList> sliceStates) {
+            for (final IntArrayList slice : sliceStates) {
+                readIndices.addAll(slice);
+            }
+        }
+    }
+
+    private static int[] sequentialReadIndices(final String filename) throws IOException {
+        final IntArrayList result = new IntArrayList();
+        final ReadsReader reader = new ReadsReader(filename);
+        for (final Reads.ReadEntry entry : reader) {
+            result.add(entry.getReadIndex());
+        }
+        reader.close();
+        return result.toIntArray();
+    }
+
+    @Test
+    public void sliceOffsets() {
+        assertArrayEquals(new long[]{0, 10, 20, Long.MAX_VALUE}, ParallelReadsProcessor.sliceOffsets(30, 3));
+        // never more slices than bytes:
+        assertArrayEquals(new long[]{0, 1, Long.MAX_VALUE}, ParallelReadsProcessor.sliceOffsets(2, 10));
+        assertArrayEquals(new long[]{0, Long.MAX_VALUE}, ParallelReadsProcessor.sliceOffsets(0, 4));
+    }
+
+    @Test
+    public void everyReadOnceInOrder() throws IOException {
+        final int[] expected = sequentialReadIndices(INPUT);
+        assertEquals(73, expected.length);
+        for (final int numSlices : new int[]{1, 2, 3, 7, 16, 100}) {
+            final ReadIndices processor = new ReadIndices(INPUT);
+            processor.setNumThreads(4);
+            processor.setNumSlices(numSlices);
+            processor.execute();
+            assertArrayEquals("slices=" + numSlices, expected, processor.readIndices.toIntArray());
+        }
+    }
+
+    @Test
+    public void compactOutputPreservesOrder() throws IOException {
+        final String output = BASE_TEST_DIR + "/copy.compact-reads";
+        final ParallelReadsToCompactProcessor<Void> processor = new ParallelReadsToCompactProcessor<Void>(INPUT, output) {
+            @Override
+            protected void writeRead(final ReadsWriter writer, final Void scratch, final Reads.ReadEntry entry)
+                    throws IOException {
+                writer.appendEntry(entry.toBuilder());
+            }
+        };
+        processor.setNumThreads(3);
+        processor.setNumSlices(9);
+        processor.execute();
+        assertArrayEquals(sequentialReadIndices(INPUT), sequentialReadIndices(output));
+    }
+}
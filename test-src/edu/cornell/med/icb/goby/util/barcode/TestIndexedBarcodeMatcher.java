@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.util.barcode;
+
+import it.unimi.dsi.lang.MutableString;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Validates that {@link IndexedBarcodeMatcher} returns the same matches as the matcher it indexes.
+ */
+public class TestIndexedBarcodeMatcher {
+    private static final char[] ACGTN = {'A', 'C', 'G', 'T', 'N'};
+    private static final String ADAPTER = "CGTATGCCGT";
+
+    private static String randomSequence(final Random random, final int length, final int alphabetSize) {
+        final MutableString result = new MutableString(length);
+        for (int i = 0; i < length; i++) {
+            result.append(ACGTN[random.nextInt(alphabetSize)]);
+        }
+        return result.toString();
+    }
+
+    private static String[] barcodes(final Random random, final int numBarcodes, final int barcodeLength) {
+        final String[] barcodes = new String[numBarcodes];
+        for (int i = 0; i < numBarcodes; i++) {
+            barcodes[i] = randomSequence(random, barcodeLength, 4) + ADAPTER;
+        }
+        return barcodes;
+    }
+
+    private static MutableString mutate(final Random random, final String sequence, final int numMutations) {
+        final MutableString result = new MutableString(sequence);
+        for (int i = 0; i < numMutations; i++) {
+            result.charAt(random.nextInt(result.length()), ACGTN[random.nextInt(5)]);
+        }
+        return result;
+    }
+
+    private void compare(final boolean post, final int allowedMismatches) {
+        final Random random = new Random(3223L + allowedMismatches);
+        final int barcodeLength = 6;
+        final String[] barcodes = barcodes(random, 96, barcodeLength);
+        final BarcodeMatcher plain = post ? new PostBarcodeMatcher(barcodes, barcodeLength, allowedMismatches)
+                : new PreBarcodeMatcher(barcodes, barcodeLength, allowedMismatches);
+        final BarcodeMatcher indexed = new IndexedBarcodeMatcher(post
+                ? new PostBarcodeMatcher(barcodes, barcodeLength, allowedMismatches)
+                : new PreBarcodeMatcher(barcodes, barcodeLength, allowedMismatches));
+        for (int i = 0; i < 5000; i++) {
+            final String insert = randomSequence(random, 20 + random.nextInt(10), 5);
+            final String barcode = barcodes[random.nextInt(barcodes.length)];
+            final String withBarcode = barcode.substring(0, barcodeLength + random.nextInt(ADAPTER.length()));
+            final MutableString sequence = mutate(random, post ? insert + withBarcode : withBarcode + insert,
+                    random.nextInt(4));
+            assertEquals(sequence.toString(), plain.matchSequence(sequence), indexed.matchSequence(sequence));
+        }
+        assertEquals(plain.getBarcodeIndexToHitsMap(), indexed.getBarcodeIndexToHitsMap());
+    }
+
+    @Test
+    public void samePreMatches() {
+        for (int allowedMismatches = 0; allowedMismatches <= 2; allowedMismatches++) {
+            compare(false, allowedMismatches);
+        }
+    }
+
+    @Test
+    public void samePostMatches() {
+        for (int allowedMismatches = 0; allowedMismatches <= 2; allowedMismatches++) {
+            compare(true, allowedMismatches);
+        }
+    }
+
+    @Test
+    public void shortSequences() {
+        final String[] barcodes = {"ACGTAC" + ADAPTER, "TTGTAC" + ADAPTER};
+        final BarcodeMatcher indexed = new IndexedBarcodeMatcher(new PostBarcodeMatcher(barcodes, 6, 1));
+        assertEquals(null, indexed.matchSequence(new MutableString("ACG")));
+        assertEquals(0, indexed.matchSequence(new MutableString("ACGTAC")).getBarcodeIndex());
+        assertEquals(1, indexed.matchSequence(new MutableString("GGGGTTGTACCG")).getBarcodeIndex());
+    }
+}